@@ -0,0 +1,756 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// UDP channels
+// UDP sessions share a few channels per shard instead of having a socket each.
+// A channel is a SOCKS5 UDP association: a control connection to the proxy and
+// a UDP socket connected to the relay, which adds a header with the remote address.
+// Replies only carry the remote address, so a channel never has two sessions with the same
+// remote and a session is found back in the hash of the channel by its remote.
+// Without a proxy a channel is a shared unconnected socket per IP version,
+// with the same rule, because replies are matched by their source address only.
+// Concurrent flows to one remote, like a burst of DNS queries to the same server,
+// need as many channels, so more than UDP_CHANNELS can be opened for them.
+// Datagrams are queued per channel and sent and received in batches.
+// https://tools.ietf.org/html/rfc1928#section-7
+
+extern int socks5_method;
+
+void init_udp_channels(struct udp_channels *channels) {
+    memset(channels, 0, sizeof(struct udp_channels));
+    for (int i = 0; i < UDP_CHANNELS_MAX; i++) {
+        channels->channel[i].socket = -1;
+        channels->channel[i].control = -1;
+    }
+}
+
+int is_udp_channel_event(const struct arguments *args, const void *ptr) {
+    const struct udp_channels *channels = &args->shard->channels;
+    return ((const uint8_t *) ptr >= (const uint8_t *) &channels->channel[0] &&
+            (const uint8_t *) ptr < (const uint8_t *) &channels->channel[UDP_CHANNELS_MAX]);
+}
+
+static int is_channel_open(const struct udp_channel *ch) {
+    return (ch->control >= 0 || ch->socket >= 0);
+}
+
+static void count_sockets(struct udp_channels *channels, int delta) {
+    channels->sockets += delta;
+    if (channels->sockets > channels->peak)
+        channels->peak = channels->sockets;
+}
+
+static uint32_t get_channel_bucket(int version, const void *daddr, __be16 dest) {
+    uint32_t hash = dest;
+    const uint32_t *addr = (const uint32_t *) daddr;
+    for (int i = 0; i < (version == 4 ? 1 : 4); i++)
+        hash = hash * 31 + addr[i];
+    hash ^= hash >> 16;
+    return hash & (UDP_CHANNEL_BUCKETS - 1);
+}
+
+static struct ng_session *find_flow(const struct udp_channel *ch,
+                                    int version, const void *daddr, __be16 dest) {
+    struct ng_session *s = ch->bucket[get_channel_bucket(version, daddr, dest)];
+    while (s != NULL &&
+           !(s->udp.version == version && s->udp.dest == dest &&
+             memcmp(&s->udp.daddr, daddr, version == 4 ? 4 : 16) == 0))
+        s = s->udp.channel_next;
+    return s;
+}
+
+static void close_udp_channel(const struct arguments *args, struct udp_channel *ch) {
+    // Sessions continue to exist until they expire, the app will get new ones
+    for (int b = 0; b < UDP_CHANNEL_BUCKETS; b++)
+        while (ch->bucket[b] != NULL) {
+            struct ng_session *s = ch->bucket[b];
+            ch->bucket[b] = s->udp.channel_next;
+            s->udp.channel = -1;
+            s->udp.channel_next = NULL;
+            s->udp.state = UDP_FINISHING;
+            update_session(args, s);
+        }
+    ch->flows = 0;
+
+    if (ch->control >= 0) {
+        if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_DEL, ch->control, NULL))
+            log_android(ANDROID_LOG_ERROR, "epoll del UDP control error %d: %s",
+                        errno, strerror(errno));
+        if (close(ch->control))
+            log_android(ANDROID_LOG_ERROR, "UDP control close error %d: %s",
+                        errno, strerror(errno));
+        ch->control = -1;
+        count_sockets(&args->shard->channels, -1);
+    }
+    if (ch->socket >= 0) {
+        if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_DEL, ch->socket, NULL))
+            log_android(ANDROID_LOG_ERROR, "epoll del UDP channel error %d: %s",
+                        errno, strerror(errno));
+        if (close(ch->socket))
+            log_android(ANDROID_LOG_ERROR, "UDP channel close error %d: %s",
+                        errno, strerror(errno));
+        ch->socket = -1;
+        count_sockets(&args->shard->channels, -1);
+    }
+
+    while (ch->queue != NULL) {
+        struct tun_packet *p = ch->queue;
+        ch->queue = p->next;
+        ng_pool_free(p, __FILE__, __LINE__);
+    }
+    ch->queue_tail = NULL;
+    ch->queued = 0;
+    ch->state = 0;
+    ch->direct = 0;
+}
+
+static int open_control(const struct arguments *args, struct udp_channel *ch) {
+    ch->control = open_tcp_socket(args, NULL, NULL);
+    if (ch->control < 0)
+        return -1;
+    count_sockets(&args->shard->channels, 1);
+    ch->state = SOCKS5_NONE;
+    ch->received = 0;
+    ch->time = args->shard->wheel.now;
+
+    memset(&ch->cev, 0, sizeof(struct epoll_event));
+    ch->cev.events = EPOLLOUT | EPOLLERR | EPOLLET;
+    ch->cev.data.ptr = &ch->cev;
+    if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_ADD, ch->control, &ch->cev)) {
+        log_android(ANDROID_LOG_ERROR, "epoll add UDP control error %d: %s",
+                    errno, strerror(errno));
+        close_udp_channel(args, ch);
+        return -1;
+    }
+
+    log_android(ANDROID_LOG_INFO, "UDP channel %d control %d opened",
+                (int) (ch - args->shard->channels.channel), ch->control);
+    return 0;
+}
+
+static int open_direct(const struct arguments *args, struct udp_channel *ch, int version) {
+    int sock = socket(version == 4 ? PF_INET : PF_INET6, SOCK_DGRAM, IPPROTO_UDP);
+    if (sock < 0) {
+        log_android(ANDROID_LOG_ERROR, "UDP channel socket error %d: %s",
+                    errno, strerror(errno));
+        return -1;
+    }
+
+    int flags = fcntl(sock, F_GETFL, 0);
+    memset(&ch->ev, 0, sizeof(struct epoll_event));
+    ch->ev.events = EPOLLIN | EPOLLERR;
+    ch->ev.data.ptr = &ch->ev;
+    if (protect_socket(args, sock) < 0 ||
+        flags < 0 || fcntl(sock, F_SETFL, flags | O_NONBLOCK) < 0 ||
+        epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_ADD, sock, &ch->ev)) {
+        log_android(ANDROID_LOG_ERROR, "UDP channel socket setup error %d: %s",
+                    errno, strerror(errno));
+        if (close(sock))
+            log_android(ANDROID_LOG_ERROR, "UDP channel close error %d: %s",
+                        errno, strerror(errno));
+        return -1;
+    }
+
+    ch->socket = sock;
+    ch->direct = (uint8_t) version;
+    ch->state = SOCKS5_CONNECTED;
+    ch->time = args->shard->wheel.now;
+    count_sockets(&args->shard->channels, 1);
+
+    log_android(ANDROID_LOG_INFO, "UDP channel %d socket %d version %d opened",
+                (int) (ch - args->shard->channels.channel), sock, version);
+    return 0;
+}
+
+int open_udp_channel(const struct arguments *args, struct ng_session *s, int direct) {
+    // Use the busiest channel without a session to the same remote, so few channels are needed
+    // The first unused channel is opened, so the extra channels are only opened
+    // when all the others are open and have a session to the remote
+    struct udp_channels *channels = &args->shard->channels;
+    struct udp_channel *ch = NULL;
+    struct udp_channel *unused = NULL;
+    uint8_t kind = (uint8_t) (direct ? s->udp.version : 0);
+    for (int i = 0; i < UDP_CHANNELS_MAX; i++) {
+        struct udp_channel *c = &channels->channel[i];
+        if (!is_channel_open(c)) {
+            if (unused == NULL)
+                unused = c;
+        } else if (c->direct == kind &&
+                   find_flow(c, s->udp.version, &s->udp.daddr, s->udp.dest) == NULL &&
+                   (ch == NULL || c->flows > ch->flows))
+            ch = c;
+    }
+    if (ch == NULL) {
+        if (unused == NULL ||
+            (direct ? open_direct(args, unused, s->udp.version)
+                    : open_control(args, unused)) < 0) {
+            log_android(ANDROID_LOG_WARN, "UDP no channel available");
+            return -1;
+        }
+        ch = unused;
+        if (ch - channels->channel >= UDP_CHANNELS) {
+            char dest[INET6_ADDRSTRLEN + 1];
+            channels->extra++;
+            log_android(ANDROID_LOG_INFO, "UDP channel %d extra for %s/%u",
+                        (int) (ch - channels->channel),
+                        straddr(s->udp.version, &s->udp.daddr, dest), ntohs(s->udp.dest));
+        }
+    }
+
+    uint32_t b = get_channel_bucket(s->udp.version, &s->udp.daddr, s->udp.dest);
+    s->udp.channel = (int8_t) (ch - channels->channel);
+    s->udp.channel_next = ch->bucket[b];
+    ch->bucket[b] = s;
+    ch->flows++;
+    channels->flows++;
+    return 0;
+}
+
+void release_udp_channel(const struct arguments *args, struct ng_session *s) {
+    struct udp_channel *ch = &args->shard->channels.channel[s->udp.channel];
+    struct ng_session **p =
+            &ch->bucket[get_channel_bucket(s->udp.version, &s->udp.daddr, s->udp.dest)];
+    while (*p != s)
+        p = &(*p)->udp.channel_next;
+    *p = s->udp.channel_next;
+
+    s->udp.channel = -1;
+    s->udp.channel_next = NULL;
+    ch->flows--;
+    ch->time = args->shard->wheel.now;
+}
+
+static void flush_udp_channel(const struct arguments *args, struct udp_channel *ch) {
+    struct udp_channels *channels = &args->shard->channels;
+    while (ch->queue != NULL) {
+        struct mmsghdr msg[UDP_BATCH];
+        struct iovec iov[UDP_BATCH];
+        int count = 0;
+        for (struct tun_packet *p = ch->queue; p != NULL && count < UDP_BATCH; p = p->next) {
+            // Shared sockets have the address of the remote in front of the data
+            size_t alen = (ch->direct == 0 ? 0 : ch->direct == 4
+                                                 ? sizeof(struct sockaddr_in)
+                                                 : sizeof(struct sockaddr_in6));
+            iov[count].iov_base = p->data + alen;
+            iov[count].iov_len = p->length - alen;
+            memset(&msg[count], 0, sizeof(struct mmsghdr));
+            msg[count].msg_hdr.msg_name = (alen ? p->data : NULL);
+            msg[count].msg_hdr.msg_namelen = (socklen_t) alen;
+            msg[count].msg_hdr.msg_iov = &iov[count];
+            msg[count].msg_hdr.msg_iovlen = 1;
+            count++;
+        }
+
+        int sent = sendmmsg(ch->socket, msg, (unsigned int) count, MSG_NOSIGNAL);
+        if (sent < 0) {
+            if (errno == EAGAIN || errno == EWOULDBLOCK || errno == ENOBUFS)
+                break;
+            log_android(ANDROID_LOG_WARN, "UDP channel sendmmsg error %d: %s",
+                        errno, strerror(errno));
+            if (errno == EINTR)
+                continue;
+            sent = 1; // drop the datagram the error is about
+        } else {
+            channels->batches++;
+            channels->datagrams += sent;
+        }
+
+        for (int i = 0; i < sent; i++) {
+            struct tun_packet *p = ch->queue;
+            ch->queue = p->next;
+            ng_pool_free(p, __FILE__, __LINE__);
+        }
+        ch->queued -= sent;
+        if (ch->queue == NULL)
+            ch->queue_tail = NULL;
+    }
+
+    // Wait for room in the send buffer
+    uint32_t events = EPOLLIN | EPOLLERR | (ch->queue != NULL ? EPOLLOUT : 0);
+    if (events != ch->ev.events) {
+        ch->ev.events = events;
+        if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_MOD, ch->socket, &ch->ev))
+            log_android(ANDROID_LOG_ERROR, "epoll mod UDP channel error %d: %s",
+                        errno, strerror(errno));
+    }
+}
+
+int send_udp_channel(const struct arguments *args, struct ng_session *s,
+                     const uint8_t *data, size_t datalen) {
+    struct udp_channel *ch = &args->shard->channels.channel[s->udp.channel];
+    if (ch->queued >= UDP_CHANNEL_QUEUE) {
+        log_android(ANDROID_LOG_DEBUG, "UDP channel queue full");
+        errno = ENOBUFS;
+        return -1;
+    }
+
+    size_t hlen;
+    if (ch->direct)
+        hlen = (s->udp.version == 4 ? sizeof(struct sockaddr_in) : sizeof(struct sockaddr_in6));
+    else
+        hlen = (s->udp.version == 4 ? 10 : 22);
+    struct tun_packet *p = ng_pool_alloc(sizeof(struct tun_packet) + hlen + datalen,
+                                         "udp channel");
+    p->next = NULL;
+    p->length = hlen + datalen;
+    if (ch->direct) {
+        // Socket address of the remote
+        memset(p->data, 0, hlen);
+        if (s->udp.version == 4) {
+            struct sockaddr_in *addr4 = (struct sockaddr_in *) p->data;
+            addr4->sin_family = AF_INET;
+            addr4->sin_addr.s_addr = (__be32) s->udp.daddr.ip4;
+            addr4->sin_port = s->udp.dest;
+        } else {
+            struct sockaddr_in6 *addr6 = (struct sockaddr_in6 *) p->data;
+            addr6->sin6_family = AF_INET6;
+            memcpy(&addr6->sin6_addr, &s->udp.daddr.ip6, 16);
+            addr6->sin6_port = s->udp.dest;
+        }
+    } else {
+        // Request header: reserved, fragment, address type, address and port of the remote
+        p->data[0] = 0;
+        p->data[1] = 0;
+        p->data[2] = 0;
+        p->data[3] = (uint8_t) (s->udp.version == 4 ? 1 : 4);
+        memcpy(p->data + 4, &s->udp.daddr, hlen - 6);
+        *((__be16 *) (p->data + hlen - 2)) = s->udp.dest;
+    }
+    memcpy(p->data + hlen, data, datalen);
+
+    if (ch->queue_tail == NULL)
+        ch->queue = p;
+    else
+        ch->queue_tail->next = p;
+    ch->queue_tail = p;
+    ch->queued++;
+
+    // Full batches are sent at once, the rest before polling
+    if (ch->state == SOCKS5_CONNECTED && ch->queued >= UDP_BATCH)
+        flush_udp_channel(args, ch);
+
+    return 0;
+}
+
+void flush_udp_channels(const struct arguments *args) {
+    struct udp_channels *channels = &args->shard->channels;
+    for (int i = 0; i < UDP_CHANNELS_MAX; i++) {
+        struct udp_channel *ch = &channels->channel[i];
+        if (ch->state == SOCKS5_CONNECTED && ch->queue != NULL)
+            flush_udp_channel(args, ch);
+    }
+}
+
+static int send_associate(struct udp_channel *ch, int method) {
+    // Credentials and the associate request in one write, optionally after the greeting
+    // The client address is not known behind NAT, so it is left unspecified
+    uint8_t buffer[3 + 512 + 10];
+    size_t len = 0;
+    if (ch->state == SOCKS5_NONE) {
+        buffer[len++] = 5; // version
+        buffer[len++] = 1; // methods
+        buffer[len++] = (uint8_t) method;
+    }
+    if (method == 2)
+        len += get_socks5_auth(buffer + len);
+    uint8_t associate[10] = {5, 3, 0, 1, 0, 0, 0, 0, 0, 0};
+    memcpy(buffer + len, associate, sizeof(associate));
+    len += sizeof(associate);
+
+    ssize_t sent = send(ch->control, buffer, len, MSG_NOSIGNAL);
+    if (sent < 0 && errno == EINPROGRESS) {
+        // TCP Fast Open without cookie, send again when connected
+        ch->state = SOCKS5_NONE;
+        return 0;
+    }
+    ch->state = (uint8_t) (method == 2 ? SOCKS5_PIPELINED_AUTH : SOCKS5_PIPELINED);
+    if (sent != len) {
+        log_android(ANDROID_LOG_ERROR, "UDP control send %d/%d error %d: %s",
+                    (int) sent, (int) len, errno, strerror(errno));
+        return -1;
+    }
+    return 0;
+}
+
+static int open_relay(const struct arguments *args, struct udp_channel *ch, size_t offset) {
+    // The relay address of the reply, unspecified means the address of the proxy,
+    // which is one of the upstreams, so it is taken from the control connection
+    const uint8_t *reply = ch->reply + offset;
+    struct sockaddr_in addr4;
+    struct sockaddr_in6 addr6;
+    struct sockaddr_in6 proxy;
+    socklen_t plen = sizeof(proxy);
+    int version = (reply[3] == 1 ? 4 : 6);
+    if (getpeername(ch->control, (struct sockaddr *) &proxy, &plen) < 0 ||
+        proxy.sin6_family != (version == 4 ? AF_INET : AF_INET6))
+        memset(&proxy, 0, sizeof(proxy));
+    if (version == 4) {
+        memset(&addr4, 0, sizeof(struct sockaddr_in));
+        addr4.sin_family = AF_INET;
+        memcpy(&addr4.sin_addr, reply + 4, 4);
+        addr4.sin_port = *((__be16 *) (reply + 8));
+        if (addr4.sin_addr.s_addr == INADDR_ANY)
+            addr4.sin_addr = ((struct sockaddr_in *) &proxy)->sin_addr;
+        if (addr4.sin_addr.s_addr == INADDR_ANY)
+            return -1;
+    } else {
+        memset(&addr6, 0, sizeof(struct sockaddr_in6));
+        addr6.sin6_family = AF_INET6;
+        memcpy(&addr6.sin6_addr, reply + 4, 16);
+        addr6.sin6_port = *((__be16 *) (reply + 20));
+        if (IN6_IS_ADDR_UNSPECIFIED(&addr6.sin6_addr))
+            addr6.sin6_addr = proxy.sin6_addr;
+        if (IN6_IS_ADDR_UNSPECIFIED(&addr6.sin6_addr))
+            return -1;
+    }
+
+    int sock = socket(version == 4 ? PF_INET : PF_INET6, SOCK_DGRAM, IPPROTO_UDP);
+    if (sock < 0) {
+        log_android(ANDROID_LOG_ERROR, "UDP channel socket error %d: %s",
+                    errno, strerror(errno));
+        return -1;
+    }
+
+    int flags = fcntl(sock, F_GETFL, 0);
+    memset(&ch->ev, 0, sizeof(struct epoll_event));
+    ch->ev.events = EPOLLIN | EPOLLERR;
+    ch->ev.data.ptr = &ch->ev;
+    if (protect_socket(args, sock) < 0 ||
+        flags < 0 || fcntl(sock, F_SETFL, flags | O_NONBLOCK) < 0 ||
+        connect(sock,
+                (version == 4 ? (const struct sockaddr *) &addr4
+                              : (const struct sockaddr *) &addr6),
+                (socklen_t) (version == 4 ? sizeof(addr4) : sizeof(addr6))) < 0 ||
+        epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_ADD, sock, &ch->ev)) {
+        log_android(ANDROID_LOG_ERROR, "UDP channel relay error %d: %s",
+                    errno, strerror(errno));
+        if (close(sock))
+            log_android(ANDROID_LOG_ERROR, "UDP channel close error %d: %s",
+                        errno, strerror(errno));
+        return -1;
+    }
+
+    ch->socket = sock;
+    return 0;
+}
+
+static int recv_associate(const struct arguments *args, struct udp_channel *ch) {
+    // Greeting, authentication and associate replies, read as a stream
+    // Returns 1 when associated, 0 when more is needed, -1 on error
+    while (1) {
+        int auth = (ch->state == SOCKS5_PIPELINED_AUTH);
+        size_t offset = (auth ? 4 : 2); // associate reply
+        size_t need = (ch->state == SOCKS5_HELLO ? 2 : offset + 4);
+        if (ch->state != SOCKS5_HELLO && ch->received >= need) {
+            uint8_t atype = ch->reply[offset + 3];
+            if (atype != 1 && atype != 4) {
+                log_android(ANDROID_LOG_ERROR, "UDP control address type %d not supported",
+                            atype);
+                return -1;
+            }
+            need += (atype == 1 ? 4 : 16) + 2;
+        }
+
+        if (ch->received < need) {
+            ssize_t bytes = recv(ch->control, ch->reply + ch->received,
+                                 need - ch->received, 0);
+            if (bytes < 0) {
+                if (errno == EAGAIN || errno == EWOULDBLOCK)
+                    return 0;
+                log_android(ANDROID_LOG_ERROR, "UDP control recv error %d: %s",
+                            errno, strerror(errno));
+                return -1;
+            }
+            if (bytes == 0) {
+                log_android(ANDROID_LOG_ERROR, "UDP control closed");
+                return -1;
+            }
+            ch->received += bytes;
+            if (ch->received < need)
+                continue;
+        }
+
+        if (ch->reply[0] != 5) {
+            log_android(ANDROID_LOG_ERROR, "UDP control version %d", ch->reply[0]);
+            return -1;
+        }
+
+        if (ch->state == SOCKS5_HELLO) {
+            // Method chosen by the proxy
+            if (ch->reply[1] != 0 && ch->reply[1] != 2) {
+                log_android(ANDROID_LOG_ERROR, "UDP control auth %d not supported",
+                            ch->reply[1]);
+                return -1;
+            }
+            __atomic_store_n(&socks5_method, ch->reply[1], __ATOMIC_RELAXED);
+            if (send_associate(ch, ch->reply[1]) < 0)
+                return -1;
+            continue;
+        }
+
+        if (ch->reply[1] != (auth ? 2 : 0)) {
+            __atomic_store_n(&socks5_method, -1, __ATOMIC_RELAXED);
+            log_android(ANDROID_LOG_ERROR, "UDP control auth %d not expected", ch->reply[1]);
+            return -1;
+        }
+        if (auth && ch->reply[3] != 0) {
+            log_android(ANDROID_LOG_ERROR, "UDP control auth error %d", ch->reply[3]);
+            return -1;
+        }
+        if (ch->reply[offset] != 5 || ch->reply[offset + 1] != 0) {
+            log_android(ANDROID_LOG_ERROR, "UDP associate error %d", ch->reply[offset + 1]);
+            return -1;
+        }
+        if (need == offset + 4)
+            continue; // address of the relay
+
+        if (open_relay(args, ch, offset) < 0)
+            return -1;
+        return 1;
+    }
+}
+
+static void recv_udp_channel(const struct arguments *args, struct udp_channel *ch) {
+    struct udp_channels *channels = &args->shard->channels;
+    if (channels->buffer == NULL)
+        channels->buffer = ng_malloc(UDP_BATCH * UDP_CHANNEL_MSG, "udp channel");
+
+    struct mmsghdr msg[UDP_BATCH];
+    struct iovec iov[UDP_BATCH];
+    struct sockaddr_in6 name[UDP_BATCH]; // source of shared sockets, large enough for IPv4
+    for (int i = 0; i < UDP_BATCH; i++) {
+        iov[i].iov_base = channels->buffer + i * UDP_CHANNEL_MSG;
+        iov[i].iov_len = UDP_CHANNEL_MSG;
+        memset(&msg[i], 0, sizeof(struct mmsghdr));
+        msg[i].msg_hdr.msg_name = (ch->direct ? &name[i] : NULL);
+        msg[i].msg_hdr.msg_iov = &iov[i];
+        msg[i].msg_hdr.msg_iovlen = 1;
+    }
+
+    for (int batch = 0; batch < UDP_YIELD; batch++) {
+        if (ch->direct)
+            for (int i = 0; i < UDP_BATCH; i++)
+                msg[i].msg_hdr.msg_namelen = sizeof(struct sockaddr_in6);
+
+        int count = recvmmsg(ch->socket, msg, UDP_BATCH, MSG_DONTWAIT, NULL);
+        if (count < 0) {
+            if (errno != EAGAIN && errno != EWOULDBLOCK && errno != EINTR) {
+                log_android(ANDROID_LOG_ERROR, "UDP channel recvmmsg error %d: %s",
+                            errno, strerror(errno));
+                close_udp_channel(args, ch);
+            }
+            return;
+        }
+        channels->rbatches++;
+        channels->rdatagrams += count;
+        ch->time = args->shard->wheel.now;
+
+        for (int i = 0; i < count; i++) {
+            uint8_t *data = iov[i].iov_base;
+            size_t len = msg[i].msg_len;
+            if (msg[i].msg_hdr.msg_flags & MSG_TRUNC) {
+                log_android(ANDROID_LOG_WARN, "UDP channel datagram truncated");
+                continue;
+            }
+
+            int version;
+            size_t hlen;
+            const void *raddr;
+            __be16 port;
+            if (ch->direct) {
+                // Source address of the datagram
+                version = ch->direct;
+                hlen = 0;
+                if (version == 4) {
+                    const struct sockaddr_in *addr4 = (const struct sockaddr_in *) &name[i];
+                    raddr = &addr4->sin_addr;
+                    port = addr4->sin_port;
+                } else {
+                    raddr = &name[i].sin6_addr;
+                    port = name[i].sin6_port;
+                }
+            } else {
+                // Reply header with the remote, fragments are not supported
+                if (len < 10 || data[2] != 0 || (data[3] != 1 && data[3] != 4) ||
+                    (data[3] == 4 && len < 22)) {
+                    log_android(ANDROID_LOG_WARN, "UDP channel invalid header length %d",
+                                (int) len);
+                    continue;
+                }
+                version = (data[3] == 1 ? 4 : 6);
+                hlen = (version == 4 ? 10 : 22);
+                raddr = data + 4;
+                port = *((__be16 *) (data + hlen - 2));
+            }
+            struct ng_session *s = find_flow(ch, version, raddr, port);
+            if (s == NULL) {
+                log_android(ANDROID_LOG_DEBUG, "UDP channel no session for reply");
+                continue;
+            }
+
+            ssize_t bytes = len - hlen;
+            s->udp.time = args->shard->wheel.now;
+            s->udp.received += bytes;
+
+            // Process DNS response
+            if (ntohs(s->udp.dest) == 53)
+                parse_dns_response(args, s, data + hlen, (size_t *) &bytes);
+
+            // Forward to tun
+            if (write_udp(args, &s->udp, data + hlen, (size_t) bytes) < 0 ||
+                ntohs(s->udp.dest) == 53) {
+                s->udp.state = UDP_FINISHING;
+                update_session(args, s);
+            }
+        }
+
+        if (count < UDP_BATCH)
+            break;
+    }
+}
+
+void check_udp_channel(const struct arguments *args, const struct epoll_event *ev) {
+    struct udp_channels *channels = &args->shard->channels;
+    int index = (int) (((const uint8_t *) ev->data.ptr - (const uint8_t *) channels->channel) /
+                       sizeof(struct udp_channel));
+    struct udp_channel *ch = &channels->channel[index];
+
+    if (ev->data.ptr == &ch->cev) {
+        // Control connection
+        if (ev->events & EPOLLERR) {
+            int serr = 0;
+            socklen_t optlen = sizeof(int);
+            getsockopt(ch->control, SOL_SOCKET, SO_ERROR, &serr, &optlen);
+            log_android(ANDROID_LOG_ERROR, "UDP control %d error %d: %s",
+                        ch->control, serr, strerror(serr));
+            close_udp_channel(args, ch);
+            return;
+        }
+
+        if (ch->state == SOCKS5_NONE && (ev->events & EPOLLOUT)) {
+            int method = __atomic_load_n(&socks5_method, __ATOMIC_RELAXED);
+            int rc = 0;
+            if (method == 0 || method == 2)
+                rc = send_associate(ch, method);
+            else {
+                uint8_t hello[4] = {5, 2, 0, 2};
+                ssize_t sent = send(ch->control, hello, sizeof(hello), MSG_NOSIGNAL);
+                if (sent == sizeof(hello))
+                    ch->state = SOCKS5_HELLO;
+                else if (sent >= 0 || errno != EINPROGRESS)
+                    rc = -1;
+            }
+            if (rc < 0) {
+                close_udp_channel(args, ch);
+                return;
+            }
+            if (ch->state == SOCKS5_NONE)
+                return; // wait for connected
+
+            ch->cev.events = EPOLLIN | EPOLLERR;
+            if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_MOD, ch->control, &ch->cev)) {
+                log_android(ANDROID_LOG_ERROR, "epoll mod UDP control error %d: %s",
+                            errno, strerror(errno));
+                close_udp_channel(args, ch);
+            }
+
+        } else if (ev->events & EPOLLIN) {
+            if (ch->state == SOCKS5_CONNECTED) {
+                // The association ends with the control connection
+                log_android(ANDROID_LOG_WARN, "UDP control %d closed by proxy", ch->control);
+                close_udp_channel(args, ch);
+                return;
+            }
+
+            int rc = recv_associate(args, ch);
+            if (rc < 0)
+                close_udp_channel(args, ch);
+            else if (rc > 0) {
+                ch->state = SOCKS5_CONNECTED;
+                ch->time = args->shard->wheel.now;
+                log_android(ANDROID_LOG_INFO, "UDP channel %d associated flows %d queued %d",
+                            index, ch->flows, ch->queued);
+                flush_udp_channel(args, ch);
+            }
+        }
+
+    } else {
+        // Relay socket
+        if (ev->events & EPOLLERR) {
+            int serr = 0;
+            socklen_t optlen = sizeof(int);
+            getsockopt(ch->socket, SOL_SOCKET, SO_ERROR, &serr, &optlen);
+            log_android(ANDROID_LOG_WARN, "UDP channel %d error %d: %s",
+                        index, serr, strerror(serr));
+            // An ICMP unreachable of the relay is retried, shared sockets serve other remotes
+            if (serr != ECONNREFUSED && !ch->direct)
+                close_udp_channel(args, ch);
+            return;
+        }
+        if (ev->events & EPOLLOUT)
+            flush_udp_channel(args, ch);
+        if (ev->events & EPOLLIN)
+            recv_udp_channel(args, ch);
+    }
+}
+
+int expire_udp_channels(const struct arguments *args) {
+    // The association is kept for new sessions for a while after the last one ended
+    // Returns the seconds until the next expiry, like get_timer_timeout
+    struct udp_channels *channels = &args->shard->channels;
+    time_t now = args->shard->wheel.now;
+    int timeout = UDP_KEEP_TIMEOUT;
+    for (int i = 0; i < UDP_CHANNELS_MAX; i++) {
+        struct udp_channel *ch = &channels->channel[i];
+        if (!is_channel_open(ch) || (ch->flows > 0 && ch->state == SOCKS5_CONNECTED))
+            continue;
+        time_t deadline = ch->time +
+                          (ch->state == SOCKS5_CONNECTED ? UDP_KEEP_TIMEOUT : TCP_INIT_TIMEOUT);
+        if (now >= deadline) {
+            log_android(ANDROID_LOG_INFO, "UDP channel %d idle state %d flows %d",
+                        i, ch->state, ch->flows);
+            close_udp_channel(args, ch);
+        } else if (deadline - now < timeout)
+            timeout = (int) (deadline - now);
+    }
+    return timeout;
+}
+
+void clear_udp_channels(const struct arguments *args) {
+    struct udp_channels *channels = &args->shard->channels;
+    for (int i = 0; i < UDP_CHANNELS_MAX; i++) {
+        struct udp_channel *ch = &channels->channel[i];
+        if (is_channel_open(ch))
+            close_udp_channel(args, ch);
+    }
+    if (channels->buffer != NULL) {
+        ng_free(channels->buffer, __FILE__, __LINE__);
+        channels->buffer = NULL;
+    }
+
+    log_android(ANDROID_LOG_INFO,
+                "UDP channels shard %d flows %u dropped %u extra %u sockets peak %d "
+                "sent %u datagrams in %u batches received %u in %u",
+                args->shard->index, channels->flows, channels->drops, channels->extra,
+                channels->peak,
+                channels->datagrams, channels->batches,
+                channels->rdatagrams, channels->rbatches);
+}
@@ -0,0 +1,173 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define CHECKSUM_NEON
+#if defined(__arm__)
+#include <sys/auxv.h>
+#include <asm/hwcap.h>
+#endif
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define CHECKSUM_SSE2
+#endif
+
+// Internet checksum
+// The one's complement sum does not depend on byte order or on the width of the additions,
+// so wide words are summed into a 64 bit accumulator and folded to 16 bits at the end.
+// The implementation is selected once at load time, depending on the ABI and the CPU.
+
+static uint16_t fold_checksum(uint64_t sum) {
+    sum = (sum & 0xFFFFFFFF) + (sum >> 32);
+    sum = (sum & 0xFFFFFFFF) + (sum >> 32);
+    sum = (sum & 0xFFFF) + (sum >> 16);
+    sum = (sum & 0xFFFF) + (sum >> 16);
+    return (uint16_t) sum;
+}
+
+static uint16_t checksum_word(uint16_t start, const uint8_t *buffer, size_t length) {
+    uint64_t sum = start;
+    uint32_t w[8];
+
+    while (length >= sizeof(w)) {
+        memcpy(w, buffer, sizeof(w));
+        sum += (uint64_t) w[0] + w[1] + w[2] + w[3];
+        sum += (uint64_t) w[4] + w[5] + w[6] + w[7];
+        buffer += sizeof(w);
+        length -= sizeof(w);
+    }
+
+    while (length >= 4) {
+        memcpy(w, buffer, 4);
+        sum += w[0];
+        buffer += 4;
+        length -= 4;
+    }
+
+    if (length >= 2) {
+        uint16_t h;
+        memcpy(&h, buffer, 2);
+        sum += h;
+        buffer += 2;
+        length -= 2;
+    }
+
+    if (length > 0)
+        sum += *buffer;
+
+    return fold_checksum(sum);
+}
+
+#ifdef CHECKSUM_NEON
+static uint16_t checksum_neon(uint16_t start, const uint8_t *buffer, size_t length) {
+    uint64x2_t acc = vdupq_n_u64(0);
+
+    while (length >= 64) {
+        uint32x4_t t = vpaddlq_u16(vreinterpretq_u16_u8(vld1q_u8(buffer)));
+        t = vpadalq_u16(t, vreinterpretq_u16_u8(vld1q_u8(buffer + 16)));
+        t = vpadalq_u16(t, vreinterpretq_u16_u8(vld1q_u8(buffer + 32)));
+        t = vpadalq_u16(t, vreinterpretq_u16_u8(vld1q_u8(buffer + 48)));
+        acc = vpadalq_u32(acc, t);
+        buffer += 64;
+        length -= 64;
+    }
+
+    uint64_t sum = start;
+    sum += fold_checksum(vgetq_lane_u64(acc, 0));
+    sum += fold_checksum(vgetq_lane_u64(acc, 1));
+    return checksum_word(fold_checksum(sum), buffer, length);
+}
+#endif
+
+#ifdef CHECKSUM_SSE2
+static uint16_t checksum_sse2(uint16_t start, const uint8_t *buffer, size_t length) {
+    const __m128i zero = _mm_setzero_si128();
+    __m128i acc = zero;
+
+    while (length >= 64) {
+        __m128i v0 = _mm_loadu_si128((const __m128i *) buffer);
+        __m128i v1 = _mm_loadu_si128((const __m128i *) (buffer + 16));
+        __m128i v2 = _mm_loadu_si128((const __m128i *) (buffer + 32));
+        __m128i v3 = _mm_loadu_si128((const __m128i *) (buffer + 48));
+        __m128i t = _mm_add_epi32(_mm_unpacklo_epi16(v0, zero), _mm_unpackhi_epi16(v0, zero));
+        t = _mm_add_epi32(t, _mm_add_epi32(_mm_unpacklo_epi16(v1, zero),
+                                           _mm_unpackhi_epi16(v1, zero)));
+        t = _mm_add_epi32(t, _mm_add_epi32(_mm_unpacklo_epi16(v2, zero),
+                                           _mm_unpackhi_epi16(v2, zero)));
+        t = _mm_add_epi32(t, _mm_add_epi32(_mm_unpacklo_epi16(v3, zero),
+                                           _mm_unpackhi_epi16(v3, zero)));
+        acc = _mm_add_epi64(acc, _mm_unpacklo_epi32(t, zero));
+        acc = _mm_add_epi64(acc, _mm_unpackhi_epi32(t, zero));
+        buffer += 64;
+        length -= 64;
+    }
+
+    uint64_t lanes[2];
+    _mm_storeu_si128((__m128i *) lanes, acc);
+    uint64_t sum = start;
+    sum += fold_checksum(lanes[0]);
+    sum += fold_checksum(lanes[1]);
+    return checksum_word(fold_checksum(sum), buffer, length);
+}
+#endif
+
+static uint16_t (*checksum_impl)(uint16_t, const uint8_t *, size_t) = checksum_word;
+
+void init_checksum() {
+    const char *name = "word";
+
+#ifdef CHECKSUM_NEON
+#if defined(__arm__)
+    // NEON is optional on ARMv7
+    if (getauxval(AT_HWCAP) & HWCAP_NEON)
+#endif
+    {
+        checksum_impl = checksum_neon;
+        name = "neon";
+    }
+#endif
+
+#ifdef CHECKSUM_SSE2
+    checksum_impl = checksum_sse2;
+    name = "sse2";
+#endif
+
+    log_android(ANDROID_LOG_INFO, "Checksum %s", name);
+}
+
+uint16_t calc_checksum(uint16_t start, const uint8_t *buffer, size_t length) {
+    return checksum_impl(start, buffer, length);
+}
+
+uint16_t update_checksum(uint16_t check, uint16_t old, uint16_t new) {
+    // https://tools.ietf.org/html/rfc1624 eqn. 3
+    // HC' = ~(~HC + ~m + m')
+    uint32_t sum = (uint16_t) ~check;
+    sum += (uint16_t) ~old;
+    sum += new;
+    return (uint16_t) ~fold_checksum(sum);
+}
+
+uint16_t update_checksum32(uint16_t check, uint32_t old, uint32_t new) {
+    check = update_checksum(check, (uint16_t) (old >> 16), (uint16_t) (new >> 16));
+    return update_checksum(check, (uint16_t) old, (uint16_t) new);
+}
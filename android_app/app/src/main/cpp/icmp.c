@@ -19,8 +19,6 @@
 
 #include "netguard.h"
 
-extern FILE *pcap_file;
-
 int get_icmp_timeout(const struct icmp_session *u, int sessions, int maxsessions) {
     int timeout = ICMP_TIMEOUT;
 
@@ -32,21 +30,16 @@ int get_icmp_timeout(const struct icmp_session *u, int sessions, int maxsessions
 
 int check_icmp_session(const struct arguments *args, struct ng_session *s,
                        int sessions, int maxsessions) {
-    time_t now = time(NULL);
+    time_t now = args->shard->wheel.now;
 
     int timeout = get_icmp_timeout(&s->icmp, sessions, maxsessions);
     if (s->icmp.stop || s->icmp.time + timeout < now) {
         char source[INET6_ADDRSTRLEN + 1];
         char dest[INET6_ADDRSTRLEN + 1];
-        if (s->icmp.version == 4) {
-            inet_ntop(AF_INET, &s->icmp.saddr.ip4, source, sizeof(source));
-            inet_ntop(AF_INET, &s->icmp.daddr.ip4, dest, sizeof(dest));
-        } else {
-            inet_ntop(AF_INET6, &s->icmp.saddr.ip6, source, sizeof(source));
-            inet_ntop(AF_INET6, &s->icmp.daddr.ip6, dest, sizeof(dest));
-        }
         log_android(ANDROID_LOG_WARN, "ICMP idle %d/%d sec stop %d from %s to %s",
-                    now - s->icmp.time, timeout, s->icmp.stop, dest, source);
+                    now - s->icmp.time, timeout, s->icmp.stop,
+                    straddr(s->icmp.version, &s->icmp.daddr, dest),
+                    straddr(s->icmp.version, &s->icmp.saddr, source));
 
         if (close(s->socket))
             log_android(ANDROID_LOG_ERROR, "ICMP close %d error %d: %s",
@@ -64,7 +57,7 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
 
     // Check socket error
     if (ev->events & EPOLLERR) {
-        s->icmp.time = time(NULL);
+        s->icmp.time = args->shard->wheel.now;
 
         int serr = 0;
         socklen_t optlen = sizeof(int);
@@ -80,10 +73,10 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
     } else {
         // Check socket read
         if (ev->events & EPOLLIN) {
-            s->icmp.time = time(NULL);
+            s->icmp.time = args->shard->wheel.now;
 
             uint16_t blen = (uint16_t) (s->icmp.version == 4 ? ICMP4_MAXMSG : ICMP6_MAXMSG);
-            uint8_t *buffer = ng_malloc(blen, "icmp socket");
+            uint8_t *buffer = ng_pool_alloc(blen, "icmp socket");
             ssize_t bytes = recv(s->socket, buffer, blen, 0);
             if (bytes < 0) {
                 // Socket error
@@ -99,10 +92,6 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
             } else {
                 // Socket read data
                 char dest[INET6_ADDRSTRLEN + 1];
-                if (s->icmp.version == 4)
-                    inet_ntop(AF_INET, &s->icmp.daddr.ip4, dest, sizeof(dest));
-                else
-                    inet_ntop(AF_INET6, &s->icmp.daddr.ip6, dest, sizeof(dest));
 
                 // cur->id should be equal to icmp->icmp_id
                 // but for some unexplained reason this is not the case
@@ -111,14 +100,16 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
                 log_android(
                         s->icmp.id == icmp->icmp_id ? ANDROID_LOG_INFO : ANDROID_LOG_WARN,
                         "ICMP recv bytes %d from %s for tun type %d code %d id %x/%x seq %d",
-                        bytes, dest,
+                        bytes, straddr(s->icmp.version, &s->icmp.daddr, dest),
                         icmp->icmp_type, icmp->icmp_code,
                         s->icmp.id, icmp->icmp_id, icmp->icmp_seq);
 
                 // restore original ID
+                uint16_t id = icmp->icmp_id;
                 icmp->icmp_id = s->icmp.id;
-                uint16_t csum = 0;
-                if (s->icmp.version == 6) {
+                if (s->icmp.version == 4)
+                    icmp->icmp_cksum = update_checksum(icmp->icmp_cksum, id, s->icmp.id);
+                else {
                     // Untested
                     struct ip6_hdr_pseudo pseudo;
                     memset(&pseudo, 0, sizeof(struct ip6_hdr_pseudo));
@@ -126,17 +117,17 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
                     memcpy(&pseudo.ip6ph_dst, &s->icmp.saddr.ip6, 16);
                     pseudo.ip6ph_len = bytes - sizeof(struct ip6_hdr);
                     pseudo.ip6ph_nxt = IPPROTO_ICMPV6;
-                    csum = calc_checksum(
+                    uint16_t csum = calc_checksum(
                             0, (uint8_t *) &pseudo, sizeof(struct ip6_hdr_pseudo));
+                    icmp->icmp_cksum = 0;
+                    icmp->icmp_cksum = ~calc_checksum(csum, buffer, (size_t) bytes);
                 }
-                icmp->icmp_cksum = 0;
-                icmp->icmp_cksum = ~calc_checksum(csum, buffer, (size_t) bytes);
 
                 // Forward to tun
                 if (write_icmp(args, &s->icmp, buffer, (size_t) bytes) < 0)
                     s->icmp.stop = 1;
             }
-            ng_free(buffer, __FILE__, __LINE__);
+            ng_pool_free(buffer, __FILE__, __LINE__);
         }
     }
 }
@@ -145,6 +136,7 @@ jboolean handle_icmp(const struct arguments *args,
                      const uint8_t *pkt, size_t length,
                      const uint8_t *payload,
                      int uid,
+                     struct ng_session *cur,
                      const int epoll_fd) {
     // Get headers
     const uint8_t version = (*pkt) >> 4;
@@ -155,40 +147,26 @@ jboolean handle_icmp(const struct arguments *args,
 
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
-    }
+    const void *saddr = (version == 4 ? (const void *) &ip4->saddr : &ip6->ip6_src);
+    const void *daddr = (version == 4 ? (const void *) &ip4->daddr : &ip6->ip6_dst);
 
     if (icmp->icmp_type != ICMP_ECHO) {
         log_android(ANDROID_LOG_WARN, "ICMP type %d code %d from %s to %s not supported",
-                    icmp->icmp_type, icmp->icmp_code, source, dest);
+                    icmp->icmp_type, icmp->icmp_code, straddr(version, saddr, source),
+                    straddr(version, daddr, dest));
         return 0;
     }
 
-    // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !((cur->protocol == IPPROTO_ICMP || cur->protocol == IPPROTO_ICMPV6) &&
-             !cur->icmp.stop && cur->icmp.version == version &&
-             (version == 4 ? cur->icmp.saddr.ip4 == ip4->saddr &&
-                             cur->icmp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->icmp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->icmp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
-
     // Create new session if needed
     if (cur == NULL) {
-        log_android(ANDROID_LOG_INFO, "ICMP new session from %s to %s", source, dest);
+        log_android(ANDROID_LOG_INFO, "ICMP new session from %s to %s",
+                    straddr(version, saddr, source), straddr(version, daddr, dest));
 
         // Register session
         struct ng_session *s = ng_malloc(sizeof(struct ng_session), "icmp session");
         s->protocol = (uint8_t) (version == 4 ? IPPROTO_ICMP : IPPROTO_ICMPV6);
 
-        s->icmp.time = time(NULL);
+        s->icmp.time = args->shard->wheel.now;
         s->icmp.uid = uid;
         s->icmp.version = version;
 
@@ -221,8 +199,7 @@ jboolean handle_icmp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add icmp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args, s);
 
         cur = s;
     }
@@ -246,10 +223,10 @@ jboolean handle_icmp(const struct arguments *args,
 
     log_android(ANDROID_LOG_INFO,
                 "ICMP forward from tun %s to %s type %d code %d id %x seq %d data %d",
-                source, dest,
+                straddr(version, saddr, source), straddr(version, daddr, dest),
                 icmp->icmp_type, icmp->icmp_code, icmp->icmp_id, icmp->icmp_seq, icmplen);
 
-    cur->icmp.time = time(NULL);
+    cur->icmp.time = args->shard->wheel.now;
 
     struct sockaddr_in server4;
     struct sockaddr_in6 server6;
@@ -271,6 +248,7 @@ jboolean handle_icmp(const struct arguments *args,
         log_android(ANDROID_LOG_ERROR, "ICMP sendto error %d: %s", errno, strerror(errno));
         if (errno != EINTR && errno != EAGAIN) {
             cur->icmp.stop = 1;
+            update_session(args, cur);
             return 0;
         }
     }
@@ -298,6 +276,7 @@ int open_icmp_socket(const struct arguments *args, const struct icmp_session *cu
 ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
                    uint8_t *data, size_t datalen) {
     size_t len;
+    struct tun_packet *packet;
     u_int8_t *buffer;
     struct icmp *icmp = (struct icmp *) data;
     char source[INET6_ADDRSTRLEN + 1];
@@ -306,7 +285,8 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
     // Build packet
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + datalen;
-        buffer = ng_malloc(len, "icmp write4");
+        packet = ng_pool_alloc(sizeof(struct tun_packet) + len, "icmp write4");
+        buffer = packet->data;
         struct iphdr *ip4 = (struct iphdr *) buffer;
         if (datalen)
             memcpy(buffer + sizeof(struct iphdr), data, datalen);
@@ -325,7 +305,8 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
         ip4->check = ~calc_checksum(0, (uint8_t *) ip4, sizeof(struct iphdr));
     } else {
         len = sizeof(struct ip6_hdr) + datalen;
-        buffer = ng_malloc(len, "icmp write6");
+        packet = ng_pool_alloc(sizeof(struct tun_packet) + len, "icmp write6");
+        buffer = packet->data;
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         if (datalen)
             memcpy(buffer + sizeof(struct ip6_hdr), data, datalen);
@@ -341,34 +322,127 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
         memcpy(&(ip6->ip6_dst), &cur->saddr.ip6, 16);
     }
 
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              cur->version == 4 ? (const void *) &cur->saddr.ip4 : (const void *) &cur->saddr.ip6,
-              source, sizeof(source));
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              cur->version == 4 ? (const void *) &cur->daddr.ip4 : (const void *) &cur->daddr.ip6,
-              dest, sizeof(dest));
-
     // Send raw ICMP message
     log_android(ANDROID_LOG_WARN,
                 "ICMP sending to tun %d from %s to %s data %u type %d code %d id %x seq %d",
-                args->tun, dest, source, datalen,
+                args->tun, straddr(cur->version, &cur->daddr, dest),
+                straddr(cur->version, &cur->saddr, source), datalen,
                 icmp->icmp_type, icmp->icmp_code, icmp->icmp_id, icmp->icmp_seq);
 
-    ssize_t res = write(args->tun, buffer, len);
+    ssize_t res = queue_tun(args, packet, len);
+    if (res < 0)
+        log_android(ANDROID_LOG_WARN, "ICMP write data %d dropped", datalen);
 
-    // Write PCAP record
-    if (res >= 0) {
-        if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
-    } else
-        log_android(ANDROID_LOG_WARN, "ICMP write error %d: %s", errno, strerror(errno));
+    return res;
+}
 
-    ng_free(buffer, __FILE__, __LINE__);
+ssize_t write_unreachable(const struct arguments *args, const struct tcp_session *cur, int error) {
+    // Destination unreachable quoting the SYN of the app, so that its connect fails with error
+    // Returns -1 if there is no matching code, the app should be reset then
+    // https://tools.ietf.org/html/rfc1122#section-4.2.3.9
+    // https://tools.ietf.org/html/rfc4443#section-3.1
+    uint8_t code;
+    if (cur->version == 4) {
+        if (error == ECONNREFUSED)
+            code = ICMP_UNREACH_PORT;
+        else if (error == EHOSTUNREACH)
+            code = ICMP_UNREACH_HOST;
+        else if (error == ENETUNREACH)
+            code = ICMP_UNREACH_NET;
+        else if (error == EACCES)
+            code = ICMP_UNREACH_FILTER_PROHIB;
+        else
+            return -1;
+    } else {
+        if (error == ECONNREFUSED)
+            code = ICMP6_DST_UNREACH_NOPORT;
+        else if (error == EHOSTUNREACH)
+            code = ICMP6_DST_UNREACH_ADDR;
+        else if (error == ENETUNREACH)
+            code = ICMP6_DST_UNREACH_NOROUTE;
+        else if (error == EACCES)
+            code = ICMP6_DST_UNREACH_ADMIN;
+        else
+            return -1;
+    }
 
-    if (res != len) {
-        log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
-        return -1;
+    size_t iplen = (cur->version == 4 ? sizeof(struct iphdr) : sizeof(struct ip6_hdr));
+    size_t len = iplen + 8 + iplen + 8;
+    struct tun_packet *packet = ng_pool_alloc(sizeof(struct tun_packet) + len, "unreachable");
+    uint8_t *buffer = packet->data;
+    memset(buffer, 0, len);
+
+    // Ports and sequence number of the SYN, as sent by the app
+    struct tcphdr *tcp = (struct tcphdr *) (buffer + iplen + 8 + iplen);
+    tcp->source = cur->source;
+    tcp->dest = cur->dest;
+    tcp->seq = htonl(cur->remote_seq);
+
+    uint8_t *icmp = buffer + iplen;
+    if (cur->version == 4) {
+        struct iphdr *syn = (struct iphdr *) (icmp + 8);
+        syn->version = 4;
+        syn->ihl = sizeof(struct iphdr) >> 2;
+        syn->tot_len = htons(sizeof(struct iphdr) + sizeof(struct tcphdr));
+        syn->ttl = IPDEFTTL;
+        syn->protocol = IPPROTO_TCP;
+        syn->saddr = cur->saddr.ip4;
+        syn->daddr = cur->daddr.ip4;
+        syn->check = ~calc_checksum(0, (uint8_t *) syn, sizeof(struct iphdr));
+
+        icmp[0] = ICMP_UNREACH;
+        icmp[1] = code;
+        *((uint16_t *) (icmp + 2)) = ~calc_checksum(0, icmp, len - iplen);
+
+        struct iphdr *ip4 = (struct iphdr *) buffer;
+        ip4->version = 4;
+        ip4->ihl = sizeof(struct iphdr) >> 2;
+        ip4->tot_len = htons(len);
+        ip4->ttl = IPDEFTTL;
+        ip4->protocol = IPPROTO_ICMP;
+        ip4->saddr = cur->daddr.ip4;
+        ip4->daddr = cur->saddr.ip4;
+        ip4->check = ~calc_checksum(0, (uint8_t *) ip4, sizeof(struct iphdr));
+    } else {
+        struct ip6_hdr *syn = (struct ip6_hdr *) (icmp + 8);
+        syn->ip6_ctlun.ip6_un1.ip6_un1_plen = htons(sizeof(struct tcphdr));
+        syn->ip6_ctlun.ip6_un1.ip6_un1_nxt = IPPROTO_TCP;
+        syn->ip6_ctlun.ip6_un1.ip6_un1_hlim = IPDEFTTL;
+        syn->ip6_ctlun.ip6_un2_vfc = IPV6_VERSION;
+        memcpy(&syn->ip6_src, &cur->saddr.ip6, 16);
+        memcpy(&syn->ip6_dst, &cur->daddr.ip6, 16);
+
+        struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
+        ip6->ip6_ctlun.ip6_un1.ip6_un1_plen = htons(len - iplen);
+        ip6->ip6_ctlun.ip6_un1.ip6_un1_nxt = IPPROTO_ICMPV6;
+        ip6->ip6_ctlun.ip6_un1.ip6_un1_hlim = IPDEFTTL;
+        ip6->ip6_ctlun.ip6_un2_vfc = IPV6_VERSION;
+        memcpy(&ip6->ip6_src, &cur->daddr.ip6, 16);
+        memcpy(&ip6->ip6_dst, &cur->saddr.ip6, 16);
+
+        // ICMPv6 checksum includes a pseudo header
+        struct ip6_hdr_pseudo pseudo;
+        memset(&pseudo, 0, sizeof(struct ip6_hdr_pseudo));
+        memcpy(&pseudo.ip6ph_src, &ip6->ip6_src, 16);
+        memcpy(&pseudo.ip6ph_dst, &ip6->ip6_dst, 16);
+        pseudo.ip6ph_len = htonl(len - iplen);
+        pseudo.ip6ph_nxt = IPPROTO_ICMPV6;
+
+        icmp[0] = ICMP6_DST_UNREACH;
+        icmp[1] = code;
+        uint16_t csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ip6_hdr_pseudo));
+        *((uint16_t *) (icmp + 2)) = ~calc_checksum(csum, icmp, len - iplen);
     }
 
+    char source[INET6_ADDRSTRLEN + 1];
+    char dest[INET6_ADDRSTRLEN + 1];
+    log_android(ANDROID_LOG_INFO, "ICMP unreachable code %d to %s/%u for %s/%u error %d",
+                code, straddr(cur->version, &cur->saddr, source), ntohs(cur->source),
+                straddr(cur->version, &cur->daddr, dest), ntohs(cur->dest), error);
+
+    ssize_t res = queue_tun(args, packet, len);
+    if (res < 0)
+        log_android(ANDROID_LOG_WARN, "ICMP unreachable dropped");
+
     return res;
 }
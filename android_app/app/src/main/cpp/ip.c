@@ -23,7 +23,7 @@ int max_tun_msg = 0;
 extern int loglevel;
 extern FILE *pcap_file;
 
-extern char http_proxy_addr[INET6_ADDRSTRLEN + 1];
+extern char http_proxy_addr[PROXY_NAME_MAX + 1];
 extern int http_proxy_port;
 
 uint16_t get_mtu() {
@@ -53,10 +53,10 @@ int check_tun(const struct arguments *args,
 
     // Check tun read
     if (ev->events & EPOLLIN) {
-        uint8_t *buffer = ng_malloc(get_mtu(), "tun read");
+        uint8_t *buffer = ng_pool_alloc(get_mtu(), "tun read");
         ssize_t length = read(args->tun, buffer, get_mtu());
         if (length < 0) {
-            ng_free(buffer, __FILE__, __LINE__);
+            ng_pool_free(buffer, __FILE__, __LINE__);
 
             log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
                         args->tun, errno, strerror(errno));
@@ -79,10 +79,10 @@ int check_tun(const struct arguments *args,
             // Handle IP from tun
             handle_ip(args, buffer, (size_t) length, epoll_fd, sessions, maxsessions);
 
-            ng_free(buffer, __FILE__, __LINE__);
+            ng_pool_free(buffer, __FILE__, __LINE__);
         } else {
             // tun eof
-            ng_free(buffer, __FILE__, __LINE__);
+            ng_pool_free(buffer, __FILE__, __LINE__);
 
             log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
             return -1;
@@ -92,6 +92,91 @@ int check_tun(const struct arguments *args,
     return 0;
 }
 
+// Tun output
+// Packets built while handling events are queued and written in one go before the shard waits
+// for events again. If the kernel pushes back, the rest stays queued until tun is writable.
+// The queue is bounded, sockets are not read while it is nearly full.
+
+static int write_packets(const struct arguments *args) {
+    struct shard *shard = args->shard;
+    while (shard->out != NULL) {
+        struct tun_packet *p = shard->out;
+        ssize_t res = write(args->tun, p->data, p->length);
+        if (res < 0 && (errno == EAGAIN || errno == EINTR))
+            return 1;
+
+        if (res < 0)
+            log_android(ANDROID_LOG_ERROR, "tun %d write error %d: %s",
+                        args->tun, errno, strerror(errno));
+        else if (res != p->length)
+            log_android(ANDROID_LOG_ERROR, "tun %d write %d/%d",
+                        args->tun, res, p->length);
+        else if (pcap_file != NULL)
+            write_pcap_rec(p->data, (size_t) res);
+
+        shard->out = p->next;
+        if (shard->out == NULL)
+            shard->out_tail = NULL;
+        shard->outqueued--;
+        ng_pool_free(p, __FILE__, __LINE__);
+    }
+    return 0;
+}
+
+ssize_t queue_tun(const struct arguments *args, struct tun_packet *packet, size_t length) {
+    struct shard *shard = args->shard;
+
+    // Make room if possible
+    if (shard->outqueued >= TUN_QUEUE_MAX && !shard->outblocked)
+        shard->outblocked = write_packets(args);
+
+    if (shard->outqueued >= TUN_QUEUE_MAX) {
+        log_android(ANDROID_LOG_WARN, "tun %d queue full, dropping %d bytes",
+                    args->tun, length);
+        ng_pool_free(packet, __FILE__, __LINE__);
+        return -1;
+    }
+
+    packet->next = NULL;
+    packet->length = length;
+    if (shard->out_tail == NULL)
+        shard->out = packet;
+    else
+        shard->out_tail->next = packet;
+    shard->out_tail = packet;
+    shard->outqueued++;
+
+    return length;
+}
+
+int flush_tun(const struct arguments *args) {
+    // Returns if tun pushed back
+    struct shard *shard = args->shard;
+    if (!shard->outblocked && shard->out != NULL) {
+        shard->outblocked = write_packets(args);
+        if (shard->outblocked)
+            log_android(ANDROID_LOG_WARN, "tun %d full, %d packets queued",
+                        args->tun, shard->outqueued);
+    }
+    return shard->outblocked;
+}
+
+void clear_tun(const struct arguments *args) {
+    struct shard *shard = args->shard;
+    while (shard->out != NULL) {
+        struct tun_packet *p = shard->out;
+        shard->out = p->next;
+        ng_pool_free(p, __FILE__, __LINE__);
+    }
+    shard->out_tail = NULL;
+    shard->outqueued = 0;
+    shard->outblocked = 0;
+}
+
+int is_tun_congested(const struct arguments *args) {
+    return (args->shard->outqueued >= TUN_QUEUE_HIGH);
+}
+
 // https://en.wikipedia.org/wiki/IPv6_packet#Extension_headers
 // http://www.iana.org/assignments/protocol-numbers/protocol-numbers.xhtml
 int is_lower_layer(int protocol) {
@@ -123,7 +208,6 @@ void handle_ip(const struct arguments *args,
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
     char flags[10];
-    char data[16];
     int flen = 0;
     uint8_t *payload;
 
@@ -150,13 +234,16 @@ void handle_ip(const struct arguments *args,
         uint8_t ipoptlen = (uint8_t) ((ip4hdr->ihl - 5) * 4);
         payload = (uint8_t *) (pkt + sizeof(struct iphdr) + ipoptlen);
 
-        if (ntohs(ip4hdr->tot_len) != length) {
+        if (ntohs(ip4hdr->tot_len) != length ||
+            sizeof(struct iphdr) + ipoptlen > length) {
             log_android(ANDROID_LOG_ERROR, "Invalid length %u header length %u",
                         length, ntohs(ip4hdr->tot_len));
             return;
         }
 
-        if (!calc_checksum(0, (uint8_t *) ip4hdr, sizeof(struct iphdr))) {
+        // The sum over a valid header including its checksum is negative zero
+        if (args->ctx->checkip &&
+            calc_checksum(0, (uint8_t *) ip4hdr, sizeof(struct iphdr) + ipoptlen) != 0xFFFF) {
             log_android(ANDROID_LOG_ERROR, "Invalid IP checksum");
             return;
         }
@@ -200,14 +287,10 @@ void handle_ip(const struct arguments *args,
         return;
     }
 
-    inet_ntop(version == 4 ? AF_INET : AF_INET6, saddr, source, sizeof(source));
-    inet_ntop(version == 4 ? AF_INET : AF_INET6, daddr, dest, sizeof(dest));
-
     // Get ports & flags
     int syn = 0;
     uint16_t sport = 0;
     uint16_t dport = 0;
-    *data = 0;
     if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) {
         if (length - (payload - pkt) < sizeof(struct icmp)) {
             log_android(ANDROID_LOG_DEBUG, "ICMP packet too short");
@@ -216,8 +299,6 @@ void handle_ip(const struct arguments *args,
 
         struct icmp *icmp = (struct icmp *) payload;
 
-        sprintf(data, "type %d/%d", icmp->icmp_type, icmp->icmp_code);
-
         // http://lwn.net/Articles/443051/
         sport = ntohs(icmp->icmp_id);
         dport = ntohs(icmp->icmp_id);
@@ -264,222 +345,66 @@ void handle_ip(const struct arguments *args,
 
     flags[flen] = 0;
 
-    // Limit number of sessions
-    if (sessions >= maxsessions) {
-        if ((protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) ||
-            (protocol == IPPROTO_UDP && !has_udp_session(args, pkt, payload)) ||
-            (protocol == IPPROTO_TCP && syn)) {
-            log_android(ANDROID_LOG_ERROR,
-                        "%d of max %d sessions, dropping version %d protocol %d",
-                        sessions, maxsessions, protocol, version);
+    // Sessions use ports 0 for ICMP
+    uint8_t sprotocol = protocol;
+    __be16 skey = htons(sport);
+    __be16 dkey = htons(dport);
+    if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) {
+        sprotocol = (uint8_t) (version == 4 ? IPPROTO_ICMP : IPPROTO_ICMPV6);
+        skey = 0;
+        dkey = 0;
+    }
+
+    // Dispatch to the shard owning the session
+    if (args->ctx->workers > 1 && is_upper_layer(protocol)) {
+        struct shard *shard = get_shard(args->ctx, version, sprotocol, saddr, skey, daddr, dkey);
+        if (shard != args->shard) {
+            queue_packet(args, shard, pkt, length);
             return;
         }
     }
 
-    // Get uid
-    jint uid = -1;
-    if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6 ||
-        (protocol == IPPROTO_UDP && !has_udp_session(args, pkt, payload)) ||
-        (protocol == IPPROTO_TCP && syn)) {
-        if (args->ctx->sdk <= 28) // Android 9 Pie
-            uid = get_uid(version, protocol, saddr, sport, daddr, dport);
-        else
-            uid = get_uid_q(args, version, protocol, source, sport, dest, dport);
+    // Search session
+    struct ng_session *cur = NULL;
+    if (is_upper_layer(protocol))
+        cur = find_session(args, version, sprotocol, saddr, skey, daddr, dkey);
+
+    int new_session = ((protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) ||
+                       (protocol == IPPROTO_UDP && cur == NULL &&
+                        !(dport == 53 && !args->fwd53)) ||
+                       (protocol == IPPROTO_TCP && syn));
+
+    // Limit number of sessions
+    if (sessions >= maxsessions && new_session) {
+        log_android(ANDROID_LOG_ERROR,
+                    "%d of max %d sessions, dropping version %d protocol %d",
+                    sessions, maxsessions, protocol, version);
+        return;
     }
 
+    // New sessions start with an unknown uid, which is resolved in the background
+    jint uid = -1;
+
     log_android(ANDROID_LOG_DEBUG,
-                "Packet v%d %s/%u > %s/%u proto %d flags %s uid %d",
-                version, source, sport, dest, dport, protocol, flags, uid);
+                "Packet v%d %s/%u > %s/%u proto %d flags %s",
+                version, straddr(version, saddr, source), sport,
+                straddr(version, daddr, dest), dport, protocol, flags);
 
     if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6)
-        handle_icmp(args, pkt, length, payload, uid, epoll_fd);
+        handle_icmp(args, pkt, length, payload, uid, cur, epoll_fd);
     else if (protocol == IPPROTO_UDP)
-        handle_udp(args, pkt, length, payload, uid, NULL, epoll_fd);
+        handle_udp(args, pkt, length, payload, uid, NULL, cur, epoll_fd);
     else if (protocol == IPPROTO_TCP) {
         struct allowed allowed;
         *allowed.raddr = NULL;
         allowed.rport = 0;
-        handle_tcp(args, pkt, length, payload, uid, 1, NULL, epoll_fd);
-    }
-}
-
-jint get_uid(const int version, const int protocol,
-             const void *saddr, const uint16_t sport,
-             const void *daddr, const uint16_t dport) {
-    jint uid = -1;
-
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    inet_ntop(version == 4 ? AF_INET : AF_INET6, saddr, source, sizeof(source));
-    inet_ntop(version == 4 ? AF_INET : AF_INET6, daddr, dest, sizeof(dest));
-
-    struct timeval time;
-    gettimeofday(&time, NULL);
-    long now = (time.tv_sec * 1000) + (time.tv_usec / 1000);
-
-    // Check IPv6 table first
-    if (version == 4) {
-        int8_t saddr128[16];
-        memset(saddr128, 0, 10);
-        saddr128[10] = (uint8_t) 0xFF;
-        saddr128[11] = (uint8_t) 0xFF;
-        memcpy(saddr128 + 12, saddr, 4);
-
-        int8_t daddr128[16];
-        memset(daddr128, 0, 10);
-        daddr128[10] = (uint8_t) 0xFF;
-        daddr128[11] = (uint8_t) 0xFF;
-        memcpy(daddr128 + 12, daddr, 4);
-
-        uid = get_uid_sub(6, protocol, saddr128, sport, daddr128, dport, source, dest, now);
-        log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d as inet6",
-                    version, protocol, source, sport, dest, dport, uid);
-    }
-
-    if (uid == -1) {
-        uid = get_uid_sub(version, protocol, saddr, sport, daddr, dport, source, dest, now);
-        log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d fallback",
-                    version, protocol, source, sport, dest, dport, uid);
-    }
-
-    if (uid == -1)
-        log_android(ANDROID_LOG_WARN, "uid v%d p%d %s/%u > %s/%u => not found",
-                    version, protocol, source, sport, dest, dport);
-    else if (uid >= 0)
-        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d",
-                    version, protocol, source, sport, dest, dport, uid);
-
-    return uid;
-}
-
-int uid_cache_size = 0;
-struct uid_cache_entry *uid_cache = NULL;
-
-jint get_uid_sub(const int version, const int protocol,
-                 const void *saddr, const uint16_t sport,
-                 const void *daddr, const uint16_t dport,
-                 const char *source, const char *dest,
-                 long now) {
-    // NETLINK is not available on Android due to SELinux policies :-(
-    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
-    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
-
-    static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-
-    int ws = (version == 4 ? 1 : 4);
-
-    // Check cache
-    for (int i = 0; i < uid_cache_size; i++)
-        if (now - uid_cache[i].time <= UID_MAX_AGE &&
-            uid_cache[i].version == version &&
-            uid_cache[i].protocol == protocol &&
-            uid_cache[i].sport == sport &&
-            (uid_cache[i].dport == dport || uid_cache[i].dport == 0) &&
-            (memcmp(uid_cache[i].saddr, saddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].saddr, zero, (size_t) (ws * 4)) == 0) &&
-            (memcmp(uid_cache[i].daddr, daddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].daddr, zero, (size_t) (ws * 4)) == 0)) {
-
-            log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
-                        version, protocol, source, sport, dest, dport, uid_cache[i].uid);
-
-            return uid_cache[i].uid;
-        }
-
-    // Get proc file name
-    char *fn = NULL;
-    if (protocol == IPPROTO_ICMP && version == 4)
-        fn = "/proc/net/icmp";
-    else if (protocol == IPPROTO_ICMPV6 && version == 6)
-        fn = "/proc/net/icmp6";
-    else if (protocol == IPPROTO_TCP)
-        fn = (version == 4 ? "/proc/net/tcp" : "/proc/net/tcp6");
-    else if (protocol == IPPROTO_UDP)
-        fn = (version == 4 ? "/proc/net/udp" : "/proc/net/udp6");
-    else
-        return -1;
-
-    // Open proc file
-    FILE *fd = fopen(fn, "r");
-    if (fd == NULL) {
-        log_android(ANDROID_LOG_ERROR, "fopen %s error %d: %s", fn, errno, strerror(errno));
-        return -2;
-    }
-
-    jint uid = -1;
-
-    char line[250];
-    int fields;
-
-    char shex[16 * 2 + 1];
-    uint8_t _saddr[16];
-    int _sport;
-
-    char dhex[16 * 2 + 1];
-    uint8_t _daddr[16];
-    int _dport;
-
-    jint _uid;
-
-    // Scan proc file
-    int l = 0;
-    *line = 0;
-    int c = 0;
-    const char *fmt = (version == 4
-                       ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
-                       : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
-    while (fgets(line, sizeof(line), fd) != NULL) {
-        if (!l++)
-            continue;
-
-        fields = sscanf(line, fmt, shex, &_sport, dhex, &_dport, &_uid);
-        if (fields == 5 && strlen(shex) == ws * 8 && strlen(dhex) == ws * 8) {
-            hex2bytes(shex, _saddr);
-            hex2bytes(dhex, _daddr);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _saddr)[w] = htonl(((uint32_t *) _saddr)[w]);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _daddr)[w] = htonl(((uint32_t *) _daddr)[w]);
-
-            if (_sport == sport &&
-                (_dport == dport || _dport == 0) &&
-                (memcmp(_saddr, saddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_saddr, zero, (size_t) (ws * 4)) == 0) &&
-                (memcmp(_daddr, daddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_daddr, zero, (size_t) (ws * 4)) == 0))
-                uid = _uid;
-
-            for (; c < uid_cache_size; c++)
-                if (now - uid_cache[c].time > UID_MAX_AGE)
-                            break;
-
-            if (c >= uid_cache_size) {
-                if (uid_cache_size == 0)
-                    uid_cache = ng_malloc(sizeof(struct uid_cache_entry), "uid_cache init");
-                else
-                    uid_cache = ng_realloc(uid_cache,
-                                           sizeof(struct uid_cache_entry) *
-                                           (uid_cache_size + 1), "uid_cache extend");
-                c = uid_cache_size;
-                uid_cache_size++;
-                uid_cache[c].version = (uint8_t) version;
-                uid_cache[c].protocol = (uint8_t) protocol;
-                memcpy(uid_cache[c].saddr, _saddr, (size_t) (ws * 4));
-                uid_cache[c].sport = (uint16_t) _sport;
-                memcpy(uid_cache[c].daddr, _daddr, (size_t) (ws * 4));
-                uid_cache[c].dport = (uint16_t) _dport;
-                uid_cache[c].uid = _uid;
-                uid_cache[c].time = now;
-            } else
-                log_android(ANDROID_LOG_ERROR, "Invalid field #%d: %s", fields, line);
-            return -2;
-        }
+        handle_tcp(args, pkt, length, payload, uid, 1, NULL, cur, epoll_fd);
     }
 
-    if (fclose(fd))
-        log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s", fn, errno, strerror(errno));
-
-    return uid;
+    // The handler may have changed the state of an existing session
+    if (cur != NULL)
+        update_session(args, cur);
+    else if (new_session)
+        resolve_uid(args, version, protocol, saddr, sport, daddr, dport,
+                    sprotocol, skey, dkey);
 }
@@ -0,0 +1,773 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Proxy names
+// A proxy, or each upstream, may be given as host name. The first shard looks the names up
+// with A and AAAA queries to the name servers of the network, keeps the answers for their
+// time to live and looks them up again shortly before they expire.
+// Sessions connect to a cached address and never wait for a lookup.
+// With several addresses the first shard races connects like Happy Eyeballs:
+// IPv6 and IPv4 interleaved, the next attempt started when the previous one failed or
+// did not connect within PROXY_RACE_DELAY. The first address to connect is used by the
+// sessions. The cache is kept per network, so switching back to a network needs no lookup.
+// When the name servers do not answer and the addresses expired, for example with Private DNS,
+// the resolver thread asks the system resolver of the network instead.
+// Sessions arriving before the first address is known wait for it in TCP_LISTEN.
+// https://tools.ietf.org/html/rfc8305
+// https://tools.ietf.org/html/rfc8767
+
+extern char socks5_addr[PROXY_NAME_MAX + 1];
+extern int socks5_port;
+extern char http_proxy_addr[PROXY_NAME_MAX + 1];
+extern int http_proxy_port;
+extern struct upstream upstreams[UPSTREAM_MAX];
+extern int upstream_count;
+extern struct proxy_network proxy_networks[PROXY_NETWORKS];
+extern int proxy_network;
+extern pthread_mutex_t proxy_lock;
+extern int proxy_generation;
+
+typedef int (*getaddrinfofornetwork_t)(uint64_t network, const char *node, const char *service,
+                                       const struct addrinfo *hints, struct addrinfo **res);
+
+static const char *get_proxy_name(int index, int *port) {
+    // The upstreams or else the single proxy
+    if (upstream_count > 0)
+        return (index < upstream_count ? get_upstream(index, port) : NULL);
+    if (index != 0)
+        return NULL;
+    if (*http_proxy_addr && http_proxy_port) {
+        *port = http_proxy_port;
+        return http_proxy_addr;
+    }
+    if (*socks5_addr && socks5_port) {
+        *port = socks5_port;
+        return socks5_addr;
+    }
+    return NULL;
+}
+
+static int parse_proxy_addr(const char *name, struct proxy_addr *a) {
+    memset(a, 0, sizeof(struct proxy_addr));
+    if (inet_pton(AF_INET, name, &a->ip.ip4) == 1)
+        a->version = 4;
+    else if (inet_pton(AF_INET6, name, &a->ip.ip6) == 1)
+        a->version = 6;
+    return a->version;
+}
+
+static int same_proxy_addr(const struct proxy_addr *a, const struct proxy_addr *b) {
+    return (a->version == b->version &&
+            (a->version == 4 ? a->ip.ip4 == b->ip.ip4
+                             : memcmp(&a->ip.ip6, &b->ip.ip6, 16) == 0));
+}
+
+static socklen_t to_sockaddr(const struct proxy_addr *a, int port, struct sockaddr_storage *addr) {
+    memset(addr, 0, sizeof(struct sockaddr_storage));
+    if (a->version == 4) {
+        struct sockaddr_in *addr4 = (struct sockaddr_in *) addr;
+        addr4->sin_family = AF_INET;
+        addr4->sin_addr.s_addr = a->ip.ip4;
+        addr4->sin_port = htons(port);
+        return sizeof(struct sockaddr_in);
+    } else {
+        struct sockaddr_in6 *addr6 = (struct sockaddr_in6 *) addr;
+        addr6->sin6_family = AF_INET6;
+        memcpy(&addr6->sin6_addr, &a->ip.ip6, 16);
+        addr6->sin6_port = htons(port);
+        return sizeof(struct sockaddr_in6);
+    }
+}
+
+static const char *str_proxy_addr(const struct proxy_addr *a, char *buf) {
+    // buf should hold INET6_ADDRSTRLEN + 1 characters
+    return inet_ntop(a->version == 4 ? AF_INET : AF_INET6, &a->ip, buf, INET6_ADDRSTRLEN + 1);
+}
+
+static void reset_proxy_name(struct proxy_name *n, const char *name) {
+    memset(n, 0, sizeof(struct proxy_name));
+    n->winner = -1;
+    if (name == NULL)
+        return;
+    strcpy(n->name, name);
+    if (parse_proxy_addr(name, &n->addr[0])) {
+        n->literal = 1;
+        n->count = 1;
+        n->winner = 0;
+    }
+}
+
+void set_proxy_network(int64_t handle, const struct proxy_addr *server, int servers) {
+    // Called before the shards start
+    int row = 0;
+    for (int i = 0; i < PROXY_NETWORKS; i++)
+        if (proxy_networks[i].handle == handle) {
+            row = i;
+            break;
+        } else if (proxy_networks[i].used < proxy_networks[row].used)
+            row = i;
+
+    struct proxy_network *net = &proxy_networks[row];
+    if (net->handle != handle) {
+        if (net->used)
+            log_android(ANDROID_LOG_INFO, "Proxy names of network %lld forgotten",
+                        (long long) net->handle);
+        memset(net, 0, sizeof(struct proxy_network));
+        for (int i = 0; i < PROXY_NAMES; i++)
+            reset_proxy_name(&net->name[i], NULL);
+        net->handle = handle;
+    }
+    net->used = get_time();
+
+    if (servers > PROXY_SERVERS)
+        servers = PROXY_SERVERS;
+    memcpy(net->server, server, servers * sizeof(struct proxy_addr));
+    net->servers = servers;
+    if (net->servers == 0) {
+        // Same fallback as the DHCP response
+        parse_proxy_addr("8.8.8.8", &net->server[0]);
+        net->servers = 1;
+    }
+
+    proxy_network = row;
+    log_android(ANDROID_LOG_INFO, "Proxy network %lld name servers %d",
+                (long long) handle, servers);
+}
+
+void init_proxy_names() {
+    // Keep what was looked up for names which did not change
+    for (int r = 0; r < PROXY_NETWORKS; r++)
+        for (int i = 0; i < PROXY_NAMES; i++) {
+            int port;
+            const char *name = get_proxy_name(i, &port);
+            struct proxy_name *n = &proxy_networks[r].name[i];
+            if (name == NULL ? *n->name != 0 : strcmp(n->name, name) != 0)
+                reset_proxy_name(n, name);
+        }
+}
+
+void init_proxy_lookups(struct proxy_lookups *lookups) {
+    memset(lookups, 0, sizeof(struct proxy_lookups));
+    for (int i = 0; i < PROXY_NAMES; i++) {
+        lookups->lookup[i].socket = -1;
+        for (int a = 0; a < PROXY_ADDRS; a++)
+            lookups->race[i].attempt[a].socket = -1;
+    }
+}
+
+int is_proxy_lookup_event(const struct arguments *args, const void *ptr) {
+    const struct proxy_lookups *lookups = &args->shard->lookups;
+    return ((const uint8_t *) ptr >= (const uint8_t *) lookups &&
+            (const uint8_t *) ptr < (const uint8_t *) (lookups + 1));
+}
+
+socklen_t get_proxy_address(int index, int port, struct sockaddr_storage *addr) {
+    // Returns 0 if the name was not looked up yet
+    struct proxy_name *n = &proxy_networks[proxy_network].name[index < 0 ? 0 : index];
+    if (n->literal)
+        return to_sockaddr(&n->addr[0], port, addr);
+
+    struct proxy_addr a;
+    if (pthread_mutex_lock(&proxy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    if (n->count > 0)
+        a = n->addr[n->winner < 0 ? 0 : n->winner];
+    else
+        a.version = 0;
+    if (pthread_mutex_unlock(&proxy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return (a.version ? to_sockaddr(&a, port, addr) : 0);
+}
+
+void report_proxy_address(int index) {
+    // A session could not connect, the address keeps being used until a race replaced it
+    struct proxy_name *n = &proxy_networks[proxy_network].name[index < 0 ? 0 : index];
+    if (!n->literal && __atomic_load_n(&n->count, __ATOMIC_RELAXED) > 1)
+        __atomic_store_n(&n->recheck, 1, __ATOMIC_RELAXED);
+}
+
+static void close_lookup(const struct arguments *args, struct proxy_lookup *l) {
+    if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_DEL, l->socket, NULL))
+        log_android(ANDROID_LOG_ERROR, "epoll del proxy lookup error %d: %s",
+                    errno, strerror(errno));
+    if (close(l->socket))
+        log_android(ANDROID_LOG_ERROR, "proxy lookup close error %d: %s",
+                    errno, strerror(errno));
+    l->socket = -1;
+}
+
+static size_t build_query(uint8_t *buffer, uint16_t id, const char *name, uint16_t qtype) {
+    // https://tools.ietf.org/html/rfc1035#section-4.1
+    struct dns_header *dns = (struct dns_header *) buffer;
+    memset(dns, 0, sizeof(struct dns_header));
+    dns->id = htons(id);
+    dns->rd = 1;
+    dns->q_count = htons(1);
+
+    size_t len = sizeof(struct dns_header);
+    const char *label = name;
+    while (*label) {
+        const char *dot = strchr(label, '.');
+        size_t llen = (dot == NULL ? strlen(label) : (size_t) (dot - label));
+        if (llen > 0) {
+            buffer[len++] = (uint8_t) llen;
+            memcpy(buffer + len, label, llen);
+            len += llen;
+        }
+        label += llen + (dot == NULL ? 0 : 1);
+    }
+    buffer[len++] = 0;
+
+    *((uint16_t *) (buffer + len)) = htons(qtype);
+    *((uint16_t *) (buffer + len + 2)) = htons(DNS_QCLASS_IN);
+    return len + 4;
+}
+
+static int send_lookup(const struct arguments *args, int index) {
+    struct proxy_lookup *l = &args->shard->lookups.lookup[index];
+    struct proxy_network *net = &proxy_networks[proxy_network];
+    struct proxy_name *n = &net->name[index];
+
+    struct sockaddr_storage addr;
+    socklen_t addrlen = to_sockaddr(&net->server[l->server], 53, &addr);
+    int sock = socket(addr.ss_family, SOCK_DGRAM, IPPROTO_UDP);
+    if (sock < 0) {
+        log_android(ANDROID_LOG_ERROR, "proxy lookup socket error %d: %s",
+                    errno, strerror(errno));
+        return -1;
+    }
+
+    // Both queries in one go, the answers are told apart by a random id
+    uint8_t query[2][sizeof(struct dns_header) + PROXY_NAME_MAX + 2 + 4];
+    l->id = (uint16_t) (arc4random() & 0xfffe);
+    size_t alen = build_query(query[0], l->id, n->name, DNS_QTYPE_A);
+    size_t aaaalen = build_query(query[1], (uint16_t) (l->id + 1), n->name, DNS_QTYPE_AAAA);
+
+    int flags = fcntl(sock, F_GETFL, 0);
+    memset(&l->ev, 0, sizeof(struct epoll_event));
+    l->ev.events = EPOLLIN | EPOLLERR;
+    l->ev.data.ptr = l;
+    if (protect_socket(args, sock) < 0 ||
+        flags < 0 || fcntl(sock, F_SETFL, flags | O_NONBLOCK) < 0 ||
+        connect(sock, (const struct sockaddr *) &addr, addrlen) < 0 ||
+        send(sock, query[0], alen, MSG_NOSIGNAL) != alen ||
+        send(sock, query[1], aaaalen, MSG_NOSIGNAL) != aaaalen ||
+        epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_ADD, sock, &l->ev)) {
+        log_android(ANDROID_LOG_WARN, "proxy lookup %s error %d: %s",
+                    n->name, errno, strerror(errno));
+        if (close(sock))
+            log_android(ANDROID_LOG_ERROR, "proxy lookup close error %d: %s",
+                        errno, strerror(errno));
+        return -1;
+    }
+
+    char server[INET6_ADDRSTRLEN + 1];
+    log_android(ANDROID_LOG_DEBUG, "Proxy lookup %s server %s",
+                n->name, str_proxy_addr(&net->server[l->server], server));
+    l->socket = sock;
+    l->pending = 3;
+    l->time = args->shard->wheel.now;
+    return 0;
+}
+
+static void start_lookup(const struct arguments *args, int index) {
+    struct proxy_lookup *l = &args->shard->lookups.lookup[index];
+    l->server = 0;
+    l->count = 0;
+    l->ttl = PROXY_TTL_MAX;
+    while (send_lookup(args, index) < 0)
+        if (++l->server >= proxy_networks[proxy_network].servers) {
+            // No name server could be asked
+            struct proxy_name *n = &proxy_networks[proxy_network].name[index];
+            n->refresh = args->shard->wheel.now + PROXY_RETRY;
+            if (args->shard->wheel.now >= n->expires)
+                resolve_proxy_name(args->ctx, index);
+            return;
+        }
+}
+
+static void close_attempt(const struct arguments *args, struct proxy_attempt *t) {
+    if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_DEL, t->socket, NULL))
+        log_android(ANDROID_LOG_ERROR, "epoll del proxy race error %d: %s",
+                    errno, strerror(errno));
+    if (close(t->socket))
+        log_android(ANDROID_LOG_ERROR, "proxy race close error %d: %s",
+                    errno, strerror(errno));
+    t->socket = -1;
+}
+
+static void stop_race(const struct arguments *args, int index) {
+    struct proxy_race *r = &args->shard->lookups.race[index];
+    for (int a = 0; a < PROXY_ADDRS; a++)
+        if (r->attempt[a].socket >= 0)
+            close_attempt(args, &r->attempt[a]);
+    r->next = 0;
+}
+
+static void finish_lookup(const struct arguments *args, int index) {
+    struct proxy_lookup *l = &args->shard->lookups.lookup[index];
+    struct proxy_name *n = &proxy_networks[proxy_network].name[index];
+    time_t now = args->shard->wheel.now;
+    if (l->socket >= 0)
+        close_lookup(args, l);
+
+    if (l->count == 0) {
+        log_android(ANDROID_LOG_WARN, "Proxy %s not found, %d addresses kept",
+                    n->name, n->count);
+        n->refresh = now + PROXY_RETRY;
+        if (now >= n->expires)
+            resolve_proxy_name(args->ctx, index);
+        return;
+    }
+
+    // Interleave the families, IPv6 first
+    struct proxy_addr sorted[PROXY_ADDRS];
+    int count = 0;
+    int next[2] = {0, 0};
+    for (int family = 1; count < l->count; family ^= 1) {
+        int version = (family ? 6 : 4);
+        while (next[family] < l->count && l->addr[next[family]].version != version)
+            next[family]++;
+        if (next[family] < l->count)
+            sorted[count++] = l->addr[next[family]++];
+    }
+
+    uint32_t ttl = l->ttl;
+    if (ttl < PROXY_TTL_MIN)
+        ttl = PROXY_TTL_MIN;
+
+    // The attempts of a race are by address index
+    stop_race(args, index);
+
+    if (pthread_mutex_lock(&proxy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    // Keep the winner if it was looked up again
+    int winner = -1;
+    if (n->winner >= 0)
+        for (int i = 0; i < count && winner < 0; i++)
+            if (same_proxy_addr(&sorted[i], &n->addr[n->winner]))
+                winner = i;
+    memcpy(n->addr, sorted, count * sizeof(struct proxy_addr));
+    n->count = count;
+    n->winner = (count == 1 ? 0 : winner);
+    n->expires = now + ttl;
+
+    if (pthread_mutex_unlock(&proxy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    n->refresh = now + ttl - ttl / 10;
+
+    // Sessions waiting for an address can connect now
+    __atomic_add_fetch(&proxy_generation, 1, __ATOMIC_RELAXED);
+    wakeup_shards(args->ctx);
+
+    char addr[INET6_ADDRSTRLEN + 1];
+    log_android(ANDROID_LOG_INFO, "Proxy %s addresses %d first %s ttl %u winner %d",
+                n->name, count, str_proxy_addr(&n->addr[0], addr), ttl, n->winner);
+}
+
+void lookup_proxy_name(struct context *ctx, int index) {
+    // Called by the resolver thread, getaddrinfo blocks
+    // The network is passed, because the sockets of this app may go through the VPN
+    static getaddrinfofornetwork_t getaddrinfofornetwork = NULL;
+    static int loaded = 0;
+    if (!loaded) {
+        void *handle = dlopen("libandroid.so", RTLD_NOW); // Android 6 Marshmallow
+        if (handle != NULL)
+            getaddrinfofornetwork =
+                    (getaddrinfofornetwork_t) dlsym(handle, "android_getaddrinfofornetwork");
+        loaded = 1;
+    }
+
+    char name[PROXY_NAME_MAX + 1];
+    if (pthread_mutex_lock(&proxy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    int row = proxy_network;
+    int64_t network = proxy_networks[row].handle;
+    strcpy(name, proxy_networks[row].name[index].name);
+    if (pthread_mutex_unlock(&proxy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+    if (!*name)
+        return;
+
+    struct addrinfo hints;
+    memset(&hints, 0, sizeof(struct addrinfo));
+    hints.ai_family = AF_UNSPEC;
+    hints.ai_socktype = SOCK_STREAM;
+    struct addrinfo *result = NULL;
+    int err = (network && getaddrinfofornetwork != NULL
+               ? getaddrinfofornetwork((uint64_t) network, name, NULL, &hints, &result)
+               : getaddrinfo(name, NULL, &hints, &result));
+    if (err) {
+        log_android(ANDROID_LOG_WARN, "Proxy %s getaddrinfo error %d: %s",
+                    name, err, gai_strerror(err));
+        return;
+    }
+
+    // Interleave the families, IPv6 first, like the answers of the name servers
+    struct proxy_addr addr[2][PROXY_ADDRS];
+    int found[2] = {0, 0};
+    for (struct addrinfo *ai = result; ai != NULL; ai = ai->ai_next) {
+        int family = (ai->ai_family == AF_INET6 ? 1 : 0);
+        if ((ai->ai_family != AF_INET && ai->ai_family != AF_INET6) ||
+            found[family] >= PROXY_ADDRS)
+            continue;
+        struct proxy_addr *a = &addr[family][found[family]++];
+        memset(a, 0, sizeof(struct proxy_addr));
+        if (family) {
+            a->version = 6;
+            memcpy(&a->ip.ip6, &((struct sockaddr_in6 *) ai->ai_addr)->sin6_addr, 16);
+        } else {
+            a->version = 4;
+            a->ip.ip4 = ((struct sockaddr_in *) ai->ai_addr)->sin_addr.s_addr;
+        }
+    }
+    freeaddrinfo(result);
+
+    struct proxy_addr sorted[PROXY_ADDRS];
+    int count = 0;
+    for (int i = 0; count < PROXY_ADDRS && (i < found[0] || i < found[1]); i++)
+        for (int family = 1; family >= 0 && count < PROXY_ADDRS; family--)
+            if (i < found[family])
+                sorted[count++] = addr[family][i];
+    if (count == 0)
+        return;
+
+    // The network or the name may have changed meanwhile
+    // The system resolver does not tell the time to live
+    if (pthread_mutex_lock(&proxy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    struct proxy_name *n = &proxy_networks[row].name[index];
+    int used = (row == proxy_network && strcmp(n->name, name) == 0);
+    if (used) {
+        memcpy(n->addr, sorted, count * sizeof(struct proxy_addr));
+        n->count = count;
+        n->winner = (count == 1 ? 0 : -1);
+        n->expires = get_time() + PROXY_TTL_MIN;
+    }
+    if (pthread_mutex_unlock(&proxy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (used) {
+        __atomic_add_fetch(&proxy_generation, 1, __ATOMIC_RELAXED);
+        wakeup_shards(ctx);
+
+        char str[INET6_ADDRSTRLEN + 1];
+        log_android(ANDROID_LOG_INFO, "Proxy %s system resolver addresses %d first %s",
+                    name, count, str_proxy_addr(&sorted[0], str));
+    }
+}
+
+static void check_lookup(const struct arguments *args, struct proxy_lookup *l,
+                         const struct epoll_event *ev) {
+    int index = (int) (l - args->shard->lookups.lookup);
+    if (l->socket < 0)
+        return;
+
+    if (ev->events & EPOLLERR) {
+        // Most likely unreachable, the next server is tried on timeout
+        int serr = 0;
+        socklen_t optlen = sizeof(int);
+        getsockopt(l->socket, SOL_SOCKET, SO_ERROR, &serr, &optlen);
+        log_android(ANDROID_LOG_WARN, "Proxy lookup %s error %d: %s",
+                    proxy_networks[proxy_network].name[index].name, serr, strerror(serr));
+        return;
+    }
+
+    uint8_t buffer[1232]; // EDNS default, replies without EDNS are 512 bytes at most
+    ssize_t bytes;
+    while ((bytes = recv(l->socket, buffer, sizeof(buffer), 0)) > 0) {
+        if (bytes < sizeof(struct dns_header))
+            continue;
+
+        const struct dns_header *dns = (const struct dns_header *) buffer;
+        uint16_t id = ntohs(dns->id);
+        uint8_t bit = (uint8_t) (id == l->id ? 1 : (id == (uint16_t) (l->id + 1) ? 2 : 0));
+        if (!dns->qr || !(l->pending & bit))
+            continue;
+        l->pending &= ~bit;
+
+        if (dns->rcode != 0) {
+            log_android(ANDROID_LOG_DEBUG, "Proxy lookup rcode %d", dns->rcode);
+            continue;
+        }
+
+        // Skip the question
+        char name[DNS_QNAME_MAX + 1];
+        int32_t off = sizeof(struct dns_header);
+        for (int q = 0; q < ntohs(dns->q_count) && off > 0; q++) {
+            off = get_qname(buffer, (size_t) bytes, (uint16_t) off, name);
+            if (off > 0)
+                off += 4;
+        }
+
+        // Addresses of the answers, following CNAMEs is left to the server
+        int acount = ntohs(dns->ans_count);
+        for (int a = 0; a < acount && off > 0; a++) {
+            off = get_qname(buffer, (size_t) bytes, (uint16_t) off, name);
+            if (off <= 0 || off + 10 > bytes)
+                break;
+            uint16_t qtype = ntohs(*((uint16_t *) (buffer + off)));
+            uint16_t qclass = ntohs(*((uint16_t *) (buffer + off + 2)));
+            uint32_t ttl = ntohl(*((uint32_t *) (buffer + off + 4)));
+            uint16_t rdlength = ntohs(*((uint16_t *) (buffer + off + 8)));
+            off += 10;
+            if (off + rdlength > bytes)
+                break;
+
+            struct proxy_addr addr;
+            memset(&addr, 0, sizeof(struct proxy_addr));
+            if (qclass == DNS_QCLASS_IN && qtype == DNS_QTYPE_A && rdlength == 4) {
+                addr.version = 4;
+                memcpy(&addr.ip.ip4, buffer + off, 4);
+            } else if (qclass == DNS_QCLASS_IN && qtype == DNS_QTYPE_AAAA && rdlength == 16) {
+                addr.version = 6;
+                memcpy(&addr.ip.ip6, buffer + off, 16);
+            }
+            off += rdlength;
+
+            if (addr.version && l->count < PROXY_ADDRS) {
+                l->addr[l->count++] = addr;
+                if (ttl < l->ttl)
+                    l->ttl = ttl;
+            }
+        }
+    }
+    if (bytes < 0 && errno != EAGAIN && errno != EWOULDBLOCK)
+        log_android(ANDROID_LOG_WARN, "Proxy lookup recv error %d: %s", errno, strerror(errno));
+
+    if (l->pending == 0)
+        finish_lookup(args, index);
+}
+
+static void finish_race(const struct arguments *args, int index, int winner) {
+    struct proxy_name *n = &proxy_networks[proxy_network].name[index];
+    stop_race(args, index);
+
+    char addr[INET6_ADDRSTRLEN + 1];
+    if (winner >= 0) {
+        if (pthread_mutex_lock(&proxy_lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+        n->winner = winner;
+        if (pthread_mutex_unlock(&proxy_lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+        log_android(ANDROID_LOG_INFO, "Proxy %s race won by %s address %d of %d",
+                    n->name, str_proxy_addr(&n->addr[winner], addr), winner + 1, n->count);
+    } else
+        log_android(ANDROID_LOG_WARN, "Proxy %s race lost by all %d addresses",
+                    n->name, n->count);
+
+    n->recheck = 0;
+    n->race = args->shard->wheel.now + PROXY_RETRY;
+}
+
+static int start_attempt(const struct arguments *args, int index) {
+    // Returns -1 if there is no address left
+    struct proxy_race *r = &args->shard->lookups.race[index];
+    struct proxy_name *n = &proxy_networks[proxy_network].name[index];
+    int port;
+    get_proxy_name(index, &port);
+
+    while (r->next - 1 < n->count) {
+        int a = r->next - 1;
+        struct proxy_attempt *t = &r->attempt[a];
+        r->next++;
+        r->start = get_ms();
+
+        struct sockaddr_storage addr;
+        socklen_t addrlen = to_sockaddr(&n->addr[a], port, &addr);
+        int sock = socket(addr.ss_family, SOCK_STREAM, 0);
+        if (sock < 0) {
+            log_android(ANDROID_LOG_ERROR, "proxy race socket error %d: %s",
+                        errno, strerror(errno));
+            continue;
+        }
+
+        int flags = fcntl(sock, F_GETFL, 0);
+        memset(&t->ev, 0, sizeof(struct epoll_event));
+        t->ev.events = EPOLLOUT | EPOLLERR;
+        t->ev.data.ptr = t;
+        if (protect_socket(args, sock) < 0 ||
+            flags < 0 || fcntl(sock, F_SETFL, flags | O_NONBLOCK) < 0 ||
+            (connect(sock, (const struct sockaddr *) &addr, addrlen) < 0 &&
+             errno != EINPROGRESS) ||
+            epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_ADD, sock, &t->ev)) {
+            char str[INET6_ADDRSTRLEN + 1];
+            log_android(ANDROID_LOG_DEBUG, "Proxy race %s error %d: %s",
+                        str_proxy_addr(&n->addr[a], str), errno, strerror(errno));
+            if (close(sock))
+                log_android(ANDROID_LOG_ERROR, "proxy race close error %d: %s",
+                            errno, strerror(errno));
+            continue;
+        }
+
+        t->socket = sock;
+        return 0;
+    }
+    return -1;
+}
+
+static int is_racing(const struct proxy_race *r) {
+    for (int a = 0; a < PROXY_ADDRS; a++)
+        if (r->attempt[a].socket >= 0)
+            return 1;
+    return 0;
+}
+
+static void check_attempt(const struct arguments *args, struct proxy_attempt *t) {
+    const struct proxy_lookups *lookups = &args->shard->lookups;
+    int index = (int) (((const uint8_t *) t - (const uint8_t *) lookups->race) /
+                       sizeof(struct proxy_race));
+    struct proxy_race *r = &args->shard->lookups.race[index];
+    int a = (int) (t - r->attempt);
+    if (t->socket < 0)
+        return;
+
+    int serr = 0;
+    socklen_t optlen = sizeof(int);
+    if (getsockopt(t->socket, SOL_SOCKET, SO_ERROR, &serr, &optlen) < 0)
+        serr = errno;
+    if (serr == 0) {
+        finish_race(args, index, a);
+        return;
+    }
+
+    // A failed attempt starts the next one at once
+    close_attempt(args, t);
+    if (start_attempt(args, index) < 0 && !is_racing(r))
+        finish_race(args, index, -1);
+}
+
+void check_proxy_lookup(const struct arguments *args, const struct epoll_event *ev) {
+    struct proxy_lookups *lookups = &args->shard->lookups;
+    if ((uint8_t *) ev->data.ptr < (uint8_t *) lookups->race)
+        check_lookup(args, (struct proxy_lookup *) ev->data.ptr, ev);
+    else
+        check_attempt(args, (struct proxy_attempt *) ev->data.ptr);
+}
+
+void lookup_proxies(const struct arguments *args) {
+    // Looked up by the first shard only
+    if (args->shard->index != 0)
+        return;
+
+    time_t now = args->shard->wheel.now;
+    for (int i = 0; i < PROXY_NAMES; i++) {
+        int port;
+        struct proxy_name *n = &proxy_networks[proxy_network].name[i];
+        if (get_proxy_name(i, &port) == NULL || n->literal)
+            continue;
+
+        struct proxy_lookup *l = &args->shard->lookups.lookup[i];
+        if (l->socket >= 0) {
+            if (now >= l->time + PROXY_QUERY_TIMEOUT) {
+                // Use a partial answer, else ask the next server
+                close_lookup(args, l);
+                if (l->count > 0)
+                    finish_lookup(args, i);
+                else {
+                    l->server++;
+                    while (l->server < proxy_networks[proxy_network].servers &&
+                           send_lookup(args, i) < 0)
+                        l->server++;
+                    if (l->socket < 0)
+                        finish_lookup(args, i);
+                }
+            }
+        } else if (now >= n->refresh)
+            start_lookup(args, i);
+
+        struct proxy_race *r = &args->shard->lookups.race[i];
+        if (r->next) {
+            if (now >= r->time + PROXY_RACE_TIMEOUT)
+                finish_race(args, i, -1);
+            else if (get_ms() >= r->start + PROXY_RACE_DELAY &&
+                     start_attempt(args, i) < 0 && !is_racing(r))
+                finish_race(args, i, -1);
+        } else if (n->count > 1 && (n->winner < 0 || n->recheck) && now >= n->race) {
+            r->next = 1;
+            r->time = now;
+            if (start_attempt(args, i) < 0)
+                finish_race(args, i, -1);
+        }
+    }
+}
+
+int get_proxy_lookup_timeout(const struct arguments *args) {
+    // Milliseconds until the next lookup, timeout or connection attempt
+    int timeout = EPOLL_TIMEOUT * 1000;
+    if (args->shard->index != 0)
+        return timeout;
+
+    time_t now = args->shard->wheel.now;
+    long long ms = get_ms();
+    for (int i = 0; i < PROXY_NAMES; i++) {
+        int port;
+        const struct proxy_name *n = &proxy_networks[proxy_network].name[i];
+        if (get_proxy_name(i, &port) == NULL || n->literal)
+            continue;
+
+        const struct proxy_lookup *l = &args->shard->lookups.lookup[i];
+        time_t next = (l->socket >= 0 ? l->time + PROXY_QUERY_TIMEOUT : n->refresh);
+        int t = (next > now ? (int) (next - now) * 1000 : 0);
+        if (t < timeout)
+            timeout = t;
+
+        const struct proxy_race *r = &args->shard->lookups.race[i];
+        if (r->next && r->next - 1 < n->count) {
+            long long delay = r->start + PROXY_RACE_DELAY - ms;
+            t = (delay > 0 ? (int) delay : 0);
+        } else if (r->next)
+            t = (r->time + PROXY_RACE_TIMEOUT > now
+                 ? (int) (r->time + PROXY_RACE_TIMEOUT - now) * 1000 : 0);
+        else if (n->count > 1 && (n->winner < 0 || n->recheck))
+            t = (n->race > now ? (int) (n->race - now) * 1000 : 0);
+        else
+            continue;
+        if (t < timeout)
+            timeout = t;
+    }
+    return timeout;
+}
+
+void clear_proxy_lookups(const struct arguments *args) {
+    struct proxy_lookups *lookups = &args->shard->lookups;
+    for (int i = 0; i < PROXY_NAMES; i++) {
+        if (lookups->lookup[i].socket >= 0)
+            close_lookup(args, &lookups->lookup[i]);
+        for (int a = 0; a < PROXY_ADDRS; a++)
+            if (lookups->race[i].attempt[a].socket >= 0)
+                close_attempt(args, &lookups->race[i].attempt[a]);
+        lookups->race[i].next = 0;
+    }
+
+    if (args->shard->index == 0)
+        for (int i = 0; i < PROXY_NAMES; i++) {
+            const struct proxy_name *n = &proxy_networks[proxy_network].name[i];
+            char addr[INET6_ADDRSTRLEN + 1];
+            if (*n->name && !n->literal && n->count > 0)
+                log_android(ANDROID_LOG_INFO, "Proxy %s addresses %d using %s",
+                            n->name, n->count,
+                            str_proxy_addr(&n->addr[n->winner < 0 ? 0 : n->winner], addr));
+        }
+}
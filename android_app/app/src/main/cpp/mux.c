@@ -0,0 +1,578 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Stream multiplexing
+// TCP sessions are carried as streams over a few connections per shard to a server speaking
+// yamux framing: https://github.com/hashicorp/yamux/blob/master/spec.md
+// Every stream starts with a SOCKS5 connect request and gets a SOCKS5 reply,
+// so the session continues like one on a warm SOCKS5 connection.
+// Streams have no socket: the session state machine reads and writes through the
+// functions below, and events are raised from the frames received and the room for sending.
+
+#define MUX_DATA 0
+#define MUX_WINDOW_UPDATE 1
+#define MUX_PING 2
+#define MUX_GO_AWAY 3
+
+#define MUX_SYN 1
+#define MUX_ACK 2
+#define MUX_FIN 4
+#define MUX_RST 8
+
+void init_mux(struct mux *mux) {
+    memset(mux, 0, sizeof(struct mux));
+    for (int i = 0; i < MUX_CONNECTIONS; i++)
+        mux->conn[i].socket = -1;
+}
+
+int is_mux_event(const struct arguments *args, const void *ptr) {
+    const struct mux *mux = &args->shard->mux;
+    return ((const uint8_t *) ptr >= (const uint8_t *) &mux->conn[0] &&
+            (const uint8_t *) ptr < (const uint8_t *) &mux->conn[MUX_CONNECTIONS]);
+}
+
+static int queue_frame(struct mux_conn *c, uint8_t type, uint16_t flags, uint32_t id,
+                       uint32_t length, const struct iovec *iov, int count) {
+    // A frame is queued completely or not at all, a partial frame would break all streams
+    // The length field is the size of the payload for data only,
+    // it is the window delta of a window update and the opaque value of a ping
+    // Closing streams and window updates still fit when data filled the budget
+    size_t total = MUX_HEADER;
+    for (int i = 0; i < count; i++)
+        total += iov[i].iov_len;
+    if (c->out.len + total > MUX_OUT_MAX + (count ? 0 : MUX_OUT_CONTROL) ||
+        reserve_ring(&c->out, (uint32_t) total) < 0)
+        return -1;
+
+    uint8_t header[MUX_HEADER];
+    header[0] = 0; // version
+    header[1] = type;
+    *((uint16_t *) (header + 2)) = htons(flags);
+    *((uint32_t *) (header + 4)) = htonl(id);
+    *((uint32_t *) (header + 8)) = htonl(length);
+
+    if (add_ring(&c->out, c->out.seq + c->out.len, header, sizeof(header), 1) < 0)
+        return -1;
+    for (int i = 0; i < count; i++)
+        if (iov[i].iov_len &&
+            add_ring(&c->out, c->out.seq + c->out.len,
+                     iov[i].iov_base, (uint32_t) iov[i].iov_len, 1) < 0)
+            return -1;
+    return 0;
+}
+
+static void update_window(struct mux_conn *c, struct mux_stream *stream) {
+    // Give the window back to the server once half of it was used
+    // If there is no room, this is retried when frames were sent
+    if (stream->consumed >= MUX_WINDOW / 2) {
+        if (queue_frame(c, MUX_WINDOW_UPDATE, 0, stream->id, stream->consumed, NULL, 0) == 0)
+            stream->consumed = 0;
+        else
+            c->updates = 1;
+    }
+}
+
+static struct mux_stream *find_stream(const struct mux_conn *c, uint32_t id) {
+    struct mux_stream *stream = c->bucket[id & (MUX_BUCKETS - 1)];
+    while (stream != NULL && stream->id != id)
+        stream = stream->next;
+    return stream;
+}
+
+static void free_stream(const struct arguments *args, struct mux_stream *stream) {
+    struct mux *mux = &args->shard->mux;
+    struct mux_conn *c = &mux->conn[stream->conn];
+
+    struct mux_stream **p = &c->bucket[stream->id & (MUX_BUCKETS - 1)];
+    while (*p != stream)
+        p = &(*p)->next;
+    *p = stream->next;
+    c->streams--;
+
+    // Queued for dispatch or being dispatched
+    if (stream->ready) {
+        p = &mux->ready;
+        while (*p != NULL && *p != stream)
+            p = &(*p)->ready_next;
+        if (*p == NULL) {
+            p = &mux->pending;
+            while (*p != stream)
+                p = &(*p)->ready_next;
+        }
+        *p = stream->ready_next;
+    }
+
+    if (stream->session != NULL)
+        stream->session->tcp.mux = NULL;
+    clear_ring(&stream->rx);
+    ng_free(stream, __FILE__, __LINE__);
+}
+
+static void reset_stream(const struct arguments *args, struct mux_stream *stream) {
+    // Reset by the server or lost with the connection
+    struct ng_session *s = stream->session;
+    free_stream(args, stream);
+    if (s != NULL) {
+        write_rst(args, &s->tcp);
+        update_session(args, s);
+    }
+}
+
+static void close_conn(const struct arguments *args, struct mux_conn *c) {
+    for (int b = 0; b < MUX_BUCKETS; b++)
+        while (c->bucket[b] != NULL)
+            reset_stream(args, c->bucket[b]);
+
+    if (c->socket >= 0) {
+        if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_DEL, c->socket, NULL))
+            log_android(ANDROID_LOG_ERROR, "epoll del mux error %d: %s",
+                        errno, strerror(errno));
+        if (close(c->socket))
+            log_android(ANDROID_LOG_ERROR, "mux close error %d: %s", errno, strerror(errno));
+    }
+    clear_ring(&c->out);
+
+    memset(c, 0, sizeof(struct mux_conn));
+    c->socket = -1;
+}
+
+static void check_ready(const struct arguments *args, struct mux_stream *stream) {
+    // Level triggered like epoll: ready while there is something to do
+    struct ng_session *s = stream->session;
+    if (stream->ready || s == NULL)
+        return;
+
+    if (((s->ev.events & EPOLLIN) && (stream->rx.len || stream->fin)) ||
+        ((s->ev.events & EPOLLOUT) && s->tcp.forward.len && get_mux_buffer(args, s) > 0)) {
+        stream->ready = 1;
+        stream->ready_next = args->shard->mux.ready;
+        args->shard->mux.ready = stream;
+    }
+}
+
+static int open_conn(const struct arguments *args, struct mux_conn *c) {
+    memset(c, 0, sizeof(struct mux_conn));
+    c->socket = open_tcp_socket(args, NULL, NULL);
+    if (c->socket < 0)
+        return -1;
+    c->next_id = 1; // odd for the client
+
+    memset(&c->ev, 0, sizeof(struct epoll_event));
+    c->ev.events = EPOLLOUT | EPOLLERR;
+    c->ev.data.ptr = c;
+    if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_ADD, c->socket, &c->ev)) {
+        log_android(ANDROID_LOG_ERROR, "epoll add mux error %d: %s", errno, strerror(errno));
+        close_conn(args, c);
+        return -1;
+    }
+
+    log_android(ANDROID_LOG_INFO, "mux socket %d shard %d opened",
+                c->socket, args->shard->index);
+    return 0;
+}
+
+struct mux_stream *open_mux_stream(const struct arguments *args, struct ng_session *s) {
+    struct mux *mux = &args->shard->mux;
+
+    // Spread streams over the connections, opening one when its slot is unused
+    struct mux_conn *c = NULL;
+    for (int i = 0; i < MUX_CONNECTIONS; i++) {
+        struct mux_conn *t = &mux->conn[i];
+        if (t->goaway)
+            continue;
+        if (c == NULL || t->streams < c->streams)
+            c = t;
+    }
+    if (c == NULL) {
+        log_android(ANDROID_LOG_WARN, "mux no connection");
+        return NULL;
+    }
+    if (c->socket < 0 && open_conn(args, c) < 0)
+        return NULL;
+
+    struct mux_stream *stream = ng_calloc(1, sizeof(struct mux_stream), "mux stream");
+    if (stream == NULL)
+        return NULL;
+    stream->id = c->next_id;
+    c->next_id += 2;
+    stream->conn = (uint8_t) (c - mux->conn);
+    stream->session = s;
+    stream->send_window = MUX_WINDOW;
+    init_ring(&stream->rx, 0);
+
+    struct mux_stream **bucket = &c->bucket[stream->id & (MUX_BUCKETS - 1)];
+    stream->next = *bucket;
+    *bucket = stream;
+    c->streams++;
+
+    // Open the stream with the connect request
+    uint8_t buffer[22];
+    struct iovec iov;
+    iov.iov_base = buffer;
+    iov.iov_len = get_socks5_connect(&s->tcp, buffer);
+    if (queue_frame(c, MUX_DATA, MUX_SYN, stream->id, (uint32_t) iov.iov_len, &iov, 1) < 0) {
+        free_stream(args, stream);
+        return NULL;
+    }
+    stream->send_window -= iov.iov_len;
+
+    s->tcp.mux = stream;
+    s->tcp.socks5 = SOCKS5_POOLED;
+    mux->opened++;
+
+    log_android(ANDROID_LOG_DEBUG, "mux socket %d stream %u opened %d",
+                c->socket, stream->id, c->streams);
+    return stream;
+}
+
+uint32_t get_mux_buffer(const struct arguments *args, const struct ng_session *s) {
+    // Room in the window of the stream and in the connection
+    const struct mux_stream *stream = s->tcp.mux;
+    const struct mux_conn *c = &args->shard->mux.conn[stream->conn];
+    uint32_t room = (c->out.len + MUX_HEADER < MUX_OUT_MAX
+                     ? MUX_OUT_MAX - c->out.len - MUX_HEADER : 0);
+    return (stream->send_window < room ? stream->send_window : room);
+}
+
+ssize_t send_mux(const struct arguments *args, struct ng_session *s, uint32_t max) {
+    struct mux_stream *stream = s->tcp.mux;
+    struct mux_conn *c = &args->shard->mux.conn[stream->conn];
+
+    uint32_t room = get_mux_buffer(args, s);
+    struct iovec iov[2];
+    int count = get_ring_iov(&s->tcp.forward, (max < room ? max : room), iov);
+    if (count == 0)
+        return 0;
+    uint32_t len = (uint32_t) (iov[0].iov_len + (count > 1 ? iov[1].iov_len : 0));
+
+    if (queue_frame(c, MUX_DATA, 0, stream->id, len, iov, count) < 0) {
+        errno = ENOBUFS;
+        return -1;
+    }
+    skip_ring(&s->tcp.forward, len);
+    stream->send_window -= len;
+    return len;
+}
+
+ssize_t recv_mux(const struct arguments *args, struct ng_session *s,
+                 const struct iovec *iov, int count) {
+    struct mux_stream *stream = s->tcp.mux;
+    struct mux_conn *c = &args->shard->mux.conn[stream->conn];
+
+    if (stream->rx.len == 0) {
+        if (stream->fin)
+            return 0;
+        errno = EAGAIN;
+        return -1;
+    }
+
+    // Copy the received data into the buffers of the caller
+    struct iovec src[2];
+    int scount = get_ring_iov(&stream->rx, stream->rx.len, src);
+    size_t total = 0;
+    int d = 0;
+    size_t doff = 0;
+    for (int i = 0; i < scount && d < count; i++) {
+        size_t soff = 0;
+        while (soff < src[i].iov_len && d < count) {
+            size_t n = src[i].iov_len - soff;
+            if (n > iov[d].iov_len - doff)
+                n = iov[d].iov_len - doff;
+            memcpy((uint8_t *) iov[d].iov_base + doff, (uint8_t *) src[i].iov_base + soff, n);
+            soff += n;
+            doff += n;
+            total += n;
+            if (doff == iov[d].iov_len) {
+                d++;
+                doff = 0;
+            }
+        }
+    }
+    skip_ring(&stream->rx, (uint32_t) total);
+
+    stream->consumed += total;
+    update_window(c, stream);
+
+    return total;
+}
+
+void close_mux_stream(const struct arguments *args, struct ng_session *s) {
+    // Reset what the server did not finish, like closing a socket with data pending
+    struct mux_stream *stream = s->tcp.mux;
+    struct mux_conn *c = &args->shard->mux.conn[stream->conn];
+    uint16_t flags = (stream->fin && stream->rx.len == 0 ? MUX_FIN : MUX_RST);
+    queue_frame(c, MUX_WINDOW_UPDATE, flags, stream->id, 0, NULL, 0);
+
+    log_android(ANDROID_LOG_DEBUG, "mux socket %d stream %u %s",
+                c->socket, stream->id, flags == MUX_FIN ? "FIN" : "RST");
+
+    stream->session = NULL;
+    s->tcp.mux = NULL;
+    free_stream(args, stream);
+
+    if (c->goaway && c->streams == 0)
+        close_conn(args, c);
+}
+
+void monitor_mux_stream(const struct arguments *args, struct ng_session *s,
+                        unsigned int events) {
+    s->ev.events = events;
+    check_ready(args, s->tcp.mux);
+}
+
+static void receive_frames(const struct arguments *args, struct mux_conn *c,
+                           const uint8_t *buffer, size_t length) {
+    size_t off = 0;
+    while (off < length && c->socket >= 0) {
+        // Payload of a data frame
+        if (c->remaining > 0) {
+            uint32_t n = (length - off < c->remaining ? (uint32_t) (length - off) : c->remaining);
+            struct mux_stream *stream = (c->current ? find_stream(c, c->current) : NULL);
+            if (stream != NULL) {
+                if (stream->rx.len + n > MUX_WINDOW ||
+                    add_ring(&stream->rx, stream->rx.seq + stream->rx.len,
+                             buffer + off, n, 1) < 0) {
+                    log_android(ANDROID_LOG_WARN, "mux stream %u window exceeded", stream->id);
+                    queue_frame(c, MUX_WINDOW_UPDATE, MUX_RST, stream->id, 0, NULL, 0);
+                    reset_stream(args, stream);
+                    stream = NULL;
+                }
+            }
+            c->remaining -= n;
+            off += n;
+            if (c->remaining == 0 && stream != NULL) {
+                if (c->flags & MUX_FIN)
+                    stream->fin = 1;
+                check_ready(args, stream);
+            }
+            continue;
+        }
+
+        // Header
+        uint32_t n = MUX_HEADER - c->hlen;
+        if (n > length - off)
+            n = (uint32_t) (length - off);
+        memcpy(c->header + c->hlen, buffer + off, n);
+        c->hlen += n;
+        off += n;
+        if (c->hlen < MUX_HEADER)
+            break;
+        c->hlen = 0;
+
+        uint8_t type = c->header[1];
+        uint16_t flags = ntohs(*((uint16_t *) (c->header + 2)));
+        uint32_t id = ntohl(*((uint32_t *) (c->header + 4)));
+        uint32_t len = ntohl(*((uint32_t *) (c->header + 8)));
+        if (c->header[0] != 0) {
+            log_android(ANDROID_LOG_ERROR, "mux socket %d version %d", c->socket, c->header[0]);
+            close_conn(args, c);
+            break;
+        }
+
+        struct mux_stream *stream = (id ? find_stream(c, id) : NULL);
+        if ((type == MUX_DATA || type == MUX_WINDOW_UPDATE) && stream == NULL) {
+            // Streams opened by the server are not accepted, others were closed already
+            if (flags & MUX_SYN)
+                queue_frame(c, MUX_WINDOW_UPDATE, MUX_RST, id, 0, NULL, 0);
+            if (type == MUX_DATA) {
+                c->current = 0;
+                c->remaining = len;
+            }
+            continue;
+        }
+
+        if (type == MUX_DATA || type == MUX_WINDOW_UPDATE) {
+            if (flags & MUX_RST) {
+                log_android(ANDROID_LOG_DEBUG, "mux stream %u reset", id);
+                reset_stream(args, stream);
+                if (type == MUX_DATA) {
+                    c->current = 0;
+                    c->remaining = len;
+                }
+                continue;
+            }
+
+            if (type == MUX_DATA) {
+                c->current = id;
+                c->remaining = len;
+                c->flags = flags;
+                if (len == 0 && (flags & MUX_FIN))
+                    stream->fin = 1;
+            } else {
+                stream->send_window += len;
+                if (flags & MUX_FIN)
+                    stream->fin = 1;
+            }
+            check_ready(args, stream);
+
+        } else if (type == MUX_PING) {
+            if (flags & MUX_SYN)
+                queue_frame(c, MUX_PING, MUX_ACK, 0, len, NULL, 0);
+
+        } else if (type == MUX_GO_AWAY) {
+            log_android(ANDROID_LOG_WARN, "mux socket %d go away %u", c->socket, len);
+            c->goaway = 1;
+            if (c->streams == 0)
+                close_conn(args, c);
+
+        } else {
+            log_android(ANDROID_LOG_ERROR, "mux socket %d frame type %d", c->socket, type);
+            close_conn(args, c);
+        }
+    }
+}
+
+void check_mux(const struct arguments *args, const struct epoll_event *ev) {
+    struct mux_conn *c = (struct mux_conn *) ev->data.ptr;
+    if (c->socket < 0)
+        return;
+
+    if (ev->events & EPOLLERR) {
+        int serr = 0;
+        socklen_t optlen = sizeof(int);
+        getsockopt(c->socket, SOL_SOCKET, SO_ERROR, &serr, &optlen);
+        log_android(ANDROID_LOG_ERROR, "mux socket %d error %d: %s",
+                    c->socket, serr, strerror(serr));
+        close_conn(args, c);
+        return;
+    }
+
+    if (!c->connected && (ev->events & EPOLLOUT)) {
+        c->connected = 1;
+        log_android(ANDROID_LOG_INFO, "mux socket %d connected", c->socket);
+    }
+
+    if (ev->events & EPOLLIN) {
+        uint8_t buffer[MUX_READ];
+        int count = 0;
+        while (c->socket >= 0 && count++ < MUX_YIELD) {
+            ssize_t bytes = recv(c->socket, buffer, sizeof(buffer), 0);
+            if (bytes < 0) {
+                if (errno != EAGAIN && errno != EWOULDBLOCK && errno != EINTR) {
+                    log_android(ANDROID_LOG_ERROR, "mux socket %d recv error %d: %s",
+                                c->socket, errno, strerror(errno));
+                    close_conn(args, c);
+                }
+                break;
+            }
+            if (bytes == 0) {
+                log_android(ANDROID_LOG_WARN, "mux socket %d closed by server", c->socket);
+                close_conn(args, c);
+                break;
+            }
+            receive_frames(args, c, buffer, (size_t) bytes);
+            if ((size_t) bytes < sizeof(buffer))
+                break;
+        }
+    }
+}
+
+int flush_mux(const struct arguments *args) {
+    // Write queued frames and watch the connections accordingly
+    // Returns whether streams are ready
+    struct mux *mux = &args->shard->mux;
+    for (int i = 0; i < MUX_CONNECTIONS; i++) {
+        struct mux_conn *c = &mux->conn[i];
+        if (c->socket < 0)
+            continue;
+
+        if (c->connected && c->out.len) {
+            uint32_t before = c->out.len;
+            ssize_t sent = send_ring(&c->out, c->socket, c->out.len);
+            if (sent < 0 && errno != EAGAIN && errno != EWOULDBLOCK && errno != EINTR) {
+                log_android(ANDROID_LOG_ERROR, "mux socket %d send error %d: %s",
+                            c->socket, errno, strerror(errno));
+                close_conn(args, c);
+                continue;
+            }
+
+            // Wake up streams waiting for room
+            if (sent > 0 && before + MUX_HEADER >= MUX_OUT_MAX)
+                for (int b = 0; b < MUX_BUCKETS; b++)
+                    for (struct mux_stream *s = c->bucket[b]; s != NULL; s = s->next)
+                        check_ready(args, s);
+
+            // Window updates which did not fit, the server might wait for them
+            if (sent > 0 && c->updates) {
+                c->updates = 0;
+                for (int b = 0; b < MUX_BUCKETS; b++)
+                    for (struct mux_stream *s = c->bucket[b]; s != NULL; s = s->next)
+                        update_window(c, s);
+            }
+        }
+
+        uint32_t events = EPOLLERR;
+        if (c->connected)
+            events |= EPOLLIN | (c->out.len ? EPOLLOUT : 0);
+        else
+            events |= EPOLLOUT;
+        if (events != c->ev.events) {
+            c->ev.events = events;
+            if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_MOD, c->socket, &c->ev)) {
+                log_android(ANDROID_LOG_ERROR, "epoll mod mux error %d: %s",
+                            errno, strerror(errno));
+                close_conn(args, c);
+            }
+        }
+    }
+
+    return (mux->ready != NULL);
+}
+
+void dispatch_mux(const struct arguments *args, int epoll_fd) {
+    // Handle streams like sockets with events
+    // Streams getting ready meanwhile are handled in the next loop
+    struct mux *mux = &args->shard->mux;
+    mux->pending = mux->ready;
+    mux->ready = NULL;
+    while (mux->pending != NULL) {
+        struct mux_stream *stream = mux->pending;
+        mux->pending = stream->ready_next;
+        stream->ready = 0;
+
+        struct ng_session *s = stream->session;
+        struct epoll_event ev;
+        memset(&ev, 0, sizeof(struct epoll_event));
+        if ((s->ev.events & EPOLLIN) && (stream->rx.len || stream->fin))
+            ev.events |= EPOLLIN;
+        if ((s->ev.events & EPOLLOUT) && s->tcp.forward.len && get_mux_buffer(args, s) > 0)
+            ev.events |= EPOLLOUT;
+        ev.data.ptr = s;
+
+        if (ev.events) {
+            check_tcp_socket(args, &ev, epoll_fd);
+            update_session(args, s);
+        }
+    }
+}
+
+void clear_mux(const struct arguments *args) {
+    struct mux *mux = &args->shard->mux;
+    for (int i = 0; i < MUX_CONNECTIONS; i++) {
+        struct mux_conn *c = &mux->conn[i];
+        for (int b = 0; b < MUX_BUCKETS; b++)
+            while (c->bucket[b] != NULL)
+                free_stream(args, c->bucket[b]);
+        if (c->socket >= 0)
+            close_conn(args, c);
+    }
+    log_android(ANDROID_LOG_INFO, "mux shard %d streams %u", args->shard->index, mux->opened);
+}
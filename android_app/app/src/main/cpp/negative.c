@@ -0,0 +1,126 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Unreachable destinations
+// A destination which the proxy reported as unreachable, or which could not be connected
+// directly, is remembered for TCP_NEGATIVE_TTL seconds. Apps retrying right away then fail
+// locally instead of paying for a proxy connection and handshake on every attempt.
+// The table is shared by the shards, since retries use new source ports, and cleared
+// on start, since reachability depends on the network.
+// Failures of the proxy itself are not remembered, they are not specific to a destination.
+
+extern struct tcp_negative tcp_negatives[TCP_NEGATIVES];
+extern pthread_mutex_t negative_lock;
+
+static uint32_t negative_hits = 0;
+static uint32_t negative_added = 0;
+
+int get_socks5_error(uint8_t rep) {
+    // https://tools.ietf.org/html/rfc1928#section-6
+    switch (rep) {
+        case 2: // connection not allowed by ruleset
+            return EACCES;
+        case 3: // network unreachable
+            return ENETUNREACH;
+        case 4: // host unreachable
+        case 6: // TTL expired
+            return EHOSTUNREACH;
+        case 5: // connection refused
+            return ECONNREFUSED;
+        default: // general failure, command or address type not supported
+            return -1;
+    }
+}
+
+int get_http_error(const char *status) {
+    // Status line: HTTP/1.x nnn
+    // 502, 503 and 504 may as well be an overloaded proxy, so they are not specific to the destination
+    if (memcmp(status + 9, "403", 3) == 0)
+        return EACCES;
+    return -1;
+}
+
+static struct tcp_negative *get_entry(int version, const void *daddr, __be16 dest) {
+    uint32_t h = dest;
+    const uint32_t *addr = (const uint32_t *) daddr;
+    for (int w = 0; w < (version == 4 ? 1 : 4); w++) {
+        // Finalizer of MurmurHash3
+        h ^= addr[w];
+        h ^= h >> 16;
+        h *= 0x85ebca6b;
+        h ^= h >> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >> 16;
+    }
+    return &tcp_negatives[h % TCP_NEGATIVES];
+}
+
+void clear_negatives() {
+    if (negative_added)
+        log_android(ANDROID_LOG_INFO, "Unreachable destinations added %u failed locally %u",
+                    negative_added, negative_hits);
+    memset(tcp_negatives, 0, sizeof(tcp_negatives));
+    negative_hits = 0;
+    negative_added = 0;
+}
+
+void add_negative(const struct arguments *args, const struct tcp_session *cur, int error) {
+    struct tcp_negative *n = get_entry(cur->version, &cur->daddr, cur->dest);
+
+    if (pthread_mutex_lock(&negative_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    // A collision replaces the older destination
+    n->expires = args->shard->wheel.now + TCP_NEGATIVE_TTL;
+    n->version = (uint8_t) cur->version;
+    n->dest = cur->dest;
+    memcpy(&n->daddr, &cur->daddr, cur->version == 4 ? 4 : 16);
+    n->error = error;
+    negative_added++;
+
+    if (pthread_mutex_unlock(&negative_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    char dest[INET6_ADDRSTRLEN + 1];
+    log_android(ANDROID_LOG_INFO, "Unreachable %s/%u error %d for %d s",
+                straddr(cur->version, &cur->daddr, dest), ntohs(cur->dest), error,
+                TCP_NEGATIVE_TTL);
+}
+
+int get_negative(const struct arguments *args, int version, const void *daddr, __be16 dest) {
+    // Returns the error to tell the app, -1 if the destination may be reachable
+    struct tcp_negative *n = get_entry(version, daddr, dest);
+    int error = -1;
+
+    if (pthread_mutex_lock(&negative_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    if (n->expires > args->shard->wheel.now && n->version == version && n->dest == dest &&
+        memcmp(&n->daddr, daddr, version == 4 ? 4 : 16) == 0) {
+        error = n->error;
+        negative_hits++;
+    }
+
+    if (pthread_mutex_unlock(&negative_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return error;
+}
@@ -24,11 +24,30 @@
 
 // Global variables
 
-char socks5_addr[INET6_ADDRSTRLEN + 1];
+char socks5_addr[PROXY_NAME_MAX + 1];
 int socks5_port = 0;
 char socks5_username[127 + 1];
 char socks5_password[127 + 1];
+int socks5_pipeline = 0;
+int socks5_fastopen = 0;
+int socks5_early = 0;
+int socks5_mux = 0;
+int socks5_udp = 0;
+int socks5_method = -1; // learned from the first hello reply, -1 if unknown
+char http_proxy_addr[PROXY_NAME_MAX + 1];
+int http_proxy_port = 0;
+char http_proxy_auth[HTTP_AUTH_MAX + 1]; // Basic credentials
+struct upstream upstreams[UPSTREAM_MAX];
+int upstream_count = 0; // proxies of the configured type, none means the one proxy
+int upstream_hash = 0; // choose by destination instead of round trip
+struct proxy_network proxy_networks[PROXY_NETWORKS]; // looked up proxy names, kept across starts
+int proxy_network = 0; // current
+pthread_mutex_t proxy_lock = PTHREAD_MUTEX_INITIALIZER;
+int proxy_generation = 0; // addresses of proxy names changed
+struct tcp_negative tcp_negatives[TCP_NEGATIVES]; // unreachable destinations
+pthread_mutex_t negative_lock = PTHREAD_MUTEX_INITIALIZER;
 int loglevel = ANDROID_LOG_INFO;
+JavaVM *jvm = NULL;
 
 extern int max_tun_msg;
 
@@ -36,9 +55,6 @@ extern FILE *pcap_file;
 extern size_t pcap_record_size;
 extern long pcap_file_size;
 
-extern int uid_cache_size;
-extern struct uid_cache_entry *uid_cache;
-
 // JNI
 
 
@@ -50,6 +66,9 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
         log_android(ANDROID_LOG_INFO, "JNI load GetEnv failed");
         return -1;
     }
+    jvm = vm;
+
+    init_checksum();
 
     // Raise file number limit to maximum
     struct rlimit rlim;
@@ -89,36 +108,50 @@ Java_tun_proxy_service_TunProxyVpnService_jni_1init(
     socks5_port = 0;
     *socks5_username = NULL;
     *socks5_password = NULL;
+    socks5_pipeline = 0;
+    socks5_fastopen = 0;
+    socks5_early = 0;
+    socks5_mux = 0;
+    socks5_udp = 0;
+    socks5_method = -1;
+    *http_proxy_addr = 0;
+    http_proxy_port = 0;
+    *http_proxy_auth = 0;
+    upstream_count = 0;
+    upstream_hash = 0;
+    memset(proxy_networks, 0, sizeof(proxy_networks));
+    proxy_network = 0;
     pcap_file = NULL;
 
     if (pthread_mutex_init(&ctx->lock, NULL))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
 
-    // Create signal pipe
-    if (pipe(ctx->pipefds))
-        log_android(ANDROID_LOG_ERROR, "Create pipe error %d: %s", errno, strerror(errno));
-    else
-        for (int i = 0; i < 2; i++) {
-            int flags = fcntl(ctx->pipefds[i], F_GETFL, 0);
-            if (flags < 0 || fcntl(ctx->pipefds[i], F_SETFL, flags | O_NONBLOCK) < 0)
-                log_android(ANDROID_LOG_ERROR, "fcntl pipefds[%d] O_NONBLOCK error %d: %s",
-                            i, errno, strerror(errno));
-        }
-
     return (jlong) ctx;
 }
 
 JNIEXPORT void JNICALL
 Java_tun_proxy_service_TunProxyVpnService_jni_1start(
-        JNIEnv *env, jobject instance, jlong context, jint loglevel_) {
+        JNIEnv *env, jobject instance, jlong context, jint loglevel_, jint workers,
+        jboolean checkip, jboolean udpshared) {
     struct context *ctx = (struct context *) context;
 
     loglevel = loglevel_;
     max_tun_msg = 0;
     ctx->stopping = 0;
 
-    log_android(ANDROID_LOG_INFO, "Starting with log level %d", loglevel);
-
+    if (workers < 1)
+        workers = 1;
+    if (workers > WORKERS_MAX)
+        workers = WORKERS_MAX;
+    init_shards(ctx, workers);
+    init_proxy_names();
+    clear_negatives();
+    ctx->checkip = checkip;
+    ctx->udpshared = udpshared;
+
+    log_android(ANDROID_LOG_INFO,
+                "Starting with log level %d workers %d check IP %d UDP shared %d",
+                loglevel, workers, checkip, udpshared);
 }
 
 JNIEXPORT void JNICALL
@@ -128,13 +161,41 @@ Java_tun_proxy_service_TunProxyVpnService_jni_1run(
 
     log_android(ANDROID_LOG_INFO, "Running tun %d fwd53 %d log level %d", tun, fwd53, loglevel);
 
-    // Set blocking
+    // Set non blocking, writes are queued per shard and drained on EPOLLOUT
     int flags = fcntl(tun, F_GETFL, 0);
-    if (flags < 0 || fcntl(tun, F_SETFL, flags & ~O_NONBLOCK) < 0)
-        log_android(ANDROID_LOG_ERROR, "fcntl tun ~O_NONBLOCK error %d: %s",
+    if (flags < 0 || fcntl(tun, F_SETFL, flags | O_NONBLOCK) < 0)
+        log_android(ANDROID_LOG_ERROR, "fcntl tun O_NONBLOCK error %d: %s",
                     errno, strerror(errno));
 
-        // Get arguments
+    if (ctx->shard == NULL)
+        init_shards(ctx, 1);
+
+    // Resolve uids in the background
+    start_resolver(env, instance, ctx);
+
+    // Start workers for the other shards
+    jobject instances[WORKERS_MAX];
+    int started[WORKERS_MAX];
+    for (int i = 1; i < ctx->workers; i++) {
+        struct arguments *wargs = ng_malloc(sizeof(struct arguments), "arguments");
+        wargs->env = NULL; // attached by the worker
+        wargs->instance = instances[i] = jniGlobalRef(env, instance);
+        wargs->tun = tun;
+        wargs->fwd53 = fwd53;
+        wargs->rcode = rcode;
+        wargs->ctx = ctx;
+        wargs->shard = &ctx->shard[i];
+
+        int err = pthread_create(&ctx->shard[i].thread, NULL, handle_events, wargs);
+        started[i] = (err == 0);
+        if (err) {
+            log_android(ANDROID_LOG_ERROR, "pthread_create error %d: %s", err, strerror(err));
+            ng_free(wargs, __FILE__, __LINE__);
+            ctx->stopping = 1;
+        }
+    }
+
+    // Get arguments
     struct arguments *args = ng_malloc(sizeof(struct arguments), "arguments");
     args->env = env;
     args->instance = instance;
@@ -142,7 +203,20 @@ Java_tun_proxy_service_TunProxyVpnService_jni_1run(
     args->fwd53 = fwd53;
     args->rcode = rcode;
     args->ctx = ctx;
+    args->shard = &ctx->shard[0];
     handle_events(args);
+
+    // Wait for workers
+    for (int i = 1; i < ctx->workers; i++) {
+        if (started[i]) {
+            int err = pthread_join(ctx->shard[i].thread, NULL);
+            if (err)
+                log_android(ANDROID_LOG_ERROR, "pthread_join error %d: %s", err, strerror(err));
+        }
+        (*env)->DeleteGlobalRef(env, instances[i]);
+    }
+
+    stop_resolver(env, ctx);
 }
 
 JNIEXPORT void JNICALL
@@ -152,8 +226,7 @@ Java_tun_proxy_service_TunProxyVpnService_jni_1stop(
     ctx->stopping = 1;
 
     log_android(ANDROID_LOG_INFO, "Write pipe wakeup");
-    if (write(ctx->pipefds[1], "w", 1) < 0)
-            log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+    wakeup_shards(ctx);
 }
 
 JNIEXPORT void JNICALL
@@ -229,7 +302,9 @@ Java_tun_proxy_service_Tun2HttpVpnService_jni_1pcap(
 JNIEXPORT void JNICALL
 Java_tun_proxy_service_TunProxyVpnService_jni_1socks5(JNIEnv *env, jobject instance, jstring addr_,
                                                       jint port, jstring username_,
-                                                      jstring password_) {
+                                                      jstring password_, jboolean pipeline,
+                                                      jboolean fastopen, jboolean early,
+                                                      jboolean mux, jboolean udp) {
     const char *addr = (*env)->GetStringUTFChars(env, addr_, 0);
     const char *username = (*env)->GetStringUTFChars(env, username_, 0);
     const char *password = (*env)->GetStringUTFChars(env, password_, 0);
@@ -237,13 +312,23 @@ Java_tun_proxy_service_TunProxyVpnService_jni_1socks5(JNIEnv *env, jobject insta
     ng_add_alloc(username, "username");
     ng_add_alloc(password, "password");
 
-    strcpy(socks5_addr, addr);
+    strncpy(socks5_addr, addr, PROXY_NAME_MAX);
     socks5_port = port;
     strcpy(socks5_username, username);
     strcpy(socks5_password, password);
+    socks5_pipeline = pipeline;
+    socks5_early = early;
+    socks5_mux = mux;
+    socks5_udp = udp;
+    __atomic_store_n(&socks5_fastopen, fastopen, __ATOMIC_RELAXED);
 
-    log_android(ANDROID_LOG_INFO, "SOCKS5 %s:%d user=%s",
-                socks5_addr, socks5_port, socks5_username);
+    // Without credentials only no authentication is offered
+    __atomic_store_n(&socks5_method, *socks5_username ? -1 : 0, __ATOMIC_RELAXED);
+
+    log_android(ANDROID_LOG_INFO,
+                "SOCKS5 %s:%d user=%s pipeline %d fast open %d early %d mux %d udp %d",
+                socks5_addr, socks5_port, socks5_username, socks5_pipeline, fastopen,
+                socks5_early, socks5_mux, socks5_udp);
 
     (*env)->ReleaseStringUTFChars(env, addr_, addr);
     (*env)->ReleaseStringUTFChars(env, username_, username);
@@ -253,24 +338,117 @@ Java_tun_proxy_service_TunProxyVpnService_jni_1socks5(JNIEnv *env, jobject insta
     ng_delete_alloc(password, __FILE__, __LINE__);
 }
 
+JNIEXPORT void JNICALL
+Java_tun_proxy_service_TunProxyVpnService_jni_1http_1proxy(JNIEnv *env, jobject instance,
+                                                          jstring addr_, jint port,
+                                                          jstring username_,
+                                                          jstring password_) {
+    const char *addr = (*env)->GetStringUTFChars(env, addr_, 0);
+    const char *username = (*env)->GetStringUTFChars(env, username_, 0);
+    const char *password = (*env)->GetStringUTFChars(env, password_, 0);
+    ng_add_alloc(addr, "addr");
+    ng_add_alloc(username, "username");
+    ng_add_alloc(password, "password");
+
+    strncpy(http_proxy_addr, addr, PROXY_NAME_MAX);
+    http_proxy_port = port;
+
+    // https://tools.ietf.org/html/rfc7617
+    *http_proxy_auth = 0;
+    if (*username) {
+        char credentials[127 + 1 + 127 + 1];
+        snprintf(credentials, sizeof(credentials), "%.127s:%.127s", username, password);
+        base64((const uint8_t *) credentials, strlen(credentials), http_proxy_auth);
+    }
+
+    // An HTTP proxy replaces the SOCKS5 proxy, the connection options of jni_socks5 remain
+    if (*http_proxy_addr && http_proxy_port)
+        *socks5_addr = 0;
+
+    log_android(ANDROID_LOG_INFO, "HTTP proxy %s:%d user=%s",
+                http_proxy_addr, http_proxy_port, username);
+
+    (*env)->ReleaseStringUTFChars(env, addr_, addr);
+    (*env)->ReleaseStringUTFChars(env, username_, username);
+    (*env)->ReleaseStringUTFChars(env, password_, password);
+    ng_delete_alloc(addr, __FILE__, __LINE__);
+    ng_delete_alloc(username, __FILE__, __LINE__);
+    ng_delete_alloc(password, __FILE__, __LINE__);
+}
+
+JNIEXPORT void JNICALL
+Java_tun_proxy_service_TunProxyVpnService_jni_1upstreams(JNIEnv *env, jobject instance,
+                                                        jobjectArray addrs_, jintArray ports_,
+                                                        jboolean hash) {
+    jsize count = (*env)->GetArrayLength(env, addrs_);
+    if (count > UPSTREAM_MAX) {
+        log_android(ANDROID_LOG_WARN, "Upstreams %d of %d used", UPSTREAM_MAX, count);
+        count = UPSTREAM_MAX;
+    }
+
+    jint *ports = (*env)->GetIntArrayElements(env, ports_, NULL);
+    ng_add_alloc(ports, "ports");
+    for (jsize i = 0; i < count; i++) {
+        jstring addr_ = (jstring) (*env)->GetObjectArrayElement(env, addrs_, i);
+        const char *addr = (*env)->GetStringUTFChars(env, addr_, 0);
+        ng_add_alloc(addr, "addr");
+
+        memset(&upstreams[i], 0, sizeof(struct upstream));
+        strncpy(upstreams[i].addr, addr, PROXY_NAME_MAX);
+        upstreams[i].port = ports[i];
+        log_android(ANDROID_LOG_INFO, "Upstream %d %s/%d", i, upstreams[i].addr, ports[i]);
+
+        (*env)->ReleaseStringUTFChars(env, addr_, addr);
+        ng_delete_alloc(addr, __FILE__, __LINE__);
+        (*env)->DeleteLocalRef(env, addr_);
+    }
+    (*env)->ReleaseIntArrayElements(env, ports_, ports, JNI_ABORT);
+    ng_delete_alloc(ports, __FILE__, __LINE__);
+
+    upstream_count = count;
+    upstream_hash = hash;
+}
+
+JNIEXPORT void JNICALL
+Java_tun_proxy_service_TunProxyVpnService_jni_1network(JNIEnv *env, jobject instance,
+                                                      jlong handle, jobjectArray servers_) {
+    struct proxy_addr servers[PROXY_SERVERS];
+    int count = 0;
+    jsize length = (servers_ == NULL ? 0 : (*env)->GetArrayLength(env, servers_));
+    for (jsize i = 0; i < length && count < PROXY_SERVERS; i++) {
+        jstring server_ = (jstring) (*env)->GetObjectArrayElement(env, servers_, i);
+        const char *server = (*env)->GetStringUTFChars(env, server_, 0);
+        ng_add_alloc(server, "server");
+
+        memset(&servers[count], 0, sizeof(struct proxy_addr));
+        if (inet_pton(AF_INET, server, &servers[count].ip.ip4) == 1)
+            servers[count++].version = 4;
+        else if (inet_pton(AF_INET6, server, &servers[count].ip.ip6) == 1)
+            servers[count++].version = 6;
+        else
+            log_android(ANDROID_LOG_WARN, "Name server %s invalid", server);
+
+        (*env)->ReleaseStringUTFChars(env, server_, server);
+        ng_delete_alloc(server, __FILE__, __LINE__);
+        (*env)->DeleteLocalRef(env, server_);
+    }
+
+    set_proxy_network(handle, servers, count);
+}
+
 JNIEXPORT void JNICALL
 Java_tun_proxy_service_TunProxyVpnService_jni_1done(JNIEnv *env, jobject instance, jlong context) {
     struct context *ctx = (struct context *) context;
     log_android(ANDROID_LOG_INFO, "Done");
 
     clear(ctx);
+    free_shards(ctx);
+    clear_pool();
 
     if (pthread_mutex_destroy(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
 
-    for (int i = 0; i < 2; i++)
-        if (close(ctx->pipefds[i]))
-            log_android(ANDROID_LOG_ERROR, "Close pipe error %d: %s", errno, strerror(errno));
-
-    if (uid_cache != NULL)
-        ng_free(uid_cache, __FILE__, __LINE__);
-    uid_cache_size = 0;
-    uid_cache = NULL;
+    clear_uid();
 
     ng_free(ctx, __FILE__, __LINE__);
 }
@@ -383,50 +561,86 @@ int jniCheckException(JNIEnv *env) {
 }
 
 static jmethodID midGetUidQ = NULL;
+static jfieldID fidUidBuffer = NULL;
 
-jint get_uid_q(const struct arguments *args,
-               jint version, jint protocol,
-               const char *source, jint sport,
-               const char *dest, jint dport) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+// Requests are packed into a direct buffer shared with TunProxyVpnService.getUidQ,
+// so an upcall for a whole batch needs no class lookup and no strings
+// 0 version, 1 protocol, 2 sport, 4 dport, 8 saddr, 24 daddr, 40 uid (host notation)
 
+int init_uid_q(const struct arguments *args, struct resolver *r) {
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(IILjava/lang/String;ILjava/lang/String;I)I";
     if (midGetUidQ == NULL)
-        midGetUidQ = jniGetMethodID(args->env, clsService, "getUidQ", signature);
+        midGetUidQ = jniGetMethodID(args->env, clsService, "getUidQ", "(I)V");
+    if (fidUidBuffer == NULL)
+        fidUidBuffer = jniGetFieldID(args->env, clsService, "uidBuffer", "Ljava/nio/ByteBuffer;");
 
-    jstring jsource = (*args->env)->NewStringUTF(args->env, source);
-    jstring jdest = (*args->env)->NewStringUTF(args->env, dest);
-    ng_add_alloc(jsource, "jsource");
-    ng_add_alloc(jdest, "jdest");
-
-    jint juid = (*args->env)->CallIntMethod(
-            args->env, args->instance, midGetUidQ,
-            version, protocol, jsource, sport, jdest, dport);
-    jniCheckException(args->env);
-
-    (*args->env)->DeleteLocalRef(args->env, jdest);
-    (*args->env)->DeleteLocalRef(args->env, jsource);
     (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jdest, __FILE__, __LINE__);
-    ng_delete_alloc(jsource, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
+    if (midGetUidQ == NULL || fidUidBuffer == NULL)
+        return -1;
+
+    jobject buffer = (*args->env)->GetObjectField(args->env, args->instance, fidUidBuffer);
+    if (buffer == NULL) {
+        log_android(ANDROID_LOG_ERROR, "uid buffer missing");
+        return -1;
+    }
+
+    r->buffer = jniGlobalRef(args->env, buffer);
+    r->records = (int) ((*args->env)->GetDirectBufferCapacity(args->env, buffer) / UID_RECORD);
+    r->data = (*args->env)->GetDirectBufferAddress(args->env, buffer);
+    (*args->env)->DeleteLocalRef(args->env, buffer);
+
+    if (r->data == NULL || r->records <= 0) {
+        log_android(ANDROID_LOG_ERROR, "uid buffer not direct");
+        return -1;
+    }
+    return 0;
+}
+
+void get_uid_q(const struct arguments *args, const struct resolver *r, struct uid_request *batch) {
+    while (batch != NULL) {
 #ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "get_uid_q %f", mselapsed);
+        float mselapsed;
+        struct timeval start, end;
+        gettimeofday(&start, NULL);
 #endif
 
-    return juid;
+        // Pack requests
+        int count = 0;
+        struct uid_request *q = batch;
+        for (; q != NULL && count < r->records; q = q->next) {
+            uint8_t *record = r->data + count * UID_RECORD;
+            memset(record, 0, UID_RECORD);
+            record[0] = (uint8_t) q->version;
+            record[1] = (uint8_t) q->protocol;
+            *((uint16_t *) (record + 2)) = q->sport;
+            *((uint16_t *) (record + 4)) = q->dport;
+            memcpy(record + 8, q->saddr, (size_t) (q->version == 4 ? 4 : 16));
+            memcpy(record + 24, q->daddr, (size_t) (q->version == 4 ? 4 : 16));
+            *((jint *) (record + 40)) = -1;
+            count++;
+        }
+
+        (*args->env)->CallVoidMethod(args->env, args->instance, midGetUidQ, count);
+        jniCheckException(args->env);
+
+        // Unpack results
+        for (int i = 0; i < count; i++) {
+            batch->uid = *((jint *) (r->data + i * UID_RECORD + 40));
+            batch = batch->next;
+        }
+
+#ifdef PROFILE_JNI
+        gettimeofday(&end, NULL);
+        mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
+                    (end.tv_usec - start.tv_usec) / 1000.0;
+        if (mselapsed > PROFILE_JNI)
+            log_android(ANDROID_LOG_WARN, "get_uid_q %d %f", count, mselapsed);
+#endif
+    }
 }
 
 struct alloc_record {
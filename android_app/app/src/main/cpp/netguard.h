@@ -17,6 +17,7 @@
 #include <sys/types.h>
 #include <sys/ioctl.h>
 #include <sys/socket.h>
+#include <sys/uio.h>
 #include <sys/epoll.h>
 #include <dlfcn.h>
 #include <sys/stat.h>
@@ -38,14 +39,41 @@
 
 #define TAG "TunProxy.JNI"
 
+// Logging
+// The level is checked before any argument is evaluated,
+// so describing a session or a packet costs nothing when it is not logged.
+// DEBUG and VERBOSE messages are compiled out of release builds.
+#ifdef NDEBUG
+#define LOG_MIN_LEVEL ANDROID_LOG_INFO
+#else
+#define LOG_MIN_LEVEL ANDROID_LOG_VERBOSE
+#endif
+
+// tools/bench defines it as 1 to measure the cost of formatting every message
+#ifndef is_loggable
+#define is_loggable(prio) ((prio) >= LOG_MIN_LEVEL && (prio) >= loglevel)
+#endif
+
+#define log_android(prio, ...) \
+    do { \
+        if (is_loggable(prio)) \
+            log_print(prio, __VA_ARGS__); \
+    } while (0)
+
+#define HEX_LOG_MAX (32 * 3 + 1) // characters
+
+extern int loglevel;
+
 // #define PROFILE_JNI 5
 // #define PROFILE_MEMORY
 
 #define EPOLL_TIMEOUT 3600 // seconds
 #define EPOLL_EVENTS 20
-#define EPOLL_MIN_CHECK 100 // milliseconds
+#define TCP_PROBE_INTERVAL 100 // milliseconds, zero window keep alive
 
 #define TUN_YIELD 10 // packets
+#define TUN_QUEUE_MAX 256 // packets
+#define TUN_QUEUE_HIGH 192 // packets, stop reading sockets
 
 #define ICMP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
 #define ICMP6_MAXMSG (IPV6_MAXPACKET - 40 - 8) // bytes (socket)
@@ -67,23 +95,407 @@
 
 #define SESSION_LIMIT 40 // percent
 #define SESSION_MAX (1024 * SESSION_LIMIT / 100) // number
+#define SESSION_TABLE_MIN 64 // slots
+#define SESSION_SHARED 2 // active without a socket of its own
+
+#define POOL_CLASSES 2
+#define POOL_SMALL 10240 // bytes, tun packets
+#define POOL_LARGE (IP_MAXPACKET + 64) // bytes, datagrams with headers
+#define POOL_MAGAZINE_SMALL 32 // buffers per thread
+#define POOL_MAGAZINE_LARGE 4 // buffers per thread
+#define POOL_DEPOT_SMALL 256 // buffers
+#define POOL_DEPOT_LARGE 16 // buffers
+
+#define WORKERS_MAX 8 // threads
+#define SHARD_QUEUE_MAX 512 // packets
+
+#define TIMER_BITS 6
+#define TIMER_SLOTS (1 << TIMER_BITS) // per level
+#define TIMER_LEVELS 2 // 1 second and 64 second slots
+#define TIMER_DUE (TIMER_LEVELS * TIMER_SLOTS) // slot of expired timers
 
 #define SEND_BUF_DEFAULT 163840 // bytes
 
+#define TCP_RING_MIN 16384 // bytes
+#define TCP_RING_MAX 4194304 // bytes
+#define TCP_RING_RANGES 8
+#define TCP_RECV_SCALE 7 // window scale advertised to apps, up to 8 MB
+#define TCP_EARLY_WINDOW 16384 // bytes, first flight of the app buffered before the proxy connected
+#define TCP_READ_SEGMENTS 32 // per socket event, less than TUN_QUEUE_MAX - TUN_QUEUE_HIGH
+#define TCP_NEGATIVES 1024 // unreachable destinations remembered, direct mapped
+#define TCP_NEGATIVE_TTL 5 // seconds
+
 #define UID_MAX_AGE 30000 // milliseconds
+#define UID_MIN_RELOAD 5 // milliseconds, after a miss
+#define UID_INDEX_MIN 64 // entries
+#define UID_QUEUE_MAX 1024 // requests
+#define UID_RECORD 44 // bytes, see get_uid_q
 
 #define SOCKS5_NONE 1
 #define SOCKS5_HELLO 2
 #define SOCKS5_AUTH 3
 #define SOCKS5_CONNECT 4
 #define SOCKS5_CONNECTED 5
+#define SOCKS5_PIPELINED 6 // hello and connect sent in one write
+#define SOCKS5_PIPELINED_AUTH 7 // hello, auth and connect sent in one write
+#define SOCKS5_POOLED 8 // connect sent on a warm connection
+#define HTTP_CONNECT 9 // HTTP CONNECT request sent, reading the response header
+
+#define SOCKS5_POOL_MAX 8 // warm connections per shard
+#define SOCKS5_POOL_PERIOD 5 // seconds, connection rate
+#define SOCKS5_POOL_IDLE 15 // seconds, proxies drop idle negotiated connections
+
+#ifndef TCP_FASTOPEN_CONNECT
+#define TCP_FASTOPEN_CONNECT 30 // Linux 4.11
+#endif
+#ifndef TCPI_OPT_SYN_DATA
+#define TCPI_OPT_SYN_DATA 32
+#endif
+
+#define SOCKS5_REPLY_MAX (2 + 2 + 6 + 16) // hello, auth and connect reply
+
+#define HTTP_STATUS_LEN 12 // "HTTP/1.1 200"
+#define HTTP_HEADER_MAX 8192 // bytes, response header of the proxy
+#define HTTP_READ 512 // bytes, peeked at a time
+#define HTTP_AUTH_MAX 344 // base64 of 127 + 1 + 127 bytes
+
+#define MUX_CONNECTIONS 2 // per shard
+#define MUX_WINDOW 262144 // bytes, initial window of a stream
+#define MUX_OUT_MAX 262144 // bytes, frames queued per connection
+#define MUX_OUT_CONTROL 16384 // bytes, more for frames without payload
+#define MUX_BUCKETS 64 // streams by id, power of two
+#define MUX_HEADER 12 // bytes
+#define MUX_READ 16384 // bytes
+#define MUX_YIELD 8 // reads per connection event
+
+#define UPSTREAM_MAX 8 // proxies
+#define UPSTREAM_PROBE 2 // seconds between probes of a proxy
+#define UPSTREAM_PROBE_TIMEOUT 2 // seconds
+#define UPSTREAM_FAILURES 2 // in a row, out of rotation
+#define UPSTREAM_RTT_INITIAL 100000 // microseconds, until probed
+#define UPSTREAM_WEIGHT 1000000000U // divided by the round trip in microseconds
+
+#define PROXY_NAME_MAX 253 // characters, host name or address of a proxy
+#define PROXY_NAMES UPSTREAM_MAX // the proxy or each upstream
+#define PROXY_ADDRS 8 // per name
+#define PROXY_NETWORKS 4 // remembered
+#define PROXY_SERVERS 4 // name servers per network
+#define PROXY_TTL_MIN 30 // seconds
+#define PROXY_TTL_MAX 3600 // seconds
+#define PROXY_RETRY 10 // seconds, after a failed lookup or race
+#define PROXY_QUERY_TIMEOUT 2 // seconds per name server
+#define PROXY_RACE_DELAY 250 // milliseconds between connection attempts
+#define PROXY_RACE_TIMEOUT 5 // seconds
+
+#define UDP_CHANNELS 16 // per shard
+#define UDP_CHANNELS_EXTRA 48 // per shard, for flows to a remote which every channel has
+#define UDP_CHANNELS_MAX (UDP_CHANNELS + UDP_CHANNELS_EXTRA)
+#define UDP_CHANNEL_BUCKETS 64 // sessions by remote, power of two
+#define UDP_CHANNEL_QUEUE 256 // datagrams waiting to be sent
+#define UDP_CHANNEL_MSG 8192 // bytes, largest datagram received
+#define UDP_BATCH 16 // datagrams per sendmmsg/recvmmsg
+
+struct session_table {
+    struct ng_session **slot; // open addressing, linear probing
+    uint32_t mask;
+    uint32_t count;
+    uint32_t seed;
+    int isessions; // active ICMP sessions
+    int usessions; // active UDP sessions
+    int tsessions; // active TCP sessions
+    int ssessions; // active sessions of the above without a socket of their own
+    int maxsessions; // with a socket of their own
+};
+
+struct timer_wheel {
+    time_t now; // seconds, coarse clock read once per loop
+    time_t base; // next second to expire
+    uint64_t used[TIMER_LEVELS]; // non empty slots
+    struct ng_session *slot[TIMER_DUE + 1];
+};
+
+struct session_timer {
+    time_t deadline; // scheduled expiry
+    int slot; // -1 if not scheduled
+    struct ng_session *prev;
+    struct ng_session *next;
+};
+
+struct pool_stats {
+    long hits; // buffer reused
+    long misses; // pool empty, buffer allocated
+    long oversize; // too large for the pool
+    int depot; // free buffers in the shared depot
+};
+
+struct tun_packet {
+    struct tun_packet *next;
+    size_t length;
+    uint8_t data[];
+};
+
+struct ring_range {
+    uint32_t start; // host notation
+    uint32_t end; // host notation, exclusive
+};
+
+struct tcp_ring {
+    uint8_t *data; // byte with sequence number n is at data[n & (size - 1)]
+    uint32_t size; // power of two, zero if not allocated
+    uint32_t seq; // first byte not forwarded yet, host notation
+    uint32_t len; // contiguous bytes from seq
+    uint32_t queued; // bytes, including out of order ranges
+    uint8_t psh;
+    uint8_t ranges;
+    struct ring_range range[TCP_RING_RANGES]; // out of order, sorted, disjoint
+};
+
+struct socks5_conn {
+    jint socket; // -1 if unused
+    uint8_t state; // SOCKS5_NONE connecting ... SOCKS5_CONNECT ready
+    int8_t upstream; // index of the proxy, -1 if there is no list
+    time_t time; // opened or ready
+    struct epoll_event ev;
+};
+
+struct socks5_pool {
+    struct socks5_conn conn[SOCKS5_POOL_MAX];
+    int target; // connections to keep warm
+    int demand; // new sessions in this period
+    time_t period;
+    time_t failed; // last open which failed, refills back off
+    uint32_t hits;
+    uint32_t misses;
+    uint32_t fastopen; // proxy connections opened with TCP Fast Open
+    uint32_t fastopen_data; // of which the SYN data was acknowledged
+};
+
+struct mux_stream {
+    struct mux_stream *next; // same bucket
+    struct mux_stream *ready_next;
+    struct ng_session *session; // NULL if closed by the app
+    uint32_t id;
+    uint8_t conn;
+    uint8_t ready; // queued for dispatch
+    uint8_t fin; // by the server
+    uint32_t send_window; // bytes
+    uint32_t consumed; // bytes not returned to the window of the server yet
+    struct tcp_ring rx;
+};
+
+struct mux_conn {
+    jint socket; // -1 if unused
+    uint8_t connected;
+    uint8_t goaway; // no new streams
+    uint8_t updates; // window updates waiting for room
+    uint32_t next_id;
+    int streams;
+
+    // Frame being received
+    uint8_t header[MUX_HEADER];
+    uint32_t hlen;
+    uint32_t remaining; // bytes of data frame
+    uint32_t current; // stream id of data frame, zero to discard
+    uint16_t flags;
+
+    struct tcp_ring out; // frames to send
+    struct epoll_event ev;
+    struct mux_stream *bucket[MUX_BUCKETS];
+};
+
+struct mux {
+    struct mux_conn conn[MUX_CONNECTIONS];
+    struct mux_stream *ready; // streams with events
+    struct mux_stream *pending; // being dispatched
+    uint32_t opened;
+};
+
+struct upstream {
+    char addr[PROXY_NAME_MAX + 1];
+    int port;
+    uint32_t srtt; // microseconds, 0 if not probed yet
+    uint32_t rttvar; // microseconds
+    int failures; // in a row, probes and connects of sessions
+    uint32_t sessions; // connections opened
+    uint32_t probes; // succeeded
+    uint32_t failed; // probes
+};
+
+struct upstream_probe {
+    jint socket; // -1 if not probing
+    uint8_t state; // SOCKS5_NONE connecting, SOCKS5_HELLO waiting for the reply
+    long long start; // microseconds
+    time_t time; // probe started, or next probe
+    struct epoll_event ev;
+};
+
+struct upstream_probes {
+    struct upstream_probe probe[UPSTREAM_MAX]; // by the first shard only
+    uint32_t seed; // random choice of a proxy
+};
+
+struct proxy_addr {
+    uint8_t version; // 0 if unused
+    union {
+        __be32 ip4; // network notation
+        struct in6_addr ip6;
+    } ip;
+};
+
+struct proxy_name {
+    char name[PROXY_NAME_MAX + 1]; // looked up, empty if unused
+    uint8_t literal; // an address which needs no lookup
+    uint8_t recheck; // a connect failed, race again
+    struct proxy_addr addr[PROXY_ADDRS]; // families interleaved
+    int count;
+    int winner; // address which connected first, -1 if not raced
+    time_t expires; // the addresses are used stale until replaced
+    time_t refresh; // next lookup
+    time_t race; // next race
+};
+
+struct proxy_network {
+    int64_t handle; // of the network, 0 if unknown
+    time_t used; // least recently used is replaced
+    struct proxy_addr server[PROXY_SERVERS];
+    int servers;
+    struct proxy_name name[PROXY_NAMES];
+};
+
+struct proxy_lookup {
+    jint socket; // -1 if not looking up
+    uint16_t id; // A, id + 1 AAAA
+    uint8_t pending; // 1 A, 2 AAAA
+    int server;
+    time_t time; // query sent
+    uint32_t ttl; // lowest of the answers
+    struct proxy_addr addr[PROXY_ADDRS];
+    int count;
+    struct epoll_event ev;
+};
+
+struct proxy_attempt {
+    jint socket; // -1 if not connecting
+    struct epoll_event ev;
+};
+
+struct proxy_race {
+    struct proxy_attempt attempt[PROXY_ADDRS];
+    int next; // address to try next, 0 if not racing
+    long long start; // milliseconds, last attempt started
+    time_t time; // race started
+};
+
+struct proxy_lookups {
+    // By the first shard only
+    struct proxy_lookup lookup[PROXY_NAMES];
+    struct proxy_race race[PROXY_NAMES];
+};
+
+struct udp_channel {
+    jint socket; // relay, -1 if not associated
+    jint control; // -1 if unused or shared socket
+    uint8_t direct; // IP version of a shared unconnected socket, 0 if an association
+    uint8_t state; // SOCKS5_NONE connecting ... SOCKS5_CONNECTED associated
+    uint8_t received; // bytes of replies
+    uint8_t reply[SOCKS5_REPLY_MAX];
+    time_t time; // opened or last activity
+    int flows; // sessions
+    struct tun_packet *queue; // datagrams with request header or socket address
+    struct tun_packet *queue_tail;
+    int queued;
+    struct epoll_event ev; // relay
+    struct epoll_event cev; // control
+    struct ng_session *bucket[UDP_CHANNEL_BUCKETS];
+};
+
+struct udp_channels {
+    struct udp_channel channel[UDP_CHANNELS_MAX];
+    uint8_t *buffer; // recvmmsg, UDP_BATCH * UDP_CHANNEL_MSG
+    uint32_t batches; // sendmmsg calls
+    uint32_t datagrams; // sent
+    uint32_t rbatches; // recvmmsg calls
+    uint32_t rdatagrams; // received
+    uint32_t flows; // sessions which used a channel
+    uint32_t extra; // channels opened beyond UDP_CHANNELS
+    uint32_t drops; // proxied sessions without a channel
+    int sockets; // open
+    int peak; // most sockets open at once
+};
+
+struct shard {
+    int index;
+    pthread_t thread;
+    int pipefds[2]; // wakeup
+
+    // Packets read from tun by the first shard
+    pthread_mutex_t lock;
+    struct tun_packet *queue;
+    struct tun_packet *queue_tail;
+    int queued;
+    struct uid_request *resolved; // by the resolver
+
+    // Owned by the thread of the shard
+    struct tun_packet *out; // to be written to tun
+    struct tun_packet *out_tail;
+    int outqueued;
+    int outblocked; // waiting for tun to become writable
+    uint32_t loops; // event loop iterations
+    int epoll_fd;
+    int rearm; // sockets not read because tun was congested
+    int waiting; // sessions waiting for the address of a proxy name
+    int generation; // of the proxy addresses, when they were last tried
+    struct ng_session *ng_session;
+    struct session_table table;
+    struct timer_wheel wheel;
+    struct socks5_pool pool;
+    struct mux mux;
+    struct udp_channels channels;
+    struct upstream_probes probes;
+    struct proxy_lookups lookups;
+};
+
+struct uid_request {
+    struct uid_request *next;
+    int shard;
+    int version;
+    int protocol;
+    uint8_t saddr[16];
+    uint16_t sport; // host notation
+    uint8_t daddr[16];
+    uint16_t dport; // host notation
+    uint8_t sprotocol; // session key
+    __be16 skey;
+    __be16 dkey;
+    jint uid;
+};
+
+struct resolver {
+    pthread_t thread;
+    pthread_mutex_t lock;
+    pthread_cond_t cond;
+    int running;
+    int stopping;
+    struct uid_request *queue;
+    struct uid_request *queue_tail;
+    int queued;
+    uint32_t names; // proxy names to look up, by index
+    jobject instance;
+    jobject buffer; // shared with Java
+    uint8_t *data;
+    int records;
+};
 
 struct context {
     pthread_mutex_t lock;
-    int pipefds[2];
     int stopping;
     int sdk;
-    struct ng_session *ng_session;
+    int workers;
+    int checkip; // validate IPv4 header checksums
+    int udpshared; // UDP sessions share sockets
+    uint32_t seed; // shard selection
+    struct shard *shard;
+    struct resolver resolver;
 };
 
 struct arguments {
@@ -93,6 +505,7 @@ struct arguments {
     jboolean fwd53;
     jint rcode;
     struct context *ctx;
+    struct shard *shard;
 };
 
 struct allowed {
@@ -100,15 +513,6 @@ struct allowed {
     uint16_t rport; // host notation
 };
 
-struct segment {
-    uint32_t seq;
-    uint16_t len;
-    uint16_t sent;
-    int psh;
-    uint8_t *data;
-    struct segment *next;
-};
-
 struct icmp_session {
     time_t time;
     jint uid;
@@ -156,6 +560,19 @@ struct udp_session {
     __be16 dest; // network notation
 
     uint8_t state;
+    int8_t channel; // -1 if the session has its own socket
+    struct ng_session *channel_next; // same bucket
+};
+
+struct tcp_negative {
+    time_t expires; // 0 if unused
+    uint8_t version;
+    __be16 dest;
+    union {
+        __be32 ip4; // network notation
+        struct in6_addr ip6;
+    } daddr;
+    int error; // told the app
 };
 
 struct tcp_session {
@@ -163,8 +580,10 @@ struct tcp_session {
     time_t time;
     int version;
     uint16_t mss;
+    uint8_t scaling; // window scale option negotiated
     uint8_t recv_scale;
     uint8_t send_scale;
+    uint8_t segments; // to read per socket event, adaptive
     uint32_t recv_window; // host notation, scaled
     uint32_t send_window; // host notation, scaled
     uint16_t unconfirmed; // packets
@@ -180,6 +599,10 @@ struct tcp_session {
     uint64_t sent;
     uint64_t received;
 
+    uint32_t sndbuf; // socket send buffer size, 0 if unknown
+    uint32_t unsent; // bytes not acknowledged by the remote, estimate
+    uint32_t checked; // loop of last socket buffer check
+
     union {
         __be32 ip4; // network notation
         struct in6_addr ip6;
@@ -194,7 +617,16 @@ struct tcp_session {
 
     uint8_t state;
     uint8_t socks5;
-    struct segment *forward;
+    uint8_t early; // SYN-ACK sent before the proxy connected
+    uint8_t waiting; // for the address of a proxy name
+    uint8_t socks5_received; // bytes of pipelined replies
+    uint8_t socks5_reply[SOCKS5_REPLY_MAX]; // also the HTTP status line
+    uint16_t http_received; // bytes of the HTTP response header
+    uint8_t http_match; // characters of the header end matched
+    int8_t upstream; // proxy connected to, -1 if none or no list
+    int16_t error; // why the destination could not be reached, -1 if not known
+    struct mux_stream *mux; // NULL if the session has its own socket
+    struct tcp_ring forward;
 };
 
 struct ng_session {
@@ -206,18 +638,30 @@ struct ng_session {
     };
     jint socket;
     struct epoll_event ev;
+    uint32_t hash;
+    uint8_t active; // counted in session table, SESSION_SHARED without a socket
+    struct session_timer timer;
+    struct ng_session *prev;
     struct ng_session *next;
 };
 
-struct uid_cache_entry {
-    uint8_t version;
-    uint8_t protocol;
+struct uid_entry {
     uint8_t saddr[16];
-    uint16_t sport;
     uint8_t daddr[16];
+    uint16_t sport;
     uint16_t dport;
     jint uid;
-    long time;
+    int32_t next; // in bucket, -1 at end
+};
+
+struct uid_index {
+    const char *fn;
+    long long time; // of last load, milliseconds
+    int count;
+    int size; // allocated entries
+    struct uid_entry *entry;
+    uint32_t mask; // buckets - 1
+    int32_t *bucket;
 };
 
 // IPv6
@@ -343,6 +787,54 @@ void init(const struct arguments *args);
 
 void clear(struct context *ctx);
 
+void init_shards(struct context *ctx, int workers);
+
+void free_shards(struct context *ctx);
+
+void wakeup_shards(struct context *ctx);
+
+struct shard *get_shard(const struct context *ctx,
+                        int version, uint8_t protocol,
+                        const void *saddr, __be16 source,
+                        const void *daddr, __be16 dest);
+
+void queue_packet(const struct arguments *args, struct shard *shard,
+                  const uint8_t *pkt, size_t length);
+
+void clear_packets(struct shard *shard);
+
+void init_sessions(struct shard *shard, int maxsessions);
+
+uint32_t get_session_hash(const struct session_table *table,
+                          int version, uint8_t protocol,
+                          const void *saddr, __be16 source,
+                          const void *daddr, __be16 dest);
+
+struct ng_session *find_session(const struct arguments *args,
+                                int version, uint8_t protocol,
+                                const void *saddr, __be16 source,
+                                const void *daddr, __be16 dest);
+
+void add_session(const struct arguments *args, struct ng_session *s);
+
+void remove_session(const struct arguments *args, struct ng_session *s);
+
+void update_session(const struct arguments *args, struct ng_session *s);
+
+int get_sessions(const struct shard *shard);
+
+void init_timers(struct timer_wheel *wheel, time_t now);
+
+void schedule_session(struct timer_wheel *wheel, struct ng_session *s, time_t deadline);
+
+void unschedule_session(struct timer_wheel *wheel, struct ng_session *s);
+
+struct ng_session *expire_timers(struct timer_wheel *wheel);
+
+int get_timer_timeout(const struct timer_wheel *wheel);
+
+time_t get_session_deadline(const struct arguments *args, const struct ng_session *s);
+
 int check_icmp_session(const struct arguments *args,
                        struct ng_session *s,
                        int sessions, int maxsessions);
@@ -355,7 +847,7 @@ int check_tcp_session(const struct arguments *args,
                       struct ng_session *s,
                       int sessions, int maxsessions);
 
-int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int epoll_fd);
+void monitor_tcp_session(const struct arguments *args, struct ng_session *s);
 
 int get_icmp_timeout(const struct icmp_session *u, int sessions, int maxsessions);
 
@@ -372,6 +864,14 @@ int check_tun(const struct arguments *args,
               const int epoll_fd,
               int sessions, int maxsessions);
 
+ssize_t queue_tun(const struct arguments *args, struct tun_packet *packet, size_t length);
+
+int flush_tun(const struct arguments *args);
+
+void clear_tun(const struct arguments *args);
+
+int is_tun_congested(const struct arguments *args);
+
 void check_icmp_socket(const struct arguments *args, const struct epoll_event *ev);
 
 void check_udp_socket(const struct arguments *args, const struct epoll_event *ev);
@@ -383,9 +883,11 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
 
 uint32_t get_send_window(const struct tcp_session *cur);
 
-uint32_t get_receive_buffer(const struct ng_session *cur);
+time_t get_probe_deadline(const struct tcp_session *cur);
+
+uint32_t get_receive_buffer(const struct arguments *args, struct ng_session *cur);
 
-uint32_t get_receive_window(const struct ng_session *cur);
+uint32_t get_receive_window(const struct arguments *args, struct ng_session *cur);
 
 void check_tcp_socket(const struct arguments *args,
                       const struct epoll_event *ev,
@@ -403,11 +905,9 @@ void handle_ip(const struct arguments *args,
 jboolean handle_icmp(const struct arguments *args,
                      const uint8_t *pkt, size_t length,
                      const uint8_t *payload,
-                     int uid,
+                     int uid, struct ng_session *cur,
                      const int epoll_fd);
 
-int has_udp_session(const struct arguments *args, const uint8_t *pkt, const uint8_t *payload);
-
 void block_udp(const struct arguments *args,
                const uint8_t *pkt, size_t length,
                const uint8_t *payload,
@@ -417,6 +917,7 @@ jboolean handle_udp(const struct arguments *args,
                     const uint8_t *pkt, size_t length,
                     const uint8_t *payload,
                     int uid, struct allowed *redirect,
+                    struct ng_session *cur,
                     const int epoll_fd);
 
 int check_dhcp(const struct arguments *args, const struct udp_session *u,
@@ -428,27 +929,168 @@ jboolean handle_tcp(const struct arguments *args,
                     const uint8_t *pkt, size_t length,
                     const uint8_t *payload,
                     int uid, int allowed, struct allowed *redirect,
+                    struct ng_session *cur,
                     const int epoll_fd);
 
-void queue_tcp(const struct arguments *args,
-               const struct tcphdr *tcphdr,
-               const char *session, struct tcp_session *cur,
-               const uint8_t *data, uint16_t datalen);
+int queue_tcp(const struct arguments *args,
+              const struct tcphdr *tcphdr,
+              struct tcp_session *cur,
+              const uint8_t *data, uint16_t datalen);
+
+void init_ring(struct tcp_ring *ring, uint32_t seq);
+
+void clear_ring(struct tcp_ring *ring);
+
+int add_ring(struct tcp_ring *ring, uint32_t seq, const uint8_t *data, uint32_t datalen, int psh);
+
+int reserve_ring(struct tcp_ring *ring, uint32_t datalen);
+
+int get_ring_iov(const struct tcp_ring *ring, uint32_t max, struct iovec *iov);
+
+void skip_ring(struct tcp_ring *ring, uint32_t len);
+
+ssize_t send_ring(struct tcp_ring *ring, int sock, uint32_t max);
 
 int open_icmp_socket(const struct arguments *args, const struct icmp_session *cur);
 
+int is_udp_broadcast(const struct udp_session *cur);
+
 int open_udp_socket(const struct arguments *args,
                     const struct udp_session *cur, const struct allowed *redirect);
 
 int open_tcp_socket(const struct arguments *args,
                     const struct tcp_session *cur, const struct allowed *redirect);
 
+int open_upstream_socket(const struct arguments *args, int upstream);
+
+int get_socks5_error(uint8_t rep);
+
+int get_http_error(const char *status);
+
+void clear_negatives();
+
+void add_negative(const struct arguments *args, const struct tcp_session *cur, int error);
+
+int get_negative(const struct arguments *args, int version, const void *daddr, __be16 dest);
+
+size_t get_socks5_auth(uint8_t *buffer);
+
+size_t get_socks5_connect(const struct tcp_session *cur, uint8_t *buffer);
+
+void init_socks5_pool(struct socks5_pool *pool, time_t now);
+
+int is_socks5_event(const struct arguments *args, const void *ptr);
+
+void check_socks5_pool(const struct arguments *args, struct epoll_event *ev);
+
+int take_socks5(const struct arguments *args, struct tcp_session *cur);
+
+void refill_socks5_pool(const struct arguments *args);
+
+int get_socks5_timeout(const struct arguments *args);
+
+void clear_socks5_pool(const struct arguments *args);
+
+void init_mux(struct mux *mux);
+
+int is_mux_event(const struct arguments *args, const void *ptr);
+
+void check_mux(const struct arguments *args, const struct epoll_event *ev);
+
+struct mux_stream *open_mux_stream(const struct arguments *args, struct ng_session *s);
+
+uint32_t get_mux_buffer(const struct arguments *args, const struct ng_session *s);
+
+ssize_t send_mux(const struct arguments *args, struct ng_session *s, uint32_t max);
+
+ssize_t recv_mux(const struct arguments *args, struct ng_session *s,
+                 const struct iovec *iov, int count);
+
+void close_mux_stream(const struct arguments *args, struct ng_session *s);
+
+void monitor_mux_stream(const struct arguments *args, struct ng_session *s,
+                        unsigned int events);
+
+int flush_mux(const struct arguments *args);
+
+void dispatch_mux(const struct arguments *args, int epoll_fd);
+
+void clear_mux(const struct arguments *args);
+
+void init_upstream_probes(struct upstream_probes *probes, time_t now);
+
+int is_upstream_event(const struct arguments *args, const void *ptr);
+
+const char *get_upstream(int index, int *port);
+
+int select_upstream(const struct arguments *args, const struct tcp_session *cur);
+
+void use_upstream(int index);
+
+void report_upstream(int index, int ok);
+
+void check_upstream_probe(const struct arguments *args, const struct epoll_event *ev);
+
+void probe_upstreams(const struct arguments *args);
+
+int get_upstream_timeout(const struct arguments *args);
+
+void clear_upstream_probes(const struct arguments *args);
+
+void set_proxy_network(int64_t handle, const struct proxy_addr *server, int servers);
+
+void init_proxy_names();
+
+void init_proxy_lookups(struct proxy_lookups *lookups);
+
+int is_proxy_lookup_event(const struct arguments *args, const void *ptr);
+
+socklen_t get_proxy_address(int index, int port, struct sockaddr_storage *addr);
+
+void report_proxy_address(int index);
+
+void check_proxy_lookup(const struct arguments *args, const struct epoll_event *ev);
+
+void lookup_proxies(const struct arguments *args);
+
+int get_proxy_lookup_timeout(const struct arguments *args);
+
+void clear_proxy_lookups(const struct arguments *args);
+
+void lookup_proxy_name(struct context *ctx, int index);
+
+void init_udp_channels(struct udp_channels *channels);
+
+int is_udp_channel_event(const struct arguments *args, const void *ptr);
+
+int open_udp_channel(const struct arguments *args, struct ng_session *s, int direct);
+
+void release_udp_channel(const struct arguments *args, struct ng_session *s);
+
+int send_udp_channel(const struct arguments *args, struct ng_session *s,
+                     const uint8_t *data, size_t datalen);
+
+void flush_udp_channels(const struct arguments *args);
+
+void check_udp_channel(const struct arguments *args, const struct epoll_event *ev);
+
+int expire_udp_channels(const struct arguments *args);
+
+void clear_udp_channels(const struct arguments *args);
+
+void check_fastopen(const struct arguments *args, int sock);
+
 int32_t get_local_port(const int sock);
 
+void connect_waiting(const struct arguments *args);
+
 int write_syn_ack(const struct arguments *args, struct tcp_session *cur);
 
 int write_ack(const struct arguments *args, struct tcp_session *cur);
 
+int write_segment(const struct arguments *args, struct tcp_session *cur,
+                  struct tun_packet *packet, size_t length);
+
 int write_data(const struct arguments *args, struct tcp_session *cur,
                const uint8_t *buffer, size_t length);
 
@@ -461,6 +1103,8 @@ void write_rst_ack(const struct arguments *args, struct tcp_session *cur);
 ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
                    uint8_t *data, size_t datalen);
 
+ssize_t write_unreachable(const struct arguments *args, const struct tcp_session *cur, int error);
+
 ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                   uint8_t *data, size_t datalen);
 
@@ -468,6 +1112,12 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                   const uint8_t *data, size_t datalen,
                   int syn, int ack, int fin, int rst);
 
+ssize_t send_tcp(const struct arguments *args, const struct tcp_session *cur,
+                 struct tun_packet *packet, size_t datalen,
+                 int syn, int ack, int fin, int rst);
+
+size_t get_tcp_header_len(const struct tcp_session *cur, int syn);
+
 uint8_t char2nible(const char c);
 
 void hex2bytes(const char *hex, uint8_t *buffer);
@@ -476,16 +1126,34 @@ jint get_uid(const int version, const int protocol,
              const void *saddr, const uint16_t sport,
              const void *daddr, const uint16_t dport);
 
-jint get_uid_sub(const int version, const int protocol,
-                 const void *saddr, const uint16_t sport,
-                 const void *daddr, const uint16_t dport,
-                 const char *source, const char *dest,
-                 long now);
+void clear_uid();
+
+void start_resolver(JNIEnv *env, jobject instance, struct context *ctx);
+
+void stop_resolver(JNIEnv *env, struct context *ctx);
+
+void resolve_proxy_name(struct context *ctx, int index);
+
+void resolve_uid(const struct arguments *args,
+                 int version, int protocol,
+                 const void *saddr, uint16_t sport,
+                 const void *daddr, uint16_t dport,
+                 uint8_t sprotocol, __be16 skey, __be16 dkey);
+
+void apply_uids(const struct arguments *args);
+
+void clear_uids(struct shard *shard);
 
 int protect_socket(const struct arguments *args, int socket);
 
+void init_checksum();
+
 uint16_t calc_checksum(uint16_t start, const uint8_t *buffer, size_t length);
 
+uint16_t update_checksum(uint16_t check, uint16_t old, uint16_t new);
+
+uint16_t update_checksum32(uint16_t check, uint32_t old, uint32_t new);
+
 jobject jniGlobalRef(JNIEnv *env, jobject cls);
 
 jclass jniFindClass(JNIEnv *env, const char *name);
@@ -498,15 +1166,11 @@ jobject jniNewObject(JNIEnv *env, jclass cls, jmethodID constructor, const char
 
 int jniCheckException(JNIEnv *env);
 
-void log_android(int prio, const char *fmt, ...);
+void log_print(int prio, const char *fmt, ...);
 
-jint get_uid_q(const struct arguments *args,
-               jint version,
-               jint protocol,
-               const char *source,
-               jint sport,
-               const char *dest,
-               jint dport);
+int init_uid_q(const struct arguments *args, struct resolver *r);
+
+void get_uid_q(const struct arguments *args, const struct resolver *r, struct uid_request *batch);
 
 void write_pcap_hdr();
 
@@ -518,7 +1182,11 @@ int compare_u32(uint32_t seq1, uint32_t seq2);
 
 const char *strstate(const int state);
 
-char *hex(const u_int8_t *data, const size_t len);
+const char *straddr(int version, const void *addr, char *buf);
+
+char *hex(const u_int8_t *data, const size_t len, char *buf, const size_t size);
+
+size_t base64(const uint8_t *data, size_t len, char *buf);
 
 int is_readable(int fd);
 
@@ -526,6 +1194,8 @@ int is_writable(int fd);
 
 long long get_ms();
 
+time_t get_time();
+
 void ng_add_alloc(void *ptr, const char *tag);
 
 void ng_delete_alloc(void *ptr, const char *file, int line);
@@ -538,4 +1208,14 @@ void *ng_realloc(void *__ptr, size_t __byte_count, const char *tag);
 
 void ng_free(void *__ptr, const char *file, int line);
 
+void *ng_pool_alloc(size_t size, const char *tag);
+
+void ng_pool_free(void *ptr, const char *file, int line);
+
+void flush_pool();
+
+void clear_pool();
+
+void get_pool_stats(struct pool_stats *stats);
+
 #endif
\ No newline at end of file
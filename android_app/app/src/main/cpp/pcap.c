@@ -23,6 +23,8 @@ FILE *pcap_file = NULL;
 size_t pcap_record_size = 64;
 long pcap_file_size = 2 * 1024 * 1024;
 
+static pthread_mutex_t pcap_lock = PTHREAD_MUTEX_INITIALIZER;
+
 void write_pcap_hdr() {
     struct pcap_hdr_s pcap_hdr;
     pcap_hdr.magic_number = 0xa1b2c3d4;
@@ -42,7 +44,7 @@ void write_pcap_rec(const uint8_t *buffer, size_t length) {
 
     size_t plen = (length < pcap_record_size ? length : pcap_record_size);
     size_t rlen = sizeof(struct pcaprec_hdr_s) + plen;
-    struct pcaprec_hdr_s *pcap_rec = ng_malloc(rlen, "pcap");
+    struct pcaprec_hdr_s *pcap_rec = ng_pool_alloc(rlen, "pcap");
 
     pcap_rec->ts_sec = (guint32_t) ts.tv_sec;
     pcap_rec->ts_usec = (guint32_t) (ts.tv_nsec / 1000);
@@ -51,9 +53,16 @@ void write_pcap_rec(const uint8_t *buffer, size_t length) {
 
     memcpy(((uint8_t *) pcap_rec) + sizeof(struct pcaprec_hdr_s), buffer, plen);
 
+    // Records are written by all shards
+    if (pthread_mutex_lock(&pcap_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
     write_pcap(pcap_rec, rlen);
 
-    ng_free(pcap_rec, __FILE__, __LINE__);
+    if (pthread_mutex_unlock(&pcap_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    ng_pool_free(pcap_rec, __FILE__, __LINE__);
 }
 
 void write_pcap(const void *ptr, size_t len) {
@@ -0,0 +1,208 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Packet buffer pool
+// Buffers come in two fixed sizes: one for tun packets and one for the largest datagram.
+// Every thread keeps a small magazine of free buffers, which is refilled from and spilled to
+// a shared depot in batches, so the steady state takes no lock and does no heap allocation.
+
+struct pool_buffer {
+    struct pool_buffer *next;
+    uint32_t size; // usable bytes
+    int8_t class; // -1 if not pooled
+} __attribute__((aligned(16)));
+
+struct pool_cache {
+    struct pool_buffer *free;
+    int count;
+};
+
+static const size_t pool_size[POOL_CLASSES] = {POOL_SMALL, POOL_LARGE};
+static const int pool_magazine[POOL_CLASSES] = {POOL_MAGAZINE_SMALL, POOL_MAGAZINE_LARGE};
+static const int pool_depot_max[POOL_CLASSES] = {POOL_DEPOT_SMALL, POOL_DEPOT_LARGE};
+
+static __thread struct pool_cache pool_cache[POOL_CLASSES];
+static __thread struct pool_stats pool_local;
+
+static pthread_mutex_t pool_lock = PTHREAD_MUTEX_INITIALIZER;
+static struct pool_buffer *pool_depot[POOL_CLASSES];
+static int pool_depot_count[POOL_CLASSES];
+static struct pool_stats pool_total;
+
+static void fold_stats() {
+    // Called with the pool lock held
+    pool_total.hits += pool_local.hits;
+    pool_total.misses += pool_local.misses;
+    pool_total.oversize += pool_local.oversize;
+    memset(&pool_local, 0, sizeof(struct pool_stats));
+}
+
+static void refill_cache(int c) {
+    struct pool_cache *cache = &pool_cache[c];
+
+    if (pthread_mutex_lock(&pool_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    int batch = pool_magazine[c] / 2;
+    while (batch-- > 0 && pool_depot[c] != NULL) {
+        struct pool_buffer *b = pool_depot[c];
+        pool_depot[c] = b->next;
+        pool_depot_count[c]--;
+        b->next = cache->free;
+        cache->free = b;
+        cache->count++;
+    }
+    fold_stats();
+
+    if (pthread_mutex_unlock(&pool_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+static void spill_cache(int c, int keep) {
+    struct pool_cache *cache = &pool_cache[c];
+    struct pool_buffer *release = NULL;
+
+    if (pthread_mutex_lock(&pool_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    while (cache->count > keep) {
+        struct pool_buffer *b = cache->free;
+        cache->free = b->next;
+        cache->count--;
+        if (pool_depot_count[c] < pool_depot_max[c]) {
+            b->next = pool_depot[c];
+            pool_depot[c] = b;
+            pool_depot_count[c]++;
+        } else {
+            b->next = release;
+            release = b;
+        }
+    }
+    fold_stats();
+
+    if (pthread_mutex_unlock(&pool_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    while (release != NULL) {
+        struct pool_buffer *next = release->next;
+        free(release);
+        release = next;
+    }
+}
+
+void *ng_pool_alloc(size_t size, const char *tag) {
+    int c = 0;
+    while (c < POOL_CLASSES && size > pool_size[c])
+        c++;
+
+    struct pool_buffer *b;
+    if (c == POOL_CLASSES) {
+        pool_local.oversize++;
+        b = malloc(sizeof(struct pool_buffer) + size);
+        if (b == NULL)
+            return NULL;
+        b->size = (uint32_t) size;
+        b->class = -1;
+    } else {
+        struct pool_cache *cache = &pool_cache[c];
+        if (cache->free == NULL)
+            refill_cache(c);
+
+        if (cache->free == NULL) {
+            pool_local.misses++;
+            b = malloc(sizeof(struct pool_buffer) + pool_size[c]);
+            if (b == NULL)
+                return NULL;
+            b->size = (uint32_t) pool_size[c];
+            b->class = (int8_t) c;
+        } else {
+            pool_local.hits++;
+            b = cache->free;
+            cache->free = b->next;
+            cache->count--;
+        }
+    }
+
+    b->next = NULL;
+    void *ptr = (uint8_t *) b + sizeof(struct pool_buffer);
+    ng_add_alloc(ptr, tag);
+    return ptr;
+}
+
+void ng_pool_free(void *ptr, const char *file, int line) {
+    if (ptr == NULL)
+        return;
+    ng_delete_alloc(ptr, file, line);
+
+    struct pool_buffer *b = (struct pool_buffer *) ((uint8_t *) ptr - sizeof(struct pool_buffer));
+    if (b->class < 0) {
+        free(b);
+        return;
+    }
+
+    int c = b->class;
+    struct pool_cache *cache = &pool_cache[c];
+    b->next = cache->free;
+    cache->free = b;
+    cache->count++;
+
+    if (cache->count > pool_magazine[c])
+        spill_cache(c, pool_magazine[c] / 2);
+}
+
+void flush_pool() {
+    // Return the buffers of a thread which is about to exit
+    for (int c = 0; c < POOL_CLASSES; c++)
+        spill_cache(c, 0);
+}
+
+void clear_pool() {
+    flush_pool();
+
+    if (pthread_mutex_lock(&pool_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    for (int c = 0; c < POOL_CLASSES; c++) {
+        struct pool_buffer *b = pool_depot[c];
+        while (b != NULL) {
+            struct pool_buffer *next = b->next;
+            free(b);
+            b = next;
+        }
+        pool_depot[c] = NULL;
+        pool_depot_count[c] = 0;
+    }
+
+    if (pthread_mutex_unlock(&pool_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+void get_pool_stats(struct pool_stats *stats) {
+    if (pthread_mutex_lock(&pool_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    fold_stats();
+    *stats = pool_total;
+    stats->depot = pool_depot_count[0] + pool_depot_count[1];
+
+    if (pthread_mutex_unlock(&pool_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
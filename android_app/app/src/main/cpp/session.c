@@ -19,24 +19,645 @@
 
 #include "netguard.h"
 
+extern JavaVM *jvm;
+
 void clear(struct context *ctx) {
-    struct ng_session *s = ctx->ng_session;
+    for (int i = 0; i < ctx->workers && ctx->shard != NULL; i++) {
+        struct shard *shard = &ctx->shard[i];
+        struct ng_session *s = shard->ng_session;
+        while (s != NULL) {
+            if (s->socket >= 0 && close(s->socket))
+                log_android(ANDROID_LOG_ERROR, "close %d error %d: %s",
+                            s->socket, errno, strerror(errno));
+            if (s->protocol == IPPROTO_TCP)
+                clear_tcp_data(&s->tcp);
+            struct ng_session *p = s;
+            s = s->next;
+            ng_free(p, __FILE__, __LINE__);
+        }
+        shard->ng_session = NULL;
+        shard->waiting = 0;
+
+        if (shard->table.slot != NULL)
+            ng_free(shard->table.slot, __FILE__, __LINE__);
+        memset(&shard->table, 0, sizeof(struct session_table));
+        memset(&shard->wheel, 0, sizeof(struct timer_wheel));
+
+        clear_packets(shard);
+    }
+}
+
+// Session table
+// Sessions are indexed by their 5-tuple in an open addressing hash table with linear probing.
+// The number of active sessions per protocol is kept up to date by update_session,
+// which is called after anything that could change the state of a session.
+
+static uint32_t hash_mix(uint32_t h, uint32_t v) {
+    v *= 0xCC9E2D51;
+    v = (v << 15) | (v >> 17);
+    v *= 0x1B873593;
+    h ^= v;
+    h = (h << 13) | (h >> 19);
+    return h * 5 + 0xE6546B64;
+}
+
+static uint32_t hash_addr(uint32_t h, int version, const void *addr) {
+    uint32_t w[4];
+    if (version == 4) {
+        memcpy(w, addr, 4);
+        return hash_mix(h, w[0]);
+    } else {
+        memcpy(w, addr, 16);
+        for (int i = 0; i < 4; i++)
+            h = hash_mix(h, w[i]);
+        return h;
+    }
+}
+
+static uint32_t hash_tuple(uint32_t seed,
+                           int version, uint8_t protocol,
+                           const void *saddr, __be16 source,
+                           const void *daddr, __be16 dest) {
+    uint32_t h = seed;
+    h = hash_mix(h, ((uint32_t) version << 8) | protocol);
+    h = hash_mix(h, ((uint32_t) source << 16) | dest);
+    h = hash_addr(h, version, saddr);
+    h = hash_addr(h, version, daddr);
+
+    // Final avalanche
+    h ^= h >> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >> 16;
+    return h;
+}
+
+uint32_t get_session_hash(const struct session_table *table,
+                          int version, uint8_t protocol,
+                          const void *saddr, __be16 source,
+                          const void *daddr, __be16 dest) {
+    return hash_tuple(table->seed, version, protocol, saddr, source, daddr, dest);
+}
+
+static void get_session_key(const struct ng_session *s, int *version,
+                            const void **saddr, __be16 *source,
+                            const void **daddr, __be16 *dest) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+        *version = s->icmp.version;
+        *saddr = (s->icmp.version == 4 ? (const void *) &s->icmp.saddr.ip4
+                                        : (const void *) &s->icmp.saddr.ip6);
+        *daddr = (s->icmp.version == 4 ? (const void *) &s->icmp.daddr.ip4
+                                        : (const void *) &s->icmp.daddr.ip6);
+        *source = 0;
+        *dest = 0;
+    } else if (s->protocol == IPPROTO_UDP) {
+        *version = s->udp.version;
+        *saddr = (s->udp.version == 4 ? (const void *) &s->udp.saddr.ip4
+                                       : (const void *) &s->udp.saddr.ip6);
+        *daddr = (s->udp.version == 4 ? (const void *) &s->udp.daddr.ip4
+                                       : (const void *) &s->udp.daddr.ip6);
+        *source = s->udp.source;
+        *dest = s->udp.dest;
+    } else {
+        *version = s->tcp.version;
+        *saddr = (s->tcp.version == 4 ? (const void *) &s->tcp.saddr.ip4
+                                       : (const void *) &s->tcp.saddr.ip6);
+        *daddr = (s->tcp.version == 4 ? (const void *) &s->tcp.daddr.ip4
+                                       : (const void *) &s->tcp.daddr.ip6);
+        *source = s->tcp.source;
+        *dest = s->tcp.dest;
+    }
+}
+
+static int is_active_session(const struct ng_session *s) {
+    // Returns SESSION_SHARED for an active session without a socket of its own
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return !s->icmp.stop;
+    else if (s->protocol == IPPROTO_UDP) {
+        if (s->udp.state != UDP_ACTIVE)
+            return 0;
+        return (s->udp.channel >= 0 ? SESSION_SHARED : 1);
+    } else if (s->protocol == IPPROTO_TCP) {
+        if (s->tcp.state == TCP_CLOSING || s->tcp.state == TCP_CLOSE)
+            return 0;
+        return (s->socket < 0 && s->tcp.mux != NULL ? SESSION_SHARED : 1);
+    }
+    return 0;
+}
+
+static void count_session(struct session_table *table, const struct ng_session *s,
+                          int active, int delta) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        table->isessions += delta;
+    else if (s->protocol == IPPROTO_UDP)
+        table->usessions += delta;
+    else if (s->protocol == IPPROTO_TCP)
+        table->tsessions += delta;
+    if (active == SESSION_SHARED)
+        table->ssessions += delta;
+}
+
+static void insert_slot(struct session_table *table, struct ng_session *s) {
+    uint32_t i = s->hash & table->mask;
+    while (table->slot[i] != NULL)
+        i = (i + 1) & table->mask;
+    table->slot[i] = s;
+}
+
+static void resize_sessions(struct session_table *table, uint32_t size) {
+    struct ng_session **old = table->slot;
+    uint32_t oldsize = (old == NULL ? 0 : table->mask + 1);
+
+    table->slot = ng_calloc(size, sizeof(struct ng_session *), "session table");
+    table->mask = size - 1;
+    for (uint32_t i = 0; i < oldsize; i++)
+        if (old[i] != NULL)
+            insert_slot(table, old[i]);
+
+    if (old != NULL)
+        ng_free(old, __FILE__, __LINE__);
+
+    log_android(ANDROID_LOG_DEBUG, "Session table size %u sessions %u", size, table->count);
+}
+
+void init_sessions(struct shard *shard, int maxsessions) {
+    if (shard->table.slot != NULL)
+        return;
+
+    // Keep the load factor below 50% with all sessions active
+    uint32_t size = SESSION_TABLE_MIN;
+    while (size < (uint32_t) maxsessions * 2)
+        size <<= 1;
+
+    shard->table.seed = (uint32_t) rand();
+    shard->table.maxsessions = maxsessions;
+    resize_sessions(&shard->table, size);
+}
+
+struct ng_session *find_session(const struct arguments *args,
+                                int version, uint8_t protocol,
+                                const void *saddr, __be16 source,
+                                const void *daddr, __be16 dest) {
+    const struct session_table *table = &args->shard->table;
+    int alen = (version == 4 ? 4 : 16);
+    uint32_t hash = get_session_hash(table, version, protocol, saddr, source, daddr, dest);
+
+    uint32_t i = hash & table->mask;
+    struct ng_session *s;
+    while ((s = table->slot[i]) != NULL) {
+        if (s->hash == hash && s->protocol == protocol) {
+            int sversion;
+            const void *ssaddr;
+            const void *sdaddr;
+            __be16 ssource;
+            __be16 sdest;
+            get_session_key(s, &sversion, &ssaddr, &ssource, &sdaddr, &sdest);
+            if (sversion == version && ssource == source && sdest == dest &&
+                memcmp(ssaddr, saddr, (size_t) alen) == 0 &&
+                memcmp(sdaddr, daddr, (size_t) alen) == 0 &&
+                !((protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) && s->icmp.stop))
+                return s;
+        }
+        i = (i + 1) & table->mask;
+    }
+
+    return NULL;
+}
+
+void add_session(const struct arguments *args, struct ng_session *s) {
+    struct shard *shard = args->shard;
+    struct session_table *table = &shard->table;
+
+    int version;
+    const void *saddr;
+    const void *daddr;
+    __be16 source;
+    __be16 dest;
+    get_session_key(s, &version, &saddr, &source, &daddr, &dest);
+    s->hash = get_session_hash(table, version, s->protocol, saddr, source, daddr, dest);
+
+    // Lingering sessions are not limited, so grow if needed
+    if ((table->count + 1) * 2 > table->mask + 1)
+        resize_sessions(table, (table->mask + 1) * 2);
+
+    insert_slot(table, s);
+    table->count++;
+
+    s->prev = NULL;
+    s->next = shard->ng_session;
+    if (shard->ng_session != NULL)
+        shard->ng_session->prev = s;
+    shard->ng_session = s;
+
+    s->active = 0;
+    s->timer.slot = -1;
+    update_session(args, s);
+}
+
+void remove_session(const struct arguments *args, struct ng_session *s) {
+    struct shard *shard = args->shard;
+    struct session_table *table = &shard->table;
+
+    if (s->active) {
+        count_session(table, s, s->active, -1);
+        s->active = 0;
+    }
+
+    unschedule_session(&shard->wheel, s);
+
+    // Backward shift deletion
+    uint32_t i = s->hash & table->mask;
+    while (table->slot[i] != s)
+        i = (i + 1) & table->mask;
+    table->slot[i] = NULL;
+
+    uint32_t k = i;
+    for (;;) {
+        k = (k + 1) & table->mask;
+        struct ng_session *n = table->slot[k];
+        if (n == NULL)
+            break;
+        uint32_t ideal = n->hash & table->mask;
+        if (((k - ideal) & table->mask) >= ((k - i) & table->mask)) {
+            table->slot[i] = n;
+            table->slot[k] = NULL;
+            i = k;
+        }
+    }
+    table->count--;
+
+    if (s->prev == NULL)
+        shard->ng_session = s->next;
+    else
+        s->prev->next = s->next;
+    if (s->next != NULL)
+        s->next->prev = s->prev;
+    s->prev = NULL;
+    s->next = NULL;
+}
+
+void update_session(const struct arguments *args, struct ng_session *s) {
+    // Interest in socket events can only change when a session was touched
+    if (s->protocol == IPPROTO_TCP && (s->socket >= 0 || s->tcp.mux != NULL))
+        monitor_tcp_session(args, s);
+
+    int active = is_active_session(s);
+    if (active != s->active) {
+        if (s->active)
+            count_session(&args->shard->table, s, s->active, -1);
+        if (active)
+            count_session(&args->shard->table, s, active, 1);
+        s->active = (uint8_t) active;
+    }
+
+    // Activity only moves the deadline forward, which is handled when the timer fires
+    time_t deadline = get_session_deadline(args, s);
+    if (s->timer.slot < 0 || deadline < s->timer.deadline)
+        schedule_session(&args->shard->wheel, s, deadline);
+}
+
+int get_sessions(const struct shard *shard) {
+    // Streams and flows sharing a proxy connection or socket do not use a file descriptor
+    return shard->table.isessions + shard->table.usessions + shard->table.tsessions -
+           shard->table.ssessions;
+}
+
+// Shards
+// Each worker thread owns a shard with its own sessions and epoll loop.
+// Sessions are assigned to shards by the hash of their 5-tuple.
+// Only the first shard reads from tun, packets of other shards are queued to them.
+
+void init_shards(struct context *ctx, int workers) {
+    if (ctx->shard != NULL && ctx->workers == workers)
+        return;
+
+    if (ctx->shard != NULL) {
+        clear(ctx);
+        free_shards(ctx);
+    }
+
+    ctx->workers = workers;
+    ctx->seed = (uint32_t) rand();
+    ctx->shard = ng_calloc((size_t) workers, sizeof(struct shard), "shards");
+    for (int i = 0; i < workers; i++) {
+        struct shard *shard = &ctx->shard[i];
+        shard->index = i;
+
+        if (pthread_mutex_init(&shard->lock, NULL))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+
+        // Create wakeup pipe
+        if (pipe(shard->pipefds))
+            log_android(ANDROID_LOG_ERROR, "Create pipe error %d: %s", errno, strerror(errno));
+        else
+            for (int p = 0; p < 2; p++) {
+                int flags = fcntl(shard->pipefds[p], F_GETFL, 0);
+                if (flags < 0 || fcntl(shard->pipefds[p], F_SETFL, flags | O_NONBLOCK) < 0)
+                    log_android(ANDROID_LOG_ERROR, "fcntl pipefds[%d] O_NONBLOCK error %d: %s",
+                                p, errno, strerror(errno));
+            }
+    }
+
+    log_android(ANDROID_LOG_INFO, "Shards %d", workers);
+}
+
+void free_shards(struct context *ctx) {
+    for (int i = 0; i < ctx->workers && ctx->shard != NULL; i++) {
+        struct shard *shard = &ctx->shard[i];
+        clear_packets(shard);
+        clear_uids(shard);
+
+        if (pthread_mutex_destroy(&shard->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+
+        for (int p = 0; p < 2; p++)
+            if (close(shard->pipefds[p]))
+                log_android(ANDROID_LOG_ERROR, "Close pipe error %d: %s", errno, strerror(errno));
+    }
+
+    if (ctx->shard != NULL)
+        ng_free(ctx->shard, __FILE__, __LINE__);
+    ctx->shard = NULL;
+    ctx->workers = 0;
+}
+
+void wakeup_shards(struct context *ctx) {
+    for (int i = 0; i < ctx->workers && ctx->shard != NULL; i++)
+        if (write(ctx->shard[i].pipefds[1], "w", 1) < 0 && errno != EAGAIN)
+            log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+}
+
+struct shard *get_shard(const struct context *ctx,
+                        int version, uint8_t protocol,
+                        const void *saddr, __be16 source,
+                        const void *daddr, __be16 dest) {
+    if (ctx->workers <= 1)
+        return &ctx->shard[0];
+
+    uint32_t hash = hash_tuple(ctx->seed, version, protocol, saddr, source, daddr, dest);
+    return &ctx->shard[hash % (uint32_t) ctx->workers];
+}
+
+void queue_packet(const struct arguments *args, struct shard *shard,
+                  const uint8_t *pkt, size_t length) {
+    struct tun_packet *p = ng_pool_alloc(sizeof(struct tun_packet) + length, "tun packet");
+    p->next = NULL;
+    p->length = length;
+    memcpy(p->data, pkt, length);
+
+    if (pthread_mutex_lock(&shard->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    int queued = shard->queued;
+    if (queued < SHARD_QUEUE_MAX) {
+        if (shard->queue_tail == NULL)
+            shard->queue = p;
+        else
+            shard->queue_tail->next = p;
+        shard->queue_tail = p;
+        shard->queued++;
+    }
+
+    if (pthread_mutex_unlock(&shard->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (queued >= SHARD_QUEUE_MAX) {
+        log_android(ANDROID_LOG_WARN, "Shard %d queue full, dropping packet", shard->index);
+        ng_pool_free(p, __FILE__, __LINE__);
+    } else if (queued == 0) {
+        if (write(shard->pipefds[1], "w", 1) < 0 && errno != EAGAIN)
+            log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+    }
+}
+
+static struct tun_packet *take_packets(struct shard *shard) {
+    if (pthread_mutex_lock(&shard->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct tun_packet *p = shard->queue;
+    shard->queue = NULL;
+    shard->queue_tail = NULL;
+    shard->queued = 0;
+
+    if (pthread_mutex_unlock(&shard->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return p;
+}
+
+void clear_packets(struct shard *shard) {
+    struct tun_packet *p = take_packets(shard);
+    while (p != NULL) {
+        struct tun_packet *next = p->next;
+        ng_pool_free(p, __FILE__, __LINE__);
+        p = next;
+    }
+}
+
+// Session timers
+// Sessions are kept in a hierarchical timer wheel with one second slots for the next minute
+// and one minute slots for the next ~68 minutes. Deadlines further away are clamped,
+// which only means the session will be checked and rescheduled early.
+
+static int next_slot(uint64_t used, int from) {
+    uint64_t rotated = (from == 0 ? used : (used >> from) | (used << (TIMER_SLOTS - from)));
+    return (rotated == 0 ? -1 : __builtin_ctzll(rotated));
+}
+
+static void link_timer(struct timer_wheel *wheel, struct ng_session *s, int slot) {
+    s->timer.slot = slot;
+    s->timer.prev = NULL;
+    s->timer.next = wheel->slot[slot];
+    if (wheel->slot[slot] != NULL)
+        wheel->slot[slot]->timer.prev = s;
+    wheel->slot[slot] = s;
+    if (slot < TIMER_DUE)
+        wheel->used[slot >> TIMER_BITS] |= (1ULL << (slot & (TIMER_SLOTS - 1)));
+}
+
+static void insert_timer(struct timer_wheel *wheel, struct ng_session *s) {
+    time_t deadline = s->timer.deadline;
+    if (deadline < wheel->base)
+        link_timer(wheel, s, TIMER_DUE);
+    else if (deadline - wheel->base < TIMER_SLOTS)
+        link_timer(wheel, s, (int) (deadline & (TIMER_SLOTS - 1)));
+    else {
+        time_t block = (deadline >> TIMER_BITS);
+        time_t last = (wheel->base >> TIMER_BITS) + TIMER_SLOTS;
+        if (block > last)
+            block = last;
+        link_timer(wheel, s, TIMER_SLOTS + (int) (block & (TIMER_SLOTS - 1)));
+    }
+}
+
+// Detach a whole slot as a list linked by timer.next
+static struct ng_session *take_slot(struct timer_wheel *wheel, int slot,
+                                    struct ng_session *list) {
+    struct ng_session *s = wheel->slot[slot];
+    wheel->slot[slot] = NULL;
+    if (slot < TIMER_DUE)
+        wheel->used[slot >> TIMER_BITS] &= ~(1ULL << (slot & (TIMER_SLOTS - 1)));
+
     while (s != NULL) {
-        if (s->socket >= 0 && close(s->socket))
-            log_android(ANDROID_LOG_ERROR, "close %d error %d: %s",
-                        s->socket, errno, strerror(errno));
-        if (s->protocol == IPPROTO_TCP)
-            clear_tcp_data(&s->tcp);
-        struct ng_session *p = s;
-        s = s->next;
-        ng_free(p, __FILE__, __LINE__);
+        struct ng_session *next = s->timer.next;
+        s->timer.slot = -1;
+        s->timer.prev = NULL;
+        s->timer.next = list;
+        list = s;
+        s = next;
+    }
+    return list;
+}
+
+void init_timers(struct timer_wheel *wheel, time_t now) {
+    memset(wheel, 0, sizeof(struct timer_wheel));
+    wheel->now = now;
+    wheel->base = now;
+}
+
+void schedule_session(struct timer_wheel *wheel, struct ng_session *s, time_t deadline) {
+    unschedule_session(wheel, s);
+    s->timer.deadline = deadline;
+    insert_timer(wheel, s);
+}
+
+void unschedule_session(struct timer_wheel *wheel, struct ng_session *s) {
+    if (s->timer.slot < 0)
+        return;
+
+    if (s->timer.prev == NULL)
+        wheel->slot[s->timer.slot] = s->timer.next;
+    else
+        s->timer.prev->timer.next = s->timer.next;
+    if (s->timer.next != NULL)
+        s->timer.next->timer.prev = s->timer.prev;
+
+    int slot = s->timer.slot;
+    if (slot < TIMER_DUE && wheel->slot[slot] == NULL)
+        wheel->used[slot >> TIMER_BITS] &= ~(1ULL << (slot & (TIMER_SLOTS - 1)));
+
+    s->timer.slot = -1;
+    s->timer.prev = NULL;
+    s->timer.next = NULL;
+}
+
+struct ng_session *expire_timers(struct timer_wheel *wheel) {
+    struct ng_session *list = take_slot(wheel, TIMER_DUE, NULL);
+
+    // Clock jumped beyond the wheel
+    if (wheel->now - wheel->base >= TIMER_SLOTS * TIMER_SLOTS) {
+        for (int i = 0; i < TIMER_DUE; i++)
+            if (wheel->slot[i] != NULL)
+                list = take_slot(wheel, i, list);
+        wheel->base = wheel->now + 1;
+        return list;
+    }
+
+    while (wheel->base <= wheel->now) {
+        int index = (int) (wheel->base & (TIMER_SLOTS - 1));
+
+        // Cascade the next minute into one second slots
+        if (index == 0) {
+            int block = TIMER_SLOTS + (int) ((wheel->base >> TIMER_BITS) & (TIMER_SLOTS - 1));
+            struct ng_session *s = take_slot(wheel, block, NULL);
+            while (s != NULL) {
+                struct ng_session *next = s->timer.next;
+                insert_timer(wheel, s);
+                s = next;
+            }
+        }
+
+        if (wheel->used[0] == 0) {
+            // Skip to the next minute
+            time_t next = (wheel->base | (TIMER_SLOTS - 1)) + 1;
+            wheel->base = (next > wheel->now + 1 ? wheel->now + 1 : next);
+            continue;
+        }
+
+        if (wheel->slot[index] != NULL)
+            list = take_slot(wheel, index, list);
+        wheel->base++;
+    }
+
+    return list;
+}
+
+int get_timer_timeout(const struct timer_wheel *wheel) {
+    if (wheel->slot[TIMER_DUE] != NULL)
+        return 0;
+
+    time_t next = 0;
+    int offset = next_slot(wheel->used[0], (int) (wheel->base & (TIMER_SLOTS - 1)));
+    if (offset >= 0)
+        next = wheel->base + offset;
+
+    // Next cascade of a non empty minute
+    time_t block = (wheel->base + TIMER_SLOTS - 1) >> TIMER_BITS;
+    offset = next_slot(wheel->used[1], (int) (block & (TIMER_SLOTS - 1)));
+    if (offset >= 0 && (next == 0 || ((block + offset) << TIMER_BITS) < next))
+        next = (block + offset) << TIMER_BITS;
+
+    if (next == 0 || next - wheel->now > EPOLL_TIMEOUT)
+        return EPOLL_TIMEOUT;
+    return (next > wheel->now ? (int) (next - wheel->now) : 0);
+}
+
+time_t get_session_deadline(const struct arguments *args, const struct ng_session *s) {
+    time_t now = args->shard->wheel.now;
+    int sessions = get_sessions(args->shard);
+    int maxsessions = args->shard->table.maxsessions;
+
+    // Sessions expire one second after their timeout, see check_*_session
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+        if (s->icmp.stop)
+            return now;
+        return s->icmp.time + get_icmp_timeout(&s->icmp, sessions, maxsessions) + 1;
+
+    } else if (s->protocol == IPPROTO_UDP) {
+        if (s->udp.state == UDP_ACTIVE)
+            return s->udp.time + get_udp_timeout(&s->udp, sessions, maxsessions) + 1;
+        else if (s->udp.state == UDP_FINISHING)
+            return now;
+        else
+            return s->udp.time + UDP_KEEP_TIMEOUT + 1;
+
+    } else if (s->protocol == IPPROTO_TCP) {
+        if (s->tcp.state == TCP_CLOSING)
+            return now;
+        else if (s->tcp.state == TCP_CLOSE)
+            return s->tcp.time + TCP_KEEP_TIMEOUT + 1;
+
+        // Zero window probes are sent by monitor_tcp_session through update_session
+        time_t deadline = s->tcp.time + get_tcp_timeout(&s->tcp, sessions, maxsessions) + 1;
+        if (s->socket >= 0 || s->tcp.mux != NULL) {
+            time_t probe = get_probe_deadline(&s->tcp);
+            if (probe > 0 && probe < deadline)
+                return probe;
+        }
+        return deadline;
     }
-    ctx->ng_session = NULL;
+
+    return now;
 }
 
 void *handle_events(void *a) {
     struct arguments *args = (struct arguments *) a;
-    log_android(ANDROID_LOG_INFO, "Start events tun=%d", args->tun);
+    log_android(ANDROID_LOG_INFO, "Start events tun=%d shard %d/%d",
+                args->tun, args->shard->index, args->ctx->workers);
+
+    // Attach worker threads to the Java VM
+    int attached = 0;
+    if (args->env == NULL) {
+        if ((*jvm)->AttachCurrentThread(jvm, &args->env, NULL) != JNI_OK) {
+            log_android(ANDROID_LOG_ERROR, "AttachCurrentThread failed");
+            args->ctx->stopping = 1;
+            wakeup_shards(args->ctx);
+            ng_free(args, __FILE__, __LINE__);
+            return NULL;
+        }
+        attached = 1;
+    }
 
     // Get max number of sessions
     int maxsessions = SESSION_MAX;
@@ -51,19 +672,32 @@ void *handle_events(void *a) {
                     rlim.rlim_cur, rlim.rlim_max, maxsessions);
     }
 
+    // Sessions are spread over the shards
+    maxsessions = maxsessions / args->ctx->workers;
+    if (maxsessions < 1)
+        maxsessions = 1;
+
+    init_sessions(args->shard, maxsessions);
+    init_socks5_pool(&args->shard->pool, get_time());
+    init_mux(&args->shard->mux);
+    init_udp_channels(&args->shard->channels);
+    init_upstream_probes(&args->shard->probes, get_time());
+    init_proxy_lookups(&args->shard->lookups);
+
     // Open epoll file
     int epoll_fd = epoll_create(1);
     if (epoll_fd < 0) {
         log_android(ANDROID_LOG_ERROR, "epoll create error %d: %s", errno, strerror(errno));
         args->ctx->stopping = 1;
     }
+    args->shard->epoll_fd = epoll_fd;
 
-    // Monitor stop events
+    // Monitor stop and queued packet events
     struct epoll_event ev_pipe;
     memset(&ev_pipe, 0, sizeof(struct epoll_event));
     ev_pipe.events = EPOLLIN | EPOLLERR;
     ev_pipe.data.ptr = &ev_pipe;
-    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->ctx->pipefds[0], &ev_pipe)) {
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->shard->pipefds[0], &ev_pipe)) {
         log_android(ANDROID_LOG_ERROR, "epoll add pipe error %d: %s", errno, strerror(errno));
         args->ctx->stopping = 1;
     }
@@ -73,106 +707,133 @@ void *handle_events(void *a) {
     memset(&ev_tun, 0, sizeof(struct epoll_event));
     ev_tun.events = EPOLLIN | EPOLLERR;
     ev_tun.data.ptr = NULL;
-    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->tun, &ev_tun)) {
+    if (args->shard->index == 0 &&
+        epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->tun, &ev_tun)) {
         log_android(ANDROID_LOG_ERROR, "epoll add tun error %d: %s", errno, strerror(errno));
         args->ctx->stopping = 1;
     }
 
     // Loop
-    long long last_check = 0;
+    int tunout = 0; // waiting for EPOLLOUT on tun
+    init_timers(&args->shard->wheel, get_time());
     while (!args->ctx->stopping) {
         log_android(ANDROID_LOG_DEBUG, "Loop");
 
-        int recheck = 0;
-        int timeout = EPOLL_TIMEOUT;
+        time_t now = args->shard->wheel.now;
+        int sessions = get_sessions(args->shard);
 
-        // Count sessions
-        int isessions = 0;
-        int usessions = 0;
-        int tsessions = 0;
-        struct ng_session *s = args->ctx->ng_session;
+        // Expire sessions
+        struct ng_session *s = expire_timers(&args->shard->wheel);
         while (s != NULL) {
-            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                if (!s->icmp.stop)
-                    isessions++;
-            } else if (s->protocol == IPPROTO_UDP) {
-                if (s->udp.state == UDP_ACTIVE)
-                    usessions++;
-            } else if (s->protocol == IPPROTO_TCP) {
-                if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                    tsessions++;
-                if (s->socket >= 0)
-                    recheck = recheck | monitor_tcp_session(args, s, epoll_fd);
+            struct ng_session *c = s;
+            s = s->timer.next;
+            c->timer.next = NULL;
+
+            // Rescheduled by activity
+            time_t deadline = get_session_deadline(args, c);
+            if (deadline > now) {
+                schedule_session(&args->shard->wheel, c, deadline);
+                continue;
             }
-            s = s->next;
+
+            int del = 0;
+            if (c->protocol == IPPROTO_ICMP || c->protocol == IPPROTO_ICMPV6)
+                del = check_icmp_session(args, c, sessions, maxsessions);
+            else if (c->protocol == IPPROTO_UDP)
+                del = check_udp_session(args, c, sessions, maxsessions);
+            else if (c->protocol == IPPROTO_TCP)
+                del = check_tcp_session(args, c, sessions, maxsessions);
+
+            if (del) {
+                remove_session(args, c);
+                if (c->protocol == IPPROTO_TCP)
+                    clear_tcp_data(&c->tcp);
+                ng_free(c, __FILE__, __LINE__);
+            } else
+                update_session(args, c);
         }
-        int sessions = isessions + usessions + tsessions;
 
-        // Check sessions
-        long long ms = get_ms();
-        if (ms - last_check > EPOLL_MIN_CHECK) {
-            last_check = ms;
+        // Keep proxy connections warm
+        refill_socks5_pool(args);
 
-            time_t now = time(NULL);
-            struct ng_session *sl = NULL;
-            s = args->ctx->ng_session;
-            while (s != NULL) {
-                int del = 0;
-                if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                    del = check_icmp_session(args, s, sessions, maxsessions);
-                    if (!s->icmp.stop && !del) {
-                        int stimeout = s->icmp.time +
-                                       get_icmp_timeout(&s->icmp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_UDP) {
-                    del = check_udp_session(args, s, sessions, maxsessions);
-                    if (s->udp.state == UDP_ACTIVE && !del) {
-                        int stimeout = s->udp.time +
-                                       get_udp_timeout(&s->udp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_TCP) {
-                    del = check_tcp_session(args, s, sessions, maxsessions);
-                    if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE && !del) {
-                        int stimeout = s->tcp.time +
-                                       get_tcp_timeout(&s->tcp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                }
+        // Check the health of the proxies
+        probe_upstreams(args);
+        lookup_proxies(args);
+        connect_waiting(args);
 
-                if (del) {
-                    if (sl == NULL)
-                        args->ctx->ng_session = s->next;
-                    else
-                        sl->next = s->next;
+        // Write packets queued for tun, so that congestion is current
+        flush_tun(args);
 
-                    struct ng_session *c = s;
-                    s = s->next;
-                    if (c->protocol == IPPROTO_TCP)
-                        clear_tcp_data(&c->tcp);
-                    ng_free(c, __FILE__, __LINE__);
-                } else {
-                    sl = s;
-                    s = s->next;
-                }
+        // Resume reading sockets when tun has drained
+        // Other changes of interest are handled by update_session
+        if (args->shard->rearm && !is_tun_congested(args)) {
+            args->shard->rearm = 0;
+            s = args->shard->ng_session;
+            while (s != NULL) {
+                if (s->protocol == IPPROTO_TCP && (s->socket >= 0 || s->tcp.mux != NULL))
+                    monitor_tcp_session(args, s);
+                s = s->next;
             }
-        } else {
-            recheck = 1;
-            log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
         }
 
+        int isessions = args->shard->table.isessions;
+        int usessions = args->shard->table.usessions;
+        int tsessions = args->shard->table.tsessions;
+        int ssessions = args->shard->table.ssessions;
+        sessions = get_sessions(args->shard);
+
+        int timeout = get_timer_timeout(&args->shard->wheel);
+        int ptimeout = get_socks5_timeout(args);
+        if (ptimeout < timeout)
+            timeout = ptimeout;
+        int ctimeout = expire_udp_channels(args);
+        if (ctimeout < timeout)
+            timeout = ctimeout;
+        int utimeout = get_upstream_timeout(args);
+        if (utimeout < timeout)
+            timeout = utimeout;
+
+        // Connection attempts of a race are spaced by milliseconds
+        int wait = timeout * 1000;
+        int ltimeout = get_proxy_lookup_timeout(args);
+        if (ltimeout < wait)
+            wait = ltimeout;
+
+        // Send the datagrams queued for the proxy in batches
+        flush_udp_channels(args);
+
+        // Send queued frames, streams with events are handled without waiting
+        if (flush_mux(args))
+            timeout = 0;
+
         log_android(ANDROID_LOG_DEBUG,
-                    "sessions ICMP %d UDP %d TCP %d max %d/%d timeout %d recheck %d",
-                    isessions, usessions, tsessions, sessions, maxsessions, timeout, recheck);
+                    "sessions ICMP %d UDP %d TCP %d shared %d max %d/%d timeout %d",
+                    isessions, usessions, tsessions, ssessions, sessions, maxsessions, timeout);
+
+        // Write packets queued for tun and wait for tun if it pushed back
+        int blocked = flush_tun(args);
+        if (blocked != tunout) {
+            int err;
+            if (args->shard->index == 0) {
+                ev_tun.events = EPOLLIN | EPOLLERR | (blocked ? EPOLLOUT : 0);
+                err = epoll_ctl(epoll_fd, EPOLL_CTL_MOD, args->tun, &ev_tun);
+            } else {
+                ev_tun.events = EPOLLOUT;
+                err = epoll_ctl(epoll_fd, blocked ? EPOLL_CTL_ADD : EPOLL_CTL_DEL,
+                                args->tun, &ev_tun);
+            }
+            if (err)
+                log_android(ANDROID_LOG_ERROR, "epoll tun out error %d: %s",
+                            errno, strerror(errno));
+            else
+                tunout = blocked;
+        }
 
         // Poll
         struct epoll_event ev[EPOLL_EVENTS];
-        int ready = epoll_wait(epoll_fd, ev, EPOLL_EVENTS,
-                               recheck ? EPOLL_MIN_CHECK : timeout * 1000);
+        int ready = epoll_wait(epoll_fd, ev, EPOLL_EVENTS, wait);
+        args->shard->wheel.now = get_time();
+        args->shard->loops++;
 
         if (ready < 0) {
             if (errno == EINTR) {
@@ -189,21 +850,30 @@ void *handle_events(void *a) {
         if (ready == 0)
             log_android(ANDROID_LOG_DEBUG, "epoll timeout");
         else {
-
-            if (pthread_mutex_lock(&args->ctx->lock))
-                log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
-
             int error = 0;
 
             for (int i = 0; i < ready; i++) {
                 if (ev[i].data.ptr == &ev_pipe) {
                     // Check pipe
-                    uint8_t buffer[1];
-                    if (read(args->ctx->pipefds[0], buffer, 1) < 0)
+                    uint8_t buffer[16];
+                    if (read(args->shard->pipefds[0], buffer, sizeof(buffer)) < 0)
                         log_android(ANDROID_LOG_WARN, "Read pipe error %d: %s",
                                     errno, strerror(errno));
                     else
-                        log_android(ANDROID_LOG_WARN, "Read pipe");
+                        log_android(ANDROID_LOG_DEBUG, "Read pipe");
+
+                    // Handle packets queued by the tun reader
+                    struct tun_packet *p = take_packets(args->shard);
+                    while (p != NULL) {
+                        struct tun_packet *next = p->next;
+                        if (!args->ctx->stopping)
+                            handle_ip(args, p->data, p->length, epoll_fd, sessions, maxsessions);
+                        ng_pool_free(p, __FILE__, __LINE__);
+                        p = next;
+                    }
+
+                    // Set uids found by the resolver
+                    apply_uids(args);
 
                 } else if (ev[i].data.ptr == NULL) {
                     // Check upstream
@@ -214,14 +884,40 @@ void *handle_events(void *a) {
                                 (ev[i].events & EPOLLERR) != 0,
                                 (ev[i].events & EPOLLHUP) != 0);
 
+                    // Tun writable again
+                    if (ev[i].events & EPOLLOUT)
+                        args->shard->outblocked = 0;
+
+                    // Only the first shard reads from tun
                     int count = 0;
-                    while (count < TUN_YIELD && !error && !args->ctx->stopping &&
+                    while (args->shard->index == 0 &&
+                           count < TUN_YIELD && !error && !args->ctx->stopping &&
                            is_readable(args->tun)) {
                         count++;
                         if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
                             error = 1;
                     }
 
+                } else if (is_socks5_event(args, ev[i].data.ptr)) {
+                    // Check warm proxy connection
+                    check_socks5_pool(args, &ev[i]);
+
+                } else if (is_mux_event(args, ev[i].data.ptr)) {
+                    // Check shared proxy connection
+                    check_mux(args, &ev[i]);
+
+                } else if (is_udp_channel_event(args, ev[i].data.ptr)) {
+                    // Check UDP association
+                    check_udp_channel(args, &ev[i]);
+
+                } else if (is_upstream_event(args, ev[i].data.ptr)) {
+                    // Check proxy probe
+                    check_upstream_probe(args, &ev[i]);
+
+                } else if (is_proxy_lookup_event(args, ev[i].data.ptr)) {
+                    // Check proxy name lookup or connection race
+                    check_proxy_lookup(args, &ev[i]);
+
                 } else {
                     // Check downstream
                     log_android(ANDROID_LOG_DEBUG,
@@ -248,29 +944,62 @@ void *handle_events(void *a) {
                         }
                     } else if (session->protocol == IPPROTO_TCP)
                         check_tcp_socket(args, &ev[i], epoll_fd);
+                    update_session(args, session);
                 }
 
                 if (error)
                     break;
             }
 
-            if (pthread_mutex_unlock(&args->ctx->lock))
-                log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
-
             if (error)
                 break;
         }
+
+        // Check streams of shared proxy connections
+        dispatch_mux(args, epoll_fd);
     }
 
+    // Drop packets which could not be written
+    clear_tun(args);
+
+    // Close warm proxy connections
+    clear_socks5_pool(args);
+    clear_mux(args);
+    clear_udp_channels(args);
+    clear_upstream_probes(args);
+    clear_proxy_lookups(args);
+
     // Close epoll file
     if (epoll_fd >= 0 && close(epoll_fd))
         log_android(ANDROID_LOG_ERROR,
                     "epoll close error %d: %s", errno, strerror(errno));
 
+    // Stop other shards on error
+    if (!args->ctx->stopping) {
+        args->ctx->stopping = 1;
+        wakeup_shards(args->ctx);
+    }
+
+    log_android(ANDROID_LOG_INFO, "Stopped events tun=%d shard %d",
+                args->tun, args->shard->index);
+
+    // Return pooled buffers of this thread
+    flush_pool();
+
+    struct pool_stats stats;
+    get_pool_stats(&stats);
+    log_android(ANDROID_LOG_INFO, "Pool hits %ld misses %ld oversize %ld depot %d",
+                stats.hits, stats.misses, stats.oversize, stats.depot);
+
+    // Detach from Java VM
+    if (attached) {
+        if ((*jvm)->DetachCurrentThread(jvm) != JNI_OK)
+            log_android(ANDROID_LOG_ERROR, "DetachCurrentThread failed");
+    }
+
     // Cleanup
     ng_free(args, __FILE__, __LINE__);
 
-    log_android(ANDROID_LOG_INFO, "Stopped events tun=%d", args->tun);
     return NULL;
 }
 
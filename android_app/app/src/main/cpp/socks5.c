@@ -0,0 +1,349 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Pool of warm SOCKS5 connections
+// Every shard keeps a few connections to the proxy which completed the greeting and
+// authentication, so a new session only has to send its connect request.
+// The number of connections follows the rate of new sessions: it rises to the demand of the
+// last period at once and halves every idle period. Unused connections expire.
+
+extern char socks5_addr[PROXY_NAME_MAX + 1];
+extern int socks5_port;
+extern char socks5_username[127 + 1];
+extern char socks5_password[127 + 1];
+extern int socks5_method;
+extern int socks5_fastopen;
+extern int upstream_hash;
+
+size_t get_socks5_auth(uint8_t *buffer) {
+    uint8_t ulen = strlen(socks5_username);
+    uint8_t plen = strlen(socks5_password);
+    *(buffer + 0) = 1; // Version
+    *(buffer + 1) = ulen;
+    memcpy(buffer + 2, socks5_username, ulen);
+    *(buffer + 2 + ulen) = plen;
+    memcpy(buffer + 2 + ulen + 1, socks5_password, plen);
+    return 2 + ulen + 1 + plen;
+}
+
+size_t get_socks5_connect(const struct tcp_session *cur, uint8_t *buffer) {
+    *(buffer + 0) = 5; // version
+    *(buffer + 1) = 1; // TCP/IP stream connection
+    *(buffer + 2) = 0; // reserved
+    *(buffer + 3) = (uint8_t) (cur->version == 4 ? 1 : 4);
+    if (cur->version == 4) {
+        memcpy(buffer + 4, &cur->daddr.ip4, 4);
+        *((__be16 *) (buffer + 4 + 4)) = cur->dest;
+    } else {
+        memcpy(buffer + 4, &cur->daddr.ip6, 16);
+        *((__be16 *) (buffer + 4 + 16)) = cur->dest;
+    }
+    return (cur->version == 4 ? 10 : 22);
+}
+
+void check_fastopen(const struct arguments *args, int sock) {
+    // Count connections of which the data in the SYN was acknowledged by the proxy
+    int on = 0;
+    socklen_t optlen = sizeof(on);
+    if (getsockopt(sock, SOL_TCP, TCP_FASTOPEN_CONNECT, &on, &optlen) < 0 || !on)
+        return;
+
+    struct tcp_info info;
+    optlen = sizeof(info);
+    if (getsockopt(sock, SOL_TCP, TCP_INFO, &info, &optlen) < 0)
+        log_android(ANDROID_LOG_WARN, "getsockopt TCP_INFO error %d: %s",
+                    errno, strerror(errno));
+    else if (info.tcpi_options & TCPI_OPT_SYN_DATA)
+        args->shard->pool.fastopen_data++;
+}
+
+void init_socks5_pool(struct socks5_pool *pool, time_t now) {
+    memset(pool, 0, sizeof(struct socks5_pool));
+    for (int i = 0; i < SOCKS5_POOL_MAX; i++)
+        pool->conn[i].socket = -1;
+    pool->period = now;
+}
+
+int is_socks5_event(const struct arguments *args, const void *ptr) {
+    const struct socks5_pool *pool = &args->shard->pool;
+    return ((const uint8_t *) ptr >= (const uint8_t *) &pool->conn[0] &&
+            (const uint8_t *) ptr < (const uint8_t *) &pool->conn[SOCKS5_POOL_MAX]);
+}
+
+static void close_socks5(const struct arguments *args, struct socks5_conn *c) {
+    if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_DEL, c->socket, NULL))
+        log_android(ANDROID_LOG_ERROR, "epoll del SOCKS5 pool error %d: %s",
+                    errno, strerror(errno));
+    if (close(c->socket))
+        log_android(ANDROID_LOG_ERROR, "SOCKS5 pool close error %d: %s",
+                    errno, strerror(errno));
+    c->socket = -1;
+    c->state = 0;
+}
+
+static int send_socks5(struct socks5_conn *c, const uint8_t *buffer, size_t len) {
+    ssize_t sent = send(c->socket, buffer, len, MSG_NOSIGNAL);
+    if (sent != len) {
+        if (sent < 0 && errno == EINPROGRESS)
+            return -1;
+        log_android(ANDROID_LOG_WARN, "SOCKS5 pool send %d/%d error %d: %s",
+                    (int) sent, (int) len, errno, strerror(errno));
+        if (sent >= 0)
+            errno = EIO;
+        return -1;
+    }
+    return 0;
+}
+
+void check_socks5_pool(const struct arguments *args, struct epoll_event *ev) {
+    struct socks5_conn *c = (struct socks5_conn *) ev->data.ptr;
+    if (c->socket < 0)
+        return;
+
+    if (ev->events & (EPOLLERR | EPOLLHUP)) {
+        log_android(ANDROID_LOG_WARN, "SOCKS5 pool socket %d error state %d",
+                    c->socket, c->state);
+        if (c->state == SOCKS5_NONE)
+            report_upstream(c->upstream, 0);
+        close_socks5(args, c);
+        return;
+    }
+
+    if (c->state == SOCKS5_NONE) {
+        if (!(ev->events & EPOLLOUT))
+            return;
+
+        // Connected, offer both methods like a new session does
+        // With TCP Fast Open the hello goes into the SYN
+        uint8_t hello[4] = {5, 2, 0, 2};
+        if (send_socks5(c, hello, sizeof(hello)) < 0) {
+            // No cookie yet: the SYN went out without data, wait until connected
+            if (errno != EINPROGRESS)
+                close_socks5(args, c);
+            return;
+        }
+        c->state = SOCKS5_HELLO;
+
+        c->ev.events = EPOLLIN | EPOLLERR;
+        if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_MOD, c->socket, &c->ev)) {
+            log_android(ANDROID_LOG_ERROR, "epoll mod SOCKS5 pool error %d: %s",
+                        errno, strerror(errno));
+            close_socks5(args, c);
+        }
+        return;
+    }
+
+    if (!(ev->events & EPOLLIN))
+        return;
+
+    // Replies are two bytes, anything else ends the connection
+    uint8_t buffer[2];
+    ssize_t bytes = recv(c->socket, buffer, sizeof(buffer), 0);
+    if (bytes < 0 && (errno == EAGAIN || errno == EWOULDBLOCK))
+        return;
+
+    if (c->state == SOCKS5_HELLO && bytes == 2 && buffer[0] == 5 &&
+        (buffer[1] == 0 || buffer[1] == 2)) {
+        __atomic_store_n(&socks5_method, buffer[1], __ATOMIC_RELAXED);
+        check_fastopen(args, c->socket);
+        if (buffer[1] == 0) {
+            c->state = SOCKS5_CONNECT;
+            c->time = args->shard->wheel.now;
+        } else {
+            uint8_t auth[512];
+            size_t len = get_socks5_auth(auth);
+            if (send_socks5(c, auth, len) < 0)
+                close_socks5(args, c);
+            else
+                c->state = SOCKS5_AUTH;
+        }
+
+    } else if (c->state == SOCKS5_AUTH && bytes == 2 &&
+               (buffer[0] == 1 || buffer[0] == 5) && buffer[1] == 0) {
+        c->state = SOCKS5_CONNECT;
+        c->time = args->shard->wheel.now;
+
+    } else {
+        // Closed by the proxy or unexpected reply
+        log_android(ANDROID_LOG_WARN, "SOCKS5 pool socket %d state %d recv %d",
+                    c->socket, c->state, (int) bytes);
+        close_socks5(args, c);
+    }
+}
+
+int take_socks5(const struct arguments *args, struct tcp_session *cur) {
+    struct socks5_pool *pool = &args->shard->pool;
+    if (!*socks5_addr || !socks5_port)
+        return -1;
+
+    pool->demand++;
+
+    for (int i = 0; i < SOCKS5_POOL_MAX; i++) {
+        struct socks5_conn *c = &pool->conn[i];
+        if (c->socket < 0 || c->state != SOCKS5_CONNECT)
+            continue;
+
+        // A destination sticks to its proxy
+        if (upstream_hash && c->upstream != cur->upstream)
+            continue;
+
+        // Pending data means the proxy closed the connection
+        if (is_readable(c->socket)) {
+            log_android(ANDROID_LOG_WARN, "SOCKS5 pool socket %d closed", c->socket);
+            close_socks5(args, c);
+            continue;
+        }
+
+        if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_DEL, c->socket, NULL))
+            log_android(ANDROID_LOG_ERROR, "epoll del SOCKS5 pool error %d: %s",
+                        errno, strerror(errno));
+
+        int sock = c->socket;
+        c->socket = -1;
+        c->state = 0;
+
+        uint8_t buffer[22];
+        size_t len = get_socks5_connect(cur, buffer);
+        ssize_t sent = send(sock, buffer, len, MSG_NOSIGNAL);
+        if (sent != len) {
+            log_android(ANDROID_LOG_WARN, "SOCKS5 pool connect %d/%d error %d: %s",
+                        (int) sent, (int) len, errno, strerror(errno));
+            if (close(sock))
+                log_android(ANDROID_LOG_ERROR, "SOCKS5 pool close error %d: %s",
+                            errno, strerror(errno));
+            continue;
+        }
+
+        pool->hits++;
+        cur->socks5 = SOCKS5_POOLED;
+        cur->upstream = c->upstream;
+        log_android(ANDROID_LOG_DEBUG, "SOCKS5 pool socket %d taken", sock);
+        return sock;
+    }
+
+    pool->misses++;
+    return -1;
+}
+
+void refill_socks5_pool(const struct arguments *args) {
+    struct socks5_pool *pool = &args->shard->pool;
+    time_t now = args->shard->wheel.now;
+
+    // Follow the connection rate
+    if (now >= pool->period + SOCKS5_POOL_PERIOD) {
+        int target = (pool->demand > pool->target
+                      ? pool->demand : (pool->target + pool->demand) / 2);
+        pool->target = (target > SOCKS5_POOL_MAX ? SOCKS5_POOL_MAX : target);
+        pool->demand = 0;
+        pool->period = now;
+    }
+
+    if (!*socks5_addr || !socks5_port)
+        pool->target = 0;
+
+    // Expire idle connections and those which did not get ready
+    int count = 0;
+    for (int i = 0; i < SOCKS5_POOL_MAX; i++) {
+        struct socks5_conn *c = &pool->conn[i];
+        if (c->socket < 0)
+            continue;
+        if (now >= c->time + SOCKS5_POOL_IDLE) {
+            log_android(ANDROID_LOG_DEBUG, "SOCKS5 pool socket %d idle state %d",
+                        c->socket, c->state);
+            close_socks5(args, c);
+        } else
+            count++;
+    }
+
+    // Open connections up to the target
+    // After a failure, like while offline, sessions open their own until the period passed
+    if (pool->failed && now < pool->failed + SOCKS5_POOL_PERIOD)
+        return;
+    for (int i = 0; i < SOCKS5_POOL_MAX && count < pool->target; i++) {
+        struct socks5_conn *c = &pool->conn[i];
+        if (c->socket >= 0)
+            continue;
+
+        c->upstream = (int8_t) select_upstream(args, NULL);
+        c->socket = open_upstream_socket(args, c->upstream);
+        if (c->socket < 0) {
+            // The address of a proxy name is not known yet, see lookup_proxies
+            if (errno != EAGAIN)
+                pool->failed = now;
+            break;
+        }
+        c->state = SOCKS5_NONE;
+        c->time = now;
+
+        memset(&c->ev, 0, sizeof(struct epoll_event));
+        c->ev.events = EPOLLOUT | EPOLLERR;
+        c->ev.data.ptr = c;
+        if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_ADD, c->socket, &c->ev)) {
+            log_android(ANDROID_LOG_ERROR, "epoll add SOCKS5 pool error %d: %s",
+                        errno, strerror(errno));
+            if (close(c->socket))
+                log_android(ANDROID_LOG_ERROR, "SOCKS5 pool close error %d: %s",
+                            errno, strerror(errno));
+            c->socket = -1;
+            pool->failed = now;
+            break;
+        }
+
+        count++;
+        log_android(ANDROID_LOG_DEBUG, "SOCKS5 pool socket %d opening %d/%d",
+                    c->socket, count, pool->target);
+    }
+}
+
+int get_socks5_timeout(const struct arguments *args) {
+    const struct socks5_pool *pool = &args->shard->pool;
+    time_t now = args->shard->wheel.now;
+
+    // Wake up for the next rate period while there is a pool to size
+    time_t next = 0;
+    if (pool->target > 0 || pool->demand > 0)
+        next = pool->period + SOCKS5_POOL_PERIOD;
+
+    // and for the end of the back off
+    if (pool->target > 0 && pool->failed && now < pool->failed + SOCKS5_POOL_PERIOD &&
+        (next == 0 || pool->failed + SOCKS5_POOL_PERIOD < next))
+        next = pool->failed + SOCKS5_POOL_PERIOD;
+
+    for (int i = 0; i < SOCKS5_POOL_MAX; i++)
+        if (pool->conn[i].socket >= 0 &&
+            (next == 0 || pool->conn[i].time + SOCKS5_POOL_IDLE < next))
+            next = pool->conn[i].time + SOCKS5_POOL_IDLE;
+
+    if (next == 0 || next - now > EPOLL_TIMEOUT)
+        return EPOLL_TIMEOUT;
+    return (next > now ? (int) (next - now) : 0);
+}
+
+void clear_socks5_pool(const struct arguments *args) {
+    struct socks5_pool *pool = &args->shard->pool;
+    for (int i = 0; i < SOCKS5_POOL_MAX; i++)
+        if (pool->conn[i].socket >= 0)
+            close_socks5(args, &pool->conn[i]);
+
+    log_android(ANDROID_LOG_INFO, "SOCKS5 pool shard %d hits %u misses %u fast open %u/%u",
+                args->shard->index, pool->hits, pool->misses,
+                pool->fastopen_data, pool->fastopen);
+}
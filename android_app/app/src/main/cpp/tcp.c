@@ -19,21 +19,127 @@
 
 #include "netguard.h"
 
-extern char socks5_addr[INET6_ADDRSTRLEN + 1];
+extern char socks5_addr[PROXY_NAME_MAX + 1];
 extern int socks5_port;
 extern char socks5_username[127 + 1];
 extern char socks5_password[127 + 1];
+extern int socks5_pipeline;
+extern int socks5_method;
+extern int socks5_fastopen;
+extern int socks5_early;
+extern int socks5_mux;
+extern int proxy_generation;
+extern char http_proxy_addr[PROXY_NAME_MAX + 1];
+extern int http_proxy_port;
+extern char http_proxy_auth[HTTP_AUTH_MAX + 1];
+
+// Descriptions of sessions and packets for logging
+// They are formatted when first used, which is never if nothing is logged.
+// The session state is taken when the description is prepared.
+
+struct tcp_log {
+    const struct tcp_session *cur;
+    uint8_t state;
+    uint32_t local_seq;
+    uint32_t remote_seq;
+    uint32_t acked;
+    const uint8_t *pkt; // NULL for socket events
+    const uint8_t *payload;
+    uint16_t datalen;
+    int uid;
+    char packet[250];
+    char session[250];
+};
+
+static void init_tcp_log(struct tcp_log *log, const struct tcp_session *cur,
+                         const uint8_t *pkt, const uint8_t *payload, uint16_t datalen, int uid) {
+    log->cur = cur;
+    if (cur != NULL) {
+        log->state = cur->state;
+        log->local_seq = cur->local_seq;
+        log->remote_seq = cur->remote_seq;
+        log->acked = cur->acked;
+    }
+    log->pkt = pkt;
+    log->payload = payload;
+    log->datalen = datalen;
+    log->uid = uid;
+    *log->packet = 0;
+    *log->session = 0;
+}
 
-extern FILE *pcap_file;
+static const char *log_packet(struct tcp_log *log) {
+    if (*log->packet)
+        return log->packet;
 
-void clear_tcp_data(struct tcp_session *cur) {
-    struct segment *s = cur->forward;
-    while (s != NULL) {
-        struct segment *p = s;
-        s = s->next;
-        ng_free(p->data, __FILE__, __LINE__);
-        ng_free(p, __FILE__, __LINE__);
+    const uint8_t version = (*log->pkt) >> 4;
+    const struct iphdr *ip4 = (struct iphdr *) log->pkt;
+    const struct ip6_hdr *ip6 = (struct ip6_hdr *) log->pkt;
+    const struct tcphdr *tcphdr = (struct tcphdr *) log->payload;
+    const struct tcp_session *cur = log->cur;
+
+    char source[INET6_ADDRSTRLEN + 1];
+    char dest[INET6_ADDRSTRLEN + 1];
+    straddr(version, version == 4 ? (const void *) &ip4->saddr : &ip6->ip6_src, source);
+    straddr(version, version == 4 ? (const void *) &ip4->daddr : &ip6->ip6_dst, dest);
+
+    char flags[10];
+    int flen = 0;
+    if (tcphdr->syn)
+        flags[flen++] = 'S';
+    if (tcphdr->ack)
+        flags[flen++] = 'A';
+    if (tcphdr->psh)
+        flags[flen++] = 'P';
+    if (tcphdr->fin)
+        flags[flen++] = 'F';
+    if (tcphdr->rst)
+        flags[flen++] = 'R';
+    if (tcphdr->urg)
+        flags[flen++] = 'U';
+    flags[flen] = 0;
+
+    sprintf(log->packet,
+            "TCP %s %s/%u > %s/%u seq %u ack %u data %u win %u uid %d",
+            flags,
+            source, ntohs(tcphdr->source),
+            dest, ntohs(tcphdr->dest),
+            ntohl(tcphdr->seq) - (cur == NULL ? 0 : cur->remote_start),
+            tcphdr->ack ? ntohl(tcphdr->ack_seq) - (cur == NULL ? 0 : cur->local_start) : 0,
+            log->datalen, ntohs(tcphdr->window), log->uid);
+
+    return log->packet;
+}
+
+static const char *log_session(struct tcp_log *log) {
+    if (*log->session)
+        return log->session;
+
+    const struct tcp_session *cur = log->cur;
+    if (log->pkt != NULL)
+        sprintf(log->session,
+                "%s %s loc %u rem %u acked %u",
+                log_packet(log),
+                strstate(log->state),
+                log->local_seq - cur->local_start,
+                log->remote_seq - cur->remote_start,
+                log->acked - cur->local_start);
+    else {
+        char source[INET6_ADDRSTRLEN + 1];
+        char dest[INET6_ADDRSTRLEN + 1];
+        sprintf(log->session, "TCP socket from %s/%u to %s/%u %s loc %u rem %u",
+                straddr(cur->version, &cur->saddr, source), ntohs(cur->source),
+                straddr(cur->version, &cur->daddr, dest), ntohs(cur->dest),
+                strstate(log->state),
+                log->local_seq - cur->local_start,
+                log->remote_seq - cur->remote_start);
     }
+
+    return log->session;
+}
+
+void clear_tcp_data(struct tcp_session *cur) {
+    clear_ring(&cur->forward);
 }
 
 int get_tcp_timeout(const struct tcp_session *t, int sessions, int maxsessions) {
@@ -53,29 +159,17 @@ int get_tcp_timeout(const struct tcp_session *t, int sessions, int maxsessions)
 
 int check_tcp_session(const struct arguments *args, struct ng_session *s,
                       int sessions, int maxsessions) {
-    time_t now = time(NULL);
+    time_t now = args->shard->wheel.now;
 
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (s->tcp.version == 4) {
-        inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
-        inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
-        inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
-    }
-
-    char session[250];
-    sprintf(session, "TCP socket from %s/%u to %s/%u %s socket %d",
-            source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest),
-            strstate(s->tcp.state), s->socket);
+    struct tcp_log log;
+    init_tcp_log(&log, &s->tcp, NULL, NULL, 0, s->tcp.uid);
 
     int timeout = get_tcp_timeout(&s->tcp, sessions, maxsessions);
 
     // Check session timeout
     if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE &&
         s->tcp.time + timeout < now) {
-        log_android(ANDROID_LOG_WARN, "%s idle %d/%d sec ", session, now - s->tcp.time,
+        log_android(ANDROID_LOG_WARN, "%s idle %d/%d sec ", log_session(&log), now - s->tcp.time,
                     timeout);
         if (s->tcp.state == TCP_LISTEN)
             s->tcp.state = TCP_CLOSING;
@@ -85,17 +179,23 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
 
     // Check closing sessions
     if (s->tcp.state == TCP_CLOSING) {
+        if (s->tcp.waiting) {
+            s->tcp.waiting = 0;
+            args->shard->waiting--;
+        }
         // eof closes socket
+        if (s->tcp.mux != NULL)
+            close_mux_stream(args, s);
         if (s->socket >= 0) {
             if (close(s->socket))
                 log_android(ANDROID_LOG_ERROR, "%s close error %d: %s",
-                            session, errno, strerror(errno));
+                            log_session(&log), errno, strerror(errno));
             else
-                log_android(ANDROID_LOG_VERBOSE, "%s close", session);
+                log_android(ANDROID_LOG_VERBOSE, "%s close", log_session(&log));
             s->socket = -1;
         }
 
-        s->tcp.time = time(NULL);
+        s->tcp.time = args->shard->wheel.now;
         s->tcp.state = TCP_CLOSE;
     }
 
@@ -112,26 +212,58 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
     return 0;
 }
 
-int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int epoll_fd) {
-    int recheck = 0;
+static const char *get_proxy(int *port) {
+    // The upstream proxy, NULL when connecting directly
+    if (*http_proxy_addr && http_proxy_port) {
+        *port = http_proxy_port;
+        return http_proxy_addr;
+    }
+    if (*socks5_addr && socks5_port) {
+        *port = socks5_port;
+        return socks5_addr;
+    }
+    return NULL;
+}
+
+static int is_connecting(const struct tcp_session *cur) {
+    // After an early SYN-ACK the proxy handshake continues while the app sends data
+    return (cur->state == TCP_LISTEN || (cur->early && cur->socks5 != 0));
+}
+
+static void reset_connect(const struct arguments *args, struct ng_session *s) {
+    // Remember a destination which could not be reached and tell the app why
+    // Until the SYN-ACK an ICMP unreachable fails the connect of the app like a router would
+    if (s->tcp.error > 0)
+        add_negative(args, &s->tcp, s->tcp.error);
+    if (s->tcp.state == TCP_LISTEN && s->tcp.error > 0 &&
+        write_unreachable(args, &s->tcp, s->tcp.error) >= 0)
+        s->tcp.state = TCP_CLOSING;
+    else
+        write_rst(args, &s->tcp);
+}
+
+void monitor_tcp_session(const struct arguments *args, struct ng_session *s) {
     unsigned int events = EPOLLERR;
 
-    if (s->tcp.state == TCP_LISTEN) {
-        // Check for connected = writable
+    if (is_connecting(&s->tcp)) {
+        // Check for connected = writable, which happens once
         if (s->tcp.socks5 == SOCKS5_NONE)
-            events = events | EPOLLOUT;
+            events = events | EPOLLOUT | EPOLLET;
         else
             events = events | EPOLLIN;
     } else if (s->tcp.state == TCP_ESTABLISHED || s->tcp.state == TCP_CLOSE_WAIT) {
 
         // Check for incoming data
-        if (get_send_window(&s->tcp) > 0)
-            events = events | EPOLLIN;
-        else {
-            recheck = 1;
-
+        // A window update of the app will arrive through tun
+        if (get_send_window(&s->tcp) > 0) {
+            // Stop reading while tun pushes back, tun EPOLLOUT will wake up the loop
+            if (is_tun_congested(args))
+                args->shard->rearm = 1;
+            else
+                events = events | EPOLLIN;
+        } else {
             long long ms = get_ms();
-            if (ms - s->tcp.last_keep_alive > EPOLL_MIN_CHECK) {
+            if (ms - s->tcp.last_keep_alive > TCP_PROBE_INTERVAL) {
                 s->tcp.last_keep_alive = ms;
                 log_android(ANDROID_LOG_VERBOSE, "Sending keep alive to update send window");
                 s->tcp.remote_seq--;
@@ -141,27 +273,32 @@ int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int
         }
 
         // Check for outgoing data
-        if (s->tcp.forward != NULL) {
-            uint32_t buffer_size = get_receive_buffer(s);
-            if (s->tcp.forward->seq == s->tcp.remote_seq &&
-                s->tcp.forward->len - s->tcp.forward->sent < buffer_size)
-                events = events | EPOLLOUT;
-            else
-                recheck = 1;
-        }
+        // Writable means there is room in the send buffer, data after a gap arrives through tun
+        if (s->tcp.forward.len)
+            events = events | EPOLLOUT;
     }
 
-    if (events != s->ev.events) {
+    if (s->tcp.mux != NULL)
+        monitor_mux_stream(args, s, events);
+    else if (events != s->ev.events) {
         s->ev.events = events;
-        if (epoll_ctl(epoll_fd, EPOLL_CTL_MOD, s->socket, &s->ev)) {
+        if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_MOD, s->socket, &s->ev)) {
             s->tcp.state = TCP_CLOSING;
             log_android(ANDROID_LOG_ERROR, "epoll mod tcp error %d: %s", errno, strerror(errno));
         } else
             log_android(ANDROID_LOG_DEBUG, "epoll mod tcp socket %d in %d out %d",
                         s->socket, (events & EPOLLIN) != 0, (events & EPOLLOUT) != 0);
     }
+}
 
-    return recheck;
+time_t get_probe_deadline(const struct tcp_session *cur) {
+    // A closed window is probed from the timer, the window update of the app can be lost
+    // The wheel counts seconds, the deadline is the first second after the probe interval
+    if (is_connecting(cur) ||
+        (cur->state != TCP_ESTABLISHED && cur->state != TCP_CLOSE_WAIT) ||
+        get_send_window(cur) > 0)
+        return 0;
+    return (time_t) ((cur->last_keep_alive + TCP_PROBE_INTERVAL) / 1000 + 1);
 }
 
 uint32_t get_send_window(const struct tcp_session *cur) {
@@ -180,43 +317,55 @@ uint32_t get_send_window(const struct tcp_session *cur) {
     return total;
 }
 
-uint32_t get_receive_buffer(const struct ng_session *cur) {
+uint32_t get_receive_buffer(const struct arguments *args, struct ng_session *cur) {
+    if (cur->tcp.mux != NULL)
+        return get_mux_buffer(args, cur);
     if (cur->socket < 0)
         return 0;
 
-    // Get send buffer size
-    // /proc/sys/net/core/wmem_default
-    int sendbuf = 0;
-    int sendbufsize = sizeof(sendbuf);
-    if (getsockopt(cur->socket, SOL_SOCKET, SO_SNDBUF, &sendbuf, (socklen_t *) &sendbufsize) < 0)
-        log_android(ANDROID_LOG_DEBUG, "getsockopt SO_RCVBUF %d: %s", errno, strerror(errno));
-
-    if (sendbuf == 0)
-        sendbuf = SEND_BUF_DEFAULT;
-
-    // Get unsent data size
-    int unsent = 0;
-    if (ioctl(cur->socket, SIOCOUTQ, &unsent))
-        log_android(ANDROID_LOG_DEBUG, "ioctl SIOCOUTQ %d: %s", errno, strerror(errno));
+    // Sent data is added to the unsent estimate, which can only be too high,
+    // so the kernel is asked only when the buffer seems half full, at most once per loop
+    struct tcp_session *t = &cur->tcp;
+    if (t->sndbuf == 0 ||
+        (t->unsent > t->sndbuf / 2 && t->checked != args->shard->loops)) {
+        t->checked = args->shard->loops;
+
+        // Get send buffer size, which is changed by autotuning
+        // /proc/sys/net/core/wmem_default
+        int sendbuf = 0;
+        int sendbufsize = sizeof(sendbuf);
+        if (getsockopt(cur->socket, SOL_SOCKET, SO_SNDBUF,
+                       &sendbuf, (socklen_t *) &sendbufsize) < 0)
+            log_android(ANDROID_LOG_DEBUG, "getsockopt SO_RCVBUF %d: %s",
+                        errno, strerror(errno));
+
+        t->sndbuf = (uint32_t) (sendbuf > 0 ? sendbuf : SEND_BUF_DEFAULT);
+
+        // Get unsent data size
+        int unsent = 0;
+        if (ioctl(cur->socket, SIOCOUTQ, &unsent))
+            log_android(ANDROID_LOG_DEBUG, "ioctl SIOCOUTQ %d: %s", errno, strerror(errno));
+
+        t->unsent = (uint32_t) (unsent > 0 ? unsent : 0);
+    }
 
-    uint32_t total = (uint32_t) (unsent < sendbuf ? sendbuf - unsent : 0);
+    uint32_t total = (t->unsent < t->sndbuf ? t->sndbuf - t->unsent : 0);
 
     log_android(ANDROID_LOG_DEBUG, "Send buffer %u unsent %u total %u",
-                sendbuf, unsent, total);
+                t->sndbuf, t->unsent, total);
 
     return total;
 }
 
-uint32_t get_receive_window(const struct ng_session *cur) {
+uint32_t get_receive_window(const struct arguments *args, struct ng_session *cur) {
     // Get data to forward size
-    uint32_t toforward = 0;
-    struct segment *q = cur->tcp.forward;
-    while (q != NULL) {
-        toforward += (q->len - q->sent);
-        q = q->next;
-    }
+    uint32_t toforward = cur->tcp.forward.queued;
 
-    uint32_t window = get_receive_buffer(cur);
+    uint32_t window = get_receive_buffer(args, cur);
+    if (window > TCP_RING_MAX)
+        window = TCP_RING_MAX;
+    if (cur->tcp.early && window > TCP_EARLY_WINDOW)
+        window = TCP_EARLY_WINDOW;
 
     uint32_t max = ((uint32_t) 0xFFFF) << cur->tcp.recv_scale;
     if (window > max) {
@@ -232,6 +381,229 @@ uint32_t get_receive_window(const struct ng_session *cur) {
     return total;
 }
 
+static int alloc_segments(const struct tcp_session *cur, uint32_t window,
+                          struct tun_packet **packet, struct iovec *iov, size_t *total) {
+    // Segments of at most one MSS within the send window, with room for the headers in front
+    size_t hdrlen = get_tcp_header_len(cur, 0);
+    int count = 0;
+    *total = 0;
+    while (count < cur->segments && window > 0) {
+        uint32_t seglen = (window > cur->mss ? cur->mss : window);
+        packet[count] = ng_pool_alloc(sizeof(struct tun_packet) + hdrlen + seglen,
+                                      "tcp segment");
+        iov[count].iov_base = packet[count]->data + hdrlen;
+        iov[count].iov_len = seglen;
+        window -= seglen;
+        *total += seglen;
+        count++;
+    }
+    return count;
+}
+
+static int send_socks5_pipelined(const struct arguments *args, struct ng_session *s,
+                                 struct tcp_log *log) {
+    // Greeting with the known method only, credentials and connect in one write
+    // The proxy reads them as a stream, so the handshake takes a single round trip
+    int auth = (s->tcp.socks5 == SOCKS5_PIPELINED_AUTH);
+    uint8_t buffer[3 + 512];
+    *(buffer + 0) = 5; // version
+    *(buffer + 1) = 1; // methods
+    *(buffer + 2) = (uint8_t) (auth ? 2 : 0);
+    size_t len = 3;
+    if (auth)
+        len += get_socks5_auth(buffer + len);
+    len += get_socks5_connect(&s->tcp, buffer + len);
+
+    char h[HEX_LOG_MAX];
+    log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 pipelined: %s",
+                log_session(log), hex(buffer, len, h, sizeof(h)));
+    ssize_t sent = send(s->socket, buffer, len, MSG_NOSIGNAL);
+    if (sent < 0 && errno == EINPROGRESS) {
+        // TCP Fast Open without cookie, the SYN went out without data
+        log_android(ANDROID_LOG_DEBUG, "%s SOCKS5 pipelined after connect", log_session(log));
+        return 0;
+    }
+    if (sent != len) {
+        log_android(ANDROID_LOG_ERROR, "%s send SOCKS5 pipelined %d/%d error %d: %s",
+                    log_session(log), (int) sent, (int) len, errno, strerror(errno));
+        return -1;
+    }
+    return 1;
+}
+
+static int send_http_connect(const struct arguments *args, struct ng_session *s,
+                             struct tcp_log *log) {
+    // A single request like the pipelined SOCKS5 handshake, so it also fits into the SYN
+    // https://tools.ietf.org/html/rfc7231#section-4.3.6
+    char dest[INET6_ADDRSTRLEN + 1];
+    straddr(s->tcp.version, &s->tcp.daddr, dest);
+    const char *left = (s->tcp.version == 4 ? "" : "[");
+    const char *right = (s->tcp.version == 4 ? "" : "]");
+    int port = ntohs(s->tcp.dest);
+
+    char buffer[2 * (INET6_ADDRSTRLEN + 8) + 64 + HTTP_AUTH_MAX];
+    int len = snprintf(buffer, sizeof(buffer),
+                       "CONNECT %s%s%s:%d HTTP/1.1\r\nHost: %s%s%s:%d\r\n%s%s%s\r\n",
+                       left, dest, right, port, left, dest, right, port,
+                       *http_proxy_auth ? "Proxy-Authorization: Basic " : "",
+                       http_proxy_auth, *http_proxy_auth ? "\r\n" : "");
+
+    log_android(ANDROID_LOG_INFO, "%s sending HTTP CONNECT %s%s%s:%d",
+                log_session(log), left, dest, right, port);
+    ssize_t sent = send(s->socket, buffer, (size_t) len, MSG_NOSIGNAL);
+    if (sent < 0 && errno == EINPROGRESS) {
+        // TCP Fast Open without cookie, the SYN went out without data
+        log_android(ANDROID_LOG_DEBUG, "%s HTTP CONNECT after connect", log_session(log));
+        return 0;
+    }
+    if (sent != len) {
+        log_android(ANDROID_LOG_ERROR, "%s send HTTP CONNECT %d/%d error %d: %s",
+                    log_session(log), (int) sent, len, errno, strerror(errno));
+        return -1;
+    }
+    return 1;
+}
+
+static int recv_http_connect(const struct arguments *args, struct ng_session *s,
+                             struct tcp_log *log) {
+    // The response header is peeked and read up to its end only,
+    // because data of the remote may follow immediately
+    // The end is matched across reads, the status line is kept in the reply buffer
+    static const char end[] = "\r\n\r\n";
+    uint8_t buffer[HTTP_READ];
+
+    while (s->tcp.http_match < 4) {
+        ssize_t bytes = recv(s->socket, buffer, sizeof(buffer), MSG_PEEK);
+        if (bytes < 0) {
+            if (errno == EAGAIN || errno == EWOULDBLOCK)
+                return 0;
+            log_android(ANDROID_LOG_ERROR, "%s recv HTTP error %d: %s",
+                        log_session(log), errno, strerror(errno));
+            return -1;
+        }
+        if (bytes == 0) {
+            log_android(ANDROID_LOG_ERROR, "%s recv HTTP closed", log_session(log));
+            return -1;
+        }
+
+        ssize_t len = 0;
+        while (len < bytes && s->tcp.http_match < 4) {
+            uint8_t c = buffer[len++];
+            if (s->tcp.http_received < HTTP_STATUS_LEN)
+                s->tcp.socks5_reply[s->tcp.http_received] = c;
+            s->tcp.http_received++;
+            if (c == end[s->tcp.http_match])
+                s->tcp.http_match++;
+            else
+                s->tcp.http_match = (uint8_t) (c == '\r' ? 1 : 0);
+        }
+
+        if (recv(s->socket, buffer, (size_t) len, 0) != len) {
+            log_android(ANDROID_LOG_ERROR, "%s recv HTTP header error %d: %s",
+                        log_session(log), errno, strerror(errno));
+            return -1;
+        }
+
+        if (s->tcp.http_received > HTTP_HEADER_MAX) {
+            log_android(ANDROID_LOG_ERROR, "%s HTTP header too long", log_session(log));
+            return -1;
+        }
+    }
+
+    // Status line: HTTP/1.x 2xx
+    const char *status = (const char *) s->tcp.socks5_reply;
+    if (s->tcp.http_received < HTTP_STATUS_LEN ||
+        memcmp(status, "HTTP/1.", 7) != 0 || status[8] != ' ' || status[9] != '2') {
+        log_android(ANDROID_LOG_ERROR, "%s HTTP CONNECT error %.*s",
+                    log_session(log),
+                    (int) (s->tcp.http_received < HTTP_STATUS_LEN
+                           ? s->tcp.http_received : HTTP_STATUS_LEN), status);
+        if (s->tcp.http_received >= HTTP_STATUS_LEN && memcmp(status, "HTTP/1.", 7) == 0)
+            s->tcp.error = (int16_t) get_http_error(status);
+        return -1;
+    }
+
+    log_android(ANDROID_LOG_INFO, "%s recv HTTP %.*s header %u",
+                log_session(log), HTTP_STATUS_LEN, status, s->tcp.http_received);
+    return 1;
+}
+
+static int recv_socks5_pipelined(const struct arguments *args, struct ng_session *s,
+                                 struct tcp_log *log) {
+    // Replies are read up to the end of the connect reply only,
+    // because data of the remote may follow immediately
+    // A warm connection of the pool only gets the connect reply
+    int auth = (s->tcp.socks5 == SOCKS5_PIPELINED_AUTH);
+    uint8_t *reply = s->tcp.socks5_reply;
+    size_t connect = (s->tcp.socks5 == SOCKS5_POOLED ? 0 : auth ? 4 : 2); // offset
+
+    while (1) {
+        size_t need = connect + 4;
+        if (s->tcp.socks5_received >= need) {
+            uint8_t atype = reply[connect + 3];
+            if (atype != 1 && atype != 4) {
+                log_android(ANDROID_LOG_ERROR, "%s SOCKS5 address type %d not supported",
+                            log_session(log), atype);
+                return -1;
+            }
+            need += (atype == 1 ? 4 : 16) + 2;
+        }
+
+        if (s->tcp.socks5_received < need) {
+            struct iovec iov;
+            iov.iov_base = reply + s->tcp.socks5_received;
+            iov.iov_len = need - s->tcp.socks5_received;
+            ssize_t bytes = (s->tcp.mux != NULL
+                             ? recv_mux(args, s, &iov, 1)
+                             : recv(s->socket, iov.iov_base, iov.iov_len, 0));
+            if (bytes < 0) {
+                if (errno == EAGAIN || errno == EWOULDBLOCK)
+                    return 0;
+                log_android(ANDROID_LOG_ERROR, "%s recv SOCKS5 error %d: %s",
+                            log_session(log), errno, strerror(errno));
+                return -1;
+            }
+            if (bytes == 0) {
+                log_android(ANDROID_LOG_ERROR, "%s recv SOCKS5 closed", log_session(log));
+                return -1;
+            }
+
+            char h[HEX_LOG_MAX];
+            log_android(ANDROID_LOG_INFO, "%s recv SOCKS5 %s",
+                        log_session(log),
+                        hex(reply + s->tcp.socks5_received, (const size_t) bytes, h, sizeof(h)));
+            s->tcp.socks5_received += bytes;
+        }
+
+        if (connect > 0 && s->tcp.socks5_received >= 2 &&
+            (reply[0] != 5 || reply[1] != (auth ? 2 : 0))) {
+            // Learn again step by step
+            __atomic_store_n(&socks5_method, -1, __ATOMIC_RELAXED);
+            log_android(ANDROID_LOG_ERROR, "%s SOCKS5 auth %d not expected",
+                        log_session(log), reply[1]);
+            return -1;
+        }
+
+        if (auth && s->tcp.socks5_received >= 4 && reply[3] != 0) {
+            log_android(ANDROID_LOG_ERROR, "%s SOCKS5 auth error %d",
+                        log_session(log), reply[3]);
+            return -1;
+        }
+
+        if (s->tcp.socks5_received >= connect + 2 &&
+            (reply[connect] != 5 || reply[connect + 1] != 0)) {
+            log_android(ANDROID_LOG_ERROR, "%s SOCKS5 connect error %d",
+                        log_session(log), reply[connect + 1]);
+            if (reply[connect] == 5)
+                s->tcp.error = (int16_t) get_socks5_error(reply[connect + 1]);
+            return -1;
+        }
+
+        if (s->tcp.socks5_received == need && need > connect + 4)
+            return 1;
+    }
+}
+
 void check_tcp_socket(const struct arguments *args,
                       const struct epoll_event *ev,
                       const int epoll_fd) {
@@ -241,79 +613,96 @@ void check_tcp_socket(const struct arguments *args,
     uint32_t oldlocal = s->tcp.local_seq;
     uint32_t oldremote = s->tcp.remote_seq;
 
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (s->tcp.version == 4) {
-        inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
-        inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
-        inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
-    }
-    char session[250];
-    sprintf(session, "TCP socket from %s/%u to %s/%u %s loc %u rem %u",
-            source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest),
-            strstate(s->tcp.state),
-            s->tcp.local_seq - s->tcp.local_start,
-            s->tcp.remote_seq - s->tcp.remote_start);
+    struct tcp_log log;
+    init_tcp_log(&log, &s->tcp, NULL, NULL, 0, s->tcp.uid);
 
     // Check socket error
     if (ev->events & EPOLLERR) {
-        s->tcp.time = time(NULL);
+        s->tcp.time = args->shard->wheel.now;
 
         int serr = 0;
         socklen_t optlen = sizeof(int);
         int err = getsockopt(s->socket, SOL_SOCKET, SO_ERROR, &serr, &optlen);
         if (err < 0)
             log_android(ANDROID_LOG_ERROR, "%s getsockopt error %d: %s",
-                        session, errno, strerror(errno));
+                        log_session(&log), errno, strerror(errno));
         else if (serr)
             log_android(ANDROID_LOG_DEBUG, "%s SO_ERROR %d: %s",
-                        session, serr, strerror(serr));
-
-        write_rst(args, &s->tcp);
-
-        // Connection refused
-        if (0)
-            if (err >= 0 && (serr == ECONNREFUSED || serr == EHOSTUNREACH)) {
-                struct icmp icmp;
-                memset(&icmp, 0, sizeof(struct icmp));
-                icmp.icmp_type = ICMP_UNREACH;
-                if (serr == ECONNREFUSED)
-                    icmp.icmp_code = ICMP_UNREACH_PORT;
-                else
-                    icmp.icmp_code = ICMP_UNREACH_HOST;
-                icmp.icmp_cksum = 0;
-                icmp.icmp_cksum = ~calc_checksum(0, (const uint8_t *) &icmp, 4);
-
-                struct icmp_session sicmp;
-                memset(&sicmp, 0, sizeof(struct icmp_session));
-                sicmp.version = s->tcp.version;
-                if (s->tcp.version == 4) {
-                    sicmp.saddr.ip4 = (__be32) s->tcp.saddr.ip4;
-                    sicmp.daddr.ip4 = (__be32) s->tcp.daddr.ip4;
-                } else {
-                    memcpy(&sicmp.saddr.ip6, &s->tcp.saddr.ip6, 16);
-                    memcpy(&sicmp.daddr.ip6, &s->tcp.daddr.ip6, 16);
-                }
-
-                write_icmp(args, &sicmp, (uint8_t *) &icmp, 8);
-            }
+                        log_session(&log), serr, strerror(serr));
+
+        // Handshake errors are replies, so this is the connection to the proxy failing
+        // Without proxy the destination itself refused or could not be reached
+        int pport;
+        if (is_connecting(&s->tcp) && get_proxy(&pport) != NULL) {
+            report_upstream(s->tcp.upstream, 0);
+            report_proxy_address(s->tcp.upstream);
+        } else if (is_connecting(&s->tcp) && err >= 0 &&
+                   (serr == ECONNREFUSED || serr == EHOSTUNREACH || serr == ENETUNREACH))
+            s->tcp.error = (int16_t) serr;
+
+        reset_connect(args, s);
     } else {
         // Assume socket okay
-        if (s->tcp.state == TCP_LISTEN) {
+        if (is_connecting(&s->tcp)) {
             // Check socket connect
             if (s->tcp.socks5 == SOCKS5_NONE) {
                 if (ev->events & EPOLLOUT) {
-                    log_android(ANDROID_LOG_INFO, "%s connected", session);
+                    log_android(ANDROID_LOG_INFO, "%s connected", log_session(&log));
 
                     // https://tools.ietf.org/html/rfc1928
                     // https://tools.ietf.org/html/rfc1929
                     // https://en.wikipedia.org/wiki/SOCKS#SOCKS5
-                    if (*socks5_addr && socks5_port)
-                        s->tcp.socks5 = SOCKS5_HELLO;
-                    else
+                    if (*http_proxy_addr && http_proxy_port) {
+                        s->tcp.socks5 = HTTP_CONNECT;
+                        int rc = send_http_connect(args, s, &log);
+                        if (rc == 0)
+                            s->tcp.socks5 = SOCKS5_NONE; // wait for connected
+                        else if (rc < 0) {
+                            s->tcp.socks5 = 0;
+                            write_rst(args, &s->tcp);
+                        }
+                    } else if (*socks5_addr && socks5_port) {
+                        int method = __atomic_load_n(&socks5_method, __ATOMIC_RELAXED);
+                        if (socks5_pipeline && (method == 0 || method == 2)) {
+                            s->tcp.socks5 = (method ? SOCKS5_PIPELINED_AUTH : SOCKS5_PIPELINED);
+                            int rc = send_socks5_pipelined(args, s, &log);
+                            if (rc == 0)
+                                s->tcp.socks5 = SOCKS5_NONE; // wait for connected
+                            else if (rc < 0) {
+                                s->tcp.socks5 = 0;
+                                write_rst(args, &s->tcp);
+                            }
+                        } else
+                            s->tcp.socks5 = SOCKS5_HELLO;
+                    } else
+                        s->tcp.socks5 = SOCKS5_CONNECTED;
+                }
+            } else if (s->tcp.socks5 == SOCKS5_PIPELINED ||
+                       s->tcp.socks5 == SOCKS5_PIPELINED_AUTH ||
+                       s->tcp.socks5 == SOCKS5_POOLED) {
+                if (ev->events & EPOLLIN) {
+                    int rc = recv_socks5_pipelined(args, s, &log);
+                    if (rc > 0) {
+                        if (s->tcp.socks5 != SOCKS5_POOLED)
+                            check_fastopen(args, s->socket);
+                        s->tcp.socks5 = SOCKS5_CONNECTED;
+                        log_android(ANDROID_LOG_DEBUG, "%s SOCKS5 connected", log_session(&log));
+                    } else if (rc < 0) {
+                        s->tcp.socks5 = 0;
+                        reset_connect(args, s);
+                    }
+                }
+            } else if (s->tcp.socks5 == HTTP_CONNECT) {
+                if (ev->events & EPOLLIN) {
+                    int rc = recv_http_connect(args, s, &log);
+                    if (rc > 0) {
+                        check_fastopen(args, s->socket);
                         s->tcp.socks5 = SOCKS5_CONNECTED;
+                        log_android(ANDROID_LOG_DEBUG, "%s HTTP connected", log_session(&log));
+                    } else if (rc < 0) {
+                        s->tcp.socks5 = 0;
+                        reset_connect(args, s);
+                    }
                 }
             } else {
             if (ev->events & EPOLLIN) {
@@ -321,15 +710,19 @@ void check_tcp_socket(const struct arguments *args,
                     ssize_t bytes = recv(s->socket, buffer, sizeof(buffer), 0);
                 if (bytes < 0) {
                     log_android(ANDROID_LOG_ERROR, "%s recv SOCKS5 error %d: %s",
-                                session, errno, strerror(errno));
+                                log_session(&log), errno, strerror(errno));
                     write_rst(args, &s->tcp);
                 } else {
-                        char *h = hex(buffer, (const size_t) bytes);
-                        log_android(ANDROID_LOG_INFO, "%s recv SOCKS5 %s", session, h);
-                        ng_free(h, __FILE__, __LINE__);
+                        char h[HEX_LOG_MAX];
+                        log_android(ANDROID_LOG_INFO, "%s recv SOCKS5 %s",
+                                    log_session(&log),
+                                    hex(buffer, (const size_t) bytes, h, sizeof(h)));
 
                         if (s->tcp.socks5 == SOCKS5_HELLO &&
                             bytes == 2 && buffer[0] == 5) {
+                            if (buffer[1] == 0 || buffer[1] == 2)
+                                __atomic_store_n(&socks5_method, buffer[1], __ATOMIC_RELAXED);
+                            check_fastopen(args, s->socket);
                             if (buffer[1] == 0)
                                 s->tcp.socks5 = SOCKS5_CONNECT;
                             else if (buffer[1] == 2)
@@ -337,7 +730,7 @@ void check_tcp_socket(const struct arguments *args,
                             else {
                                 s->tcp.socks5 = 0;
                                 log_android(ANDROID_LOG_ERROR, "%s SOCKS5 auth %d not supported",
-                                            session, buffer[1]);
+                                            log_session(&log), buffer[1]);
                             write_rst(args, &s->tcp);
                         }
 
@@ -346,42 +739,35 @@ void check_tcp_socket(const struct arguments *args,
                                    (buffer[0] == 1 || buffer[0] == 5)) {
                             if (buffer[1] == 0) {
                                 s->tcp.socks5 = SOCKS5_CONNECT;
-                                log_android(ANDROID_LOG_DEBUG, "%s SOCKS5 auth OK", session);
+                                log_android(ANDROID_LOG_DEBUG, "%s SOCKS5 auth OK",
+                                            log_session(&log));
                     } else {
                                 s->tcp.socks5 = 0;
                                 log_android(ANDROID_LOG_ERROR, "%s SOCKS5 auth error %d",
-                                            session, buffer[1]);
+                                            log_session(&log), buffer[1]);
                         write_rst(args, &s->tcp);
                     }
 
-                        } else if (s->tcp.socks5 == SOCKS5_CONNECT &&
-                                   bytes == 6 + (s->tcp.version == 4 ? 4 : 16) &&
-                                   buffer[0] == 5) {
+                        } else if (s->tcp.socks5 == SOCKS5_CONNECT && buffer[0] == 5 &&
+                                   (bytes == 6 + (s->tcp.version == 4 ? 4 : 16) ||
+                                    (bytes >= 2 && buffer[1] != 0))) {
+                            // Failure replies may bind any address type
                             if (buffer[1] == 0) {
                                 s->tcp.socks5 = SOCKS5_CONNECTED;
-                                log_android(ANDROID_LOG_DEBUG, "%s SOCKS5 connected", session);
+                                log_android(ANDROID_LOG_DEBUG, "%s SOCKS5 connected",
+                                            log_session(&log));
                             } else {
                                 s->tcp.socks5 = 0;
                                 log_android(ANDROID_LOG_ERROR, "%s SOCKS5 connect error %d",
-                                            session, buffer[1]);
-                                write_rst(args, &s->tcp);
-                                /*
-                                    0x00 = request granted
-                                    0x01 = general failure
-                                    0x02 = connection not allowed by ruleset
-                                    0x03 = network unreachable
-                                    0x04 = host unreachable
-                                    0x05 = connection refused by destination host
-                                    0x06 = TTL expired
-                                    0x07 = command not supported / protocol error
-                                    0x08 = address type not supported
-                                 */
+                                            log_session(&log), buffer[1]);
+                                s->tcp.error = (int16_t) get_socks5_error(buffer[1]);
+                                reset_connect(args, s);
                 }
 
             } else {
                             s->tcp.socks5 = 0;
                             log_android(ANDROID_LOG_ERROR, "%s recv SOCKS5 state %d",
-                                        session, s->tcp.socks5);
+                                        log_session(&log), s->tcp.socks5);
                             write_rst(args, &s->tcp);
                         }
                     }
@@ -390,75 +776,66 @@ void check_tcp_socket(const struct arguments *args,
 
             if (s->tcp.socks5 == SOCKS5_HELLO) {
                 uint8_t buffer[4] = {5, 2, 0, 2};
-                char *h = hex(buffer, sizeof(buffer));
+                char h[HEX_LOG_MAX];
                 log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 hello: %s",
-                            session, h);
-                ng_free(h, __FILE__, __LINE__);
+                            log_session(&log), hex(buffer, sizeof(buffer), h, sizeof(h)));
                 ssize_t sent = send(s->socket, buffer, sizeof(buffer), MSG_NOSIGNAL);
-                if (sent < 0) {
+                if (sent < 0 && errno == EINPROGRESS) {
+                    // TCP Fast Open without cookie, send again when connected
+                    log_android(ANDROID_LOG_DEBUG, "%s SOCKS5 hello after connect",
+                                log_session(&log));
+                    s->tcp.socks5 = SOCKS5_NONE;
+                } else if (sent < 0) {
                     log_android(ANDROID_LOG_ERROR, "%s send SOCKS5 hello error %d: %s",
-                                session, errno, strerror(errno));
+                                log_session(&log), errno, strerror(errno));
                     write_rst(args, &s->tcp);
                 }
 
             } else if (s->tcp.socks5 == SOCKS5_AUTH) {
-                uint8_t ulen = strlen(socks5_username);
-                uint8_t plen = strlen(socks5_password);
                 uint8_t buffer[512];
-                *(buffer + 0) = 1; // Version
-                *(buffer + 1) = ulen;
-                memcpy(buffer + 2, socks5_username, ulen);
-                *(buffer + 2 + ulen) = plen;
-                memcpy(buffer + 2 + ulen + 1, socks5_password, plen);
-
-                size_t len = 2 + ulen + 1 + plen;
+                size_t len = get_socks5_auth(buffer);
 
-                char *h = hex(buffer, len);
+                char h[HEX_LOG_MAX];
                 log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 auth: %s",
-                            session, h);
-                ng_free(h, __FILE__, __LINE__);
+                            log_session(&log), hex(buffer, len, h, sizeof(h)));
                 ssize_t sent = send(s->socket, buffer, len, MSG_NOSIGNAL);
                 if (sent < 0) {
                     log_android(ANDROID_LOG_ERROR,
                                 "%s send SOCKS5 connect error %d: %s",
-                                session, errno, strerror(errno));
+                                log_session(&log), errno, strerror(errno));
                     write_rst(args, &s->tcp);
                 }
 
             } else if (s->tcp.socks5 == SOCKS5_CONNECT) {
                 uint8_t buffer[22];
-                *(buffer + 0) = 5; // version
-                *(buffer + 1) = 1; // TCP/IP stream connection
-                *(buffer + 2) = 0; // reserved
-                *(buffer + 3) = (uint8_t) (s->tcp.version == 4 ? 1 : 4);
-                if (s->tcp.version == 4) {
-                    memcpy(buffer + 4, &s->tcp.daddr.ip4, 4);
-                    *((__be16 *) (buffer + 4 + 4)) = s->tcp.dest;
-                } else {
-                    memcpy(buffer + 4, &s->tcp.daddr.ip6, 16);
-                    *((__be16 *) (buffer + 4 + 16)) = s->tcp.dest;
-                }
-
-                size_t len = (s->tcp.version == 4 ? 10 : 22);
+                size_t len = get_socks5_connect(&s->tcp, buffer);
 
-                char *h = hex(buffer, len);
+                char h[HEX_LOG_MAX];
                 log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 connect: %s",
-                            session, h);
-                ng_free(h, __FILE__, __LINE__);
+                            log_session(&log), hex(buffer, len, h, sizeof(h)));
                 ssize_t sent = send(s->socket, buffer, len, MSG_NOSIGNAL);
                 if (sent < 0) {
                     log_android(ANDROID_LOG_ERROR,
                                 "%s send SOCKS5 connect error %d: %s",
-                                session, errno, strerror(errno));
+                                log_session(&log), errno, strerror(errno));
                     write_rst(args, &s->tcp);
                 }
 
             } else if (s->tcp.socks5 == SOCKS5_CONNECTED) {
-                s->tcp.remote_seq++; // remote SYN
-                if (write_syn_ack(args, &s->tcp) >= 0) {
-                    s->tcp.time = time(NULL);
-                    s->tcp.local_seq++; // local SYN
-                    s->tcp.state = TCP_SYN_RECV;
+                // With TCP Fast Open only a reply shows that the proxy is reachable
+                report_upstream(s->tcp.upstream, 1);
+                if (s->tcp.early) {
+                    // Forward the data of the app buffered meanwhile
+                    s->tcp.early = 0;
+                    log_android(ANDROID_LOG_DEBUG, "%s proxy connected after SYN-ACK queued %u",
+                                log_session(&log), s->tcp.forward.queued);
+                } else {
+                    s->tcp.remote_seq++; // remote SYN
+                    if (write_syn_ack(args, &s->tcp) >= 0) {
+                        s->tcp.time = args->shard->wheel.now;
+                        s->tcp.local_seq++; // local SYN
+                        s->tcp.state = TCP_SYN_RECV;
+                    }
                 }
             }
         } else {
@@ -467,90 +844,60 @@ void check_tcp_socket(const struct arguments *args,
             int fwd = 0;
             if (ev->events & EPOLLOUT) {
                 // Forward data
-                uint32_t buffer_size = get_receive_buffer(s);
-                while (s->tcp.forward != NULL &&
-                       s->tcp.forward->seq == s->tcp.remote_seq &&
-                       s->tcp.forward->len - s->tcp.forward->sent < buffer_size) {
-                    log_android(ANDROID_LOG_DEBUG, "%s fwd %u...%u sent %u",
-                                session,
-                                s->tcp.forward->seq - s->tcp.remote_start,
-                                s->tcp.forward->seq + s->tcp.forward->len - s->tcp.remote_start,
-                                s->tcp.forward->sent);
-
-                    uint8_t *data = s->tcp.forward->data + s->tcp.forward->sent;
-                    size_t len = s->tcp.forward->len - s->tcp.forward->sent;
-                    size_t newlen = len;
-                    uint8_t *new_data = 0;
-                    ssize_t sent = send(s->socket,
-                                        s->tcp.forward->data + s->tcp.forward->sent,
-                                        s->tcp.forward->len - s->tcp.forward->sent,
-                                        (unsigned int) (MSG_NOSIGNAL | (s->tcp.forward->psh
-                                                                        ? 0
-                                                                        : MSG_MORE)));
-                    if (sent > len) {
-                        sent = len;
-                    }
-
+                uint32_t buffer_size = get_receive_buffer(args, s);
+                if (s->tcp.forward.len && buffer_size > 0) {
+                    log_android(ANDROID_LOG_DEBUG, "%s fwd %u...%u",
+                                log_session(&log),
+                                s->tcp.forward.seq - s->tcp.remote_start,
+                                s->tcp.forward.seq + s->tcp.forward.len - s->tcp.remote_start);
+
+                    uint32_t len = s->tcp.forward.len;
+                    ssize_t sent = (s->tcp.mux != NULL
+                                    ? send_mux(args, s, buffer_size)
+                                    : send_ring(&s->tcp.forward, s->socket, buffer_size));
                     if (sent < 0) {
                         log_android(ANDROID_LOG_ERROR, "%s send error %d: %s",
-                                    session, errno, strerror(errno));
-                        if (errno == EINTR || errno == EAGAIN) {
-                            // Retry later
-                            break;
-                        } else {
+                                    log_session(&log), errno, strerror(errno));
+                        if (errno != EINTR && errno != EAGAIN)
                             write_rst(args, &s->tcp);
-                            break;
-                        }
-                    } else {
+                    } else if (sent > 0) {
                         fwd = 1;
-                        buffer_size -= sent;
                         s->tcp.sent += sent;
-                        s->tcp.forward->sent += sent;
+                        s->tcp.unsent += sent;
+                        s->tcp.remote_seq = s->tcp.forward.seq;
 
-                        if (s->tcp.forward->len == s->tcp.forward->sent) {
-                        s->tcp.remote_seq = s->tcp.forward->seq + s->tcp.forward->sent;
-
-                            struct segment *p = s->tcp.forward;
-                            s->tcp.forward = s->tcp.forward->next;
-                            ng_free(p->data, __FILE__, __LINE__);
-                            ng_free(p, __FILE__, __LINE__);
-                        } else {
+                        if (sent < len)
                             log_android(ANDROID_LOG_WARN,
                                         "%s partial send %u/%u",
-                                        session, s->tcp.forward->sent, s->tcp.forward->len);
-                            break;
-                        }
+                                        log_session(&log), (uint32_t) sent, len);
                     }
                 }
 
                 // Log data buffered
-                struct segment *seg = s->tcp.forward;
-                while (seg != NULL) {
-                    log_android(ANDROID_LOG_WARN, "%s queued %u...%u sent %u",
-                                session,
-                                seg->seq - s->tcp.remote_start,
-                                seg->seq + seg->len - s->tcp.remote_start,
-                                seg->sent);
-                    seg = seg->next;
-                }
+                struct tcp_ring *ring = &s->tcp.forward;
+                for (int i = 0; i < ring->ranges; i++)
+                    log_android(ANDROID_LOG_WARN, "%s queued %u...%u",
+                                log_session(&log),
+                                ring->range[i].start - s->tcp.remote_start,
+                                ring->range[i].end - s->tcp.remote_start);
             }
 
             // Get receive window
-            uint32_t window = get_receive_window(s);
+            uint32_t window = get_receive_window(args, s);
             uint32_t prev = s->tcp.recv_window;
             s->tcp.recv_window = window;
             if ((prev == 0 && window > 0) || (prev > 0 && window == 0))
                 log_android(ANDROID_LOG_VERBOSE, "%s recv window %u > %u",
-                            session, prev, window);
+                            log_session(&log), prev, window);
 
             // Acknowledge forwarded data
             if (fwd || (prev == 0 && window > 0)) {
-                if (fwd && s->tcp.forward == NULL && s->tcp.state == TCP_CLOSE_WAIT) {
-                    log_android(ANDROID_LOG_VERBOSE, "%s confirm FIN", session);
+                if (fwd && s->tcp.forward.queued == 0 && s->tcp.state == TCP_CLOSE_WAIT) {
+                    log_android(ANDROID_LOG_VERBOSE, "%s confirm FIN", log_session(&log));
                     s->tcp.remote_seq++; // remote FIN
                 }
                 if (write_ack(args, &s->tcp) >= 0)
-                    s->tcp.time = time(NULL);
+                    s->tcp.time = args->shard->wheel.now;
             }
 
             if (s->tcp.state == TCP_ESTABLISHED || s->tcp.state == TCP_CLOSE_WAIT) {
@@ -558,26 +905,30 @@ void check_tcp_socket(const struct arguments *args,
                 // Send window can be changed in the mean time
 
                 uint32_t send_window = get_send_window(&s->tcp);
-                if ((ev->events & EPOLLIN) && send_window > 0) {
-                    s->tcp.time = time(NULL);
-
-                    uint32_t buffer_size = (send_window > s->tcp.mss
-                                            ? s->tcp.mss : send_window);
-                    uint8_t *buffer = ng_malloc(buffer_size, "tcp socket");
-                    ssize_t bytes = recv(s->socket, buffer, (size_t) buffer_size, 0);
+                if ((ev->events & EPOLLIN) && send_window > 0 && !is_tun_congested(args)) {
+                    s->tcp.time = args->shard->wheel.now;
+
+                    // Read straight into the payload of the tun packets
+                    struct tun_packet *packet[TCP_READ_SEGMENTS];
+                    struct iovec iov[TCP_READ_SEGMENTS];
+                    size_t total;
+                    int count = alloc_segments(&s->tcp, send_window, packet, iov, &total);
+                    ssize_t bytes = (s->tcp.mux != NULL
+                                     ? recv_mux(args, s, iov, count)
+                                     : readv(s->socket, iov, count));
                     if (bytes < 0) {
                         // Socket error
                         log_android(ANDROID_LOG_ERROR, "%s recv error %d: %s",
-                                    session, errno, strerror(errno));
+                                    log_session(&log), errno, strerror(errno));
 
                         if (errno != EINTR && errno != EAGAIN)
                             write_rst(args, &s->tcp);
                     } else if (bytes == 0) {
-                        log_android(ANDROID_LOG_VERBOSE, "%s recv eof", session);
+                        log_android(ANDROID_LOG_VERBOSE, "%s recv eof", log_session(&log));
 
-                        if (s->tcp.forward == NULL) {
+                        if (s->tcp.forward.queued == 0) {
                             if (write_fin_ack(args, &s->tcp) >= 0) {
-                                log_android(ANDROID_LOG_VERBOSE, "%s FIN sent", session);
+                                log_android(ANDROID_LOG_VERBOSE, "%s FIN sent", log_session(&log));
                                 s->tcp.local_seq++; // local FIN
                             }
 
@@ -586,36 +937,63 @@ void check_tcp_socket(const struct arguments *args,
                             else if (s->tcp.state == TCP_CLOSE_WAIT)
                                 s->tcp.state = TCP_LAST_ACK;
                             else
-                                log_android(ANDROID_LOG_ERROR, "%s invalid close", session);
+                                log_android(ANDROID_LOG_ERROR, "%s invalid close",
+                                            log_session(&log));
                         } else {
                             // There was still data to send
-                            log_android(ANDROID_LOG_ERROR, "%s close with queue", session);
+                            log_android(ANDROID_LOG_ERROR, "%s close with queue",
+                                        log_session(&log));
                             write_rst(args, &s->tcp);
                         }
 
-                        if (close(s->socket))
+                        if (s->tcp.mux != NULL)
+                            close_mux_stream(args, s);
+                        else if (close(s->socket))
                             log_android(ANDROID_LOG_ERROR, "%s close error %d: %s",
-                                        session, errno, strerror(errno));
+                                        log_session(&log), errno, strerror(errno));
                         s->socket = -1;
 
                     } else {
                         // Socket read data
-                        log_android(ANDROID_LOG_DEBUG, "%s recv bytes %d", session, bytes);
+                        log_android(ANDROID_LOG_DEBUG, "%s recv bytes %d", log_session(&log),
+                                    bytes);
                         s->tcp.received += bytes;
 
                         // Process DNS response
-                        if (ntohs(s->tcp.dest) == 53 && bytes > 2) {
-                            ssize_t dlen = bytes - 2;
-                            parse_dns_response(args, s, buffer + 2, (size_t *) &dlen);
+                        size_t first = ((size_t) bytes < iov[0].iov_len
+                                        ? (size_t) bytes : iov[0].iov_len);
+                        if (ntohs(s->tcp.dest) == 53 && first > 2) {
+                            ssize_t dlen = first - 2;
+                            parse_dns_response(args, s, (uint8_t *) iov[0].iov_base + 2,
+                                               (size_t *) &dlen);
                         }
 
                         // Forward to tun
-                        if (write_data(args, &s->tcp, buffer, (size_t) bytes) >= 0) {
-                            s->tcp.local_seq += bytes;
+                        size_t left = (size_t) bytes;
+                        for (int i = 0; i < count && left > 0; i++) {
+                            size_t seglen = (left < iov[i].iov_len ? left : iov[i].iov_len);
+                            left -= seglen;
+                            if (write_segment(args, &s->tcp, packet[i], seglen) < 0) {
+                                packet[i] = NULL;
+                                break;
+                            }
+                            packet[i] = NULL;
+                            s->tcp.local_seq += seglen;
                             s->tcp.unconfirmed++;
-                    	}
+                        }
+
+                        // Read more next time if all segments were filled, less if half were not
+                        if ((size_t) bytes == total) {
+                            if (s->tcp.segments < TCP_READ_SEGMENTS)
+                                s->tcp.segments *= 2;
+                        } else if ((size_t) bytes <= total / 2 && s->tcp.segments > 1)
+                            s->tcp.segments /= 2;
                     }
-                    ng_free(buffer, __FILE__, __LINE__);
+
+                    // Release unused segments
+                    for (int i = 0; i < count; i++)
+                        if (packet[i] != NULL)
+                            ng_pool_free(packet[i], __FILE__, __LINE__);
                 }
             }
         }
@@ -623,13 +1001,14 @@ void check_tcp_socket(const struct arguments *args,
 
     if (s->tcp.state != oldstate || s->tcp.local_seq != oldlocal ||
         s->tcp.remote_seq != oldremote)
-        log_android(ANDROID_LOG_DEBUG, "%s new state", session);
+        log_android(ANDROID_LOG_DEBUG, "%s new state", log_session(&log));
 }
 
 jboolean handle_tcp(const struct arguments *args,
                     const uint8_t *pkt, size_t length,
                     const uint8_t *payload,
                     int uid, int allowed, struct allowed *redirect,
+                    struct ng_session *cur,
                     const int epoll_fd) {
     // Get headers
     const uint8_t version = (*pkt) >> 4;
@@ -641,55 +1020,10 @@ jboolean handle_tcp(const struct arguments *args,
     const uint8_t *data = payload + sizeof(struct tcphdr) + tcpoptlen;
     const uint16_t datalen = (const uint16_t) (length - (data - pkt));
 
-    // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_TCP &&
-             cur->tcp.version == version &&
-             cur->tcp.source == tcphdr->source && cur->tcp.dest == tcphdr->dest &&
-             (version == 4 ? cur->tcp.saddr.ip4 == ip4->saddr &&
-                             cur->tcp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
-
     // Prepare logging
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
-    }
-
-    char flags[10];
-    int flen = 0;
-    if (tcphdr->syn)
-        flags[flen++] = 'S';
-    if (tcphdr->ack)
-        flags[flen++] = 'A';
-    if (tcphdr->psh)
-        flags[flen++] = 'P';
-    if (tcphdr->fin)
-        flags[flen++] = 'F';
-    if (tcphdr->rst)
-        flags[flen++] = 'R';
-    if (tcphdr->urg)
-        flags[flen++] = 'U';
-    flags[flen] = 0;
-
-    char packet[250];
-    sprintf(packet,
-            "TCP %s %s/%u > %s/%u seq %u ack %u data %u win %u uid %d",
-            flags,
-            source, ntohs(tcphdr->source),
-            dest, ntohs(tcphdr->dest),
-            ntohl(tcphdr->seq) - (cur == NULL ? 0 : cur->tcp.remote_start),
-            tcphdr->ack ? ntohl(tcphdr->ack_seq) - (cur == NULL ? 0 : cur->tcp.local_start) : 0,
-            datalen, ntohs(tcphdr->window), uid);
-    log_android(tcphdr->urg ? ANDROID_LOG_WARN : ANDROID_LOG_DEBUG, packet);
+    struct tcp_log log;
+    init_tcp_log(&log, cur == NULL ? NULL : &cur->tcp, pkt, payload, datalen, uid);
+    log_android(tcphdr->urg ? ANDROID_LOG_WARN : ANDROID_LOG_DEBUG, "%s", log_packet(&log));
 
     // Drop URG data
     if (tcphdr->urg)
@@ -697,11 +1031,44 @@ jboolean handle_tcp(const struct arguments *args,
 
     // Check session
     if (cur == NULL) {
-        if (tcphdr->syn) {
+        // A destination which could not be reached just before fails locally
+        int negative = -1;
+        if (tcphdr->syn && allowed)
+            negative = get_negative(args, version,
+                                    version == 4 ? (const void *) &ip4->daddr : &ip6->ip6_dst,
+                                    tcphdr->dest);
+
+        if (negative >= 0) {
+            log_android(ANDROID_LOG_INFO, "%s unreachable error %d", log_packet(&log), negative);
+
+            struct tcp_session syn;
+            memset(&syn, 0, sizeof(struct tcp_session));
+            syn.version = version;
+            syn.state = TCP_LISTEN;
+            syn.remote_seq = ntohl(tcphdr->seq);
+            syn.local_seq = 0;
+
+            if (version == 4) {
+                syn.saddr.ip4 = (__be32) ip4->saddr;
+                syn.daddr.ip4 = (__be32) ip4->daddr;
+            } else {
+                memcpy(&syn.saddr.ip6, &ip6->ip6_src, 16);
+                memcpy(&syn.daddr.ip6, &ip6->ip6_dst, 16);
+            }
+
+            syn.source = tcphdr->source;
+            syn.dest = tcphdr->dest;
+
+            if (write_unreachable(args, &syn, negative) < 0)
+                write_rst(args, &syn);
+            return 1;
+
+        } else if (tcphdr->syn) {
             // Decode options
             // http://www.iana.org/assignments/tcp-parameters/tcp-parameters.xhtml#tcp-parameters-1
             uint16_t mss = get_default_mss(version);
             uint8_t ws = 0;
+            int scaling = 0;
             int optlen = tcpoptlen;
             uint8_t *options = (uint8_t *) tcpoptions;
             while (optlen > 0) {
@@ -713,8 +1080,10 @@ jboolean handle_tcp(const struct arguments *args,
                 if (kind == 2 && len == 4)
                     mss = ntohs(*((uint16_t *) (options + 2)));
 
-                else if (kind == 3 && len == 3)
+                else if (kind == 3 && len == 3) {
                     ws = *(options + 2);
+                    scaling = 1;
+                }
 
                 if (kind == 1) {
                     optlen--;
@@ -726,19 +1095,23 @@ jboolean handle_tcp(const struct arguments *args,
             }
 
             log_android(ANDROID_LOG_DEBUG, "%s new session mss %u ws %u window %u",
-                        packet, mss, ws, ntohs(tcphdr->window) << ws);
+                        log_packet(&log), mss, ws, ntohs(tcphdr->window));
 
             // Register session
             struct ng_session *s = ng_malloc(sizeof(struct ng_session), "tcp session");
             s->protocol = IPPROTO_TCP;
 
-            s->tcp.time = time(NULL);
+            s->tcp.time = args->shard->wheel.now;
             s->tcp.uid = uid;
             s->tcp.version = version;
             s->tcp.mss = mss;
-            s->tcp.recv_scale = ws;
-            s->tcp.send_scale = ws;
-            s->tcp.send_window = ((uint32_t) ntohs(tcphdr->window)) << s->tcp.send_scale;
+            // Scaling is used only if both sides send the option, the shift counts are independent
+            // https://tools.ietf.org/html/rfc7323#section-2
+            s->tcp.scaling = (uint8_t) scaling;
+            s->tcp.recv_scale = (uint8_t) (scaling ? TCP_RECV_SCALE : 0);
+            s->tcp.send_scale = (uint8_t) (scaling ? (ws > 14 ? 14 : ws) : 0);
+            s->tcp.segments = 1;
+            s->tcp.send_window = ntohs(tcphdr->window); // not scaled in a SYN
             s->tcp.unconfirmed = 0;
             s->tcp.remote_seq = ntohl(tcphdr->seq); // ISN remote
             s->tcp.local_seq = (uint32_t) rand(); // ISN local
@@ -748,6 +1121,9 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.last_keep_alive = 0;
             s->tcp.sent = 0;
             s->tcp.received = 0;
+            s->tcp.sndbuf = 0;
+            s->tcp.unsent = 0;
+            s->tcp.checked = 0;
 
             if (version == 4) {
                 s->tcp.saddr.ip4 = (__be32) ip4->saddr;
@@ -761,51 +1137,92 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.dest = tcphdr->dest;
             s->tcp.state = TCP_LISTEN;
             s->tcp.socks5 = SOCKS5_NONE;
-            s->tcp.forward = NULL;
+            s->tcp.early = 0;
+            s->tcp.socks5_received = 0;
+            s->tcp.http_received = 0;
+            s->tcp.http_match = 0;
+            s->tcp.upstream = -1;
+            s->tcp.error = -1;
+            s->tcp.mux = NULL;
+            init_ring(&s->tcp.forward, s->tcp.remote_seq + 1); // remote SYN
             s->next = NULL;
 
             if (datalen) {
-                log_android(ANDROID_LOG_DEBUG, "%s SYN data", packet);
-                s->tcp.forward = ng_malloc(sizeof(struct segment), "syn segment");
-                s->tcp.forward->seq = s->tcp.remote_seq;
-                s->tcp.forward->len = datalen;
-                s->tcp.forward->sent = 0;
-                s->tcp.forward->psh = tcphdr->psh;
-                s->tcp.forward->data = ng_malloc(datalen, "syn segment data");
-                memcpy(s->tcp.forward->data, data, datalen);
-                s->tcp.forward->next = NULL;
+                log_android(ANDROID_LOG_DEBUG, "%s SYN data", log_packet(&log));
+                add_ring(&s->tcp.forward, s->tcp.forward.seq, data, datalen, tcphdr->psh);
             }
 
-            // Open socket
-            s->socket = open_tcp_socket(args, &s->tcp, redirect);
-            if (s->socket < 0) {
+            // Open socket, a warm proxy connection only needs the connect request
+            // A stream over a shared proxy connection has no socket
+            s->socket = -1;
+            if (allowed && redirect == NULL && *socks5_addr && socks5_port && socks5_mux) {
+                // The multiplexing server does not speak SOCKS5, so there is nothing to fall back to
+                if (open_mux_stream(args, s) == NULL) {
+                    log_android(ANDROID_LOG_WARN, "%s no mux stream, resetting", log_packet(&log));
+                    write_rst(args, &s->tcp);
+                    clear_tcp_data(&s->tcp);
+                    ng_free(s, __FILE__, __LINE__);
+                    return 1;
+                }
+            } else if (redirect == NULL) {
+                s->tcp.upstream = (int8_t) select_upstream(args, &s->tcp);
+                s->socket = take_socks5(args, &s->tcp);
+            }
+            s->tcp.waiting = 0;
+            if (s->socket < 0 && s->tcp.mux == NULL)
+                s->socket = open_tcp_socket(args, &s->tcp, redirect);
+            if (s->socket < 0 && s->tcp.mux == NULL && errno == EAGAIN) {
+                // The SYN is held until the address of the proxy name is known
+                log_android(ANDROID_LOG_INFO, "%s waiting for proxy address", log_packet(&log));
+                s->tcp.waiting = 1;
+                args->shard->waiting++;
+            } else if (s->socket < 0 && s->tcp.mux == NULL) {
                 // Remote might retry
+                clear_tcp_data(&s->tcp);
                 ng_free(s, __FILE__, __LINE__);
                 return 1;
-            }
+            } else
+                use_upstream(s->tcp.upstream);
 
-            s->tcp.recv_window = get_receive_window(s);
+            // Buffer the first flight of the app while the proxy connects
+            // A refusal of the proxy resets the connection of the app
+            int pport;
+            if (allowed && redirect == NULL && get_proxy(&pport) != NULL && socks5_early &&
+                !s->tcp.waiting)
+                s->tcp.early = 1;
 
-            log_android(ANDROID_LOG_DEBUG, "TCP socket %d lport %d",
-                        s->socket, get_local_port(s->socket));
+            s->tcp.recv_window = get_receive_window(args, s);
+
+            if (s->socket >= 0)
+                log_android(ANDROID_LOG_DEBUG, "TCP socket %d lport %d",
+                            s->socket, get_local_port(s->socket));
 
             // Monitor events
             memset(&s->ev, 0, sizeof(struct epoll_event));
-            s->ev.events = EPOLLOUT | EPOLLERR;
+            if (s->tcp.socks5 == SOCKS5_NONE)
+                s->ev.events = EPOLLOUT | EPOLLERR | EPOLLET;
+            else
+                s->ev.events = EPOLLIN | EPOLLERR;
             s->ev.data.ptr = s;
-            if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
+            if (s->socket >= 0 && epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
                 log_android(ANDROID_LOG_ERROR, "epoll add tcp error %d: %s",
                             errno, strerror(errno));
 
-            s->next = args->ctx->ng_session;
-            args->ctx->ng_session = s;
+            add_session(args, s);
 
             if (!allowed) {
-                log_android(ANDROID_LOG_WARN, "%s resetting blocked session", packet);
+                log_android(ANDROID_LOG_WARN, "%s resetting blocked session", log_packet(&log));
                 write_rst(args, &s->tcp);
+                update_session(args, s);
+            } else if (s->tcp.early) {
+                s->tcp.remote_seq++; // remote SYN
+                if (write_syn_ack(args, &s->tcp) >= 0) {
+                    s->tcp.local_seq++; // local SYN
+                    s->tcp.state = TCP_SYN_RECV;
+                }
             }
         } else {
-            log_android(ANDROID_LOG_DEBUG, "%s unknown session", packet);
+            log_android(ANDROID_LOG_DEBUG, "%s unknown session", log_packet(&log));
 
             struct tcp_session rst;
             memset(&rst, 0, sizeof(struct tcp_session));
@@ -828,18 +1245,9 @@ jboolean handle_tcp(const struct arguments *args,
             return 1;
         }
     } else {
-        char session[250];
-        sprintf(session,
-                "%s %s loc %u rem %u acked %u",
-                packet,
-                strstate(cur->tcp.state),
-                cur->tcp.local_seq - cur->tcp.local_start,
-                cur->tcp.remote_seq - cur->tcp.remote_start,
-                cur->tcp.acked - cur->tcp.local_start);
-
         // Session found
         if (cur->tcp.state == TCP_CLOSING || cur->tcp.state == TCP_CLOSE) {
-            log_android(ANDROID_LOG_DEBUG, "%s was closed", session);
+            log_android(ANDROID_LOG_DEBUG, "%s was closed", log_session(&log));
             write_rst(args, &cur->tcp);
             return 1;
         } else {
@@ -847,10 +1255,10 @@ jboolean handle_tcp(const struct arguments *args,
             uint32_t oldlocal = cur->tcp.local_seq;
             uint32_t oldremote = cur->tcp.remote_seq;
 
-            log_android(ANDROID_LOG_DEBUG, "%s handling", session);
+            log_android(ANDROID_LOG_DEBUG, "%s handling", log_session(&log));
 
             if (!tcphdr->syn)
-                cur->tcp.time = time(NULL);
+                cur->tcp.time = args->shard->wheel.now;
             cur->tcp.send_window = ((uint32_t) ntohs(tcphdr->window)) << cur->tcp.send_scale;
             cur->tcp.unconfirmed = 0;
 
@@ -858,50 +1266,68 @@ jboolean handle_tcp(const struct arguments *args,
 
             // Queue data to forward
             if (datalen) {
-                if (cur->socket < 0) {
-                    log_android(ANDROID_LOG_WARN, "%s data while local closed", session);
+                if (cur->socket < 0 && cur->tcp.mux == NULL) {
+                    log_android(ANDROID_LOG_WARN, "%s data while local closed", log_session(&log));
                     write_rst(args, &cur->tcp);
                     return 1;
                 }
                 if (cur->tcp.state == TCP_CLOSE_WAIT) {
-                    log_android(ANDROID_LOG_WARN, "%s data while remote closed", session);
+                    log_android(ANDROID_LOG_WARN, "%s data while remote closed", log_session(&log));
                     write_rst(args, &cur->tcp);
                     return 1;
                 }
-                queue_tcp(args, tcphdr, session, &cur->tcp, data, datalen);
+                uint32_t seq = ntohl(tcphdr->seq);
+                int queued = queue_tcp(args, tcphdr, &cur->tcp, data, datalen);
+                if (queued < 0)
+                    log_android(ANDROID_LOG_WARN, "%s no room for %u..%u",
+                                log_session(&log),
+                                seq - cur->tcp.remote_start,
+                                seq + datalen - cur->tcp.remote_start);
+                else if (queued == 0)
+                    log_android(compare_u32(seq, cur->tcp.forward.seq) < 0
+                                ? ANDROID_LOG_WARN : ANDROID_LOG_DEBUG,
+                                "%s already queued or forwarded %u..%u",
+                                log_session(&log),
+                                seq - cur->tcp.remote_start,
+                                seq + datalen - cur->tcp.remote_start);
+                else
+                    log_android(ANDROID_LOG_DEBUG, "%s queuing %u...%u",
+                                log_session(&log),
+                                seq - cur->tcp.remote_start,
+                                seq + datalen - cur->tcp.remote_start);
             }
 
             if (tcphdr->rst /* +ACK */) {
                 // No sequence check
                 // http://tools.ietf.org/html/rfc1122#page-87
-                log_android(ANDROID_LOG_VERBOSE, "%s received reset", session);
+                log_android(ANDROID_LOG_VERBOSE, "%s received reset", log_session(&log));
                 cur->tcp.state = TCP_CLOSING;
                 return 1;
             } else {
                 if (!tcphdr->ack || ntohl(tcphdr->ack_seq) == cur->tcp.local_seq) {
                     if (tcphdr->syn) {
-                        log_android(ANDROID_LOG_DEBUG, "%s repeated SYN", session);
+                        log_android(ANDROID_LOG_DEBUG, "%s repeated SYN", log_session(&log));
                         // The socket is probably not opened yet
 
                     } else if (tcphdr->fin /* +ACK */) {
                         if (cur->tcp.state == TCP_ESTABLISHED) {
-                            log_android(ANDROID_LOG_VERBOSE, "%s FIN received", session);
-                            if (cur->tcp.forward == NULL) {
+                            log_android(ANDROID_LOG_VERBOSE, "%s FIN received", log_session(&log));
+                            if (cur->tcp.forward.queued == 0) {
                                 cur->tcp.remote_seq++; // remote FIN
                                 if (write_ack(args, &cur->tcp) >= 0)
                                     cur->tcp.state = TCP_CLOSE_WAIT;
                             } else
                                 cur->tcp.state = TCP_CLOSE_WAIT;
                         } else if (cur->tcp.state == TCP_CLOSE_WAIT) {
-                            log_android(ANDROID_LOG_VERBOSE, "%s repeated FIN", session);
+                            log_android(ANDROID_LOG_VERBOSE, "%s repeated FIN", log_session(&log));
                             // The socket is probably not closed yet
                         } else if (cur->tcp.state == TCP_FIN_WAIT1) {
-                            log_android(ANDROID_LOG_VERBOSE, "%s last ACK", session);
+                            log_android(ANDROID_LOG_VERBOSE, "%s last ACK", log_session(&log));
                             cur->tcp.remote_seq++; // remote FIN
                             if (write_ack(args, &cur->tcp) >= 0)
                                 cur->tcp.state = TCP_CLOSE;
                         } else {
-                            log_android(ANDROID_LOG_ERROR, "%s invalid FIN", session);
+                            log_android(ANDROID_LOG_ERROR, "%s invalid FIN", log_session(&log));
                             return 1;
                         }
 
@@ -921,45 +1347,46 @@ jboolean handle_tcp(const struct arguments *args,
                         } else if (cur->tcp.state == TCP_FIN_WAIT1) {
                             // Do nothing
                         } else {
-                            log_android(ANDROID_LOG_ERROR, "%s invalid state", session);
+                            log_android(ANDROID_LOG_ERROR, "%s invalid state", log_session(&log));
                             return 1;
                         }
                     } else {
-                        log_android(ANDROID_LOG_ERROR, "%s unknown packet", session);
+                        log_android(ANDROID_LOG_ERROR, "%s unknown packet", log_session(&log));
                         return 1;
                     }
                 } else {
                     uint32_t ack = ntohl(tcphdr->ack_seq);
                     if ((uint32_t) (ack + 1) == cur->tcp.local_seq) {
                         // Keep alive
-                        if (cur->tcp.state == TCP_ESTABLISHED) {
+                        if (cur->tcp.state == TCP_ESTABLISHED && cur->socket >= 0) {
                             int on = 1;
                             if (setsockopt(cur->socket, SOL_SOCKET, SO_KEEPALIVE, &on, sizeof(on)))
                                 log_android(ANDROID_LOG_WARN,
                                             "%s setsockopt SO_KEEPALIVE error %d: %s",
-                                            session, errno, strerror(errno));
+                                            log_session(&log), errno, strerror(errno));
                             else
-                                log_android(ANDROID_LOG_VERBOSE, "%s enabled keep alive", session);
+                                log_android(ANDROID_LOG_VERBOSE, "%s enabled keep alive",
+                                            log_session(&log));
                         } else
-                            log_android(ANDROID_LOG_VERBOSE, "%s keep alive", session);
+                            log_android(ANDROID_LOG_VERBOSE, "%s keep alive", log_session(&log));
 
                     } else if (compare_u32(ack, cur->tcp.local_seq) < 0) {
                         if (compare_u32(ack, cur->tcp.acked) <= 0)
                             log_android(
                                     ack == cur->tcp.acked ? ANDROID_LOG_DEBUG : ANDROID_LOG_WARN,
                                     "%s repeated ACK %u/%u",
-                                    session,
+                                    log_session(&log),
                                     ack - cur->tcp.local_start,
                                     cur->tcp.acked - cur->tcp.local_start);
                         else {
                             log_android(ANDROID_LOG_VERBOSE, "%s previous ACK %u",
-                                        session, ack - cur->tcp.local_seq);
+                                        log_session(&log), ack - cur->tcp.local_seq);
                             cur->tcp.acked = ack;
                         }
 
                         return 1;
                     } else {
-                        log_android(ANDROID_LOG_VERBOSE, "%s future ACK", session);
+                        log_android(ANDROID_LOG_VERBOSE, "%s future ACK", log_session(&log));
                         write_rst(args, &cur->tcp);
                         return 1;
                     }
@@ -970,7 +1397,7 @@ jboolean handle_tcp(const struct arguments *args,
                 cur->tcp.local_seq != oldlocal ||
                 cur->tcp.remote_seq != oldremote)
                 log_android(ANDROID_LOG_DEBUG, "%s > %s loc %u rem %u",
-                            session,
+                            log_session(&log),
                             strstate(cur->tcp.state),
                             cur->tcp.local_seq - cur->tcp.local_start,
                             cur->tcp.remote_seq - cur->tcp.remote_start);
@@ -980,80 +1407,247 @@ jboolean handle_tcp(const struct arguments *args,
     return 1;
 }
 
-void queue_tcp(const struct arguments *args,
-               const struct tcphdr *tcphdr,
-               const char *session, struct tcp_session *cur,
-               const uint8_t *data, uint16_t datalen) {
-    uint32_t seq = ntohl(tcphdr->seq);
-    if (compare_u32(seq, cur->remote_seq) < 0)
-        log_android(ANDROID_LOG_WARN, "%s already forwarded %u..%u",
-                    session,
-                    seq - cur->remote_start, seq + datalen - cur->remote_start);
-    else {
-        struct segment *p = NULL;
-        struct segment *s = cur->forward;
-        while (s != NULL && compare_u32(s->seq, seq) < 0) {
-            p = s;
-            s = s->next;
-        }
+int queue_tcp(const struct arguments *args,
+              const struct tcphdr *tcphdr,
+              struct tcp_session *cur,
+              const uint8_t *data, uint16_t datalen) {
+    return add_ring(&cur->forward, ntohl(tcphdr->seq), data, datalen, tcphdr->psh);
+}
 
-        if (s == NULL || compare_u32(s->seq, seq) > 0) {
-            log_android(ANDROID_LOG_DEBUG, "%s queuing %u...%u",
-                        session,
-                        seq - cur->remote_start, seq + datalen - cur->remote_start);
-            struct segment *n = ng_malloc(sizeof(struct segment), "tcp segment");
-            n->seq = seq;
-            n->len = datalen;
-            n->sent = 0;
-            n->psh = tcphdr->psh;
-            n->data = ng_malloc(datalen, "tcp segment");
-            memcpy(n->data, data, datalen);
-            n->next = s;
-            if (p == NULL)
-                cur->forward = n;
-            else
-                p->next = n;
-        } else if (s != NULL && s->seq == seq) {
-            if (s->len == datalen)
-                log_android(ANDROID_LOG_DEBUG, "%s segment already queued %u..%u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start);
-            else if (s->len < datalen) {
-                log_android(ANDROID_LOG_DEBUG, "%s segment smaller %u..%u > %u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
-                            s->seq + datalen - cur->remote_start);
-                ng_free(s->data, __FILE__, __LINE__);
-                s->len = datalen;
-                s->data = ng_malloc(datalen, "tcp segment smaller");
-                memcpy(s->data, data, datalen);
+// Send ring
+// Data from the app is kept in a ring indexed by sequence number until it is sent to the socket.
+// In order data extends the contiguous part, out of order data is tracked in a small range map,
+// so retransmitted and overlapping segments are simply written over their own bytes.
+
+static void write_ring(uint8_t *data, uint32_t size, uint32_t seq,
+                       const uint8_t *src, uint32_t len) {
+    uint32_t off = seq & (size - 1);
+    uint32_t first = (len < size - off ? len : size - off);
+    memcpy(data + off, src, first);
+    if (len > first)
+        memcpy(data, src + first, len - first);
+}
+
+static int grow_ring(struct tcp_ring *ring, uint32_t need) {
+    uint32_t size = (ring->size ? ring->size : TCP_RING_MIN);
+    while (size < need)
+        size <<= 1;
+    if (size == ring->size)
+        return 0;
+
+    uint8_t *data = ng_malloc(size, "tcp ring");
+    if (data == NULL)
+        return -1;
+
+    if (ring->data != NULL) {
+        // Bytes beyond the last range are not used, so copy the whole span
+        uint32_t span = (ring->ranges
+                         ? ring->range[ring->ranges - 1].end - ring->seq
+                         : ring->len);
+        uint32_t off = ring->seq & (ring->size - 1);
+        uint32_t first = (span < ring->size - off ? span : ring->size - off);
+        write_ring(data, size, ring->seq, ring->data + off, first);
+        write_ring(data, size, ring->seq + first, ring->data, span - first);
+        ng_free(ring->data, __FILE__, __LINE__);
+    }
+
+    ring->data = data;
+    ring->size = size;
+    return 0;
+}
+
+void init_ring(struct tcp_ring *ring, uint32_t seq) {
+    memset(ring, 0, sizeof(struct tcp_ring));
+    ring->seq = seq;
+}
+
+void clear_ring(struct tcp_ring *ring) {
+    if (ring->data != NULL)
+        ng_free(ring->data, __FILE__, __LINE__);
+    init_ring(ring, ring->seq);
+}
+
+int reserve_ring(struct tcp_ring *ring, uint32_t datalen) {
+    // Room to append in order data, which can then be added without failing
+    uint32_t end = ring->len + datalen;
+    if (end > TCP_RING_MAX)
+        return -1;
+    if (end > ring->size && grow_ring(ring, end))
+        return -1;
+    return 0;
+}
+
+int add_ring(struct tcp_ring *ring, uint32_t seq, const uint8_t *data, uint32_t datalen, int psh) {
+    // Returns the number of newly queued bytes or -1 if there is no room
+    uint32_t start = seq - ring->seq;
+    uint32_t end = start + datalen;
+
+    // Skip what was forwarded already
+    if (compare_u32(seq, ring->seq) < 0) {
+        if (compare_u32(seq + datalen, ring->seq) <= 0)
+            return 0;
+        data += ring->seq - seq;
+        start = 0;
+        end = seq + datalen - ring->seq;
+    }
+    if (end > TCP_RING_MAX)
+        return -1;
+
+    // Out of order data needs a free range, unless it touches an existing range
+    if (start > ring->len && ring->ranges == TCP_RING_RANGES) {
+        int touch = 0;
+        for (int i = 0; i < ring->ranges && !touch; i++)
+            touch = (start <= ring->range[i].end - ring->seq &&
+                     end >= ring->range[i].start - ring->seq);
+        if (!touch)
+            return -1;
+    }
+
+    if (end > ring->size && grow_ring(ring, end))
+        return -1;
+
+    write_ring(ring->data, ring->size, ring->seq + start, data, end - start);
+    if (psh)
+        ring->psh = 1;
+
+    uint32_t queued = ring->queued;
+    if (start <= ring->len) {
+        // Extend the contiguous part and absorb the ranges it reaches
+        uint32_t len = (end > ring->len ? end : ring->len);
+        int i = 0;
+        while (i < ring->ranges && ring->range[i].start - ring->seq <= len) {
+            uint32_t rend = ring->range[i].end - ring->seq;
+            if (rend > len)
+                len = rend;
+            i++;
+        }
+        if (i > 0) {
+            ring->ranges -= i;
+            memmove(ring->range, ring->range + i, ring->ranges * sizeof(struct ring_range));
+        }
+        ring->len = len;
+    } else {
+        // Merge into the sorted range map
+        struct ring_range merged[TCP_RING_RANGES + 1];
+        int count = 0;
+        int added = 0;
+        for (int i = 0; i < ring->ranges; i++) {
+            uint32_t rstart = ring->range[i].start - ring->seq;
+            uint32_t rend = ring->range[i].end - ring->seq;
+            if (rend < start)
+                merged[count++] = ring->range[i];
+            else if (rstart > end) {
+                if (!added) {
+                    merged[count].start = ring->seq + start;
+                    merged[count++].end = ring->seq + end;
+                    added = 1;
+                }
+                merged[count++] = ring->range[i];
             } else {
-                log_android(ANDROID_LOG_DEBUG, "%s segment larger %u..%u < %u",
-                            session,
-                            s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
-                            s->seq + datalen - cur->remote_start);
-                ng_free(s->data, __FILE__, __LINE__);
-                s->len = datalen;
-                s->data = ng_malloc(datalen, "tcp segment larger");
-                memcpy(s->data, data, datalen);
+                if (rstart < start)
+                    start = rstart;
+                if (rend > end)
+                    end = rend;
             }
         }
+        if (!added) {
+            merged[count].start = ring->seq + start;
+            merged[count++].end = ring->seq + end;
+        }
+        memcpy(ring->range, merged, count * sizeof(struct ring_range));
+        ring->ranges = (uint8_t) count;
     }
+
+    ring->queued = ring->len;
+    for (int i = 0; i < ring->ranges; i++)
+        ring->queued += ring->range[i].end - ring->range[i].start;
+
+    return ring->queued - queued;
 }
 
-int open_tcp_socket(const struct arguments *args,
-                    const struct tcp_session *cur, const struct allowed *redirect) {
+int get_ring_iov(const struct tcp_ring *ring, uint32_t max, struct iovec *iov) {
+    // Contiguous data from seq, which wraps around at most once
+    uint32_t len = (ring->len < max ? ring->len : max);
+    if (len == 0)
+        return 0;
+
+    uint32_t off = ring->seq & (ring->size - 1);
+    uint32_t first = (len < ring->size - off ? len : ring->size - off);
+
+    iov[0].iov_base = ring->data + off;
+    iov[0].iov_len = first;
+    iov[1].iov_base = ring->data;
+    iov[1].iov_len = len - first;
+    return (len > first ? 2 : 1);
+}
+
+void skip_ring(struct tcp_ring *ring, uint32_t len) {
+    ring->seq += len;
+    ring->len -= len;
+    ring->queued -= len;
+    if (ring->queued == 0)
+        ring->psh = 0;
+}
+
+ssize_t send_ring(struct tcp_ring *ring, int sock, uint32_t max) {
+    struct iovec iov[2];
+    int count = get_ring_iov(ring, max, iov);
+    if (count == 0)
+        return 0;
+    uint32_t len = (uint32_t) (iov[0].iov_len + (count > 1 ? iov[1].iov_len : 0));
+
+    struct msghdr msg;
+    memset(&msg, 0, sizeof(struct msghdr));
+    msg.msg_iov = iov;
+    msg.msg_iovlen = (size_t) count;
+
+    ssize_t sent = sendmsg(sock, &msg,
+                           (unsigned int) (MSG_NOSIGNAL | (ring->psh ? 0 : MSG_MORE)));
+    if (sent <= 0)
+        return sent;
+    if (sent > len)
+        sent = len;
+
+    skip_ring(ring, (uint32_t) sent);
+    return sent;
+}
+
+static int close_failed(int sock) {
+    // Keep the error for the caller
+    int serr = errno;
+    if (close(sock))
+        log_android(ANDROID_LOG_ERROR, "close socket %d error %d: %s",
+                    sock, errno, strerror(errno));
+    errno = serr;
+    return -1;
+}
+
+static int open_socket(const struct arguments *args, const struct tcp_session *cur,
+                       const struct allowed *redirect, int upstream) {
     int sock;
     int version;
+    int pport;
+    const char *paddr = get_proxy(&pport);
+    if (paddr != NULL && redirect == NULL && upstream >= 0)
+        paddr = get_upstream(upstream, &pport);
 
-    int rport = htons(cur->dest);
+    int rport = (cur == NULL ? 0 : htons(cur->dest));
     if (rport != 80 && rport != 443) {
         redirect = NULL;
     }
 
+    // The address of a proxy name was looked up in the background
+    struct sockaddr_storage proxy;
+    if (redirect == NULL && paddr != NULL &&
+        get_proxy_address(upstream, pport, &proxy) == 0) {
+        log_android(ANDROID_LOG_DEBUG, "Proxy %s not looked up yet", paddr);
+        errno = EAGAIN;
+        return -1;
+    }
+
     if (redirect == NULL) {
-        if (*socks5_addr && socks5_port)
-            version = (strstr(socks5_addr, ":") == NULL ? 4 : 6);
+        if (paddr != NULL)
+            version = (proxy.ss_family == AF_INET ? 4 : 6);
         else
             version = cur->version;
     } else
@@ -1067,38 +1661,47 @@ int open_tcp_socket(const struct arguments *args,
 
     // Protect
     if (protect_socket(args, sock) < 0)
-        return -1;
+        return close_failed(sock);
 
     int on = 1;
     if (setsockopt(sock, SOL_TCP, TCP_NODELAY, &on, sizeof(on)) < 0)
         log_android(ANDROID_LOG_ERROR, "setsockopt TCP_NODELAY error %d: %s",
                     errno, strerror(errno));
 
+    // Send the SOCKS5 handshake or HTTP CONNECT request in the SYN
+    // connect returns at once and the first send does the connect
+    // Without a cookie of the proxy the kernel falls back to a plain handshake
+    if (redirect == NULL && paddr != NULL &&
+        __atomic_load_n(&socks5_fastopen, __ATOMIC_RELAXED)) {
+        if (setsockopt(sock, SOL_TCP, TCP_FASTOPEN_CONNECT, &on, sizeof(on)) < 0) {
+            log_android(ANDROID_LOG_WARN, "setsockopt TCP_FASTOPEN_CONNECT error %d: %s",
+                        errno, strerror(errno));
+            if (errno == ENOPROTOOPT || errno == EOPNOTSUPP)
+                __atomic_store_n(&socks5_fastopen, 0, __ATOMIC_RELAXED);
+        } else
+            args->shard->pool.fastopen++;
+    }
+
     // Set non blocking
     int flags = fcntl(sock, F_GETFL, 0);
     if (flags < 0 || fcntl(sock, F_SETFL, flags | O_NONBLOCK) < 0) {
         log_android(ANDROID_LOG_ERROR, "fcntl socket O_NONBLOCK error %d: %s",
                     errno, strerror(errno));
-        return -1;
+        return close_failed(sock);
     }
 
     // Build target address
     struct sockaddr_in addr4;
     struct sockaddr_in6 addr6;
     if (redirect == NULL) {
-        if (*socks5_addr && socks5_port) {
-            log_android(ANDROID_LOG_INFO, "TCP%d SOCKS5 to %s/%u",
-                        version, socks5_addr, socks5_port);
+        if (paddr != NULL) {
+            log_android(ANDROID_LOG_INFO, "TCP%d %s to %s/%u",
+                        version, (*http_proxy_addr ? "HTTP" : "SOCKS5"), paddr, pport);
 
-            if (version == 4) {
-                addr4.sin_family = AF_INET;
-                inet_pton(AF_INET, socks5_addr, &addr4.sin_addr);
-                addr4.sin_port = htons(socks5_port);
-            } else {
-                addr6.sin6_family = AF_INET6;
-                inet_pton(AF_INET6, socks5_addr, &addr6.sin6_addr);
-                addr6.sin6_port = htons(socks5_port);
-            }
+            if (version == 4)
+                memcpy(&addr4, &proxy, sizeof(struct sockaddr_in));
+            else
+                memcpy(&addr6, &proxy, sizeof(struct sockaddr_in6));
         } else {
 	    if (version == 4) {
 	        addr4.sin_family = AF_INET;
@@ -1134,12 +1737,62 @@ int open_tcp_socket(const struct arguments *args,
                                    : sizeof(struct sockaddr_in6)));
     if (err < 0 && errno != EINPROGRESS) {
         log_android(ANDROID_LOG_ERROR, "connect error %d: %s", errno, strerror(errno));
-        return -1;
+        return close_failed(sock);
     }
 
     return sock;
 }
 
+int open_tcp_socket(const struct arguments *args,
+                    const struct tcp_session *cur, const struct allowed *redirect) {
+    // Without session a connection to the SOCKS5 proxy is opened
+    int upstream = -1;
+    int pport;
+    if (redirect == NULL && get_proxy(&pport) != NULL)
+        upstream = (cur == NULL ? select_upstream(args, NULL) : cur->upstream);
+    return open_socket(args, cur, redirect, upstream);
+}
+
+int open_upstream_socket(const struct arguments *args, int upstream) {
+    // A connection to the given proxy of the list, without session
+    return open_socket(args, NULL, NULL, upstream);
+}
+
+void connect_waiting(const struct arguments *args) {
+    // Sessions waiting for the address of a proxy name are tried again when addresses change
+    int generation = __atomic_load_n(&proxy_generation, __ATOMIC_RELAXED);
+    if (args->shard->waiting == 0 || args->shard->generation == generation)
+        return;
+    args->shard->generation = generation;
+
+    struct ng_session *s = args->shard->ng_session;
+    while (s != NULL) {
+        if (s->protocol == IPPROTO_TCP && s->tcp.waiting && s->tcp.state == TCP_LISTEN) {
+            s->socket = open_tcp_socket(args, &s->tcp, NULL);
+            if (s->socket >= 0) {
+                s->tcp.waiting = 0;
+                args->shard->waiting--;
+                use_upstream(s->tcp.upstream);
+                log_android(ANDROID_LOG_DEBUG, "TCP socket %d lport %d after lookup",
+                            s->socket, get_local_port(s->socket));
+
+                memset(&s->ev, 0, sizeof(struct epoll_event));
+                s->ev.events = EPOLLOUT | EPOLLERR | EPOLLET;
+                s->ev.data.ptr = s;
+                if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
+                    log_android(ANDROID_LOG_ERROR, "epoll add tcp error %d: %s",
+                                errno, strerror(errno));
+                update_session(args, s);
+            } else if (errno != EAGAIN) {
+                // Remote might retry
+                s->tcp.state = TCP_CLOSING;
+                update_session(args, s);
+            }
+        }
+        s = s->next;
+    }
+}
+
 int write_syn_ack(const struct arguments *args, struct tcp_session *cur) {
     if (write_tcp(args, cur, NULL, 0, 1, 1, 0, 0) < 0) {
         cur->state = TCP_CLOSING;
@@ -1165,6 +1818,16 @@ int write_data(const struct arguments *args, struct tcp_session *cur,
     return 0;
 }
 
+int write_segment(const struct arguments *args, struct tcp_session *cur,
+                  struct tun_packet *packet, size_t length) {
+    // Data was read into the packet already
+    if (send_tcp(args, cur, packet, length, 0, 1, 0, 0) < 0) {
+        cur->state = TCP_CLOSING;
+        return -1;
+    }
+    return 0;
+}
+
 int write_fin_ack(const struct arguments *args, struct tcp_session *cur) {
     if (write_tcp(args, cur, NULL, 0, 0, 1, 1, 0) < 0) {
         cur->state = TCP_CLOSING;
@@ -1185,27 +1848,34 @@ void write_rst(const struct arguments *args, struct tcp_session *cur) {
         cur->state = TCP_CLOSING;
 }
 
-ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
-                  const uint8_t *data, size_t datalen,
-                  int syn, int ack, int fin, int rst) {
+size_t get_tcp_header_len(const struct tcp_session *cur, int syn) {
+    size_t len = (cur->version == 4 ? sizeof(struct iphdr) : sizeof(struct ip6_hdr)) +
+                 sizeof(struct tcphdr);
+    if (syn)
+        len += (cur->scaling ? 4 + 3 + 1 : 4);
+    return len;
+}
+
+ssize_t send_tcp(const struct arguments *args, const struct tcp_session *cur,
+                 struct tun_packet *packet, size_t datalen,
+                 int syn, int ack, int fin, int rst) {
+    // Data is already in place after the headers
     size_t len;
-    u_int8_t *buffer;
+    u_int8_t *buffer = packet->data;
     struct tcphdr *tcp;
     uint16_t csum;
-    char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
     // Build packet
-    int optlen = (syn ? 4 + 3 + 1 : 0);
+    int optlen = (int) (get_tcp_header_len(cur, syn) - get_tcp_header_len(cur, 0));
     uint8_t *options;
+    uint8_t *data;
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = ng_malloc(len, "tcp write4");
         struct iphdr *ip4 = (struct iphdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct iphdr));
         options = buffer + sizeof(struct iphdr) + sizeof(struct tcphdr);
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen, data, datalen);
+        data = options + optlen;
 
         // Build IP4 header
         memset(ip4, 0, sizeof(struct iphdr));
@@ -1231,12 +1901,10 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
         len = sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = ng_malloc(len, "tcp write 6");
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct ip6_hdr));
         options = buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr);
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen, data, datalen);
+        data = options + optlen;
 
         // Build IP6 header
         memset(ip6, 0, sizeof(struct ip6_hdr));
@@ -1258,7 +1926,6 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ip6_hdr_pseudo));
     }
 
-
     // Build TCP header
     memset(tcp, 0, sizeof(struct tcphdr));
     tcp->source = cur->dest;
@@ -1270,7 +1937,11 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
     tcp->ack = (__u16) ack;
     tcp->fin = (__u16) fin;
     tcp->rst = (__u16) rst;
-    tcp->window = htons(cur->recv_window >> cur->recv_scale);
+    // The window of a SYN is never scaled
+    if (syn)
+        tcp->window = htons(cur->recv_window > 0xFFFF ? 0xFFFF : cur->recv_window);
+    else
+        tcp->window = htons(cur->recv_window >> cur->recv_scale);
 
     if (!tcp->ack)
         tcp->ack_seq = 0;
@@ -1279,13 +1950,16 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
     if (syn) {
         *(options) = 2; // MSS
         *(options + 1) = 4; // total option length
-        *((uint16_t *) (options + 2)) = get_default_mss(cur->version);
+        *((uint16_t *) (options + 2)) = htons(get_default_mss(cur->version));
 
-        *(options + 4) = 3; // window scale
-        *(options + 5) = 3; // total option length
-        *(options + 6) = cur->recv_scale;
+        // Window scale only if the SYN had one
+        if (cur->scaling) {
+            *(options + 4) = 3; // window scale
+            *(options + 5) = 3; // total option length
+            *(options + 6) = cur->recv_scale;
 
-        *(options + 7) = 0; // End, padding
+            *(options + 7) = 0; // End, padding
+        }
     }
 
     // Continue checksum
@@ -1294,13 +1968,6 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
     csum = calc_checksum(csum, data, datalen);
     tcp->check = ~csum;
 
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              cur->version == 4 ? (const void *) &cur->saddr.ip4 : (const void *) &cur->saddr.ip6,
-              source, sizeof(source));
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              cur->version == 4 ? (const void *) &cur->daddr.ip4 : (const void *) &cur->daddr.ip6,
-              dest, sizeof(dest));
-
     // Send packet
     log_android(ANDROID_LOG_DEBUG,
                 "TCP sending%s%s%s%s to tun %s/%u seq %u ack %u data %u",
@@ -1308,32 +1975,30 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                 (tcp->ack ? " ACK" : ""),
                 (tcp->fin ? " FIN" : ""),
                 (tcp->rst ? " RST" : ""),
-                dest, ntohs(tcp->dest),
+                straddr(cur->version, &cur->daddr, dest), ntohs(tcp->dest),
                 ntohl(tcp->seq) - cur->local_start,
                 ntohl(tcp->ack_seq) - cur->remote_start,
                 datalen);
 
-    ssize_t res = write(args->tun, buffer, len);
-
-    // Write pcap record
-    if (res >= 0) {
-        if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
-    } else
-        log_android(ANDROID_LOG_ERROR, "TCP write%s%s%s%s data %d error %d: %s",
-                    (tcp->syn ? " SYN" : ""),
-                    (tcp->ack ? " ACK" : ""),
-                    (tcp->fin ? " FIN" : ""),
-                    (tcp->rst ? " RST" : ""),
-                    datalen,
-                    errno, strerror((errno)));
-
-    ng_free(buffer, __FILE__, __LINE__);
-
-    if (res != len) {
-        log_android(ANDROID_LOG_ERROR, "TCP write %d/%d", res, len);
-        return -1;
-    }
+    ssize_t res = queue_tun(args, packet, len);
+    if (res < 0)
+        log_android(ANDROID_LOG_ERROR, "TCP write%s%s%s%s data %d dropped",
+                    (syn ? " SYN" : ""),
+                    (ack ? " ACK" : ""),
+                    (fin ? " FIN" : ""),
+                    (rst ? " RST" : ""),
+                    datalen);
 
     return res;
 }
+
+ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
+                  const uint8_t *data, size_t datalen,
+                  int syn, int ack, int fin, int rst) {
+    size_t hdrlen = get_tcp_header_len(cur, syn);
+    struct tun_packet *packet = ng_pool_alloc(sizeof(struct tun_packet) + hdrlen + datalen,
+                                              "tcp write");
+    if (datalen)
+        memcpy(packet->data + hdrlen, data, datalen);
+    return send_tcp(args, cur, packet, datalen, syn, ack, fin, rst);
+}
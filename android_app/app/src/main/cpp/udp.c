@@ -19,7 +19,9 @@
 
 #include "netguard.h"
 
-extern FILE *pcap_file;
+extern char socks5_addr[PROXY_NAME_MAX + 1];
+extern int socks5_port;
+extern int socks5_udp;
 
 int get_udp_timeout(const struct udp_session *u, int sessions, int maxsessions) {
     int timeout = (ntohs(u->dest) == 53 ? UDP_TIMEOUT_53 : UDP_TIMEOUT_ANY);
@@ -32,38 +34,35 @@ int get_udp_timeout(const struct udp_session *u, int sessions, int maxsessions)
 
 int check_udp_session(const struct arguments *args, struct ng_session *s,
                       int sessions, int maxsessions) {
-    time_t now = time(NULL);
+    time_t now = args->shard->wheel.now;
 
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
-    if (s->udp.version == 4) {
-        inet_ntop(AF_INET, &s->udp.saddr.ip4, source, sizeof(source));
-        inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &s->udp.saddr.ip6, source, sizeof(source));
-        inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
-    }
 
     // Check session timeout
     int timeout = get_udp_timeout(&s->udp, sessions, maxsessions);
     if (s->udp.state == UDP_ACTIVE && s->udp.time + timeout < now) {
         log_android(ANDROID_LOG_VERBOSE, "UDP idle %d/%d sec state %d from %s/%u to %s/%u",
                     now - s->udp.time, timeout, s->udp.state,
-                    source, ntohs(s->udp.source), dest, ntohs(s->udp.dest));
+                    straddr(s->udp.version, &s->udp.saddr, source), ntohs(s->udp.source),
+                    straddr(s->udp.version, &s->udp.daddr, dest), ntohs(s->udp.dest));
         s->udp.state = UDP_FINISHING;
     }
 
     // Check finished sessions
     if (s->udp.state == UDP_FINISHING) {
         log_android(ANDROID_LOG_VERBOSE, "UDP close from %s/%u to %s/%u socket %d",
-                    source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), s->socket);
+                    straddr(s->udp.version, &s->udp.saddr, source), ntohs(s->udp.source),
+                    straddr(s->udp.version, &s->udp.daddr, dest), ntohs(s->udp.dest), s->socket);
 
-        if (close(s->socket))
+        if (s->udp.channel >= 0)
+            release_udp_channel(args, s);
+        else if (s->socket >= 0 && close(s->socket))
             log_android(ANDROID_LOG_WARN, "UDP close %d error %d: %s",
                         s->socket, errno, strerror(errno));
         s->socket = -1;
 
-        s->udp.time = time(NULL);
+        s->udp.time = args->shard->wheel.now;
         s->udp.state = UDP_CLOSED;
     }
 
@@ -85,7 +84,7 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
 
     // Check socket error
     if (ev->events & EPOLLERR) {
-        s->udp.time = time(NULL);
+        s->udp.time = args->shard->wheel.now;
 
         int serr = 0;
         socklen_t optlen = sizeof(int);
@@ -100,9 +99,9 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
     } else {
         // Check socket read
         if (ev->events & EPOLLIN) {
-            s->udp.time = time(NULL);
+            s->udp.time = args->shard->wheel.now;
 
-            uint8_t *buffer = ng_malloc(s->udp.mss, "udp recv");
+            uint8_t *buffer = ng_pool_alloc(s->udp.mss, "udp recv");
             ssize_t bytes = recv(s->socket, buffer, s->udp.mss, 0);
             if (bytes < 0) {
                 // Socket error
@@ -118,12 +117,9 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
             } else {
                 // Socket read data
                 char dest[INET6_ADDRSTRLEN + 1];
-                if (s->udp.version == 4)
-                    inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-                else
-                    inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
                 log_android(ANDROID_LOG_DEBUG, "UDP recv bytes %d from %s/%u for tun",
-                            bytes, dest, ntohs(s->udp.dest));
+                            bytes, straddr(s->udp.version, &s->udp.daddr, dest),
+                            ntohs(s->udp.dest));
 
                 s->udp.received += bytes;
 
@@ -140,36 +136,11 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
                         s->udp.state = UDP_FINISHING;
                 }
             }
-            ng_free(buffer, __FILE__, __LINE__);
+            ng_pool_free(buffer, __FILE__, __LINE__);
         }
     }
 }
 
-int has_udp_session(const struct arguments *args, const uint8_t *pkt, const uint8_t *payload) {
-    // Get headers
-    const uint8_t version = (*pkt) >> 4;
-    const struct iphdr *ip4 = (struct iphdr *) pkt;
-    const struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
-    const struct udphdr *udphdr = (struct udphdr *) payload;
-
-    if (ntohs(udphdr->dest) == 53 && !args->fwd53)
-        return 1;
-
-    // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_UDP &&
-             cur->udp.version == version &&
-             cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-             (version == 4 ? cur->udp.saddr.ip4 == ip4->saddr &&
-                             cur->udp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
-
-    return (cur != NULL);
-}
-
 void block_udp(const struct arguments *args,
                const uint8_t *pkt, size_t length,
                const uint8_t *payload,
@@ -182,22 +153,18 @@ void block_udp(const struct arguments *args,
 
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
-    }
+    const void *saddr = (version == 4 ? (const void *) &ip4->saddr : &ip6->ip6_src);
+    const void *daddr = (version == 4 ? (const void *) &ip4->daddr : &ip6->ip6_dst);
 
     log_android(ANDROID_LOG_DEBUG, "UDP blocked session from %s/%u to %s/%u",
-                source, ntohs(udphdr->source), dest, ntohs(udphdr->dest));
+                straddr(version, saddr, source), ntohs(udphdr->source),
+                straddr(version, daddr, dest), ntohs(udphdr->dest));
 
     // Register session
     struct ng_session *s = ng_malloc(sizeof(struct ng_session), "udp session block");
     s->protocol = IPPROTO_UDP;
 
-    s->udp.time = time(NULL);
+    s->udp.time = args->shard->wheel.now;
     s->udp.uid = uid;
     s->udp.version = version;
 
@@ -212,16 +179,18 @@ void block_udp(const struct arguments *args,
     s->udp.source = udphdr->source;
     s->udp.dest = udphdr->dest;
     s->udp.state = UDP_BLOCKED;
+    s->udp.channel = -1;
+    s->udp.channel_next = NULL;
     s->socket = -1;
 
-    s->next = args->ctx->ng_session;
-    args->ctx->ng_session = s;
+    add_session(args, s);
 }
 
 jboolean handle_udp(const struct arguments *args,
                     const uint8_t *pkt, size_t length,
                     const uint8_t *payload,
                     int uid, struct allowed *redirect,
+                    struct ng_session *cur,
                     const int epoll_fd) {
     // Get headers
     const uint8_t version = (*pkt) >> 4;
@@ -231,44 +200,29 @@ jboolean handle_udp(const struct arguments *args,
     const uint8_t *data = payload + sizeof(struct udphdr);
     const size_t datalen = length - (data - pkt);
 
-    // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_UDP &&
-             cur->udp.version == version &&
-             cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-             (version == 4 ? cur->udp.saddr.ip4 == ip4->saddr &&
-                             cur->udp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
-
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
-    }
+    const void *saddr = (version == 4 ? (const void *) &ip4->saddr : &ip6->ip6_src);
+    const void *daddr = (version == 4 ? (const void *) &ip4->daddr : &ip6->ip6_dst);
 
     if (cur != NULL && cur->udp.state != UDP_ACTIVE) {
         log_android(ANDROID_LOG_INFO, "UDP ignore session from %s/%u to %s/%u state %d",
-                    source, ntohs(udphdr->source), dest, ntohs(udphdr->dest), cur->udp.state);
+                    straddr(version, saddr, source), ntohs(udphdr->source),
+                    straddr(version, daddr, dest), ntohs(udphdr->dest), cur->udp.state);
         return 0;
     }
 
     // Create new session if needed
     if (cur == NULL) {
         log_android(ANDROID_LOG_INFO, "UDP new session from %s/%u to %s/%u",
-                    source, ntohs(udphdr->source), dest, ntohs(udphdr->dest));
+                    straddr(version, saddr, source), ntohs(udphdr->source),
+                    straddr(version, daddr, dest), ntohs(udphdr->dest));
 
         // Register session
         struct ng_session *s = ng_malloc(sizeof(struct ng_session), "udp session");
         s->protocol = IPPROTO_UDP;
 
-        s->udp.time = time(NULL);
+        s->udp.time = args->shard->wheel.now;
         s->udp.uid = uid;
         s->udp.version = version;
 
@@ -293,26 +247,49 @@ jboolean handle_udp(const struct arguments *args,
         s->udp.source = udphdr->source;
         s->udp.dest = udphdr->dest;
         s->udp.state = UDP_ACTIVE;
+        s->udp.channel = -1;
+        s->udp.channel_next = NULL;
         s->next = NULL;
+        s->socket = -1;
+        memset(&s->ev, 0, sizeof(struct epoll_event));
 
-        // Open UDP socket
-        s->socket = open_udp_socket(args, &s->udp, redirect);
-        if (s->socket < 0) {
-            ng_free(s, __FILE__, __LINE__);
-            return 0;
+        // Share a SOCKS5 UDP association or a socket, broadcasts and DHCP get their own
+        if (redirect == NULL &&
+            ntohs(udphdr->source) != 68 && ntohs(udphdr->dest) != 67 &&
+            !is_udp_broadcast(&s->udp)) {
+            if (*socks5_addr && socks5_port && socks5_udp) {
+                // Never send proxied traffic around the proxy, the app will retry
+                if (open_udp_channel(args, s, 0) < 0) {
+                    args->shard->channels.drops++;
+                    log_android(ANDROID_LOG_WARN, "UDP drop from %s/%u to %s/%u no SOCKS5 association",
+                                straddr(version, saddr, source), ntohs(udphdr->source),
+                                straddr(version, daddr, dest), ntohs(udphdr->dest));
+                    ng_free(s, __FILE__, __LINE__);
+                    return 0;
+                }
+            } else if (args->ctx->udpshared)
+                open_udp_channel(args, s, 1);
         }
 
-        log_android(ANDROID_LOG_DEBUG, "UDP socket %d", s->socket);
+        // Open UDP socket
+        if (s->udp.channel < 0) {
+            s->socket = open_udp_socket(args, &s->udp, redirect);
+            if (s->socket < 0) {
+                ng_free(s, __FILE__, __LINE__);
+                return 0;
+            }
+
+            log_android(ANDROID_LOG_DEBUG, "UDP socket %d", s->socket);
 
-        // Monitor events
-        memset(&s->ev, 0, sizeof(struct epoll_event));
-        s->ev.events = EPOLLIN | EPOLLERR;
-        s->ev.data.ptr = s;
-        if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
-            log_android(ANDROID_LOG_ERROR, "epoll add udp error %d: %s", errno, strerror(errno));
+            // Monitor events
+            s->ev.events = EPOLLIN | EPOLLERR;
+            s->ev.data.ptr = s;
+            if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
+                log_android(ANDROID_LOG_ERROR, "epoll add udp error %d: %s",
+                            errno, strerror(errno));
+        }
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args, s);
 
         cur = s;
     }
@@ -324,9 +301,17 @@ jboolean handle_udp(const struct arguments *args,
     }
 
     log_android(ANDROID_LOG_DEBUG, "UDP forward from tun %s/%u to %s/%u data %d",
-                source, ntohs(udphdr->source), dest, ntohs(udphdr->dest), datalen);
+                straddr(version, saddr, source), ntohs(udphdr->source),
+                straddr(version, daddr, dest), ntohs(udphdr->dest), datalen);
+
+    cur->udp.time = args->shard->wheel.now;
 
-    cur->udp.time = time(NULL);
+    if (cur->udp.channel >= 0) {
+        // Queued for the next batch, dropped like a lost datagram if the queue is full
+        if (send_udp_channel(args, cur, data, datalen) == 0)
+            cur->udp.sent += datalen;
+        return 1;
+    }
 
     int rversion;
     struct sockaddr_in addr4;
@@ -365,6 +350,7 @@ jboolean handle_udp(const struct arguments *args,
         log_android(ANDROID_LOG_ERROR, "UDP sendto error %d: %s", errno, strerror(errno));
         if (errno != EINTR && errno != EAGAIN) {
             cur->udp.state = UDP_FINISHING;
+            update_session(args, cur);
             return 0;
         }
     } else
@@ -373,6 +359,14 @@ jboolean handle_udp(const struct arguments *args,
     return 1;
 }
 
+int is_udp_broadcast(const struct udp_session *cur) {
+    if (cur->version == 4) {
+        uint32_t broadcast4 = INADDR_BROADCAST;
+        return (memcmp(&cur->daddr.ip4, &broadcast4, sizeof(broadcast4)) == 0);
+    } else
+        return (*((uint8_t *) &cur->daddr.ip6) == 0xFF);
+}
+
 int open_udp_socket(const struct arguments *args,
                     const struct udp_session *cur, const struct allowed *redirect) {
     int sock;
@@ -395,8 +389,7 @@ int open_udp_socket(const struct arguments *args,
 
     // Check for broadcast/multicast
     if (cur->version == 4) {
-        uint32_t broadcast4 = INADDR_BROADCAST;
-        if (memcmp(&cur->daddr.ip4, &broadcast4, sizeof(broadcast4)) == 0) {
+        if (is_udp_broadcast(cur)) {
             log_android(ANDROID_LOG_VERBOSE, "UDP4 broadcast");
             int on = 1;
             if (setsockopt(sock, SOL_SOCKET, SO_BROADCAST, &on, sizeof(on)))
@@ -405,7 +398,7 @@ int open_udp_socket(const struct arguments *args,
         }
     } else {
         // http://man7.org/linux/man-pages/man7/ipv6.7.html
-        if (*((uint8_t *) &cur->daddr.ip6) == 0xFF) {
+        if (is_udp_broadcast(cur)) {
             log_android(ANDROID_LOG_VERBOSE, "UDP6 broadcast");
 
             int loop = 1; // true
@@ -436,6 +429,7 @@ int open_udp_socket(const struct arguments *args,
 ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                   uint8_t *data, size_t datalen) {
     size_t len;
+    struct tun_packet *packet;
     u_int8_t *buffer;
     struct udphdr *udp;
     uint16_t csum;
@@ -445,7 +439,8 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
     // Build packet
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write4");
+        packet = ng_pool_alloc(sizeof(struct tun_packet) + len, "udp write4");
+        buffer = packet->data;
         struct iphdr *ip4 = (struct iphdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct iphdr));
         if (datalen)
@@ -475,7 +470,8 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
         len = sizeof(struct ip6_hdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write6");
+        packet = ng_pool_alloc(sizeof(struct tun_packet) + len, "udp write6");
+        buffer = packet->data;
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct ip6_hdr));
         if (datalen)
@@ -513,35 +509,15 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
     csum = calc_checksum(csum, data, datalen);
     udp->check = ~csum;
 
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              (cur->version == 4 ? (const void *) &cur->saddr.ip4 : (const void *) &cur->saddr.ip6),
-              source,
-              sizeof(source));
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              (cur->version == 4 ? (const void *) &cur->daddr.ip4 : (const void *) &cur->daddr.ip6),
-              dest,
-              sizeof(dest));
-
     // Send packet
     log_android(ANDROID_LOG_DEBUG,
                 "UDP sending to tun %d from %s/%u to %s/%u data %u",
-                args->tun, dest, ntohs(cur->dest), source, ntohs(cur->source), len);
-
-    ssize_t res = write(args->tun, buffer, len);
+                args->tun, straddr(cur->version, &cur->daddr, dest), ntohs(cur->dest),
+                straddr(cur->version, &cur->saddr, source), ntohs(cur->source), len);
 
-    // Write PCAP record
-    if (res >= 0) {
-        if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
-    } else
-        log_android(ANDROID_LOG_WARN, "UDP write error %d: %s", errno, strerror(errno));
-
-    ng_free(buffer, __FILE__, __LINE__);
-
-    if (res != len) {
-        log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
-        return -1;
-    }
+    ssize_t res = queue_tun(args, packet, len);
+    if (res < 0)
+        log_android(ANDROID_LOG_WARN, "UDP write data %d dropped", datalen);
 
     return res;
 }
@@ -0,0 +1,581 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// UID lookup before Android 10
+// NETLINK is not available on Android due to SELinux policies :-(
+// http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
+// https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
+// Each /proc/net file is parsed as a whole into an index hashed by local port,
+// so connections opened together are resolved with one read of the file.
+// A miss reloads the file, because the socket might be newer than the index.
+
+#define UID_INDEX_TCP 0
+#define UID_INDEX_TCP6 1
+#define UID_INDEX_UDP 2
+#define UID_INDEX_UDP6 3
+#define UID_INDEX_ICMP 4
+#define UID_INDEX_ICMP6 5
+#define UID_INDEXES 6
+
+static const char *uid_file[UID_INDEXES] = {
+        "/proc/net/tcp", "/proc/net/tcp6",
+        "/proc/net/udp", "/proc/net/udp6",
+        "/proc/net/icmp", "/proc/net/icmp6"
+};
+
+static pthread_mutex_t uid_lock = PTHREAD_MUTEX_INITIALIZER;
+static struct uid_index uid_index[UID_INDEXES];
+
+static const uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+static uint32_t hash_port(uint16_t port, uint32_t mask) {
+    return ((uint32_t) port * 2654435761U >> 16) & mask;
+}
+
+static const char *parse_hex(const char *p, uint32_t *value, int digits) {
+    uint32_t v = 0;
+    for (int i = 0; i < digits; i++) {
+        char c = p[i];
+        if (c >= '0' && c <= '9')
+            v = (v << 4) | (uint32_t) (c - '0');
+        else if (c >= 'A' && c <= 'F')
+            v = (v << 4) | (uint32_t) (c - 'A' + 10);
+        else if (c >= 'a' && c <= 'f')
+            v = (v << 4) | (uint32_t) (c - 'a' + 10);
+        else
+            return NULL;
+    }
+    *value = v;
+    return p + digits;
+}
+
+static const char *parse_address(const char *p, int ws, uint8_t *addr, uint16_t *port) {
+    // Address words are printed in host notation
+    for (int w = 0; w < ws; w++) {
+        uint32_t v;
+        if ((p = parse_hex(p, &v, 8)) == NULL)
+            return NULL;
+        memcpy(addr + w * 4, &v, 4);
+    }
+    if (*p++ != ':')
+        return NULL;
+    uint32_t v;
+    if ((p = parse_hex(p, &v, 4)) == NULL)
+        return NULL;
+    *port = (uint16_t) v;
+    return p;
+}
+
+static const char *skip_fields(const char *p, int count) {
+    while (count-- > 0) {
+        while (*p == ' ')
+            p++;
+        while (*p != ' ' && *p != 0)
+            p++;
+    }
+    while (*p == ' ')
+        p++;
+    return p;
+}
+
+static int parse_line(const char *line, int ws, struct uid_entry *e) {
+    //   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid ...
+    //    0: 0100007F:0035 00000000:0000 0A 00000000:00000000 00:00000000 00000000     0 ...
+    const char *p = skip_fields(line, 1);
+    if ((p = parse_address(p, ws, e->saddr, &e->sport)) == NULL || *p++ != ' ')
+        return 0;
+    if ((p = parse_address(p, ws, e->daddr, &e->dport)) == NULL)
+        return 0;
+
+    p = skip_fields(p, 4);
+    if (*p < '0' || *p > '9')
+        return 0;
+    long uid = 0;
+    while (*p >= '0' && *p <= '9')
+        uid = uid * 10 + (*p++ - '0');
+    e->uid = (jint) uid;
+    return 1;
+}
+
+static int load_index(struct uid_index *index, int ws, long long now) {
+    FILE *fd = fopen(index->fn, "r");
+    if (fd == NULL) {
+        log_android(ANDROID_LOG_ERROR, "fopen %s error %d: %s",
+                    index->fn, errno, strerror(errno));
+        return -1;
+    }
+
+    // Parse all rows
+    char line[250];
+    int l = 0;
+    index->count = 0;
+    while (fgets(line, sizeof(line), fd) != NULL) {
+        if (!l++)
+            continue; // header
+
+        if (index->count == index->size) {
+            index->size = (index->size ? index->size * 2 : UID_INDEX_MIN);
+            index->entry = ng_realloc(index->entry,
+                                      index->size * sizeof(struct uid_entry), "uid index");
+        }
+
+        struct uid_entry *e = &index->entry[index->count];
+        if (parse_line(line, ws, e))
+            index->count++;
+        else
+            log_android(ANDROID_LOG_ERROR, "%s invalid line %d: %s", index->fn, l, line);
+    }
+
+    if (fclose(fd))
+        log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s",
+                    index->fn, errno, strerror(errno));
+
+    // Hash by local port, with at least twice as many buckets as rows
+    uint32_t buckets = UID_INDEX_MIN;
+    while (buckets < (uint32_t) index->count * 2)
+        buckets <<= 1;
+    if (buckets - 1 != index->mask) {
+        index->mask = buckets - 1;
+        index->bucket = ng_realloc(index->bucket, buckets * sizeof(int32_t), "uid buckets");
+    }
+    memset(index->bucket, 0xFF, buckets * sizeof(int32_t));
+
+    for (int i = 0; i < index->count; i++) {
+        uint32_t h = hash_port(index->entry[i].sport, index->mask);
+        index->entry[i].next = index->bucket[h];
+        index->bucket[h] = i;
+    }
+
+    index->time = now;
+
+    log_android(ANDROID_LOG_DEBUG, "%s loaded %d rows", index->fn, index->count);
+    return 0;
+}
+
+static jint find_index(const struct uid_index *index, int ws,
+                       const void *saddr, const uint16_t sport,
+                       const void *daddr, const uint16_t dport) {
+    if (index->bucket == NULL)
+        return -1;
+
+    // Unconnected and listening sockets have zero remote and local addresses
+    size_t alen = (size_t) (ws * 4);
+    int32_t i = index->bucket[hash_port(sport, index->mask)];
+    while (i >= 0) {
+        const struct uid_entry *e = &index->entry[i];
+        if (e->sport == sport &&
+            (e->dport == dport || e->dport == 0) &&
+            (memcmp(e->saddr, saddr, alen) == 0 || memcmp(e->saddr, zero, alen) == 0) &&
+            (memcmp(e->daddr, daddr, alen) == 0 || memcmp(e->daddr, zero, alen) == 0))
+            return e->uid;
+        i = e->next;
+    }
+
+    return -1;
+}
+
+static jint get_uid_sub(const int version, const int protocol,
+                        const void *saddr, const uint16_t sport,
+                        const void *daddr, const uint16_t dport,
+                        long long now, int reload) {
+    int n;
+    if (protocol == IPPROTO_ICMP && version == 4)
+        n = UID_INDEX_ICMP;
+    else if (protocol == IPPROTO_ICMPV6 && version == 6)
+        n = UID_INDEX_ICMP6;
+    else if (protocol == IPPROTO_TCP)
+        n = (version == 4 ? UID_INDEX_TCP : UID_INDEX_TCP6);
+    else if (protocol == IPPROTO_UDP)
+        n = (version == 4 ? UID_INDEX_UDP : UID_INDEX_UDP6);
+    else
+        return -1;
+
+    struct uid_index *index = &uid_index[n];
+    index->fn = uid_file[n];
+    int ws = (version == 4 ? 1 : 4);
+
+    // Socket might be newer than index
+    if (index->time == 0 || now - index->time > UID_MAX_AGE ||
+        (reload && now - index->time >= UID_MIN_RELOAD))
+        if (load_index(index, ws, now))
+            return -2;
+
+    return find_index(index, ws, saddr, sport, daddr, dport);
+}
+
+jint get_uid(const int version, const int protocol,
+             const void *saddr, const uint16_t sport,
+             const void *daddr, const uint16_t dport) {
+    jint uid = -1;
+
+    char source[INET6_ADDRSTRLEN + 1];
+    char dest[INET6_ADDRSTRLEN + 1];
+
+    long long now = get_ms();
+
+    // The index is shared by all shards
+    if (pthread_mutex_lock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    // Check IPv6 table first
+    int8_t saddr128[16];
+    int8_t daddr128[16];
+    if (version == 4) {
+        memset(saddr128, 0, 10);
+        saddr128[10] = (uint8_t) 0xFF;
+        saddr128[11] = (uint8_t) 0xFF;
+        memcpy(saddr128 + 12, saddr, 4);
+
+        memset(daddr128, 0, 10);
+        daddr128[10] = (uint8_t) 0xFF;
+        daddr128[11] = (uint8_t) 0xFF;
+        memcpy(daddr128 + 12, daddr, 4);
+    }
+
+    // Reload only when the socket is in neither index
+    for (int reload = 0; reload < 2 && uid == -1; reload++) {
+        if (version == 4) {
+            uid = get_uid_sub(6, protocol, saddr128, sport, daddr128, dport, now, reload);
+            log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d as inet6",
+                        version, protocol, straddr(version, saddr, source), sport,
+                        straddr(version, daddr, dest), dport, uid);
+        }
+
+        if (uid == -1) {
+            uid = get_uid_sub(version, protocol, saddr, sport, daddr, dport, now, reload);
+            log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d fallback",
+                        version, protocol, straddr(version, saddr, source), sport,
+                        straddr(version, daddr, dest), dport, uid);
+        }
+    }
+
+    if (pthread_mutex_unlock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (uid == -1)
+        log_android(ANDROID_LOG_WARN, "uid v%d p%d %s/%u > %s/%u => not found",
+                    version, protocol, straddr(version, saddr, source), sport,
+                    straddr(version, daddr, dest), dport);
+    else if (uid >= 0)
+        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d",
+                    version, protocol, straddr(version, saddr, source), sport,
+                    straddr(version, daddr, dest), dport, uid);
+
+    return uid;
+}
+
+void clear_uid() {
+    if (pthread_mutex_lock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    for (int n = 0; n < UID_INDEXES; n++) {
+        if (uid_index[n].entry != NULL)
+            ng_free(uid_index[n].entry, __FILE__, __LINE__);
+        if (uid_index[n].bucket != NULL)
+            ng_free(uid_index[n].bucket, __FILE__, __LINE__);
+        memset(&uid_index[n], 0, sizeof(struct uid_index));
+    }
+
+    if (pthread_mutex_unlock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+// Resolver
+// Looking up the uid of a new flow blocks on /proc or on a JNI upcall, so it is done by a
+// background thread. Sessions start with an unknown uid, which is filled in later.
+// Requests which arrive while a batch is being resolved form the next batch,
+// so a burst of new flows needs only one reload of the /proc index.
+// The thread also looks up proxy names with the system resolver, which blocks as well.
+
+extern JavaVM *jvm;
+
+static void deliver_uids(struct context *ctx, struct uid_request *batch) {
+    // Return the results to the shards owning the sessions
+    uint32_t wake = 0;
+    while (batch != NULL) {
+        struct uid_request *next = batch->next;
+        struct shard *shard = &ctx->shard[batch->shard];
+
+        if (pthread_mutex_lock(&shard->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+        batch->next = shard->resolved;
+        shard->resolved = batch;
+
+        if (pthread_mutex_unlock(&shard->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+        wake |= (1U << batch->shard);
+        batch = next;
+    }
+
+    for (int i = 0; i < ctx->workers; i++)
+        if ((wake & (1U << i)) &&
+            write(ctx->shard[i].pipefds[1], "w", 1) < 0 && errno != EAGAIN)
+            log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+}
+
+static void *run_resolver(void *data) {
+    struct context *ctx = (struct context *) data;
+    struct resolver *r = &ctx->resolver;
+    log_android(ANDROID_LOG_INFO, "Resolver start");
+
+    // get_uid_q needs the Java VM
+    struct arguments args;
+    memset(&args, 0, sizeof(struct arguments));
+    args.instance = r->instance;
+    args.ctx = ctx;
+    if ((*jvm)->AttachCurrentThread(jvm, &args.env, NULL) != JNI_OK) {
+        log_android(ANDROID_LOG_ERROR, "AttachCurrentThread failed");
+        args.env = NULL;
+    }
+
+    int upcall = (ctx->sdk > 28 && args.env != NULL && init_uid_q(&args, r) == 0);
+
+    if (pthread_mutex_lock(&r->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    while (!r->stopping) {
+        if (r->queue == NULL && r->names == 0) {
+            pthread_cond_wait(&r->cond, &r->lock);
+            continue;
+        }
+
+        struct uid_request *batch = r->queue;
+        int count = r->queued;
+        uint32_t names = r->names;
+        r->queue = NULL;
+        r->queue_tail = NULL;
+        r->queued = 0;
+        r->names = 0;
+
+        if (pthread_mutex_unlock(&r->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+        if (batch != NULL) {
+            log_android(ANDROID_LOG_DEBUG, "Resolving %d uids", count);
+            if (ctx->sdk <= 28) { // Android 9 Pie
+                for (struct uid_request *q = batch; q != NULL; q = q->next)
+                    q->uid = get_uid(q->version, q->protocol,
+                                     q->saddr, q->sport, q->daddr, q->dport);
+            } else if (upcall)
+                get_uid_q(&args, r, batch);
+            deliver_uids(ctx, batch);
+        }
+
+        for (int i = 0; i < PROXY_NAMES; i++)
+            if (names & (1U << i))
+                lookup_proxy_name(ctx, i);
+
+        if (pthread_mutex_lock(&r->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    }
+
+    if (pthread_mutex_unlock(&r->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (r->buffer != NULL) {
+        (*args.env)->DeleteGlobalRef(args.env, r->buffer);
+        r->buffer = NULL;
+        r->data = NULL;
+    }
+
+    if (args.env != NULL && (*jvm)->DetachCurrentThread(jvm) != JNI_OK)
+        log_android(ANDROID_LOG_ERROR, "DetachCurrentThread failed");
+
+    log_android(ANDROID_LOG_INFO, "Resolver exit");
+    return NULL;
+}
+
+void start_resolver(JNIEnv *env, jobject instance, struct context *ctx) {
+    struct resolver *r = &ctx->resolver;
+    if (pthread_mutex_init(&r->lock, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    if (pthread_cond_init(&r->cond, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_cond_init failed");
+    r->queue = NULL;
+    r->queue_tail = NULL;
+    r->queued = 0;
+    r->names = 0;
+    r->stopping = 0;
+    r->instance = jniGlobalRef(env, instance);
+    r->buffer = NULL;
+    r->data = NULL;
+    r->records = 0;
+
+    int err = pthread_create(&r->thread, NULL, run_resolver, ctx);
+    r->running = (err == 0);
+    if (err)
+        log_android(ANDROID_LOG_ERROR, "pthread_create error %d: %s", err, strerror(err));
+}
+
+void stop_resolver(JNIEnv *env, struct context *ctx) {
+    struct resolver *r = &ctx->resolver;
+
+    if (pthread_mutex_lock(&r->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    r->stopping = 1;
+    pthread_cond_signal(&r->cond);
+    if (pthread_mutex_unlock(&r->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (r->running) {
+        int err = pthread_join(r->thread, NULL);
+        if (err)
+            log_android(ANDROID_LOG_ERROR, "pthread_join error %d: %s", err, strerror(err));
+        r->running = 0;
+    }
+
+    // Drop pending requests
+    struct uid_request *q = r->queue;
+    while (q != NULL) {
+        struct uid_request *next = q->next;
+        ng_free(q, __FILE__, __LINE__);
+        q = next;
+    }
+    r->queue = NULL;
+    r->queue_tail = NULL;
+    r->queued = 0;
+
+    // Drop results not applied by the shards
+    for (int i = 0; i < ctx->workers; i++)
+        clear_uids(&ctx->shard[i]);
+
+    (*env)->DeleteGlobalRef(env, r->instance);
+    r->instance = NULL;
+
+    if (pthread_cond_destroy(&r->cond))
+        log_android(ANDROID_LOG_ERROR, "pthread_cond_destroy failed");
+    if (pthread_mutex_destroy(&r->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+}
+
+void resolve_proxy_name(struct context *ctx, int index) {
+    // Ask the system resolver, the name servers of the network did not answer
+    struct resolver *r = &ctx->resolver;
+    if (!r->running)
+        return;
+
+    if (pthread_mutex_lock(&r->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    r->names |= (1U << index);
+    pthread_cond_signal(&r->cond);
+    if (pthread_mutex_unlock(&r->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+void resolve_uid(const struct arguments *args,
+                 int version, int protocol,
+                 const void *saddr, uint16_t sport,
+                 const void *daddr, uint16_t dport,
+                 uint8_t sprotocol, __be16 skey, __be16 dkey) {
+    struct resolver *r = &args->ctx->resolver;
+    if (!r->running)
+        return;
+
+    struct uid_request *q = ng_malloc(sizeof(struct uid_request), "uid request");
+    q->next = NULL;
+    q->shard = args->shard->index;
+    q->version = version;
+    q->protocol = protocol;
+    memcpy(q->saddr, saddr, (size_t) (version == 4 ? 4 : 16));
+    q->sport = sport;
+    memcpy(q->daddr, daddr, (size_t) (version == 4 ? 4 : 16));
+    q->dport = dport;
+    q->sprotocol = sprotocol;
+    q->skey = skey;
+    q->dkey = dkey;
+    q->uid = -1;
+
+    if (pthread_mutex_lock(&r->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    int queued = r->queued;
+    if (queued < UID_QUEUE_MAX) {
+        if (r->queue_tail == NULL)
+            r->queue = q;
+        else
+            r->queue_tail->next = q;
+        r->queue_tail = q;
+        r->queued++;
+        if (queued == 0)
+            pthread_cond_signal(&r->cond);
+    }
+
+    if (pthread_mutex_unlock(&r->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (queued >= UID_QUEUE_MAX) {
+        log_android(ANDROID_LOG_WARN, "Resolver queue full, uid unknown");
+        ng_free(q, __FILE__, __LINE__);
+    }
+}
+
+static struct uid_request *take_uids(struct shard *shard) {
+    if (pthread_mutex_lock(&shard->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct uid_request *q = shard->resolved;
+    shard->resolved = NULL;
+
+    if (pthread_mutex_unlock(&shard->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return q;
+}
+
+void apply_uids(const struct arguments *args) {
+    char source[INET6_ADDRSTRLEN + 1];
+    char dest[INET6_ADDRSTRLEN + 1];
+
+    struct uid_request *q = take_uids(args->shard);
+    while (q != NULL) {
+        struct uid_request *next = q->next;
+
+        // The session might be gone already
+        struct ng_session *s = find_session(args, q->version, q->sprotocol,
+                                            q->saddr, q->skey, q->daddr, q->dkey);
+        if (s != NULL) {
+            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+                s->icmp.uid = q->uid;
+            else if (s->protocol == IPPROTO_UDP)
+                s->udp.uid = q->uid;
+            else if (s->protocol == IPPROTO_TCP)
+                s->tcp.uid = q->uid;
+
+            log_android(ANDROID_LOG_DEBUG, "Session v%d p%d %s/%u > %s/%u uid %d",
+                        q->version, q->protocol, straddr(q->version, q->saddr, source), q->sport,
+                        straddr(q->version, q->daddr, dest), q->dport, q->uid);
+        }
+
+        ng_free(q, __FILE__, __LINE__);
+        q = next;
+    }
+}
+
+void clear_uids(struct shard *shard) {
+    struct uid_request *q = take_uids(shard);
+    while (q != NULL) {
+        struct uid_request *next = q->next;
+        ng_free(q, __FILE__, __LINE__);
+        q = next;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Upstream proxies
+// Proxy connections are spread over a list of proxies of the configured type.
+// The first shard probes every proxy each UPSTREAM_PROBE seconds: a SOCKS5 greeting
+// or, for HTTP proxies, a connect. The round trip is smoothed like the TCP RTT and
+// failed probes and failed connects of sessions are counted.
+// A proxy with UPSTREAM_FAILURES failures in a row is out of rotation until it works again.
+// A proxy is chosen at random, weighted by the inverse of its round trip, or by rendezvous
+// hashing of the destination, so that a destination sticks to a proxy while it is healthy.
+// https://tools.ietf.org/html/rfc6298
+// https://en.wikipedia.org/wiki/Rendezvous_hashing
+
+extern char http_proxy_addr[PROXY_NAME_MAX + 1];
+extern struct upstream upstreams[UPSTREAM_MAX];
+extern int upstream_count;
+extern int upstream_hash;
+
+static long long get_us() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000LL + ts.tv_nsec / 1000;
+}
+
+void init_upstream_probes(struct upstream_probes *probes, time_t now) {
+    memset(probes, 0, sizeof(struct upstream_probes));
+    for (int i = 0; i < UPSTREAM_MAX; i++) {
+        probes->probe[i].socket = -1;
+        probes->probe[i].time = now;
+    }
+    probes->seed = (uint32_t) get_us() | 1;
+}
+
+int is_upstream_event(const struct arguments *args, const void *ptr) {
+    const struct upstream_probes *probes = &args->shard->probes;
+    return ((const uint8_t *) ptr >= (const uint8_t *) &probes->probe[0] &&
+            (const uint8_t *) ptr < (const uint8_t *) &probes->probe[UPSTREAM_MAX]);
+}
+
+const char *get_upstream(int index, int *port) {
+    *port = upstreams[index].port;
+    return upstreams[index].addr;
+}
+
+static int is_healthy(const struct upstream *u) {
+    return (__atomic_load_n(&u->failures, __ATOMIC_RELAXED) < UPSTREAM_FAILURES);
+}
+
+static uint32_t get_upstream_rtt(const struct upstream *u) {
+    // Round trip with margin like the retransmission timeout, a guess until probed
+    uint32_t srtt = __atomic_load_n(&u->srtt, __ATOMIC_RELAXED);
+    uint32_t rttvar = __atomic_load_n(&u->rttvar, __ATOMIC_RELAXED);
+    return (srtt == 0 ? UPSTREAM_RTT_INITIAL : srtt + 4 * rttvar);
+}
+
+static uint32_t mix(uint32_t h) {
+    // Finalizer of MurmurHash3
+    h ^= h >> 16;
+    h *= 0x85ebca6b;
+    h ^= h >> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >> 16;
+    return h;
+}
+
+int select_upstream(const struct arguments *args, const struct tcp_session *cur) {
+    // Returns the index of a proxy, -1 if there is no list
+    if (upstream_count == 0)
+        return -1;
+
+    int chosen = -1;
+    int healthy = 0;
+    for (int i = 0; i < upstream_count; i++)
+        if (is_healthy(&upstreams[i]))
+            healthy++;
+
+    if (upstream_count == 1)
+        chosen = 0;
+    else if (healthy == 0) {
+        // Without any healthy proxy the one failing least is tried
+        chosen = 0;
+        for (int i = 1; i < upstream_count; i++)
+            if (__atomic_load_n(&upstreams[i].failures, __ATOMIC_RELAXED) <
+                __atomic_load_n(&upstreams[chosen].failures, __ATOMIC_RELAXED))
+                chosen = i;
+    }
+
+    if (chosen < 0 && upstream_hash && cur != NULL) {
+        // Highest random weight of destination and proxy
+        uint32_t key = cur->dest;
+        const uint32_t *addr = (const uint32_t *) &cur->daddr;
+        for (int w = 0; w < (cur->version == 4 ? 1 : 4); w++)
+            key = mix(key ^ addr[w]);
+        uint32_t top = 0;
+        for (int i = 0; i < upstream_count; i++) {
+            uint32_t h = mix(key ^ (uint32_t) (i + 1) * 0x9e3779b9);
+            if (is_healthy(&upstreams[i]) && (chosen < 0 || h > top)) {
+                top = h;
+                chosen = i;
+            }
+        }
+    }
+
+    if (chosen < 0) {
+        // Weighted by the inverse of the round trip
+        uint32_t weight[UPSTREAM_MAX];
+        uint64_t total = 0;
+        for (int i = 0; i < upstream_count; i++) {
+            weight[i] = (is_healthy(&upstreams[i])
+                         ? UPSTREAM_WEIGHT / (get_upstream_rtt(&upstreams[i]) + 1) + 1 : 0);
+            total += weight[i];
+        }
+
+        // xorshift, per shard
+        uint32_t r = args->shard->probes.seed;
+        r ^= r << 13;
+        r ^= r >> 17;
+        r ^= r << 5;
+        args->shard->probes.seed = r;
+
+        uint64_t pick = r % total;
+        for (chosen = 0; chosen < upstream_count - 1; chosen++) {
+            if (pick < weight[chosen])
+                break;
+            pick -= weight[chosen];
+        }
+    }
+
+    return chosen;
+}
+
+void use_upstream(int index) {
+    // Count a session which got a connection to the proxy
+    if (index >= 0)
+        __atomic_add_fetch(&upstreams[index].sessions, 1, __ATOMIC_RELAXED);
+}
+
+void report_upstream(int index, int ok) {
+    // Connect outcome of a session
+    if (index < 0)
+        return;
+    struct upstream *u = &upstreams[index];
+    if (ok) {
+        if (__atomic_load_n(&u->failures, __ATOMIC_RELAXED) > 0) {
+            if (__atomic_exchange_n(&u->failures, 0, __ATOMIC_RELAXED) >= UPSTREAM_FAILURES)
+                log_android(ANDROID_LOG_WARN, "Upstream %s/%d back in rotation",
+                            u->addr, u->port);
+        }
+    } else {
+        if (__atomic_add_fetch(&u->failures, 1, __ATOMIC_RELAXED) == UPSTREAM_FAILURES)
+            log_android(ANDROID_LOG_WARN, "Upstream %s/%d out of rotation",
+                        u->addr, u->port);
+    }
+}
+
+static void update_rtt(struct upstream *u, uint32_t rtt) {
+    // Only the first shard writes the round trip
+    uint32_t srtt = __atomic_load_n(&u->srtt, __ATOMIC_RELAXED);
+    uint32_t rttvar = __atomic_load_n(&u->rttvar, __ATOMIC_RELAXED);
+    if (srtt == 0) {
+        srtt = rtt;
+        rttvar = rtt / 2;
+    } else {
+        uint32_t delta = (srtt > rtt ? srtt - rtt : rtt - srtt);
+        rttvar = (3 * rttvar + delta) / 4;
+        srtt = (7 * srtt + rtt) / 8;
+    }
+    __atomic_store_n(&u->srtt, srtt ? srtt : 1, __ATOMIC_RELAXED);
+    __atomic_store_n(&u->rttvar, rttvar, __ATOMIC_RELAXED);
+}
+
+static void count_probe(const struct arguments *args, struct upstream_probe *p, int ok) {
+    int index = (int) (p - args->shard->probes.probe);
+    struct upstream *u = &upstreams[index];
+    if (ok)
+        u->probes++;
+    else {
+        u->failed++;
+        log_android(ANDROID_LOG_WARN, "Upstream %s/%d probe failed state %d",
+                    u->addr, u->port, p->state);
+    }
+    report_upstream(index, ok);
+}
+
+static void close_probe(const struct arguments *args, struct upstream_probe *p) {
+    if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_DEL, p->socket, NULL))
+        log_android(ANDROID_LOG_ERROR, "epoll del upstream probe error %d: %s",
+                    errno, strerror(errno));
+    if (close(p->socket))
+        log_android(ANDROID_LOG_ERROR, "upstream probe close error %d: %s",
+                    errno, strerror(errno));
+    p->socket = -1;
+    p->time = args->shard->wheel.now + UPSTREAM_PROBE; // next probe
+}
+
+static void finish_probe(const struct arguments *args, struct upstream_probe *p, int ok) {
+    count_probe(args, p, ok);
+    close_probe(args, p);
+}
+
+static void open_probe(const struct arguments *args, struct upstream_probe *p) {
+    int index = (int) (p - args->shard->probes.probe);
+    struct upstream *u = &upstreams[index];
+
+    // A name which was not looked up yet cannot be used either
+    struct sockaddr_storage addr;
+    socklen_t addrlen = get_proxy_address(index, u->port, &addr);
+    p->time = args->shard->wheel.now;
+    if (addrlen == 0) {
+        count_probe(args, p, 0);
+        p->time += UPSTREAM_PROBE;
+        return;
+    }
+
+    int sock = socket(addr.ss_family, SOCK_STREAM, 0);
+    if (sock < 0) {
+        log_android(ANDROID_LOG_ERROR, "upstream probe socket error %d: %s",
+                    errno, strerror(errno));
+        p->time += UPSTREAM_PROBE;
+        return;
+    }
+
+    int on = 1;
+    int flags = fcntl(sock, F_GETFL, 0);
+    memset(&p->ev, 0, sizeof(struct epoll_event));
+    p->ev.events = EPOLLOUT | EPOLLERR;
+    p->ev.data.ptr = p;
+    p->state = SOCKS5_NONE;
+    p->start = get_us();
+    if (protect_socket(args, sock) < 0 ||
+        setsockopt(sock, SOL_TCP, TCP_NODELAY, &on, sizeof(on)) < 0 ||
+        flags < 0 || fcntl(sock, F_SETFL, flags | O_NONBLOCK) < 0 ||
+        (connect(sock, (const struct sockaddr *) &addr, addrlen) < 0 &&
+         errno != EINPROGRESS) ||
+        epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_ADD, sock, &p->ev)) {
+        log_android(ANDROID_LOG_WARN, "upstream probe %s/%d error %d: %s",
+                    u->addr, u->port, errno, strerror(errno));
+        if (close(sock))
+            log_android(ANDROID_LOG_ERROR, "upstream probe close error %d: %s",
+                        errno, strerror(errno));
+        count_probe(args, p, 0);
+        p->time += UPSTREAM_PROBE;
+        return;
+    }
+
+    p->socket = sock;
+}
+
+void check_upstream_probe(const struct arguments *args, const struct epoll_event *ev) {
+    struct upstream_probe *p = (struct upstream_probe *) ev->data.ptr;
+    struct upstream *u = &upstreams[p - args->shard->probes.probe];
+    if (p->socket < 0)
+        return;
+
+    if (ev->events & (EPOLLERR | EPOLLHUP)) {
+        finish_probe(args, p, 0);
+        return;
+    }
+
+    if (p->state == SOCKS5_NONE) {
+        if (!(ev->events & EPOLLOUT))
+            return;
+
+        if (*http_proxy_addr) {
+            // HTTP proxies are probed by connecting only
+            update_rtt(u, (uint32_t) (get_us() - p->start));
+            finish_probe(args, p, 1);
+            return;
+        }
+
+        // Time the greeting only, a proxy which accepts but does not answer is unhealthy
+        uint8_t hello[3] = {5, 1, 0};
+        p->start = get_us();
+        if (send(p->socket, hello, sizeof(hello), MSG_NOSIGNAL) != sizeof(hello)) {
+            finish_probe(args, p, 0);
+            return;
+        }
+        p->state = SOCKS5_HELLO;
+        p->ev.events = EPOLLIN | EPOLLERR;
+        if (epoll_ctl(args->shard->epoll_fd, EPOLL_CTL_MOD, p->socket, &p->ev)) {
+            log_android(ANDROID_LOG_ERROR, "epoll mod upstream probe error %d: %s",
+                        errno, strerror(errno));
+            finish_probe(args, p, 0);
+        }
+
+    } else if (ev->events & EPOLLIN) {
+        // Any method reply means the proxy is working
+        uint8_t reply[2];
+        ssize_t bytes = recv(p->socket, reply, sizeof(reply), 0);
+        if (bytes < 0 && (errno == EAGAIN || errno == EWOULDBLOCK))
+            return;
+        if (bytes > 0 && reply[0] == 5) {
+            update_rtt(u, (uint32_t) (get_us() - p->start));
+            finish_probe(args, p, 1);
+        } else
+            finish_probe(args, p, 0);
+    }
+}
+
+void probe_upstreams(const struct arguments *args) {
+    // Probes are sent by the first shard only
+    if (args->shard->index != 0 || upstream_count < 2)
+        return;
+
+    time_t now = args->shard->wheel.now;
+    for (int i = 0; i < upstream_count; i++) {
+        struct upstream_probe *p = &args->shard->probes.probe[i];
+        if (p->socket >= 0) {
+            if (now >= p->time + UPSTREAM_PROBE_TIMEOUT)
+                finish_probe(args, p, 0);
+        } else if (now >= p->time)
+            open_probe(args, p);
+    }
+}
+
+int get_upstream_timeout(const struct arguments *args) {
+    // Seconds until the next probe or probe timeout
+    if (args->shard->index != 0 || upstream_count < 2)
+        return EPOLL_TIMEOUT;
+
+    time_t now = args->shard->wheel.now;
+    int timeout = EPOLL_TIMEOUT;
+    for (int i = 0; i < upstream_count; i++) {
+        const struct upstream_probe *p = &args->shard->probes.probe[i];
+        time_t next = (p->socket >= 0 ? p->time + UPSTREAM_PROBE_TIMEOUT : p->time);
+        int t = (next > now ? (int) (next - now) : 0);
+        if (t < timeout)
+            timeout = t;
+    }
+    return timeout;
+}
+
+void clear_upstream_probes(const struct arguments *args) {
+    struct upstream_probes *probes = &args->shard->probes;
+    for (int i = 0; i < UPSTREAM_MAX; i++)
+        if (probes->probe[i].socket >= 0)
+            close_probe(args, &probes->probe[i]);
+
+    if (args->shard->index == 0)
+        for (int i = 0; i < upstream_count; i++)
+            log_android(ANDROID_LOG_INFO,
+                        "Upstream %s/%d srtt %u us rttvar %u us failures %d sessions %u "
+                        "probes %u failed %u",
+                        upstreams[i].addr, upstreams[i].port,
+                        upstreams[i].srtt, upstreams[i].rttvar, upstreams[i].failures,
+                        upstreams[i].sessions, upstreams[i].probes, upstreams[i].failed);
+}
@@ -21,25 +21,6 @@
 
 extern int loglevel;
 
-uint16_t calc_checksum(uint16_t start, const uint8_t *buffer, size_t length) {
-    register uint32_t sum = start;
-    register uint16_t *buf = (uint16_t *) buffer;
-    register size_t len = length;
-
-    while (len > 1) {
-        sum += *buf++;
-        len -= 2;
-    }
-
-    if (len > 0)
-        sum += *((uint8_t *) buf);
-
-    while (sum >> 16)
-        sum = (sum & 0xFFFF) + (sum >> 16);
-
-    return (uint16_t) sum;
-}
-
 int compare_u32(uint32_t s1, uint32_t s2) {
     // https://tools.ietf.org/html/rfc1982
     if (s1 == s2)
@@ -54,13 +35,12 @@ int compare_u32(uint32_t s1, uint32_t s2) {
         return 1;
 }
 
-void log_android(int prio, const char *fmt, ...) {
-    if (prio >= loglevel) {
-        va_list args;
-        va_start(args, fmt);
-        __android_log_vprint(prio, TAG, fmt, args);
-        va_end(args);
-    }
+void log_print(int prio, const char *fmt, ...) {
+    // Use log_android, which checks the level first
+    va_list args;
+    va_start(args, fmt);
+    __android_log_vprint(prio, TAG, fmt, args);
+    va_end(args);
 }
 
 uint8_t char2nible(const char c) {
@@ -118,20 +98,50 @@ const char *strstate(const int state) {
     }
 }
 
-char *hex(const u_int8_t *data, const size_t len) {
-    char hex_str[] = "0123456789ABCDEF";
+const char *straddr(int version, const void *addr, char *buf) {
+    // buf should hold INET6_ADDRSTRLEN + 1 characters
+    return inet_ntop(version == 4 ? AF_INET : AF_INET6, addr, buf, INET6_ADDRSTRLEN + 1);
+}
+
+char *hex(const u_int8_t *data, const size_t len, char *buf, const size_t size) {
+    // Truncated to fit into buf
+    static const char hex_str[] = "0123456789ABCDEF";
+
+    size_t n = (size > 0 ? (size - 1) / 3 : 0);
+    if (n > len)
+        n = len;
+
+    for (size_t i = 0; i < n; i++) {
+        buf[i * 3 + 0] = hex_str[(data[i] >> 4) & 0x0F];
+        buf[i * 3 + 1] = hex_str[(data[i]) & 0x0F];
+        buf[i * 3 + 2] = ' ';
+    }
+    if (size > 0)
+        buf[n * 3] = 0;
 
-    char *hexout;
-    hexout = (char *) ng_malloc(len * 3 + 1, "hex"); // TODO free
+    return buf;
+}
 
-    for (size_t i = 0; i < len; i++) {
-        hexout[i * 3 + 0] = hex_str[(data[i] >> 4) & 0x0F];
-        hexout[i * 3 + 1] = hex_str[(data[i]) & 0x0F];
-        hexout[i * 3 + 2] = ' ';
+size_t base64(const uint8_t *data, size_t len, char *buf) {
+    // buf should hold 4 * ((len + 2) / 3) + 1 characters
+    static const char b64[] =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    size_t n = 0;
+    for (size_t i = 0; i < len; i += 3) {
+        uint32_t v = (uint32_t) data[i] << 16;
+        if (i + 1 < len)
+            v |= (uint32_t) data[i + 1] << 8;
+        if (i + 2 < len)
+            v |= data[i + 2];
+        buf[n++] = b64[(v >> 18) & 0x3F];
+        buf[n++] = b64[(v >> 12) & 0x3F];
+        buf[n++] = (i + 1 < len ? b64[(v >> 6) & 0x3F] : '=');
+        buf[n++] = (i + 2 < len ? b64[v & 0x3F] : '=');
     }
-    hexout[len * 3] = 0;
+    buf[n] = 0;
 
-    return hexout;
+    return n;
 }
 
 int32_t get_local_port(const int sock) {
@@ -172,3 +182,9 @@ long long get_ms() {
     clock_gettime(CLOCK_MONOTONIC, &ts);
     return ts.tv_sec * 1000LL + ts.tv_nsec / 1e6;
 }
+
+time_t get_time() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC_COARSE, &ts);
+    return ts.tv_sec;
+}
@@ -23,7 +23,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.VpnService;
 import android.os.Bundle;
@@ -42,7 +41,8 @@ import androidx.fragment.app.Fragment;
 import androidx.lifecycle.Observer;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
-import androidx.preference.PreferenceManager;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.inject.Inject;
 
@@ -281,35 +281,41 @@ public class MainActivity extends AppCompatActivity implements
     }
 
     private void loadHostPort() {
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        final String proxyHost = prefs.getString(TunProxyVpnService.PREF_PROXY_HOST, "");
-        int proxyPort = prefs.getInt(TunProxyVpnService.PREF_PROXY_PORT, 0);
-
-        if (TextUtils.isEmpty(proxyHost)) {
+        final List<String> upstreams = sharedPrefService.loadUpstreams();
+        if (upstreams.isEmpty()) {
             return;
         }
-        hostEditText.setText(getString(R.string.proxy, proxyHost, proxyPort));
+        hostEditText.setText(TextUtils.join(", ", upstreams));
         hostEditText.setError(null);
     }
 
     private boolean parseAndSaveHostPort() {
-        String hostPort = hostEditText.getText().toString();
-        if (!IPUtil.isValidIPv4Address(hostPort)) {
-            hostEditText.setError(getString(R.string.enter_host));
-            return false;
-        }
-        String[] parts = hostPort.split(":");
-        int port = 0;
-        if (parts.length > 1) {
-            try {
-                port = Integer.parseInt(parts[1]);
-            } catch (NumberFormatException e) {
+        // Several proxies are separated by commas
+        List<String> upstreams = new ArrayList<>();
+        for (String hostPort : hostEditText.getText().toString().split(",")) {
+            hostPort = hostPort.trim();
+            if (!IPUtil.isValidHostPort(hostPort)) {
                 hostEditText.setError(getString(R.string.enter_host));
                 return false;
             }
+            String[] parts = hostPort.split(":");
+            int port = 0;
+            if (parts.length > 1) {
+                try {
+                    port = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    hostEditText.setError(getString(R.string.enter_host));
+                    return false;
+                }
+            }
+            upstreams.add(parts[0] + ":" + port);
+        }
+        if (upstreams.size() == 1) {
+            String[] parts = upstreams.get(0).split(":");
+            sharedPrefService.saveHostPort(parts[0], Integer.parseInt(parts[1]));
+        } else {
+            sharedPrefService.saveUpstreams(upstreams);
         }
-        String host = parts[0];
-        sharedPrefService.saveHostPort(host, port);
         return true;
     }
 }
\ No newline at end of file
@@ -20,16 +20,21 @@ package tun.proxy.service;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.text.TextUtils;
 
 import androidx.preference.PreferenceManager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import tun.proxy.service.TunProxyVpnService;
+import tun.utils.IPUtil;
 
 /**
  * Utility for shared prefs.
@@ -56,10 +61,60 @@ public class SharedPrefService {
         SharedPreferences.Editor edit = prefs.edit();
         edit.putString(TunProxyVpnService.PREF_PROXY_HOST, host);
         edit.putInt(TunProxyVpnService.PREF_PROXY_PORT, port);
+        edit.remove(TunProxyVpnService.PREF_PROXY_UPSTREAMS);
         edit.apply();
         return true;
     }
 
+    /**
+     * Saves several proxies, new connections are spread over the healthy ones.
+     *
+     * @param hostPorts proxies as <code>host:port</code>, the first one is also saved as host and port.
+     */
+    public boolean saveUpstreams(List<String> hostPorts) {
+        if (hostPorts.isEmpty()) {
+            return false;
+        }
+        for (String hostPort : hostPorts) {
+            // Every proxy is started with its port
+            if (!IPUtil.isValidHostPort(hostPort) || hostPort.split(":").length != 2) {
+                return false;
+            }
+        }
+        String[] parts = hostPorts.get(0).split(":");
+        int port = 0;
+        try {
+            port = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor edit = prefs.edit();
+        edit.putString(TunProxyVpnService.PREF_PROXY_HOST, parts[0]);
+        edit.putInt(TunProxyVpnService.PREF_PROXY_PORT, port);
+        edit.putString(TunProxyVpnService.PREF_PROXY_UPSTREAMS, TextUtils.join(",", hostPorts));
+        edit.apply();
+        return true;
+    }
+
+    /**
+     * @return the proxies as <code>host:port</code>, the saved host and port if there is no list.
+     */
+    public List<String> loadUpstreams() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String upstreams = prefs.getString(TunProxyVpnService.PREF_PROXY_UPSTREAMS, "");
+        if (!upstreams.isEmpty()) {
+            return new ArrayList<>(Arrays.asList(upstreams.split(",")));
+        }
+        List<String> hostPorts = new ArrayList<>();
+        String host = prefs.getString(TunProxyVpnService.PREF_PROXY_HOST, "");
+        int port = prefs.getInt(TunProxyVpnService.PREF_PROXY_PORT, 0);
+        if (!host.isEmpty()) {
+            hostPorts.add(host + ":" + port);
+        }
+        return hostPorts;
+    }
+
     public VPNMode loadVPNMode() {
         final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         final String vpn_mode = sharedPreferences.getString(PREF_VPN_MODE, VPNMode.DISALLOW.name());
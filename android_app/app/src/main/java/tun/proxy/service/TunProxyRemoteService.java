@@ -25,6 +25,7 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.lifecycle.LifecycleService;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Observable;
@@ -107,6 +108,32 @@ public class TunProxyRemoteService extends LifecycleService {
             requestVpnPermission();
         }
 
+        @Override
+        public void startAllowedUpstreams(List upstreams, List allowedApps, IStartStopCallback cb) throws RemoteException {
+            sharedPrefService.storeVPNMode(SharedPrefService.VPNMode.ALLOW);
+            if (!sharedPrefService.saveUpstreams(new ArrayList<String>(upstreams))) {
+                cb.onError("Invalid upstreams: " + upstreams);
+                return;
+            }
+            sharedPrefService.storeVPNApplication(SharedPrefService.VPNMode.ALLOW,
+                    new HashSet<String>(allowedApps));
+            vpnGrantState.setCb(cb);
+            requestVpnPermission();
+        }
+
+        @Override
+        public void startDeniedUpstreams(List upstreams, List deniedApps, IStartStopCallback cb) throws RemoteException {
+            sharedPrefService.storeVPNMode(SharedPrefService.VPNMode.DISALLOW);
+            if (!sharedPrefService.saveUpstreams(new ArrayList<String>(upstreams))) {
+                cb.onError("Invalid upstreams: " + upstreams);
+                return;
+            }
+            sharedPrefService.storeVPNApplication(SharedPrefService.VPNMode.DISALLOW,
+                    new HashSet<String>(deniedApps));
+            vpnGrantState.setCb(cb);
+            requestVpnPermission();
+        }
+
         @Override
         public void stop(IStartStopCallback cb) throws RemoteException {
             TunProxyVpnService.stop(TunProxyRemoteService.this);
@@ -23,6 +23,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
+import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
@@ -34,6 +35,7 @@ import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -43,6 +45,8 @@ import androidx.preference.PreferenceManager;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -63,7 +67,18 @@ import tun.proxy.model.AppState;
 public class TunProxyVpnService extends VpnService {
     public static final String PREF_PROXY_HOST = "pref_proxy_host";
     public static final String PREF_PROXY_PORT = "pref_proxy_port";
+    public static final String PREF_PROXY_HTTP = "pref_proxy_http";
+    public static final String PREF_PROXY_UPSTREAMS = "pref_proxy_upstreams";
+    public static final String PREF_PROXY_HASH = "pref_proxy_hash";
     public static final String PREF_LOG_LEVEL = "pref_log_level";
+    public static final String PREF_WORKERS = "pref_workers";
+    public static final String PREF_CHECK_IP = "pref_check_ip";
+    public static final String PREF_UDP_SHARED = "pref_udp_shared";
+    public static final String PREF_SOCKS5_PIPELINE = "pref_socks5_pipeline";
+    public static final String PREF_SOCKS5_FASTOPEN = "pref_socks5_fastopen";
+    public static final String PREF_SOCKS5_EARLY = "pref_socks5_early";
+    public static final String PREF_SOCKS5_MUX = "pref_socks5_mux";
+    public static final String PREF_SOCKS5_UDP = "pref_socks5_udp";
     public static final String PREF_RUNNING = "pref_running";
 
     private static final String TAG = TunProxyVpnService.class.getName();
@@ -79,6 +94,11 @@ public class TunProxyVpnService extends VpnService {
     private ConnectivityManager.NetworkCallback networkCallback;
     private Network currentNetwork;
 
+    // Read by native code
+    private final ByteBuffer uidBuffer = ByteBuffer.allocateDirect(
+            UidCache.UID_BATCH * UidCache.UID_RECORD).order(ByteOrder.nativeOrder());
+    private final UidCache uidCache = new UidCache(uidBuffer, this::getConnectionOwnerUid);
+
     @Inject
     AppState appState;
 
@@ -268,12 +288,36 @@ public class TunProxyVpnService extends VpnService {
         String proxyHost = prefs.getString(PREF_PROXY_HOST, "");
         int proxyPort = prefs.getInt(PREF_PROXY_PORT, 0);
         int logLevel = Integer.parseInt(prefs.getString(PREF_LOG_LEVEL, Integer.toString(Log.WARN)));
+        int workers = Integer.parseInt(prefs.getString(PREF_WORKERS, "1"));
+        boolean checkIp = prefs.getBoolean(PREF_CHECK_IP, true);
+        boolean udpShared = prefs.getBoolean(PREF_UDP_SHARED, false);
+        boolean pipeline = prefs.getBoolean(PREF_SOCKS5_PIPELINE, true);
+        boolean fastopen = prefs.getBoolean(PREF_SOCKS5_FASTOPEN, false);
+        boolean early = prefs.getBoolean(PREF_SOCKS5_EARLY, false);
+        boolean mux = prefs.getBoolean(PREF_SOCKS5_MUX, false);
+        boolean udp = prefs.getBoolean(PREF_SOCKS5_UDP, false);
+        boolean http = prefs.getBoolean(PREF_PROXY_HTTP, false);
+        boolean hash = prefs.getBoolean(PREF_PROXY_HASH, false);
+        List<String> upstreams = sharedPrefService.loadUpstreams();
         if (proxyPort != 0 && !TextUtils.isEmpty(proxyHost)) {
-            jni_socks5(proxyHost, proxyPort, "", "");
+            jni_socks5(proxyHost, proxyPort, "", "", pipeline, fastopen, early, mux, udp);
+            // An HTTP proxy replaces the SOCKS5 proxy, the connection options remain
+            jni_http_proxy(http ? proxyHost : "", http ? proxyPort : 0, "", "");
+            // Always set, so that a single proxy replaces a previous list
+            int count = (upstreams.size() > 1 ? upstreams.size() : 0);
+            String[] hosts = new String[count];
+            int[] ports = new int[count];
+            for (int i = 0; i < count; i++) {
+                String[] parts = upstreams.get(i).split(":");
+                hosts[i] = parts[0];
+                ports[i] = Integer.parseInt(parts[1]);
+            }
+            jni_upstreams(hosts, ports, hash);
+            startNetwork();
             prefs.edit().putBoolean(PREF_RUNNING, true).apply();
             if (tunnelThread == null) {
-                Log.i(TAG, "Starting tunnel thread context=" + jniContext);
-                jni_start(jniContext, logLevel);
+                Log.i(TAG, "Starting tunnel thread context=" + jniContext + " workers=" + workers);
+                jni_start(jniContext, logLevel, workers, checkIp, udpShared);
 
                 tunnelThread = new Thread(new Runnable() {
                     @Override
@@ -295,6 +339,27 @@ public class TunProxyVpnService extends VpnService {
         }
     }
 
+    private void startNetwork() {
+        // Proxy names are looked up with the name servers of the network and cached per network
+        long handle = 0;
+        List<String> servers = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network network = cm.getActiveNetwork();
+            NetworkCapabilities capabilities = (network == null ? null : cm.getNetworkCapabilities(network));
+            if (capabilities != null && !capabilities.hasTransport(NetworkCapabilities.TRANSPORT_VPN)) {
+                handle = network.getNetworkHandle();
+                LinkProperties properties = cm.getLinkProperties(network);
+                if (properties != null) {
+                    for (InetAddress server : properties.getDnsServers()) {
+                        servers.add(server.getHostAddress());
+                    }
+                }
+            }
+        }
+        Log.i(TAG, "Network " + handle + " name servers " + servers);
+        jni_network(handle, servers.toArray(new String[0]));
+    }
+
     private void stopNative(ParcelFileDescriptor vpn) {
         Log.i(TAG, "Stop native");
 
@@ -417,24 +482,27 @@ public class TunProxyVpnService extends VpnService {
         }
     }
 
-    // Called from native code
+    // Called from native code, on the resolver thread only
+    private void getUidQ(int count) {
+        uidCache.lookup(count, SystemClock.elapsedRealtime());
+    }
+
     @TargetApi(Build.VERSION_CODES.Q)
-    private int getUidQ(int version, int protocol, String saddr, int sport, String daddr, int dport) {
-        if (protocol != 6 /* TCP */ && protocol != 17 /* UDP */)
+    private int getConnectionOwnerUid(int protocol, InetSocketAddress local, InetSocketAddress remote) {
+        try {
+            int uid = cm.getConnectionOwnerUid(protocol, local, remote);
+            Log.d(TAG, "Get uid local=" + local + " remote=" + remote + " uid=" + uid);
+            return uid;
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "Get uid: " + ex);
             return Process.INVALID_UID;
-
-        InetSocketAddress local = new InetSocketAddress(saddr, sport);
-        InetSocketAddress remote = new InetSocketAddress(daddr, dport);
-
-        Log.d(TAG, "Get uid local=" + local + " remote=" + remote);
-        int uid = cm.getConnectionOwnerUid(protocol, local, remote);
-        Log.d(TAG, "Get uid=" + uid);
-        return uid;
+        }
     }
 
     private native long jni_init(int sdk);
 
-    private native void jni_start(long context, int logLevel);
+    private native void jni_start(long context, int logLevel, int workers, boolean checkIp,
+                                  boolean udpShared);
 
     private native void jni_stop(long context);
 
@@ -446,6 +514,14 @@ public class TunProxyVpnService extends VpnService {
 
     private native void jni_run(long context, int tun, boolean fwd53, int rcode);
 
-    private native void jni_socks5(String addr, int port, String username, String password);
+    private native void jni_socks5(String addr, int port, String username, String password,
+                                   boolean pipeline, boolean fastopen, boolean early,
+                                   boolean mux, boolean udp);
+
+    private native void jni_http_proxy(String addr, int port, String username, String password);
+
+    private native void jni_upstreams(String[] addrs, int[] ports, boolean hash);
+
+    private native void jni_network(long handle, String[] servers);
 
 }
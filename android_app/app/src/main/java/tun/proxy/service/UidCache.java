@@ -0,0 +1,151 @@
+/*
+ *     TunProxy is a proxy forwarding tool using Android's VPNService.
+ *     Copyright (C) 2021 raise.isayan@gmail.com / Karsten Ohme
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package tun.proxy.service;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Owners of the connections native code asks for, packed in a buffer shared with get_uid_q.
+ * <p>
+ * Owners found recently are remembered. Plain Java, so that the benchmark module runs it on a JVM.
+ */
+final class UidCache {
+    // Packed uid requests, see get_uid_q in netguard.c
+    // 0 version, 1 protocol, 2 sport, 4 dport, 8 saddr, 24 daddr, 40 uid (host notation)
+    static final int UID_RECORD = 44;
+    static final int UID_BATCH = 64;
+    static final int INVALID_UID = -1; // Process.INVALID_UID
+
+    private static final int CACHE_SIZE = 256;
+    private static final long CACHE_AGE = 10000; // milliseconds
+
+    interface Owner {
+        int getConnectionOwnerUid(int protocol, InetSocketAddress local, InetSocketAddress remote);
+    }
+
+    private final ByteBuffer buffer;
+    private final Owner owner;
+    private final Map<UidKey, UidEntry> cache =
+            new LinkedHashMap<UidKey, UidEntry>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UidKey, UidEntry> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    UidCache(ByteBuffer buffer, Owner owner) {
+        this.buffer = buffer;
+        this.owner = owner;
+    }
+
+    /**
+     * Writes the owners of the first count records of the buffer.
+     *
+     * @param now milliseconds, SystemClock.elapsedRealtime
+     */
+    void lookup(int count, long now) {
+        for (int i = 0; i < count; i++) {
+            int offset = i * UID_RECORD;
+            int protocol = buffer.get(offset + 1);
+            int uid = INVALID_UID;
+            if (protocol == 6 /* TCP */ || protocol == 17 /* UDP */) {
+                UidKey key = new UidKey(buffer, offset);
+                UidEntry entry = cache.get(key);
+                if (entry != null && now - entry.time < CACHE_AGE)
+                    uid = entry.uid;
+                else {
+                    uid = getConnectionOwnerUid(offset);
+                    cache.put(key, new UidEntry(uid, now));
+                }
+            }
+            buffer.putInt(offset + 40, uid);
+        }
+    }
+
+    private int getConnectionOwnerUid(int offset) {
+        try {
+            int version = buffer.get(offset);
+            int protocol = buffer.get(offset + 1);
+            InetSocketAddress local = new InetSocketAddress(
+                    getAddress(version, offset + 8), buffer.getShort(offset + 2) & 0xFFFF);
+            InetSocketAddress remote = new InetSocketAddress(
+                    getAddress(version, offset + 24), buffer.getShort(offset + 4) & 0xFFFF);
+            return owner.getConnectionOwnerUid(protocol, local, remote);
+        } catch (UnknownHostException ex) {
+            // Not for 4 or 16 bytes
+            return INVALID_UID;
+        }
+    }
+
+    private InetAddress getAddress(int version, int offset) throws UnknownHostException {
+        byte[] addr = new byte[version == 4 ? 4 : 16];
+        for (int i = 0; i < addr.length; i++)
+            addr[i] = buffer.get(offset + i);
+        return InetAddress.getByAddress(addr);
+    }
+
+    private static final class UidKey {
+        private final int protocol;
+        private final int ports;
+        private final long saddr0, saddr1, daddr0, daddr1;
+
+        UidKey(ByteBuffer buffer, int offset) {
+            protocol = buffer.get(offset + 1);
+            ports = buffer.getInt(offset + 2);
+            saddr0 = buffer.getLong(offset + 8);
+            saddr1 = buffer.getLong(offset + 16);
+            daddr0 = buffer.getLong(offset + 24);
+            daddr1 = buffer.getLong(offset + 32);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof UidKey))
+                return false;
+            UidKey other = (UidKey) o;
+            return protocol == other.protocol && ports == other.ports &&
+                    saddr0 == other.saddr0 && saddr1 == other.saddr1 &&
+                    daddr0 == other.daddr0 && daddr1 == other.daddr1;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = protocol * 31L + ports;
+            h = h * 31 + saddr0;
+            h = h * 31 + saddr1;
+            h = h * 31 + daddr0;
+            h = h * 31 + daddr1;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private static final class UidEntry {
+        private final int uid;
+        private final long time;
+
+        UidEntry(int uid, long time) {
+            this.uid = uid;
+            this.time = time;
+        }
+    }
+}
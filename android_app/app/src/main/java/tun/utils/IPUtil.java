@@ -2,9 +2,36 @@ package tun.utils;
 
 public class IPUtil {
 
+    private static final String LABEL = "[A-Za-z0-9]([A-Za-z0-9-]{0,61}[A-Za-z0-9])?";
+    private static final String HOST_NAME = LABEL + "(\\." + LABEL + ")*\\.?";
+
     private IPUtil() {
     }
 
+    /**
+     * @param address <code>host:port</code>, the host an IPv4 address or a host name.
+     */
+    public static boolean isValidHostPort(String address) {
+        if (isValidIPv4Address(address)) {
+            return true;
+        }
+        String[] parts = address.split(":");
+        if (parts.length != 2) {
+            return false;
+        }
+        try {
+            int port = Integer.parseInt(parts[1]);
+            if (!(0 < port && port < 65536)) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        // https://tools.ietf.org/html/rfc1123#page-13
+        // A name of digits only is a mistyped address
+        return parts[0].length() <= 253 && parts[0].matches(HOST_NAME) && !parts[0].matches("[0-9.]+");
+    }
+
     public static boolean isValidIPv4Address(String address) {
         if (address.isEmpty()) {
             return false;
@@ -0,0 +1,116 @@
+/*
+ *     TunProxy is a proxy forwarding tool using Android's VPNService.
+ *     Copyright (C) 2021 raise.isayan@gmail.com / Karsten Ohme
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package tun.proxy.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch of uid requests as packed by get_uid_q, looked up by UidCache.
+ * <p>
+ * The owner is computed instead of asking ConnectivityManager, which is a binder call,
+ * so only the parsing of the records and the cache are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UidCacheBenchmark {
+    private static final int KNOWN = 128; // flows, all fit in the cache
+
+    @Param({"1", "16", "64"})
+    public int batch;
+
+    private ByteBuffer buffer;
+    private UidCache cache;
+    private int flow;
+
+    @Setup
+    public void setup() {
+        buffer = ByteBuffer.allocateDirect(UidCache.UID_BATCH * UidCache.UID_RECORD)
+                .order(ByteOrder.nativeOrder());
+        cache = new UidCache(buffer, (protocol, local, remote) -> 10000 + local.getPort() % 50);
+        flow = 0;
+    }
+
+    private void pack(int first, int modulo) {
+        // Connections of an app from 10.1.x.y to 142.250.1.1:443
+        for (int i = 0; i < batch; i++) {
+            int f = (modulo > 0 ? (first + i) % modulo : first + i);
+            int offset = i * UidCache.UID_RECORD;
+            for (int b = 0; b < UidCache.UID_RECORD; b++)
+                buffer.put(offset + b, (byte) 0);
+            buffer.put(offset, (byte) 4);
+            buffer.put(offset + 1, (byte) 6);
+            buffer.putShort(offset + 2, (short) (32768 + f % 16384));
+            buffer.putShort(offset + 4, (short) 443);
+            buffer.put(offset + 8, (byte) 10);
+            buffer.put(offset + 9, (byte) 1);
+            buffer.put(offset + 10, (byte) (f >> 8));
+            buffer.put(offset + 11, (byte) f);
+            buffer.put(offset + 24, (byte) 142);
+            buffer.put(offset + 25, (byte) 250);
+            buffer.put(offset + 26, (byte) 1);
+            buffer.put(offset + 27, (byte) 1);
+            buffer.putInt(offset + 40, UidCache.INVALID_UID);
+        }
+    }
+
+    private int check() {
+        for (int i = 0; i < batch; i++) {
+            int offset = i * UidCache.UID_RECORD;
+            int uid = buffer.getInt(offset + 40);
+            if (uid != 10000 + (buffer.getShort(offset + 2) & 0xFFFF) % 50)
+                throw new IllegalStateException("uid " + uid);
+        }
+        return buffer.getInt(40);
+    }
+
+    @Benchmark
+    public int newFlows() {
+        // Every connection is looked up
+        pack(flow, 0);
+        flow += batch;
+        cache.lookup(batch, System.nanoTime() / 1000000);
+        return check();
+    }
+
+    @Benchmark
+    public int knownFlows() {
+        // Every connection is in the cache
+        pack(flow, KNOWN);
+        flow = (flow + batch) % KNOWN;
+        cache.lookup(batch, System.nanoTime() / 1000000);
+        return check();
+    }
+}
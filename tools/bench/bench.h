@@ -0,0 +1,30 @@
+/*
+ * Shared by the benchmarks of the native code.
+ */
+
+#ifndef BENCH_H
+#define BENCH_H
+
+#include <stdint.h>
+#include <time.h>
+
+static inline double bench_ns() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1e9 + ts.tv_nsec;
+}
+
+// xorshift, the same inputs on every run
+static uint64_t bench_seed = 0x9E3779B97F4A7C15ULL;
+
+static inline uint32_t bench_rand() {
+    bench_seed ^= bench_seed << 13;
+    bench_seed ^= bench_seed >> 7;
+    bench_seed ^= bench_seed << 17;
+    return (uint32_t) (bench_seed >> 32);
+}
+
+// Keeps results alive, so that the compiler does not drop the measured code
+static volatile uint64_t bench_sink;
+
+#endif
@@ -0,0 +1,121 @@
+/*
+ * Checksum benchmark
+ *
+ * Links the real checksum.c and compares calc_checksum with the 16 bit loop it replaced:
+ * first on random buffers, lengths, alignments and start values, which must give the same sum,
+ * then the time per buffer for the sizes of typical packets.
+ * The implementation depends on the target: sse2 on x86, neon on ARM,
+ * word when built with make checksum_word.
+ */
+
+#include "netguard.h"
+#include "bench.h"
+
+int loglevel = ANDROID_LOG_INFO;
+
+#define BUFFER_MAX 70000
+#define RANDOM_INPUTS 2000000
+
+// The routine in util.c before checksum.c
+static uint16_t reference_checksum(uint16_t start, const uint8_t *buffer, size_t length) {
+    register uint32_t sum = start;
+    register uint16_t *buf = (uint16_t *) buffer;
+    register size_t len = length;
+
+    while (len > 1) {
+        sum += *buf++;
+        len -= 2;
+    }
+
+    if (len > 0)
+        sum += *((uint8_t *) buf);
+
+    while (sum >> 16)
+        sum = (sum & 0xFFFF) + (sum >> 16);
+
+    return (uint16_t) sum;
+}
+
+static int check_random(uint8_t *buffer) {
+    for (int i = 0; i < RANDOM_INPUTS; i++) {
+        // Mostly packet sizes, some up to the largest IP packet
+        size_t offset = bench_rand() % 8;
+        size_t length = bench_rand() % (i % 100 == 0 ? IP_MAXPACKET + 1 : 1501);
+        uint16_t start = (uint16_t) bench_rand();
+
+        // Carries are the hard part, all ones produces the most
+        if (i % 50 == 0)
+            memset(buffer + offset, 0xFF, length);
+        else if (i % 50 == 1)
+            for (size_t b = 0; b < length; b++)
+                buffer[offset + b] = (uint8_t) bench_rand();
+
+        uint16_t expected = reference_checksum(start, buffer + offset, length);
+        uint16_t actual = calc_checksum(start, buffer + offset, length);
+        if (actual != expected) {
+            printf("MISMATCH offset %zu length %zu start %04x: %04x instead of %04x\n",
+                   offset, length, start, actual, expected);
+            return -1;
+        }
+    }
+    return 0;
+}
+
+static int check_update() {
+    // RFC 1624, the patched checksum equals the checksum of the patched packet
+    for (int i = 0; i < RANDOM_INPUTS / 20; i++) {
+        uint8_t packet[64];
+        for (int b = 0; b < sizeof(packet); b++)
+            packet[b] = (uint8_t) bench_rand();
+        memset(packet + 2, 0, 2);
+        uint16_t check = ~calc_checksum(0, packet, sizeof(packet));
+
+        uint16_t old;
+        uint16_t new = (uint16_t) bench_rand();
+        memcpy(&old, packet + 10, 2);
+        memcpy(packet + 10, &new, 2);
+        uint16_t patched = update_checksum(check, old, new);
+        uint16_t full = ~calc_checksum(0, packet, sizeof(packet));
+
+        // Both zeros of the one's complement are the same number
+        if (patched != full && !(patched == 0xFFFF && full == 0) && !(patched == 0 && full == 0xFFFF)) {
+            printf("MISMATCH update %04x instead of %04x\n", patched, full);
+            return -1;
+        }
+    }
+    return 0;
+}
+
+int main() {
+    static uint8_t buffer[BUFFER_MAX + 8];
+    for (int b = 0; b < sizeof(buffer); b++)
+        buffer[b] = (uint8_t) bench_rand();
+
+    init_checksum();
+
+    if (check_random(buffer) || check_update())
+        return 1;
+    printf("%d random inputs identical\n", RANDOM_INPUTS);
+
+    size_t sizes[] = {40, 576, 1460, 1500, 9000, 65535};
+    for (int s = 0; s < sizeof(sizes) / sizeof(sizes[0]); s++) {
+        size_t length = sizes[s];
+        long n = 200000000 / length;
+
+        // Headers start 2 byte aligned
+        double start = bench_ns();
+        for (long i = 0; i < n; i++)
+            bench_sink += reference_checksum(0, buffer + (i & 7) * 2, length);
+        double reference = (bench_ns() - start) / n;
+
+        start = bench_ns();
+        for (long i = 0; i < n; i++)
+            bench_sink += calc_checksum(0, buffer + (i & 7) * 2, length);
+        double actual = (bench_ns() - start) / n;
+
+        printf("%5zu bytes: old %8.1f ns %5.2f GB/s  new %7.1f ns %5.2f GB/s  x%.1f\n",
+               length, reference, length / reference, actual, length / actual, reference / actual);
+    }
+
+    return 0;
+}
@@ -0,0 +1,34 @@
+/*
+ * What the app gets from liblog and libc on Android, for the host.
+ * Messages go to stderr, so that the timings on stdout stay readable.
+ * Like the app before the level was checked at the call, messages below it are dropped here.
+ */
+
+#include <stdio.h>
+#include <stdarg.h>
+#include <android/log.h>
+#include <sys/system_properties.h>
+
+extern int loglevel;
+
+int __android_log_vprint(int prio, const char *tag, const char *fmt, va_list ap) {
+    if (prio < loglevel)
+        return 0;
+    fprintf(stderr, "%s: ", tag);
+    int len = vfprintf(stderr, fmt, ap);
+    fputc('\n', stderr);
+    return len;
+}
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...) {
+    va_list ap;
+    va_start(ap, fmt);
+    int len = __android_log_vprint(prio, tag, fmt, ap);
+    va_end(ap);
+    return len;
+}
+
+int __system_property_get(const char *name, char *value) {
+    *value = 0;
+    return 0;
+}
@@ -0,0 +1,28 @@
+/*
+ * Included before every source file when the native code is built for the host,
+ * for what the NDK headers declare and glibc does not.
+ */
+
+#ifndef BENCH_HOST_H
+#define BENCH_HOST_H
+
+#include <linux/types.h>
+#include <signal.h>
+#include <sys/socket.h>
+#include <linux/sockios.h>
+#include <netinet/in.h>
+
+#define __packed __attribute__((packed))
+
+#define IPV6_MAXPACKET 65535
+#define IPV6_VERSION 0x60
+
+struct ippseudo {
+    struct in_addr ippseudo_src;
+    struct in_addr ippseudo_dst;
+    uint8_t ippseudo_pad;
+    uint8_t ippseudo_p;
+    uint16_t ippseudo_len;
+};
+
+#endif
@@ -0,0 +1 @@
+// glibc declares IPv6 in netinet/in.h
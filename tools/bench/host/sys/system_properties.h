@@ -0,0 +1,8 @@
+#ifndef BENCH_SYSTEM_PROPERTIES_H
+#define BENCH_SYSTEM_PROPERTIES_H
+
+#define PROP_VALUE_MAX 92
+
+int __system_property_get(const char *name, char *value);
+
+#endif
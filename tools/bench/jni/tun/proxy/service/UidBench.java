@@ -0,0 +1,49 @@
+package tun.proxy.service;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Desktop stand-in for the uid upcall of TunProxyVpnService, driven by uid_jni_bench.c.
+ * <p>
+ * Built with UidCache of the app, which the service uses the same way.
+ * The binder call of ConnectivityManager is replaced by a computed owner,
+ * so only the cost of crossing JNI and of the cache is measured.
+ */
+public class UidBench {
+    // Read by native code
+    private final ByteBuffer uidBuffer = ByteBuffer.allocateDirect(
+            UidCache.UID_BATCH * UidCache.UID_RECORD).order(ByteOrder.nativeOrder());
+    private final UidCache uidCache = new UidCache(uidBuffer, UidBench::getConnectionOwnerUid);
+
+    static {
+        System.loadLibrary("uidbench");
+    }
+
+    public static void main(String[] args) {
+        new UidBench().run();
+    }
+
+    private native void run();
+
+    private static int getConnectionOwnerUid(int protocol, InetSocketAddress local, InetSocketAddress remote) {
+        // The same owner as expected by uid_jni_bench.c
+        return 10000 + local.getPort() % 50;
+    }
+
+    // Called from native code, as in TunProxyVpnService
+    private void getUidQ(int count) {
+        uidCache.lookup(count, System.nanoTime() / 1000000);
+    }
+
+    // Called from native code, the upcall before the shared buffer, as it was in the service
+    private int getUidQ(int version, int protocol, String saddr, int sport, String daddr, int dport) {
+        if (protocol != 6 /* TCP */ && protocol != 17 /* UDP */)
+            return UidCache.INVALID_UID;
+
+        InetSocketAddress local = new InetSocketAddress(saddr, sport);
+        InetSocketAddress remote = new InetSocketAddress(daddr, dport);
+        return getConnectionOwnerUid(protocol, local, remote);
+    }
+}
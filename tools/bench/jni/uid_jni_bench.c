@@ -0,0 +1,136 @@
+/*
+ * UID upcall benchmark
+ *
+ * Loaded by UidBench.java on a desktop JVM, with the whole native library.
+ * Times the real get_uid_q, which packs a batch of requests into the shared buffer
+ * and makes one upcall to getUidQ, against one upcall per flow with two strings,
+ * as get_uid_q did before. Every answer is checked.
+ */
+
+#include "netguard.h"
+#include "bench.h"
+
+#define FLOWS 200000
+#define REPEATED 128 // flows, all in the cache of getUidQ
+
+static jmethodID midGetUidStrings = NULL;
+
+static jint strings_get_uid_q(const struct arguments *args,
+                              jint version, jint protocol,
+                              const char *source, jint sport,
+                              const char *dest, jint dport) {
+    // The previous get_uid_q
+    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
+
+    const char *signature = "(IILjava/lang/String;ILjava/lang/String;I)I";
+    if (midGetUidStrings == NULL)
+        midGetUidStrings = jniGetMethodID(args->env, clsService, "getUidQ", signature);
+
+    jstring jsource = (*args->env)->NewStringUTF(args->env, source);
+    jstring jdest = (*args->env)->NewStringUTF(args->env, dest);
+
+    jint juid = (*args->env)->CallIntMethod(
+            args->env, args->instance, midGetUidStrings,
+            version, protocol, jsource, sport, jdest, dport);
+    jniCheckException(args->env);
+
+    (*args->env)->DeleteLocalRef(args->env, jdest);
+    (*args->env)->DeleteLocalRef(args->env, jsource);
+    (*args->env)->DeleteLocalRef(args->env, clsService);
+
+    return juid;
+}
+
+static void init_request(struct uid_request *q, int flow) {
+    // A connection of an app from 10.1.x.y to 142.250.1.1:443
+    memset(q, 0, sizeof(struct uid_request));
+    q->version = 4;
+    q->protocol = IPPROTO_TCP;
+    q->saddr[0] = 10;
+    q->saddr[1] = 1;
+    q->saddr[2] = (uint8_t) (flow >> 8);
+    q->saddr[3] = (uint8_t) flow;
+    q->sport = (uint16_t) (32768 + flow % 16384);
+    q->daddr[0] = 142;
+    q->daddr[1] = 250;
+    q->daddr[2] = 1;
+    q->daddr[3] = 1;
+    q->dport = 443;
+    q->uid = -1;
+}
+
+static int expected_uid(const struct uid_request *q) {
+    // See getConnectionOwnerUid in UidBench.java
+    return 10000 + q->sport % 50;
+}
+
+static double run_strings(const struct arguments *args, int *wrong) {
+    struct uid_request q;
+    double start = bench_ns();
+    for (int f = 0; f < FLOWS; f++) {
+        init_request(&q, f);
+        char source[INET6_ADDRSTRLEN + 1];
+        char dest[INET6_ADDRSTRLEN + 1];
+        inet_ntop(AF_INET, q.saddr, source, sizeof(source));
+        inet_ntop(AF_INET, q.daddr, dest, sizeof(dest));
+        q.uid = strings_get_uid_q(args, q.version, q.protocol, source, q.sport, dest, q.dport);
+        if (q.uid != expected_uid(&q))
+            (*wrong)++;
+    }
+    return (bench_ns() - start) / FLOWS;
+}
+
+static double run_buffer(const struct arguments *args, const struct resolver *r,
+                         int batch, int repeated, int *wrong) {
+    struct uid_request *q = calloc((size_t) batch, sizeof(struct uid_request));
+    double start = bench_ns();
+    for (int f = 0; f < FLOWS; f += batch) {
+        for (int i = 0; i < batch; i++) {
+            init_request(&q[i], repeated ? (f + i) % REPEATED : f + i);
+            q[i].next = (i + 1 < batch ? &q[i + 1] : NULL);
+        }
+        get_uid_q(args, r, q);
+        for (int i = 0; i < batch; i++)
+            if (q[i].uid != expected_uid(&q[i]))
+                (*wrong)++;
+    }
+    double ns = (bench_ns() - start) / FLOWS;
+    free(q);
+    return ns;
+}
+
+JNIEXPORT void JNICALL Java_tun_proxy_service_UidBench_run(JNIEnv *env, jobject instance) {
+    loglevel = ANDROID_LOG_WARN;
+
+    struct arguments args;
+    memset(&args, 0, sizeof(struct arguments));
+    args.env = env;
+    args.instance = instance;
+
+    struct resolver r;
+    memset(&r, 0, sizeof(struct resolver));
+    if (init_uid_q(&args, &r)) {
+        printf("init_uid_q failed\n");
+        return;
+    }
+
+    // The second round is measured, after the JIT compiled getUidQ
+    int wrong = 0;
+    double strings = 0;
+    double buffer[4] = {0, 0, 0, 0};
+    for (int round = 0; round < 2; round++) {
+        strings = run_strings(&args, &wrong);
+        buffer[0] = run_buffer(&args, &r, 1, 0, &wrong);
+        buffer[1] = run_buffer(&args, &r, 16, 0, &wrong);
+        buffer[2] = run_buffer(&args, &r, r.records, 0, &wrong);
+        buffer[3] = run_buffer(&args, &r, 16, 1, &wrong);
+    }
+
+    printf("per flow: strings %.0f ns | buffer batch 1 %.0f ns, 16 %.0f ns, %d %.0f ns"
+           " | batch 16 cached %.0f ns\n",
+           strings, buffer[0], buffer[1], r.records, buffer[2], buffer[3]);
+    if (wrong)
+        printf("%d wrong uids\n", wrong);
+
+    (*env)->DeleteGlobalRef(env, r.buffer);
+}
@@ -0,0 +1,175 @@
+/*
+ * Packet path benchmark for the log level
+ *
+ * Links the whole native library and pushes data packets of an upload through handle_ip,
+ * then forwards them to a local socket with check_tcp_socket and acknowledges them on tun,
+ * like the event loop does. The log level is WARN, the default of pref_log_level.
+ * Built as log_eager, every message is formatted and dropped by the level afterwards,
+ * as all log calls did before the level was checked first.
+ */
+
+#include "netguard.h"
+#include "bench.h"
+
+#define PACKETS 1000000
+#define SEGMENT 1400
+#define DRAIN 16 // packets
+
+static int drain_fd(int fd) {
+    static uint8_t buffer[65536];
+    int count = 0;
+    while (recv(fd, buffer, sizeof(buffer), MSG_DONTWAIT) > 0)
+        count++;
+    return count;
+}
+
+static size_t build_packet(uint8_t *pkt, const struct tcp_session *t, uint32_t seq) {
+    struct iphdr *ip4 = (struct iphdr *) pkt;
+    struct tcphdr *tcp = (struct tcphdr *) (pkt + sizeof(struct iphdr));
+    size_t length = sizeof(struct iphdr) + sizeof(struct tcphdr) + SEGMENT;
+    memset(pkt, 0, sizeof(struct iphdr) + sizeof(struct tcphdr));
+
+    ip4->version = 4;
+    ip4->ihl = sizeof(struct iphdr) >> 2;
+    ip4->tot_len = htons(length);
+    ip4->ttl = IPDEFTTL;
+    ip4->protocol = IPPROTO_TCP;
+    ip4->saddr = t->saddr.ip4;
+    ip4->daddr = t->daddr.ip4;
+    ip4->check = ~calc_checksum(0, (uint8_t *) ip4, sizeof(struct iphdr));
+
+    tcp->source = t->source;
+    tcp->dest = t->dest;
+    tcp->seq = htonl(seq);
+    tcp->ack_seq = htonl(t->local_seq);
+    tcp->doff = sizeof(struct tcphdr) >> 2;
+    tcp->ack = 1;
+    tcp->psh = 1;
+    tcp->window = htons(65535);
+
+    return length;
+}
+
+static int connect_local(int *peer) {
+    // The socket of the session and the other end, which reads and discards
+    struct sockaddr_in addr;
+    socklen_t addrlen = sizeof(struct sockaddr_in);
+    memset(&addr, 0, sizeof(struct sockaddr_in));
+    addr.sin_family = AF_INET;
+    addr.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+
+    int server = socket(AF_INET, SOCK_STREAM, 0);
+    int sock = socket(AF_INET, SOCK_STREAM, 0);
+    if (server < 0 || sock < 0 ||
+        bind(server, (struct sockaddr *) &addr, addrlen) < 0 ||
+        listen(server, 1) < 0 ||
+        getsockname(server, (struct sockaddr *) &addr, &addrlen) < 0 ||
+        connect(sock, (struct sockaddr *) &addr, addrlen) < 0 ||
+        (*peer = accept(server, NULL, NULL)) < 0) {
+        perror("connect_local");
+        return -1;
+    }
+    close(server);
+    fcntl(sock, F_SETFL, fcntl(sock, F_GETFL, 0) | O_NONBLOCK);
+    return sock;
+}
+
+int main() {
+    loglevel = ANDROID_LOG_WARN;
+    init_checksum();
+
+    struct context ctx;
+    struct shard shard;
+    struct arguments args;
+    memset(&ctx, 0, sizeof(struct context));
+    memset(&shard, 0, sizeof(struct shard));
+    memset(&args, 0, sizeof(struct arguments));
+    ctx.sdk = 29;
+    ctx.workers = 1;
+    ctx.checkip = 1;
+    args.ctx = &ctx;
+    args.shard = &shard;
+
+    // Packets written to tun arrive at the other end of a socket pair
+    int tun[2];
+    if (socketpair(AF_UNIX, SOCK_DGRAM, 0, tun) < 0) {
+        perror("socketpair");
+        return 1;
+    }
+    fcntl(tun[0], F_SETFL, fcntl(tun[0], F_GETFL, 0) | O_NONBLOCK);
+    args.tun = tun[0];
+
+    int maxsessions = 1024;
+    shard.epoll_fd = epoll_create1(0);
+    init_sessions(&shard, maxsessions);
+    init_timers(&shard.wheel, get_time());
+
+    // An established connection of the app
+    int peer;
+    struct ng_session *s = calloc(1, sizeof(struct ng_session));
+    s->protocol = IPPROTO_TCP;
+    s->socket = connect_local(&peer);
+    if (s->socket < 0)
+        return 1;
+    struct tcp_session *t = &s->tcp;
+    t->version = 4;
+    t->uid = 10123;
+    t->time = get_time();
+    t->state = TCP_ESTABLISHED;
+    t->socks5 = SOCKS5_CONNECTED;
+    t->upstream = -1;
+    t->error = -1;
+    t->mss = SEGMENT;
+    t->remote_seq = t->remote_start = 1000000;
+    t->local_seq = t->local_start = t->acked = 2000000;
+    t->send_window = t->recv_window = 65535;
+    t->saddr.ip4 = htonl(0x0A010A01); // 10.1.10.1
+    t->daddr.ip4 = htonl(INADDR_LOOPBACK);
+    t->source = htons(43512);
+    t->dest = htons(443);
+    init_ring(&t->forward, t->remote_seq);
+
+    s->ev.events = EPOLLERR;
+    s->ev.data.ptr = s;
+    epoll_ctl(shard.epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev);
+    add_session(&args, s);
+
+    static uint8_t pkt[IP_MAXPACKET];
+    struct epoll_event ev;
+    ev.events = EPOLLOUT;
+    ev.data.ptr = s;
+
+    for (int round = 0; round < 2; round++) {
+        int acks = 0;
+        double start = bench_ns();
+        for (int i = 0; i < PACKETS; i++) {
+            uint32_t seq = t->forward.seq + t->forward.len;
+            size_t length = build_packet(pkt, t, seq);
+            handle_ip(&args, pkt, length, shard.epoll_fd, get_sessions(&shard), maxsessions);
+            check_tcp_socket(&args, &ev, shard.epoll_fd);
+            update_session(&args, s);
+
+            // What the event loop does at the end of an iteration
+            flush_tun(&args);
+            shard.loops++;
+
+            // The other ends are read less often, so that their cost counts less
+            if (i % DRAIN == 0 || shard.outblocked) {
+                acks += drain_fd(tun[1]);
+                shard.outblocked = 0;
+                drain_fd(peer);
+            }
+        }
+        double ns = (bench_ns() - start) / PACKETS;
+
+        acks += drain_fd(tun[1]);
+        printf("%s: %.0f ns/packet %.2f Mpps, %d ACKs\n",
+               round ? "measured" : "warm up", ns, 1e3 / ns, acks);
+        if (t->state != TCP_ESTABLISHED || acks < PACKETS / 2) {
+            printf("session broken, state %d\n", t->state);
+            return 1;
+        }
+    }
+
+    return 0;
+}
@@ -0,0 +1,112 @@
+/*
+ * Session lookup benchmark
+ *
+ * Links the real session.c and times find_session and add_session
+ * for a shard with 10 to 10,000 TCP sessions, hits and misses.
+ * The walk of the session list, as TCP, UDP and ICMP did before the session table,
+ * is timed on the same sessions for comparison.
+ */
+
+#include "netguard.h"
+#include "bench.h"
+
+#define LOOKUPS 2000000
+
+// How tcp.c found a session before the session table
+static struct ng_session *walk_sessions(const struct arguments *args, int version,
+                                        const void *saddr, __be16 source,
+                                        const void *daddr, __be16 dest) {
+    struct ng_session *cur = args->shard->ng_session;
+    while (cur != NULL &&
+           !(cur->protocol == IPPROTO_TCP &&
+             cur->tcp.version == version &&
+             cur->tcp.source == source && cur->tcp.dest == dest &&
+             (version == 4 ? cur->tcp.saddr.ip4 == *((__be32 *) saddr) &&
+                             cur->tcp.daddr.ip4 == *((__be32 *) daddr)
+                           : memcmp(&cur->tcp.saddr.ip6, saddr, 16) == 0 &&
+                             memcmp(&cur->tcp.daddr.ip6, daddr, 16) == 0)))
+        cur = cur->next;
+    return cur;
+}
+
+static void init_session(struct ng_session *s) {
+    // An established connection of the app
+    memset(s, 0, sizeof(struct ng_session));
+    s->protocol = IPPROTO_TCP;
+    s->socket = -1;
+    s->tcp.version = 4;
+    s->tcp.state = TCP_ESTABLISHED;
+    s->tcp.time = time(NULL);
+    s->tcp.upstream = -1;
+    s->tcp.saddr.ip4 = htonl(0x0A010A01); // 10.1.10.1
+    s->tcp.daddr.ip4 = bench_rand();
+    s->tcp.source = (__be16) bench_rand();
+    s->tcp.dest = htons(443);
+}
+
+static void run(int count) {
+    struct context ctx;
+    struct shard shard;
+    memset(&ctx, 0, sizeof(struct context));
+    memset(&shard, 0, sizeof(struct shard));
+    struct arguments args;
+    memset(&args, 0, sizeof(struct arguments));
+    args.ctx = &ctx;
+    args.shard = &shard;
+
+    init_sessions(&shard, count);
+    init_timers(&shard.wheel, time(NULL));
+
+    struct ng_session *session = calloc((size_t) count, sizeof(struct ng_session));
+    double start = bench_ns();
+    for (int i = 0; i < count; i++) {
+        init_session(&session[i]);
+        add_session(&args, &session[i]);
+    }
+    double add = (bench_ns() - start) / count;
+
+    // Hits in a scattered order
+    start = bench_ns();
+    for (int i = 0; i < LOOKUPS; i++) {
+        struct tcp_session *t = &session[(uint32_t) i * 7919u % count].tcp;
+        bench_sink += (uintptr_t) find_session(&args, 4, IPPROTO_TCP,
+                                               &t->saddr.ip4, t->source, &t->daddr.ip4, t->dest);
+    }
+    double hit = (bench_ns() - start) / LOOKUPS;
+
+    // Misses, like the first packet of every new connection
+    start = bench_ns();
+    for (int i = 0; i < LOOKUPS; i++) {
+        __be32 saddr = htonl(0x0A010A01);
+        __be32 daddr = bench_rand();
+        bench_sink += (uintptr_t) find_session(&args, 4, IPPROTO_TCP,
+                                               &saddr, (__be16) i, &daddr, htons(443));
+    }
+    double miss = (bench_ns() - start) / LOOKUPS;
+
+    // The walk is linear, so fewer lookups do for many sessions
+    int walks = LOOKUPS / (count < 100 ? 1 : count / 100);
+    start = bench_ns();
+    for (int i = 0; i < walks; i++) {
+        struct tcp_session *t = &session[(uint32_t) i * 7919u % count].tcp;
+        bench_sink += (uintptr_t) walk_sessions(&args, 4,
+                                                &t->saddr.ip4, t->source, &t->daddr.ip4, t->dest);
+    }
+    double walk = (bench_ns() - start) / walks;
+
+    printf("%6d sessions: find %5.1f ns hit %5.1f ns miss  add %5.1f ns  list walk %8.1f ns\n",
+           count, hit, miss, add, walk);
+
+    ng_free(shard.table.slot, __FILE__, __LINE__);
+    free(session);
+}
+
+int main() {
+    loglevel = ANDROID_LOG_WARN;
+
+    int counts[] = {10, 100, 1000, 10000};
+    for (int c = 0; c < sizeof(counts) / sizeof(counts[0]); c++)
+        run(counts[c]);
+
+    return 0;
+}
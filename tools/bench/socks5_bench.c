@@ -0,0 +1,288 @@
+/*
+ * SOCKS5 handshake benchmark
+ *
+ * Links the whole native library and starts socks5_standin.py, a proxy behind a simulated
+ * link with 25 ms one-way delay. SYNs of the app go through handle_ip, the event loop is
+ * run like handle_events does, and each connection is timed until the session writes
+ * the SYN-ACK to tun, which it does once the proxy replied to the connect request.
+ * Compares the handshake step by step with the pipelined one, without and with
+ * authentication and with replies split into single bytes, then TCP Fast Open
+ * with a stand-in that charges the TCP handshake a round trip unless data came in the SYN.
+ */
+
+#include "netguard.h"
+#include "bench.h"
+
+#include <signal.h>
+#include <sys/wait.h>
+
+#define CONNECTIONS 20
+#define FASTOPEN_CONNECTIONS 10
+#define TIMEOUT 5000 // milliseconds per connection
+
+extern char socks5_addr[];
+extern int socks5_port;
+extern char socks5_username[];
+extern char socks5_password[];
+extern int socks5_pipeline;
+extern int socks5_fastopen;
+extern int socks5_method;
+
+struct standin {
+    pid_t pid;
+    int port;
+};
+
+static int start_standin(struct standin *p, const char *host, const char *options) {
+    // The stand-in prints its port when it accepts connections
+    char command[256];
+    snprintf(command, sizeof(command),
+             "exec python3 socks5_standin.py --host %s --port 0 %s", host, options);
+    int fds[2];
+    if (pipe(fds) < 0) {
+        perror("pipe");
+        return -1;
+    }
+    p->pid = fork();
+    if (p->pid == 0) {
+        dup2(fds[1], STDOUT_FILENO);
+        close(fds[0]);
+        close(fds[1]);
+        execl("/bin/sh", "sh", "-c", command, (char *) NULL);
+        _exit(127);
+    }
+    close(fds[1]);
+
+    char line[64];
+    ssize_t len = 0;
+    while (len < (ssize_t) sizeof(line) - 1) {
+        ssize_t bytes = read(fds[0], line + len, sizeof(line) - 1 - len);
+        if (bytes <= 0)
+            break;
+        len += bytes;
+        if (memchr(line, '\n', (size_t) len) != NULL)
+            break;
+    }
+    line[len] = 0;
+    close(fds[0]);
+    if (p->pid < 0 || sscanf(line, "listening %d", &p->port) != 1) {
+        printf("socks5_standin.py did not start\n");
+        return -1;
+    }
+    return 0;
+}
+
+static void stop_standin(struct standin *p) {
+    kill(p->pid, SIGTERM);
+    waitpid(p->pid, NULL, 0);
+}
+
+static size_t build_syn(uint8_t *pkt, __be16 source) {
+    // A connection of the app from 10.1.10.1 to 203.0.113.1:443
+    struct iphdr *ip4 = (struct iphdr *) pkt;
+    struct tcphdr *tcp = (struct tcphdr *) (pkt + sizeof(struct iphdr));
+    size_t length = sizeof(struct iphdr) + sizeof(struct tcphdr);
+    memset(pkt, 0, length);
+
+    ip4->version = 4;
+    ip4->ihl = sizeof(struct iphdr) >> 2;
+    ip4->tot_len = htons(length);
+    ip4->ttl = IPDEFTTL;
+    ip4->protocol = IPPROTO_TCP;
+    ip4->saddr = htonl(0x0A010A01);
+    ip4->daddr = htonl(0xCB007101);
+    ip4->check = ~calc_checksum(0, (uint8_t *) ip4, sizeof(struct iphdr));
+
+    tcp->source = source;
+    tcp->dest = htons(443);
+    tcp->seq = htonl(1000000);
+    tcp->doff = sizeof(struct tcphdr) >> 2;
+    tcp->syn = 1;
+    tcp->window = htons(65535);
+
+    return length;
+}
+
+static int read_tun(int fd) {
+    // 1 for a SYN-ACK, -1 for a reset, 0 otherwise
+    static uint8_t buffer[65536];
+    int result = 0;
+    ssize_t bytes;
+    while ((bytes = recv(fd, buffer, sizeof(buffer), MSG_DONTWAIT)) > 0) {
+        struct iphdr *ip4 = (struct iphdr *) buffer;
+        if (bytes < sizeof(struct iphdr) + sizeof(struct tcphdr) ||
+            ip4->protocol != IPPROTO_TCP)
+            continue;
+        struct tcphdr *tcp = (struct tcphdr *) (buffer + ip4->ihl * 4);
+        if (tcp->syn && tcp->ack)
+            result = 1;
+        else if (tcp->rst)
+            result = -1;
+    }
+    return result;
+}
+
+static double connect_once(const struct arguments *args, int tun, __be16 source) {
+    // Milliseconds until the SYN-ACK, negative if the session was reset
+    static uint8_t pkt[IP_MAXPACKET];
+    struct shard *shard = args->shard;
+    int maxsessions = shard->table.maxsessions;
+
+    double start = bench_ns();
+    size_t length = build_syn(pkt, source);
+    handle_ip(args, pkt, length, shard->epoll_fd, get_sessions(shard), maxsessions);
+
+    int result = 0;
+    while (result == 0 && bench_ns() - start < TIMEOUT * 1e6) {
+        struct epoll_event ev[16];
+        int ready = epoll_wait(shard->epoll_fd, ev, 16, 1);
+        for (int i = 0; i < ready; i++) {
+            struct ng_session *s = (struct ng_session *) ev[i].data.ptr;
+            if (s->protocol != IPPROTO_TCP)
+                continue;
+            check_tcp_socket(args, &ev[i], shard->epoll_fd);
+            update_session(args, s);
+        }
+        flush_tun(args);
+        result = read_tun(tun);
+    }
+    double ms = (bench_ns() - start) / 1e6;
+
+    // Close the proxy connection
+    __be32 saddr = htonl(0x0A010A01);
+    __be32 daddr = htonl(0xCB007101);
+    struct ng_session *s = find_session(args, 4, IPPROTO_TCP, &saddr, source, &daddr, htons(443));
+    if (s != NULL) {
+        if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
+            write_rst(args, &s->tcp);
+        check_tcp_session(args, s, get_sessions(shard), maxsessions);
+        flush_tun(args);
+        read_tun(tun);
+    }
+
+    return (result > 0 ? ms : -1);
+}
+
+static void run(const struct arguments *args, int tun, const char *name,
+                int pipeline, int fastopen, int connections, int warmup) {
+    static uint16_t port = 40000;
+    socks5_pipeline = pipeline;
+    socks5_fastopen = fastopen;
+    struct socks5_pool *pool = &args->shard->pool;
+    pool->fastopen = 0;
+    pool->fastopen_data = 0;
+
+    if (warmup)
+        connect_once(args, tun, htons(port++));
+
+    int failed = 0;
+    double total = 0;
+    double first = 0;
+    for (int i = 0; i < connections; i++) {
+        double ms = connect_once(args, tun, htons(port++));
+        if (ms < 0)
+            failed++;
+        else
+            total += ms;
+        if (i == 0)
+            first = ms;
+    }
+
+    printf("%-32s", name);
+    if (failed == connections)
+        printf(" failed\n");
+    else if (fastopen)
+        printf(" %.1f ms/conn, first %.1f ms, SYN data acked %u/%u\n",
+               total / (connections - failed), first, pool->fastopen_data, pool->fastopen);
+    else if (failed)
+        printf(" %.1f ms/conn, %d/%d failed\n", total / (connections - failed),
+               failed, connections);
+    else
+        printf(" %.1f ms/conn\n", total / connections);
+}
+
+int main() {
+    loglevel = ANDROID_LOG_ERROR + 1;
+    init_checksum();
+    signal(SIGPIPE, SIG_IGN);
+
+    struct context ctx;
+    struct shard shard;
+    struct arguments args;
+    memset(&ctx, 0, sizeof(struct context));
+    memset(&shard, 0, sizeof(struct shard));
+    memset(&args, 0, sizeof(struct arguments));
+    ctx.sdk = 29;
+    ctx.workers = 1;
+    ctx.checkip = 1;
+    args.ctx = &ctx;
+    args.shard = &shard;
+
+    // Packets written to tun arrive at the other end of a socket pair
+    int tun[2];
+    if (socketpair(AF_UNIX, SOCK_DGRAM, 0, tun) < 0) {
+        perror("socketpair");
+        return 1;
+    }
+    fcntl(tun[0], F_SETFL, fcntl(tun[0], F_GETFL, 0) | O_NONBLOCK);
+    args.tun = tun[0];
+
+    shard.epoll_fd = epoll_create1(0);
+    init_sessions(&shard, 1024);
+    init_socks5_pool(&shard.pool, get_time());
+    init_timers(&shard.wheel, get_time());
+
+    // A loopback address of its own, so that the kernel has no Fast Open cookie yet
+    char host[INET_ADDRSTRLEN];
+    srand((unsigned int) getpid());
+    snprintf(host, sizeof(host), "127.%d.%d.%d", 1 + rand() % 254, rand() % 256, 1 + rand() % 254);
+
+    struct {
+        const char *options;
+        const char *username;
+        int method;
+        int fastopen;
+    } standins[] = {
+            {"",                                   "",     -1, 0},
+            {"--auth user:password",               "user", -1, 0},
+            // Step by step fails on a split hello reply, so the method cannot be learned
+            {"--fragment",                         "",     0,  0},
+            {"--auth user:password --connect-rtt", "user", -1, 1}
+    };
+    const char *names[][2] = {
+            {"no auth, step by step",   "no auth, pipelined"},
+            {"user/pw, step by step",   "user/pw, pipelined"},
+            {"fragmented, step by step", "fragmented, pipelined"}
+    };
+
+    printf("%s, 25 ms one-way link, %d connections\n", host, CONNECTIONS);
+    for (int i = 0; i < 4; i++) {
+        struct standin p;
+        if (start_standin(&p, host, standins[i].options))
+            return 1;
+        strcpy(socks5_addr, host);
+        socks5_port = p.port;
+        strcpy(socks5_username, standins[i].username);
+        strcpy(socks5_password, *standins[i].username ? "password" : "");
+        init_proxy_names();
+
+        // The method is learned from the first reply of the proxy, as after a start
+        socks5_method = standins[i].method;
+
+        if (!standins[i].fastopen) {
+            run(&args, tun[1], names[i][0], 0, 0, CONNECTIONS, 1);
+            run(&args, tun[1], names[i][1], 1, 0, CONNECTIONS, 1);
+        } else {
+            // The first connection with Fast Open gets the cookie
+            printf("connect round trip charged unless SYN data, user/pw, pipelined, %d connections\n",
+                   FASTOPEN_CONNECTIONS);
+            run(&args, tun[1], "plain connect", 1, 0, FASTOPEN_CONNECTIONS, 1);
+            run(&args, tun[1], "fast open", 1, 1, FASTOPEN_CONNECTIONS, 0);
+            run(&args, tun[1], "fast open with cookie", 1, 1, FASTOPEN_CONNECTIONS, 0);
+        }
+
+        stop_standin(&p);
+    }
+
+    return 0;
+}
@@ -0,0 +1,135 @@
+#!/usr/bin/env python3
+"""SOCKS5 stand-in behind a simulated link, for socks5_bench.c.
+
+Answers greetings, username/password authentication and CONNECT requests
+without connecting anywhere. Every byte from the client is seen a delay later,
+and every reply reaches the client a delay later, like a link with that one-way delay.
+With --connect-rtt the TCP handshake is charged one round trip when the first data
+did not come in the SYN, the listener accepts TCP Fast Open.
+
+    python3 socks5_standin.py [--port 1080] [--delay 25] [--auth user:password]
+                              [--connect-rtt] [--fragment]
+"""
+
+import argparse
+import asyncio
+import socket
+
+TCP_FASTOPEN = getattr(socket, 'TCP_FASTOPEN', 23)
+TCP_INFO = getattr(socket, 'TCP_INFO', 11)
+TCPI_OPT_SYN_DATA = 32
+SUCCEEDED = b'\x05\x00\x00\x01\x00\x00\x00\x00\x00\x00'
+
+
+class Connection:
+    def __init__(self, options, reader, writer):
+        self.options = options
+        self.reader = reader
+        self.writer = writer
+        self.buffer = bytearray()
+        self.state = 'greeting'
+
+    def syn_data(self):
+        sock = self.writer.get_extra_info('socket')
+        info = sock.getsockopt(socket.IPPROTO_TCP, TCP_INFO, 8)
+        return (info[5] & TCPI_OPT_SYN_DATA) != 0
+
+    async def reply(self, data):
+        # The link delays the reply, optionally split into single byte segments
+        await asyncio.sleep(self.options.delay)
+        if self.options.fragment:
+            for i in range(len(data)):
+                self.writer.write(data[i:i + 1])
+                await self.writer.drain()
+                await asyncio.sleep(0.001)
+        else:
+            self.writer.write(data)
+            await self.writer.drain()
+
+    def parse(self):
+        # Returns the replies to the complete messages in the buffer
+        replies = b''
+        while True:
+            b = self.buffer
+            if self.state == 'greeting' and len(b) >= 2 and len(b) >= 2 + b[1]:
+                methods = bytes(b[2:2 + b[1]])
+                del b[:2 + b[1]]
+                method = 2 if self.options.auth else 0
+                if method not in methods:
+                    method = 0xFF
+                replies += bytes([5, method])
+                self.state = 'auth' if method == 2 else 'connect'
+            elif self.state == 'auth' and len(b) >= 2 and len(b) >= 3 + b[1] and \
+                    len(b) >= 3 + b[1] + b[2 + b[1]]:
+                ulen = b[1]
+                plen = b[2 + ulen]
+                credentials = (bytes(b[2:2 + ulen]), bytes(b[3 + ulen:3 + ulen + plen]))
+                del b[:3 + ulen + plen]
+                ok = credentials == self.options.auth
+                replies += bytes([1, 0 if ok else 1])
+                self.state = 'connect' if ok else 'closed'
+            elif self.state == 'connect' and len(b) >= 5:
+                alen = {1: 4, 3: 1 + b[4], 4: 16}.get(b[3], 0)
+                if len(b) < 4 + alen + 2:
+                    break
+                del b[:4 + alen + 2]
+                replies += SUCCEEDED
+                self.state = 'connected'
+            else:
+                break
+        return replies
+
+    async def run(self):
+        try:
+            if self.options.connect_rtt and not self.syn_data():
+                await asyncio.sleep(2 * self.options.delay)
+            while self.state not in ('connected', 'closed'):
+                data = await self.reader.read(4096)
+                if not data:
+                    return
+                await asyncio.sleep(self.options.delay)
+                self.buffer += data
+                replies = self.parse()
+                if replies:
+                    await self.reply(replies)
+            # Discard what the client sends until it closes
+            while await self.reader.read(4096):
+                pass
+        except ConnectionError:
+            pass
+        finally:
+            self.writer.close()
+
+
+async def main():
+    parser = argparse.ArgumentParser(description=__doc__.splitlines()[0])
+    parser.add_argument('--host', default='127.0.0.1')
+    parser.add_argument('--port', type=int, default=1080)
+    parser.add_argument('--delay', type=float, default=25, help='one-way, milliseconds')
+    parser.add_argument('--auth', help='user:password, required when given')
+    parser.add_argument('--connect-rtt', action='store_true')
+    parser.add_argument('--fragment', action='store_true')
+    options = parser.parse_args()
+    options.delay /= 1000
+    if options.auth:
+        user, password = options.auth.split(':', 1)
+        options.auth = (user.encode(), password.encode())
+
+    sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+    sock.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+    sock.setsockopt(socket.IPPROTO_TCP, TCP_FASTOPEN, 64)
+    sock.bind((options.host, options.port))
+
+    async def accept(reader, writer):
+        writer.get_extra_info('socket').setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        await Connection(options, reader, writer).run()
+
+    server = await asyncio.start_server(accept, sock=sock)
+    # The port is chosen by the system with --port 0
+    print('listening', server.sockets[0].getsockname()[1], flush=True)
+    async with server:
+        await server.serve_forever()
+
+
+if __name__ == '__main__':
+    asyncio.run(main())
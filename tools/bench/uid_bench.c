@@ -0,0 +1,344 @@
+/*
+ * UID lookup benchmark
+ *
+ * Writes synthetic /proc/net/tcp, tcp6, udp and udp6 files in the formats of the kernel
+ * and points the real uid.c at them, by wrapping fopen at link time.
+ * A burst of new connections is resolved with get_uid and with the previous lookup,
+ * which scanned the whole file with sscanf for every connection not in its cache,
+ * counting the reads of the files. Both must find the uid of every connection.
+ *
+ *   ./uid [directory]     keeps the generated files in the directory
+ */
+
+#include "netguard.h"
+#include "bench.h"
+
+#define TCP6_ROWS 1000 // IPv4 mapped, as apps mostly use IPv6 sockets
+#define TCP_ROWS 200
+#define LISTEN_ROWS 20
+#define BURST 100
+#define BURST_TCP 20 // of the burst in /proc/net/tcp
+
+struct connection {
+    int ws; // address words of the file
+    uint8_t saddr[16];
+    uint8_t daddr[16];
+    uint16_t sport;
+    uint16_t dport;
+    jint uid;
+};
+
+static struct connection connection[TCP6_ROWS + TCP_ROWS];
+static char directory[PATH_MAX];
+static int reads = 0;
+
+// Opens the generated files instead of those in /proc/net
+FILE *__real_fopen(const char *fn, const char *mode);
+
+FILE *__wrap_fopen(const char *fn, const char *mode) {
+    if (strncmp(fn, "/proc/net/", 10) != 0)
+        return __real_fopen(fn, mode);
+    char path[PATH_MAX];
+    snprintf(path, sizeof(path), "%s/%s", directory, fn + 10);
+    reads++;
+    return __real_fopen(path, mode);
+}
+
+static void print_address(FILE *f, const uint8_t *addr, int ws, uint16_t port) {
+    // The kernel prints the words of the address in host notation
+    for (int w = 0; w < ws; w++) {
+        uint32_t v;
+        memcpy(&v, addr + w * 4, 4);
+        fprintf(f, "%08X", v);
+    }
+    fprintf(f, ":%04X", port);
+}
+
+static void print_row(FILE *f, int sl, int ws, int width, int udp,
+                      const uint8_t *saddr, uint16_t sport,
+                      const uint8_t *daddr, uint16_t dport,
+                      int state, jint uid, int inode) {
+    // tcp4_seq_show, tcp6_seq_show, udp4_format_sock and udp6_seq_show
+    char line[256];
+    FILE *m = fmemopen(line, sizeof(line), "w");
+    fprintf(m, "%4d: ", sl);
+    print_address(m, saddr, ws, sport);
+    fprintf(m, " ");
+    print_address(m, daddr, ws, dport);
+    fprintf(m, " %02X %08X:%08X %02X:%08lX %08X %5u %8d %lu %d %016x",
+            state, 0, 0, 0, 0UL, 0, uid, 0, (unsigned long) inode, 1, 0);
+    if (udp)
+        fprintf(m, " %u", 0); // drops
+    else
+        fprintf(m, " %lu %lu %u %u %d", 20UL, 4UL, 30, 10, -1);
+    fclose(m);
+    fprintf(f, "%-*s\n", width, line); // IPv4 rows are padded
+}
+
+static void random_address(uint8_t *addr, int ws) {
+    // Public IPv4, IPv4 mapped for IPv6 files
+    memset(addr, 0, 16);
+    uint32_t v4 = bench_rand();
+    if (ws == 1)
+        memcpy(addr, &v4, 4);
+    else {
+        addr[10] = 0xFF;
+        addr[11] = 0xFF;
+        memcpy(addr + 12, &v4, 4);
+    }
+}
+
+static int generate() {
+    const char *tcp6header = "  sl  local_address                         remote_address"
+                             "                        st tx_queue rx_queue tr tm->when retrnsmt"
+                             "   uid  timeout inode\n";
+    const char *tcpheader = "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when"
+                            " retrnsmt   uid  timeout inode";
+
+    char path[PATH_MAX];
+    FILE *f[4];
+    const char *name[4] = {"tcp", "tcp6", "udp", "udp6"};
+    for (int n = 0; n < 4; n++) {
+        snprintf(path, sizeof(path), "%s/%s", directory, name[n]);
+        if ((f[n] = __real_fopen(path, "w")) == NULL) {
+            perror(path);
+            return -1;
+        }
+    }
+    fprintf(f[0], "%-149s\n", tcpheader);
+    fprintf(f[1], "%s", tcp6header);
+    fprintf(f[2], "%-127s\n", "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when"
+                              " retrnsmt   uid  timeout inode ref pointer drops");
+    fprintf(f[3], "%s", "  sl  local_address                         remote_address"
+                        "                        st tx_queue rx_queue tr tm->when retrnsmt"
+                        "   uid  timeout inode ref pointer drops\n");
+
+    // Listening sockets have zero addresses and match any connection to their port
+    uint8_t any[16];
+    memset(any, 0, sizeof(any));
+    for (int i = 0; i < LISTEN_ROWS; i++) {
+        print_row(f[1], i, 4, 0, 0, any, (uint16_t) (8000 + i), any, 0, 0x0A, 10000 + i, 50000 + i);
+        print_row(f[0], i, 1, 149, 0, any, (uint16_t) (9000 + i), any, 0, 0x0A, 10000 + i, 60000 + i);
+    }
+
+    // Established connections of 50 apps to port 443, distinct local ports
+    for (int i = 0; i < TCP6_ROWS + TCP_ROWS; i++) {
+        struct connection *c = &connection[i];
+        c->ws = (i < TCP6_ROWS ? 4 : 1);
+        random_address(c->saddr, c->ws);
+        random_address(c->daddr, c->ws);
+        c->sport = (uint16_t) (32768 + i * 23);
+        c->dport = 443;
+        c->uid = 10000 + i % 50;
+        if (c->ws == 4)
+            print_row(f[1], LISTEN_ROWS + i, 4, 0, 0,
+                      c->saddr, c->sport, c->daddr, c->dport, 0x01, c->uid, 100000 + i);
+        else
+            print_row(f[0], LISTEN_ROWS + i - TCP6_ROWS, 1, 149, 0,
+                      c->saddr, c->sport, c->daddr, c->dport, 0x01, c->uid, 100000 + i);
+    }
+
+    // Some name server sockets
+    for (int i = 0; i < 10; i++) {
+        uint8_t saddr[16];
+        uint8_t daddr[16];
+        random_address(saddr, 1);
+        random_address(daddr, 1);
+        print_row(f[2], i, 1, 127, 1, saddr, (uint16_t) (40000 + i), daddr, 53, 0x01, 10000 + i, 70000 + i);
+        random_address(saddr, 4);
+        random_address(daddr, 4);
+        print_row(f[3], i, 4, 0, 1, saddr, (uint16_t) (41000 + i), daddr, 53, 0x01, 10000 + i, 80000 + i);
+    }
+
+    for (int n = 0; n < 4; n++)
+        fclose(f[n]);
+    return 0;
+}
+
+// The lookup before the index of uid.c: a list of rows and a scan of the file per miss
+#define REFERENCE_MAX_AGE 30000 // ms
+
+struct reference_entry {
+    long time;
+    int version;
+    uint8_t saddr[16];
+    uint16_t sport;
+    uint8_t daddr[16];
+    uint16_t dport;
+    jint uid;
+};
+
+static struct reference_entry *reference_cache = NULL;
+static int reference_size = 0;
+
+static jint reference_get_uid_sub(int version, const void *saddr, uint16_t sport,
+                                  const void *daddr, uint16_t dport, long now) {
+    static uint8_t zero[16];
+    int ws = (version == 4 ? 1 : 4);
+
+    for (int i = 0; i < reference_size; i++) {
+        struct reference_entry *e = &reference_cache[i];
+        if (now - e->time <= REFERENCE_MAX_AGE && e->version == version && e->sport == sport &&
+            (e->dport == dport || e->dport == 0) &&
+            (memcmp(e->saddr, saddr, ws * 4) == 0 || memcmp(e->saddr, zero, ws * 4) == 0) &&
+            (memcmp(e->daddr, daddr, ws * 4) == 0 || memcmp(e->daddr, zero, ws * 4) == 0))
+            return e->uid;
+    }
+
+    FILE *fd = fopen(version == 4 ? "/proc/net/tcp" : "/proc/net/tcp6", "r");
+    if (fd == NULL)
+        return -2;
+
+    jint uid = -1;
+    char line[250];
+    char shex[16 * 2 + 1];
+    char dhex[16 * 2 + 1];
+    uint8_t _saddr[16];
+    uint8_t _daddr[16];
+    int _sport;
+    int _dport;
+    jint _uid;
+    const char *fmt = (version == 4
+                       ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
+                       : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
+    int l = 0;
+    int c = 0;
+    while (fgets(line, sizeof(line), fd) != NULL) {
+        if (!l++)
+            continue;
+
+        if (sscanf(line, fmt, shex, &_sport, dhex, &_dport, &_uid) != 5)
+            continue;
+        hex2bytes(shex, _saddr);
+        hex2bytes(dhex, _daddr);
+        for (int w = 0; w < ws; w++) {
+            ((uint32_t *) _saddr)[w] = htonl(((uint32_t *) _saddr)[w]);
+            ((uint32_t *) _daddr)[w] = htonl(((uint32_t *) _daddr)[w]);
+        }
+
+        if (_sport == sport &&
+            (_dport == dport || _dport == 0) &&
+            (memcmp(_saddr, saddr, ws * 4) == 0 || memcmp(_saddr, zero, ws * 4) == 0) &&
+            (memcmp(_daddr, daddr, ws * 4) == 0 || memcmp(_daddr, zero, ws * 4) == 0))
+            uid = _uid;
+
+        // Every row was cached, growing the list one entry at a time
+        for (; c < reference_size; c++)
+            if (now - reference_cache[c].time > REFERENCE_MAX_AGE)
+                break;
+        if (c >= reference_size) {
+            reference_cache = realloc(reference_cache,
+                                      (reference_size + 1) * sizeof(struct reference_entry));
+            c = reference_size++;
+        }
+        struct reference_entry *e = &reference_cache[c];
+        e->version = version;
+        memcpy(e->saddr, _saddr, ws * 4);
+        e->sport = (uint16_t) _sport;
+        memcpy(e->daddr, _daddr, ws * 4);
+        e->dport = (uint16_t) _dport;
+        e->uid = _uid;
+        e->time = now;
+    }
+
+    fclose(fd);
+    return uid;
+}
+
+static jint reference_get_uid(const void *saddr, uint16_t sport,
+                              const void *daddr, uint16_t dport) {
+    // IPv4 connections, the IPv6 file first
+    long now = (long) get_ms();
+    uint8_t saddr128[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0xFF, 0xFF};
+    uint8_t daddr128[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0xFF, 0xFF};
+    memcpy(saddr128 + 12, saddr, 4);
+    memcpy(daddr128 + 12, daddr, 4);
+    jint uid = reference_get_uid_sub(6, saddr128, sport, daddr128, dport, now);
+    if (uid == -1)
+        uid = reference_get_uid_sub(4, saddr, sport, daddr, dport, now);
+    return uid;
+}
+
+static const uint8_t *get_ip4(const struct connection *c, int daddr) {
+    const uint8_t *addr = (daddr ? c->daddr : c->saddr);
+    return (c->ws == 4 ? addr + 12 : addr);
+}
+
+int main(int argc, char *argv[]) {
+    loglevel = ANDROID_LOG_WARN;
+
+    if (argc > 1)
+        snprintf(directory, sizeof(directory), "%s", argv[1]);
+    else {
+        strcpy(directory, "/tmp/uidbenchXXXXXX");
+        if (mkdtemp(directory) == NULL) {
+            perror("mkdtemp");
+            return 1;
+        }
+    }
+    if (generate())
+        return 1;
+
+    // A burst of new connections, most of them in tcp6
+    int burst[BURST];
+    for (int i = 0; i < BURST - BURST_TCP; i++)
+        burst[i] = i * (TCP6_ROWS / (BURST - BURST_TCP));
+    for (int i = 0; i < BURST_TCP; i++)
+        burst[BURST - BURST_TCP + i] = TCP6_ROWS + i * (TCP_ROWS / BURST_TCP);
+
+    int wrong = 0;
+    reads = 0;
+    double start = bench_ns();
+    for (int i = 0; i < BURST; i++) {
+        const struct connection *c = &connection[burst[i]];
+        if (reference_get_uid(get_ip4(c, 0), c->sport, get_ip4(c, 1), c->dport) != c->uid)
+            wrong++;
+    }
+    double reference = bench_ns() - start;
+    int reference_reads = reads;
+
+    reads = 0;
+    start = bench_ns();
+    for (int i = 0; i < BURST; i++) {
+        const struct connection *c = &connection[burst[i]];
+        if (get_uid(4, IPPROTO_TCP, get_ip4(c, 0), c->sport, get_ip4(c, 1), c->dport) != c->uid)
+            wrong++;
+    }
+    double indexed = bench_ns() - start;
+
+    // A connection to a listening socket
+    uint8_t addr[4] = {127, 0, 0, 1};
+    if (get_uid(4, IPPROTO_TCP, addr, 9005, addr, 50123) != 10005)
+        wrong++;
+
+    printf("burst of %d connections, %d + %d rows: before %.2f ms %d reads, after %.3f ms %d reads\n",
+           BURST, TCP6_ROWS + LISTEN_ROWS, TCP_ROWS + LISTEN_ROWS,
+           reference / 1e6, reference_reads, indexed / 1e6, reads);
+
+    // Lookups of known connections
+    int rounds = 100;
+    start = bench_ns();
+    for (int r = 0; r < rounds; r++)
+        for (int i = 0; i < BURST; i++) {
+            const struct connection *c = &connection[burst[i]];
+            bench_sink += reference_get_uid(get_ip4(c, 0), c->sport, get_ip4(c, 1), c->dport);
+        }
+    reference = (bench_ns() - start) / (rounds * BURST);
+
+    start = bench_ns();
+    for (int r = 0; r < rounds; r++)
+        for (int i = 0; i < BURST; i++) {
+            const struct connection *c = &connection[burst[i]];
+            bench_sink += get_uid(4, IPPROTO_TCP,
+                                  get_ip4(c, 0), c->sport, get_ip4(c, 1), c->dport);
+        }
+    indexed = (bench_ns() - start) / (rounds * BURST);
+
+    printf("known connection: before %.0f ns, after %.0f ns\n", reference, indexed);
+
+    if (wrong) {
+        printf("%d wrong uids\n", wrong);
+        return 1;
+    }
+    return 0;
+}
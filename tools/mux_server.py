@@ -0,0 +1,218 @@
+#!/usr/bin/env python3
+"""Reference server for the stream multiplexing of TunProxy.
+
+Sessions are carried as streams over a few TCP connections with yamux framing
+(https://github.com/hashicorp/yamux/blob/master/spec.md).
+Every stream starts with a SOCKS5 connect request and gets a SOCKS5 reply,
+then the data is relayed to the destination.
+
+    python3 mux_server.py [--host 0.0.0.0] [--port 1081]
+"""
+
+import argparse
+import asyncio
+import ipaddress
+import logging
+import struct
+
+DATA, WINDOW_UPDATE, PING, GO_AWAY = 0, 1, 2, 3
+SYN, ACK, FIN, RST = 1, 2, 4, 8
+HEADER = struct.Struct('>BBHII')
+WINDOW = 256 * 1024
+READ = 16 * 1024
+
+
+class Stream:
+    def __init__(self, session, stream_id):
+        self.session = session
+        self.id = stream_id
+        self.window = WINDOW  # bytes the client accepts
+        self.window_open = asyncio.Event()
+        self.window_open.set()
+        self.writer = None
+        self.task = None
+        self.forwarder = None
+        self.pending = bytearray()  # data not written to the destination yet
+        self.uplink = asyncio.Event()  # pending data or the FIN of the client
+        self.connected = False
+        self.closed = False
+        self.fin_local = False  # by the client
+        self.fin_remote = False  # by the destination
+
+    def consume(self, n):
+        self.window -= n
+        if self.window <= 0:
+            self.window_open.clear()
+
+    def update(self, n):
+        self.window += n
+        if self.window > 0:
+            self.window_open.set()
+
+
+class Session:
+    def __init__(self, reader, writer):
+        self.reader = reader
+        self.writer = writer
+        self.streams = {}
+
+    def send(self, type_, flags, stream_id, length, data=b''):
+        if not self.writer.is_closing():
+            self.writer.write(HEADER.pack(0, type_, flags, stream_id, length) + data)
+
+    async def run(self):
+        try:
+            while True:
+                header = await self.reader.readexactly(HEADER.size)
+                version, type_, flags, stream_id, length = HEADER.unpack(header)
+                if version != 0:
+                    raise ValueError('version %d' % version)
+                data = b''
+                if type_ == DATA and length:
+                    data = await self.reader.readexactly(length)
+                self.frame(type_, flags, stream_id, length, data)
+        except (asyncio.IncompleteReadError, ConnectionError, ValueError) as e:
+            logging.info('session closed: %r', e)
+        finally:
+            for stream in list(self.streams.values()):
+                self.close(stream)
+            self.writer.close()
+
+    def frame(self, type_, flags, stream_id, length, data):
+        if type_ == PING:
+            if flags & SYN:
+                self.send(PING, ACK, 0, length)
+            return
+        if type_ == GO_AWAY:
+            raise ConnectionError('go away')
+
+        stream = self.streams.get(stream_id)
+        if flags & SYN and stream is None:
+            stream = Stream(self, stream_id)
+            self.streams[stream_id] = stream
+            stream.pending += data
+            stream.task = asyncio.ensure_future(self.open(stream))
+            return
+        if stream is None:
+            return
+
+        if flags & RST:
+            self.close(stream)
+            return
+        if type_ == WINDOW_UPDATE:
+            stream.update(length)
+        elif data:
+            stream.pending += data
+            stream.uplink.set()
+        if flags & FIN:
+            stream.fin_local = True
+            stream.uplink.set()
+
+    async def open(self, stream):
+        # SOCKS5 connect request: version, command, reserved, address type, address, port
+        request = bytes(stream.pending)
+        reply = b'\x05\x01\x00\x01\x00\x00\x00\x00\x00\x00'
+        try:
+            if len(request) < 4 or request[0] != 5 or request[1] != 1:
+                raise ValueError('request')
+            if request[3] == 1:
+                host, end = str(ipaddress.IPv4Address(request[4:8])), 8
+            elif request[3] == 4:
+                host, end = str(ipaddress.IPv6Address(request[4:20])), 20
+            else:
+                raise ValueError('address type %d' % request[3])
+            port = struct.unpack('>H', request[end:end + 2])[0]
+            stream.pending = bytearray(request[end + 2:])
+
+            reader, stream.writer = await asyncio.open_connection(host, port)
+            logging.debug('stream %d connected to %s:%d', stream.id, host, port)
+        except (OSError, ValueError) as e:
+            logging.info('stream %d connect failed: %r', stream.id, e)
+            self.send(DATA, ACK | FIN, stream.id, len(reply), reply)
+            self.close(stream)
+            return
+
+        reply = b'\x05\x00\x00\x01\x00\x00\x00\x00\x00\x00'
+        self.send(DATA, ACK, stream.id, len(reply), reply)
+        stream.consume(len(reply))
+        stream.connected = True
+        # The data after the request is credited when it was written
+        self.send(WINDOW_UPDATE, 0, stream.id, end + 2)
+        stream.uplink.set()
+        stream.forwarder = asyncio.ensure_future(self.forward(stream))
+
+        # Relay to the client within its window
+        try:
+            while not stream.closed:
+                await stream.window_open.wait()
+                data = await reader.read(min(READ, stream.window))
+                if stream.closed:
+                    break
+                if not data:
+                    self.send(WINDOW_UPDATE, FIN, stream.id, 0)
+                    stream.fin_remote = True
+                    if stream.forwarder.done():
+                        self.close(stream)
+                    break
+                self.send(DATA, 0, stream.id, len(data), data)
+                stream.consume(len(data))
+                await self.writer.drain()
+        except ConnectionError:
+            self.send(WINDOW_UPDATE, RST, stream.id, 0)
+            self.close(stream)
+
+    async def forward(self, stream):
+        # Relay to the destination, the window of the client is given back
+        # only when the destination took the data, so a slow destination holds back the client
+        try:
+            while not stream.closed:
+                await stream.uplink.wait()
+                stream.uplink.clear()
+                if stream.closed:
+                    break
+                if stream.pending:
+                    data = bytes(stream.pending)
+                    stream.pending.clear()
+                    stream.writer.write(data)
+                    await stream.writer.drain()
+                    if stream.closed:
+                        break
+                    self.send(WINDOW_UPDATE, 0, stream.id, len(data))
+                if stream.fin_local and not stream.pending:
+                    if stream.fin_remote:
+                        self.close(stream)
+                    elif stream.writer.can_write_eof():
+                        stream.writer.write_eof()
+                    break
+        except ConnectionError:
+            self.send(WINDOW_UPDATE, RST, stream.id, 0)
+            self.close(stream)
+
+    def close(self, stream):
+        stream.closed = True
+        stream.window_open.set()
+        stream.uplink.set()
+        self.streams.pop(stream.id, None)
+        if stream.writer is not None:
+            stream.writer.close()
+
+
+async def main():
+    parser = argparse.ArgumentParser(description=__doc__.splitlines()[0])
+    parser.add_argument('--host', default='0.0.0.0')
+    parser.add_argument('--port', type=int, default=1081)
+    parser.add_argument('--verbose', action='store_true')
+    args = parser.parse_args()
+    logging.basicConfig(level=logging.DEBUG if args.verbose else logging.INFO)
+
+    async def accept(reader, writer):
+        logging.info('session from %s', writer.get_extra_info('peername'))
+        await Session(reader, writer).run()
+
+    server = await asyncio.start_server(accept, args.host, args.port)
+    async with server:
+        await server.serve_forever()
+
+
+if __name__ == '__main__':
+    asyncio.run(main())